@@ -0,0 +1,90 @@
+/**
+ * Copyright 2017-2020 O2 Czech Republic, a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.o2.proxima.metrics;
+
+import cz.o2.proxima.annotations.Evolving;
+import cz.o2.proxima.functional.UnaryFunction;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanRegistrationException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.NotCompliantMBeanException;
+import javax.management.ObjectName;
+import lombok.extern.slf4j.Slf4j;
+
+/** Registry of {@link Metric Metrics} exported via JMX. */
+@Evolving
+@Slf4j
+public class MetricsRegistry {
+
+  private static final MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+  private static final Map<String, Metric<?>> EXISTING_METRICS = new ConcurrentHashMap<>();
+
+  /**
+   * Retrieve existing or create new metric and register it with {@link MBeanServer}.
+   *
+   * @param group group of the metric
+   * @param name name of the metric
+   * @param factory factory to create the metric with given name
+   * @param <T> type of the metric value
+   * @param <M> type of the metric
+   * @return the metric
+   */
+  @SuppressWarnings("unchecked")
+  public static <T, M extends Metric<T>> M getOrCreate(
+      String group, String name, UnaryFunction<String, M> factory) {
+
+    return (M)
+        EXISTING_METRICS.computeIfAbsent(
+            group + "." + name,
+            tmp -> {
+              M metric = factory.apply(name);
+              registerWithMBeanServer(metric);
+              return metric;
+            });
+  }
+
+  /**
+   * Convert given string to name usable in JMX object name.
+   *
+   * @param name the name to convert
+   * @return the converted name
+   */
+  public static String toJmxCompatibleName(String name) {
+    return name.replaceAll("[^a-zA-Z0-9_.]", "_");
+  }
+
+  private static void registerWithMBeanServer(Metric<?> m) {
+    try {
+      ObjectName mxbeanName =
+          new ObjectName(
+              m.getGroup() + "." + m.getName() + ":type=" + m.getClass().getSimpleName());
+      mbs.registerMBean(m, mxbeanName);
+    } catch (InstanceAlreadyExistsException
+        | MBeanRegistrationException
+        | NotCompliantMBeanException
+        | MalformedObjectNameException ex) {
+      log.warn("Failed to register metric {} with MBeanServer", m, ex);
+    }
+  }
+
+  private MetricsRegistry() {
+    // nop
+  }
+}
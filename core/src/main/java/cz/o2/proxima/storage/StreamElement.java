@@ -19,6 +19,8 @@ import com.google.common.base.MoreObjects;
 import cz.o2.proxima.annotations.Evolving;
 import cz.o2.proxima.repository.AttributeDescriptor;
 import cz.o2.proxima.repository.EntityDescriptor;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.Date;
 import java.util.Objects;
@@ -131,7 +133,11 @@ public class StreamElement implements Serializable {
 
   @Getter private final AttributeDescriptor<?> attributeDescriptor;
 
-  @Getter private final String uuid;
+  /**
+   * UUID of the element, {@code null} until computed by {@link #computeUuid()}. Volatile, so that
+   * the value computed by one thread is safely published to other threads.
+   */
+  @Nullable private volatile String uuid;
 
   @Getter private final String key;
 
@@ -155,9 +161,25 @@ public class StreamElement implements Serializable {
       boolean deleteWildcard,
       @Nullable byte[] value) {
 
+    this(entityDesc, attributeDesc, key, attribute, stamp, deleteWildcard, value);
+    this.uuid = Objects.requireNonNull(uuid);
+  }
+
+  /**
+   * Create element with UUID computed lazily on first call to {@link #getUuid()}. Subclasses using
+   * this constructor must override {@link #computeUuid()}.
+   */
+  protected StreamElement(
+      EntityDescriptor entityDesc,
+      AttributeDescriptor<?> attributeDesc,
+      String key,
+      String attribute,
+      long stamp,
+      boolean deleteWildcard,
+      @Nullable byte[] value) {
+
     this.entityDescriptor = Objects.requireNonNull(entityDesc);
     this.attributeDescriptor = Objects.requireNonNull(attributeDesc);
-    this.uuid = Objects.requireNonNull(uuid);
     this.key = Objects.requireNonNull(key);
     this.attribute = Objects.requireNonNull(attribute);
     this.stamp = stamp;
@@ -165,10 +187,40 @@ public class StreamElement implements Serializable {
     this.deleteWildcard = deleteWildcard;
   }
 
+  /**
+   * Retrieve UUID of the element.
+   *
+   * @return the UUID
+   */
+  public String getUuid() {
+    String ret = uuid;
+    if (ret == null) {
+      // concurrent threads might compute the UUID more than once, the value is always the same
+      ret = Objects.requireNonNull(computeUuid());
+      uuid = ret;
+    }
+    return ret;
+  }
+
+  /**
+   * Compute UUID of element created without it.
+   *
+   * @return the UUID
+   */
+  protected String computeUuid() {
+    throw new IllegalStateException("Missing UUID of element of class " + getClass());
+  }
+
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    // serialized form always contains the UUID, as it did before it was computed lazily
+    getUuid();
+    out.defaultWriteObject();
+  }
+
   @Override
   public String toString() {
     return MoreObjects.toStringHelper(this)
-        .add("uuid", uuid)
+        .add("uuid", getUuid())
         .add("entityDesc", entityDescriptor)
         .add("attributeDesc", attributeDescriptor)
         .add("key", key)
@@ -222,14 +274,14 @@ public class StreamElement implements Serializable {
   @Override
   public boolean equals(Object obj) {
     if (obj instanceof StreamElement) {
-      return ((StreamElement) obj).uuid.equals(uuid);
+      return ((StreamElement) obj).getUuid().equals(getUuid());
     }
     return false;
   }
 
   @Override
   public int hashCode() {
-    return uuid.hashCode();
+    return getUuid().hashCode();
   }
 
   /**
@@ -242,7 +294,7 @@ public class StreamElement implements Serializable {
     AttributeDescriptor<Object> attrDesc = (AttributeDescriptor<Object>) getAttributeDescriptor();
     Optional<Object> parsedValue = getParsed();
     return MoreObjects.toStringHelper(getClass())
-        .add("uuid", uuid)
+        .add("uuid", getUuid())
         .add("entityDesc", entityDescriptor)
         .add("attributeDesc", attributeDescriptor)
         .add("key", key)
@@ -22,6 +22,7 @@ import cz.o2.proxima.repository.AttributeDescriptor;
 import cz.o2.proxima.repository.EntityDescriptor;
 import cz.o2.proxima.repository.Repository;
 import cz.o2.proxima.util.TestUtils;
+import java.io.IOException;
 import java.util.UUID;
 import org.junit.Test;
 
@@ -159,4 +160,31 @@ public class StreamElementTest {
     TestUtils.assertHashCodeAndEquals(element1, element2);
     TestUtils.assertHashCodeAndEquals(element1, element3);
   }
+
+  @Test
+  public void testLazyUuid() throws IOException, ClassNotFoundException {
+    LazyUuidElement element = new LazyUuidElement(gateway, armed);
+    assertEquals("lazy-uuid", element.getUuid());
+    assertEquals("lazy-uuid", element.getUuid());
+    assertEquals(1, element.computations);
+    LazyUuidElement deserialized = TestUtils.assertSerializable(element);
+    assertEquals("lazy-uuid", deserialized.getUuid());
+    // the UUID is part of the serialized form, it is not computed again
+    assertEquals(1, deserialized.computations);
+  }
+
+  private static class LazyUuidElement extends StreamElement {
+
+    int computations = 0;
+
+    LazyUuidElement(EntityDescriptor entity, AttributeDescriptor<?> attr) {
+      super(entity, attr, "key", attr.getName(), 1L, false, new byte[] {1});
+    }
+
+    @Override
+    protected String computeUuid() {
+      computations++;
+      return "lazy-uuid";
+    }
+  }
 }
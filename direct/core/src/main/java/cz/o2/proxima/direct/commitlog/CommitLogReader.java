@@ -21,7 +21,9 @@ import cz.o2.proxima.storage.commitlog.Position;
 import java.io.Serializable;
 import java.net.URI;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 /**
@@ -284,4 +286,16 @@ public interface CommitLogReader extends Serializable {
   default boolean hasExternalizableOffsets() {
     return false;
   }
+
+  /**
+   * Fetch number of records between given offsets and current end of their partitions. Supported
+   * only by readers with {@link #hasExternalizableOffsets() externalizable offsets}, other readers
+   * return empty map.
+   *
+   * @param offsets offsets of last processed records of the partitions
+   * @return map of partition id to number of records not yet processed
+   */
+  default Map<Integer, Long> fetchOffsetLag(Collection<Offset> offsets) {
+    return Collections.emptyMap();
+  }
 }
@@ -0,0 +1,80 @@
+/**
+ * Copyright 2017-2020 O2 Czech Republic, a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.o2.proxima.direct.commitlog;
+
+import cz.o2.proxima.metrics.ApproxPercentileMetric;
+import cz.o2.proxima.metrics.GaugeMetric;
+import cz.o2.proxima.metrics.MetricsRegistry;
+import java.io.Serializable;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import lombok.Getter;
+
+/** Metrics of single consumer of {@link CommitLogReader}. */
+class ConsumerMetrics implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  static final String GROUP = "cz.o2.proxima.direct.commitlog";
+
+  static ConsumerMetrics of(String consumer) {
+    return new ConsumerMetrics(MetricsRegistry.toJmxCompatibleName(consumer));
+  }
+
+  private final String prefix;
+
+  /** Difference between processing time and event time of elements in milliseconds. */
+  @Getter private final ApproxPercentileMetric latency;
+
+  /** Duration of {@link LogObserver#onNext} in microseconds. */
+  @Getter private final ApproxPercentileMetric onNextDuration;
+
+  /** Time between delivery of element and its confirmation in milliseconds. */
+  @Getter private final ApproxPercentileMetric deliveryToConfirm;
+
+  private final Map<Integer, GaugeMetric> partitionLags = new ConcurrentHashMap<>();
+
+  private ConsumerMetrics(String prefix) {
+    this.prefix = prefix;
+    this.latency = percentile(prefix + "_latency");
+    this.onNextDuration = percentile(prefix + "_on_next_duration");
+    this.deliveryToConfirm = percentile(prefix + "_delivery_to_confirm");
+  }
+
+  /**
+   * Retrieve gauge of number of records not yet processed in given partition.
+   *
+   * @param partition id of the partition
+   * @return the gauge
+   */
+  GaugeMetric getPartitionLag(int partition) {
+    return partitionLags.computeIfAbsent(
+        partition,
+        id ->
+            MetricsRegistry.getOrCreate(
+                GROUP, prefix + "_partition_" + id + "_lag", name -> GaugeMetric.of(GROUP, name)));
+  }
+
+  private static ApproxPercentileMetric percentile(String name) {
+    return MetricsRegistry.getOrCreate(
+        GROUP,
+        name,
+        n ->
+            ApproxPercentileMetric.of(
+                GROUP, n, Duration.ofHours(1).toMillis(), Duration.ofMinutes(5).toMillis()));
+  }
+}
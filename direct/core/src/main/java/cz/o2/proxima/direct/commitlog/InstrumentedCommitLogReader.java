@@ -0,0 +1,271 @@
+/**
+ * Copyright 2017-2020 O2 Czech Republic, a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.o2.proxima.direct.commitlog;
+
+import com.google.common.annotations.VisibleForTesting;
+import cz.o2.proxima.direct.core.Partition;
+import cz.o2.proxima.functional.UnaryFunction;
+import cz.o2.proxima.storage.commitlog.Position;
+import java.net.URI;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * {@link CommitLogReader} recording metrics of all its observers to {@link
+ * cz.o2.proxima.metrics.MetricsRegistry}:
+ *
+ * <ul>
+ *   <li>{@code <consumer>_latency} - difference between processing time and event time of elements
+ *       in milliseconds
+ *   <li>{@code <consumer>_on_next_duration} - duration of {@link LogObserver#onNext} in
+ *       microseconds
+ *   <li>{@code <consumer>_delivery_to_confirm} - time between delivery of element and its
+ *       confirmation in milliseconds
+ *   <li>{@code <consumer>_partition_<id>_lag} - number of records not yet processed in partition,
+ *       available only for readers with {@link #hasExternalizableOffsets() externalizable offsets}
+ * </ul>
+ *
+ * <p>The {@code <consumer>} is name of the attribute family followed by name of the observer.
+ *
+ * <p>Confirmed offsets are committed to the commit log by the wrapped reader in its own way (e.g.
+ * kafka commits them periodically), which is not visible to this wrapper, so the delay between
+ * confirmation and commit is not measured.
+ */
+@Slf4j
+public class InstrumentedCommitLogReader implements CommitLogReader {
+
+  private static final long serialVersionUID = 1L;
+
+  /** Enable metrics of consumers of the attribute family. Defaults to {@code false}. */
+  public static final String METRICS_ENABLED_CFG = "metrics.consumer.enabled";
+
+  /** Interval of fetching of partition lags in milliseconds. */
+  public static final String LAG_INTERVAL_MS_CFG = "metrics.consumer.lag-interval-ms";
+
+  private static final String UNNAMED_PREFIX = "unnamed-proxima-";
+
+  /**
+   * Wrap given reader to record metrics of its consumers, if enabled by {@link
+   * #METRICS_ENABLED_CFG}. The reader is returned unchanged otherwise.
+   *
+   * @param reader the reader to wrap
+   * @param family name of the attribute family of the reader
+   * @param cfg configuration of the attribute family
+   * @return the reader to use
+   */
+  public static CommitLogReader of(CommitLogReader reader, String family, Map<String, Object> cfg) {
+    boolean enabled =
+        Optional.ofNullable(cfg.get(METRICS_ENABLED_CFG))
+            .map(v -> Boolean.valueOf(v.toString()))
+            .orElse(false);
+    if (!enabled) {
+      return reader;
+    }
+    long lagIntervalMs =
+        Optional.ofNullable(cfg.get(LAG_INTERVAL_MS_CFG))
+            .map(v -> Long.valueOf(v.toString()))
+            .orElse(10_000L);
+    return new InstrumentedCommitLogReader(reader, family, lagIntervalMs);
+  }
+
+  private static class LagPoller {
+    static final ScheduledExecutorService INSTANCE =
+        Executors.newSingleThreadScheduledExecutor(
+            r -> {
+              Thread t = new Thread(r, "consumer-lag-poller");
+              t.setDaemon(true);
+              return t;
+            });
+  }
+
+  private final CommitLogReader reader;
+  private final String family;
+  private final long lagIntervalMs;
+
+  @VisibleForTesting
+  InstrumentedCommitLogReader(CommitLogReader reader, String family, long lagIntervalMs) {
+    this.reader = reader;
+    this.family = family;
+    this.lagIntervalMs = lagIntervalMs;
+  }
+
+  @Override
+  public URI getUri() {
+    return reader.getUri();
+  }
+
+  @Override
+  public List<Partition> getPartitions() {
+    return reader.getPartitions();
+  }
+
+  @Override
+  public ObserveHandle observe(String name, Position position, LogObserver observer) {
+    return instrument(name, observer, o -> reader.observe(name, position, o));
+  }
+
+  @Override
+  public ObserveHandle observePartitions(
+      String name,
+      Collection<Partition> partitions,
+      Position position,
+      boolean stopAtCurrent,
+      LogObserver observer) {
+
+    return instrument(
+        name,
+        observer,
+        o -> reader.observePartitions(name, partitions, position, stopAtCurrent, o));
+  }
+
+  @Override
+  public ObserveHandle observeBulk(
+      String name, Position position, boolean stopAtCurrent, LogObserver observer) {
+
+    return instrument(name, observer, o -> reader.observeBulk(name, position, stopAtCurrent, o));
+  }
+
+  @Override
+  public ObserveHandle observeBulkPartitions(
+      String name,
+      Collection<Partition> partitions,
+      Position position,
+      boolean stopAtCurrent,
+      LogObserver observer) {
+
+    return instrument(
+        name,
+        observer,
+        o -> reader.observeBulkPartitions(name, partitions, position, stopAtCurrent, o));
+  }
+
+  @Override
+  public ObserveHandle observeBulkOffsets(Collection<Offset> offsets, LogObserver observer) {
+    return instrument(null, observer, o -> reader.observeBulkOffsets(offsets, o));
+  }
+
+  @Override
+  public boolean hasExternalizableOffsets() {
+    return reader.hasExternalizableOffsets();
+  }
+
+  @Override
+  public Map<Integer, Long> fetchOffsetLag(Collection<Offset> offsets) {
+    return reader.fetchOffsetLag(offsets);
+  }
+
+  private ObserveHandle instrument(
+      @Nullable String name,
+      LogObserver observer,
+      UnaryFunction<LogObserver, ObserveHandle> observe) {
+
+    boolean trackLag = lagIntervalMs > 0 && reader.hasExternalizableOffsets();
+    InstrumentedLogObserver instrumented =
+        new InstrumentedLogObserver(observer, ConsumerMetrics.of(consumerName(name)), trackLag);
+    ObserveHandle handle = observe.apply(instrumented);
+    if (!trackLag) {
+      return handle;
+    }
+    return new LagTrackingHandle(handle, instrumented);
+  }
+
+  @VisibleForTesting
+  String consumerName(@Nullable String name) {
+    if (name == null || name.startsWith(UNNAMED_PREFIX)) {
+      return family + "_unnamed";
+    }
+    return family + "_" + name;
+  }
+
+  @VisibleForTesting
+  void updateLag(InstrumentedLogObserver observer) {
+    Map<Integer, Offset> offsets = observer.getLastOffsets();
+    if (!offsets.isEmpty()) {
+      try {
+        reader
+            .fetchOffsetLag(offsets.values())
+            .forEach((id, lag) -> observer.getMetrics().getPartitionLag(id).increment(lag));
+      } catch (Exception ex) {
+        log.warn("Failed to fetch lag of partitions of {}", getUri(), ex);
+      }
+    }
+  }
+
+  /** {@link ObserveHandle} that periodically updates lag of partitions. */
+  private class LagTrackingHandle implements ObserveHandle {
+
+    private static final long serialVersionUID = 1L;
+
+    private final ObserveHandle delegate;
+    private final transient ScheduledFuture<?> lagUpdates;
+
+    LagTrackingHandle(ObserveHandle delegate, InstrumentedLogObserver observer) {
+      this.delegate = delegate;
+      this.lagUpdates =
+          LagPoller.INSTANCE.scheduleWithFixedDelay(
+              () -> {
+                if (observer.isTerminated()) {
+                  cancelLagUpdates();
+                } else {
+                  updateLag(observer);
+                }
+              },
+              lagIntervalMs,
+              lagIntervalMs,
+              TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close() {
+      cancelLagUpdates();
+      delegate.close();
+    }
+
+    @Override
+    public List<Offset> getCommittedOffsets() {
+      return delegate.getCommittedOffsets();
+    }
+
+    @Override
+    public void resetOffsets(List<Offset> offsets) {
+      delegate.resetOffsets(offsets);
+    }
+
+    @Override
+    public List<Offset> getCurrentOffsets() {
+      return delegate.getCurrentOffsets();
+    }
+
+    @Override
+    public void waitUntilReady() throws InterruptedException {
+      delegate.waitUntilReady();
+    }
+
+    private void cancelLagUpdates() {
+      if (lagUpdates != null) {
+        lagUpdates.cancel(false);
+      }
+    }
+  }
+}
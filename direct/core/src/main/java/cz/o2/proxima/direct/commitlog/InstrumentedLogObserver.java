@@ -0,0 +1,130 @@
+/**
+ * Copyright 2017-2020 O2 Czech Republic, a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.o2.proxima.direct.commitlog;
+
+import cz.o2.proxima.direct.core.Partition;
+import cz.o2.proxima.storage.StreamElement;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import lombok.Getter;
+
+/** {@link LogObserver} recording {@link ConsumerMetrics} of upstream observer. */
+class InstrumentedLogObserver implements LogObserver {
+
+  private static final long serialVersionUID = 1L;
+
+  private final LogObserver upstream;
+  @Getter private final ConsumerMetrics metrics;
+  private final boolean trackOffsets;
+
+  /** Offsets of last elements delivered from each partition. */
+  @Getter private final Map<Integer, Offset> lastOffsets = new ConcurrentHashMap<>();
+
+  @Getter private volatile boolean terminated = false;
+
+  InstrumentedLogObserver(LogObserver upstream, ConsumerMetrics metrics, boolean trackOffsets) {
+    this.upstream = upstream;
+    this.metrics = metrics;
+    this.trackOffsets = trackOffsets;
+  }
+
+  @Override
+  public boolean onNext(StreamElement ingest, OnNextContext context) {
+    final long startNanos = System.nanoTime();
+    metrics.getLatency().increment(System.currentTimeMillis() - ingest.getStamp());
+    if (trackOffsets) {
+      lastOffsets.put(context.getPartition().getId(), context.getOffset());
+    }
+    try {
+      return upstream.onNext(ingest, new InstrumentedContext(context, startNanos));
+    } finally {
+      metrics.getOnNextDuration().increment((System.nanoTime() - startNanos) / 1_000.0);
+    }
+  }
+
+  @Override
+  public boolean onError(Throwable error) {
+    boolean ret = upstream.onError(error);
+    terminated = !ret;
+    return ret;
+  }
+
+  @Override
+  public void onCompleted() {
+    terminated = true;
+    upstream.onCompleted();
+  }
+
+  @Override
+  public void onCancelled() {
+    terminated = true;
+    upstream.onCancelled();
+  }
+
+  @Override
+  public void onRepartition(OnRepartitionContext context) {
+    Set<Integer> assigned =
+        context.partitions().stream().map(Partition::getId).collect(Collectors.toSet());
+    lastOffsets.keySet().retainAll(assigned);
+    upstream.onRepartition(context);
+  }
+
+  @Override
+  public void onIdle(OnIdleContext context) {
+    upstream.onIdle(context);
+  }
+
+  private class InstrumentedContext implements OnNextContext {
+
+    private static final long serialVersionUID = 1L;
+
+    private final OnNextContext context;
+    private final long startNanos;
+
+    InstrumentedContext(OnNextContext context, long startNanos) {
+      this.context = context;
+      this.startNanos = startNanos;
+    }
+
+    @Override
+    public OffsetCommitter committer() {
+      return this::commit;
+    }
+
+    @Override
+    public void commit(boolean success, Throwable error) {
+      metrics.getDeliveryToConfirm().increment((System.nanoTime() - startNanos) / 1_000_000.0);
+      context.commit(success, error);
+    }
+
+    @Override
+    public Partition getPartition() {
+      return context.getPartition();
+    }
+
+    @Override
+    public long getWatermark() {
+      return context.getWatermark();
+    }
+
+    @Override
+    public Offset getOffset() {
+      return context.getOffset();
+    }
+  }
+}
@@ -15,7 +15,10 @@
  */
 package cz.o2.proxima.direct.core;
 
+import com.google.common.base.Preconditions;
 import cz.o2.proxima.annotations.Stable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /** Callback for write and commit log operations. */
 @Stable
@@ -29,4 +32,31 @@ public interface CommitCallback {
    * @param error the error that was throws during the processing.
    */
   void commit(boolean success, Throwable error);
+
+  /**
+   * Create callback that delegates to given callback after being committed given number of times.
+   * The delegate is committed successfully only if all commits were successful, otherwise it
+   * receives the first error.
+   *
+   * @param numCommits number of commits to wait for
+   * @param delegate the callback to commit
+   * @return the callback
+   */
+  static CommitCallback afterNumCommits(int numCommits, CommitCallback delegate) {
+    Preconditions.checkArgument(numCommits > 0, "Number of commits must be positive");
+    AtomicInteger remaining = new AtomicInteger(numCommits);
+    AtomicReference<Throwable> firstError = new AtomicReference<>();
+    AtomicInteger failed = new AtomicInteger();
+    return (success, error) -> {
+      if (!success) {
+        failed.incrementAndGet();
+        if (error != null) {
+          firstError.compareAndSet(null, error);
+        }
+      }
+      if (remaining.decrementAndGet() == 0) {
+        delegate.commit(failed.get() == 0, firstError.get());
+      }
+    };
+  }
 }
@@ -17,6 +17,7 @@ package cz.o2.proxima.direct.core;
 
 import cz.o2.proxima.direct.batch.BatchLogObservable;
 import cz.o2.proxima.direct.commitlog.CommitLogReader;
+import cz.o2.proxima.direct.commitlog.InstrumentedCommitLogReader;
 import cz.o2.proxima.direct.randomaccess.RandomAccessReader;
 import cz.o2.proxima.direct.view.CachedView;
 import cz.o2.proxima.repository.AttributeDescriptor;
@@ -68,7 +69,9 @@ public class DirectAttributeFamilyDescriptor implements Serializable {
     this(
         desc,
         accessor.getWriter(context),
-        accessor.getCommitLogReader(context),
+        accessor
+            .getCommitLogReader(context)
+            .map(r -> InstrumentedCommitLogReader.of(r, desc.getName(), desc.getCfg())),
         accessor.getBatchLogObservable(context),
         accessor.getRandomAccessReader(context),
         accessor.getCachedView(context));
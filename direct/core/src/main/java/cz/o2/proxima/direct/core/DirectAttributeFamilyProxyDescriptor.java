@@ -453,7 +453,10 @@ public class DirectAttributeFamilyProxyDescriptor extends DirectAttributeFamilyD
       if (maybeReader.isPresent() && maybeWriter.isPresent()) {
         return Optional.of(
             new LocalCachedPartitionedView(
-                desc.getTargetFamilyRead().getEntity(), maybeReader.get(), maybeWriter.get()));
+                desc.getTargetFamilyRead().getEntity(),
+                maybeReader.get(),
+                maybeWriter.get(),
+                desc.getTargetFamilyRead().getCfg()));
       }
     }
     return Optional.empty();
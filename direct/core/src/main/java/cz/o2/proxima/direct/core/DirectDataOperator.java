@@ -19,6 +19,7 @@ import com.google.common.collect.Sets;
 import cz.o2.proxima.direct.commitlog.CommitLogReader;
 import cz.o2.proxima.direct.randomaccess.RandomAccessReader;
 import cz.o2.proxima.direct.view.CachedView;
+import cz.o2.proxima.direct.view.LocalCachedPartitionedView;
 import cz.o2.proxima.functional.Factory;
 import cz.o2.proxima.functional.UnaryFunction;
 import cz.o2.proxima.repository.AttributeDescriptor;
@@ -103,6 +104,34 @@ public class DirectDataOperator implements DataOperator, ContextProvider {
     close();
     familyMap.clear();
     dependencyOrdered(repo.getAllFamilies()).forEach(this::addResolvedFamily);
+    new ArrayList<>(familyMap.values()).forEach(this::configureReadThrough);
+  }
+
+  /** Configure read-through family of bounded cached view, if any. */
+  private void configureReadThrough(DirectAttributeFamilyDescriptor family) {
+    Object readThroughFamily =
+        family.getDesc().getCfg().get(LocalCachedPartitionedView.READ_THROUGH_FAMILY_CFG);
+    if (readThroughFamily == null || family.getDesc().isProxy()) {
+      return;
+    }
+    family
+        .getCachedView()
+        .filter(LocalCachedPartitionedView.class::isInstance)
+        .map(LocalCachedPartitionedView.class::cast)
+        .ifPresent(
+            view ->
+                view.setReadThrough(
+                    repo.getFamilyByName(readThroughFamily.toString())
+                        .map(this::resolveRequired)
+                        .flatMap(DirectAttributeFamilyDescriptor::getRandomAccessReader)
+                        .orElseThrow(
+                            () ->
+                                new IllegalArgumentException(
+                                    "Family "
+                                        + readThroughFamily
+                                        + " configured as read-through of family "
+                                        + family.getDesc().getName()
+                                        + " does not exist or cannot be randomly read"))));
   }
 
   /** Create list of families ordered by dependencies between them (non-proxy first). */
@@ -17,6 +17,7 @@ package cz.o2.proxima.direct.core;
 
 import cz.o2.proxima.annotations.Stable;
 import cz.o2.proxima.storage.StreamElement;
+import java.util.Collection;
 
 /**
  * Writer for attribute values. This is online version, where each element is committed one after
@@ -55,4 +56,21 @@ public interface OnlineAttributeWriter extends AttributeWriterBase {
    * @param statusCallback callback used to commit data processing
    */
   void write(StreamElement data, CommitCallback statusCallback);
+
+  /**
+   * Write batch of elements. The callback is committed once after all elements are written,
+   * successfully only if all the writes succeeded. Writers that can send multiple elements at once
+   * should override this method.
+   *
+   * @param data the elements to write
+   * @param statusCallback callback used to commit processing of the whole batch
+   */
+  default void write(Collection<StreamElement> data, CommitCallback statusCallback) {
+    if (data.isEmpty()) {
+      statusCallback.commit(true, null);
+      return;
+    }
+    CommitCallback callback = CommitCallback.afterNumCommits(data.size(), statusCallback);
+    data.forEach(element -> write(element, callback));
+  }
 }
@@ -0,0 +1,86 @@
+/**
+ * Copyright 2017-2020 O2 Czech Republic, a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.o2.proxima.direct.randomaccess;
+
+import cz.o2.proxima.annotations.Experimental;
+import cz.o2.proxima.direct.randomaccess.RandomAccessReader.Listing;
+import cz.o2.proxima.repository.AttributeDescriptor;
+import cz.o2.proxima.util.Pair;
+import java.io.Closeable;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import javax.annotation.Nullable;
+
+/**
+ * Non-blocking variant of {@link RandomAccessReader}. Reads return immediately with future
+ * completed when the data is retrieved from the storage, so no thread has to wait for the storage.
+ * Unlike {@link RandomAccessReader}, the reader is thread-safe.
+ */
+@Experimental
+public interface AsyncRandomAccessReader extends Closeable {
+
+  /**
+   * Construct {@code Offset} from string (representing either key of the entity or attribute). The
+   * call must not block for {@link Listing#ATTRIBUTE}.
+   *
+   * @param type the type of the key
+   * @param key the key of entity or attribute
+   * @return offset representation of the key
+   */
+  RandomOffset fetchOffset(Listing type, String key);
+
+  /**
+   * Retrieve data stored under given (key, attribute) pair (if any).
+   *
+   * @param <T> value type
+   * @param key key of the entity
+   * @param attribute name of the attribute
+   * @param desc the attribute to search for
+   * @param stamp timestamp to relatively to which retrieve the data
+   * @return future completed with optional {@link KeyValue} if present
+   */
+  <T> CompletableFuture<Optional<KeyValue<T>>> get(
+      String key, String attribute, AttributeDescriptor<T> desc, long stamp);
+
+  /**
+   * List data stored for a particular wildcard attribute.
+   *
+   * @param <T> value type
+   * @param key key of the entity
+   * @param wildcard wildcard attribute to scan
+   * @param offset offset to start from (next key value will be returned)
+   * @param stamp timestamp to relatively to which retrieve the data
+   * @param limit how many elements to process (negative for unlimited)
+   * @return future completed with the listed values
+   */
+  <T> CompletableFuture<List<KeyValue<T>>> scanWildcard(
+      String key,
+      AttributeDescriptor<T> wildcard,
+      @Nullable RandomOffset offset,
+      long stamp,
+      int limit);
+
+  /**
+   * List keys of entities.
+   *
+   * @param offset offset of listing or {@code null} to list from beginning
+   * @param limit limit for number of results (negative for unlimited)
+   * @return future completed with pairs of offset and key of entity
+   */
+  CompletableFuture<List<Pair<RandomOffset, String>>> listEntities(
+      @Nullable RandomOffset offset, int limit);
+}
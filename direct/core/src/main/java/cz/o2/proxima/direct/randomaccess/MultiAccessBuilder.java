@@ -25,7 +25,10 @@ import cz.o2.proxima.repository.EntityDescriptor;
 import cz.o2.proxima.util.Pair;
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
@@ -149,6 +152,19 @@ public class MultiAccessBuilder implements Serializable {
                 });
       }
 
+      @Override
+      public <T> List<Optional<KeyValue<T>>> multiGet(
+          Collection<Pair<String, String>> keyAttributes, AttributeDescriptor<T> desc, long stamp) {
+
+        return Optional.ofNullable(attrMap.get(desc))
+            .map(ra -> ra.multiGet(keyAttributes, desc, stamp))
+            .orElseGet(
+                () -> {
+                  log.warn("Missing family for attribute {} in MultiAccessBuilder", desc);
+                  return Collections.nCopies(keyAttributes.size(), Optional.empty());
+                });
+      }
+
       @SuppressWarnings("unchecked")
       @Override
       public void scanWildcardAll(
@@ -24,6 +24,9 @@ import cz.o2.proxima.repository.EntityDescriptor;
 import cz.o2.proxima.util.Pair;
 import java.io.Closeable;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
 import javax.annotation.Nullable;
 
@@ -116,6 +119,41 @@ public interface RandomAccessReader extends Closeable, Serializable {
   <T> Optional<KeyValue<T>> get(
       String key, String attribute, AttributeDescriptor<T> desc, long stamp);
 
+  /**
+   * Retrieve data stored under given (key, attribute) pairs of the same attribute (if any).
+   *
+   * @param <T> value type
+   * @param keyAttributes pairs of key of the entity and name of the attribute
+   * @param desc the attribute to search for
+   * @return optional {@link KeyValue}s in order of the given pairs
+   */
+  default <T> List<Optional<KeyValue<T>>> multiGet(
+      Collection<Pair<String, String>> keyAttributes, AttributeDescriptor<T> desc) {
+
+    return multiGet(keyAttributes, desc, System.currentTimeMillis());
+  }
+
+  /**
+   * Retrieve data stored under given (key, attribute) pairs of the same attribute (if any). The
+   * default implementation calls {@link #get(String, String, AttributeDescriptor, long)} for each
+   * pair, readers of storages able to fetch multiple values by single request should override it.
+   *
+   * @param <T> value type
+   * @param keyAttributes pairs of key of the entity and name of the attribute
+   * @param desc the attribute to search for
+   * @param stamp timestamp to relatively to which retrieve the data
+   * @return optional {@link KeyValue}s in order of the given pairs
+   */
+  default <T> List<Optional<KeyValue<T>>> multiGet(
+      Collection<Pair<String, String>> keyAttributes, AttributeDescriptor<T> desc, long stamp) {
+
+    List<Optional<KeyValue<T>>> ret = new ArrayList<>(keyAttributes.size());
+    for (Pair<String, String> keyAttribute : keyAttributes) {
+      ret.add(get(keyAttribute.getFirst(), keyAttribute.getSecond(), desc, stamp));
+    }
+    return ret;
+  }
+
   /**
    * Scan all data stored per given key.
    *
@@ -262,4 +300,13 @@ public interface RandomAccessReader extends Closeable, Serializable {
    * @return entity associated with this reader
    */
   EntityDescriptor getEntityDescriptor();
+
+  /**
+   * Retrieve non-blocking variant of this reader, if the storage has asynchronous client.
+   *
+   * @return optional {@link AsyncRandomAccessReader} reading the same data as this reader
+   */
+  default Optional<AsyncRandomAccessReader> asAsync() {
+    return Optional.empty();
+  }
 }
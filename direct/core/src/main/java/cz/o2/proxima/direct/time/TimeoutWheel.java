@@ -0,0 +1,196 @@
+/**
+ * Copyright 2017-2020 O2 Czech Republic, a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.o2.proxima.direct.time;
+
+import com.google.common.base.Preconditions;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Hashed timing wheel tracking timeouts of large number of items with amortized constant cost of
+ * scheduling and cancellation. Timeouts are expired in batches once per tick by single thread, so
+ * an item might expire up to one tick later than requested.
+ *
+ * @param <T> type of items with timeout
+ */
+@Slf4j
+public class TimeoutWheel<T> implements AutoCloseable {
+
+  /** Handle of scheduled timeout. */
+  public interface Timeout {
+
+    /**
+     * Cancel the timeout.
+     *
+     * @return {@code true} if the timeout was cancelled before it expired
+     */
+    boolean cancel();
+  }
+
+  private static final int PENDING = 0;
+  private static final int CANCELLED = 1;
+  private static final int EXPIRED = 2;
+
+  private class Entry implements Timeout {
+
+    final T item;
+    final long deadlineNanos;
+    final AtomicInteger state = new AtomicInteger(PENDING);
+    long rounds;
+
+    Entry(T item, long deadlineNanos) {
+      this.item = item;
+      this.deadlineNanos = deadlineNanos;
+    }
+
+    @Override
+    public boolean cancel() {
+      return state.compareAndSet(PENDING, CANCELLED);
+    }
+  }
+
+  private final String name;
+  private final long tickNanos;
+  private final Consumer<T> onExpired;
+  private final Queue<Entry>[] buckets;
+  private final Queue<Entry> scheduled = new ConcurrentLinkedQueue<>();
+  private final AtomicBoolean started = new AtomicBoolean();
+  /** Time of start of the worker, tick zero. Accessed by the worker thread only. */
+  private long startNanos;
+
+  private volatile boolean closed = false;
+
+  /**
+   * Create the wheel with tick of 10 milliseconds and 512 buckets.
+   *
+   * @param name name of the thread expiring the timeouts
+   * @param onExpired consumer of expired items
+   */
+  public TimeoutWheel(String name, Consumer<T> onExpired) {
+    this(name, 10, TimeUnit.MILLISECONDS, 512, onExpired);
+  }
+
+  /**
+   * Create the wheel.
+   *
+   * @param name name of the thread expiring the timeouts
+   * @param tickDuration duration of single tick
+   * @param unit time unit of the tick duration
+   * @param ticksPerWheel number of buckets of the wheel, rounded up to power of two
+   * @param onExpired consumer of expired items
+   */
+  @SuppressWarnings("unchecked")
+  public TimeoutWheel(
+      String name, long tickDuration, TimeUnit unit, int ticksPerWheel, Consumer<T> onExpired) {
+
+    Preconditions.checkArgument(tickDuration > 0, "Tick duration must be positive");
+    Preconditions.checkArgument(ticksPerWheel > 0, "Ticks per wheel must be positive");
+    this.name = name;
+    this.tickNanos = unit.toNanos(tickDuration);
+    this.onExpired = onExpired;
+    int numBuckets = Integer.highestOneBit(ticksPerWheel - 1) << 1;
+    this.buckets = new Queue[Math.max(1, numBuckets)];
+    for (int i = 0; i < buckets.length; i++) {
+      buckets[i] = new ArrayDeque<>();
+    }
+  }
+
+  /**
+   * Schedule expiration of given item.
+   *
+   * @param item the item to expire
+   * @param delay delay of the expiration
+   * @param unit time unit of the delay
+   * @return handle of the timeout
+   */
+  public Timeout schedule(T item, long delay, TimeUnit unit) {
+    Preconditions.checkState(!closed, "Wheel %s is already closed", name);
+    Entry entry = new Entry(item, System.nanoTime() + unit.toNanos(delay));
+    scheduled.add(entry);
+    if (!started.get() && started.compareAndSet(false, true)) {
+      startWorker();
+    }
+    return entry;
+  }
+
+  /** Stop expiring the timeouts. Items that have not yet expired are discarded. */
+  @Override
+  public void close() {
+    closed = true;
+  }
+
+  private void startWorker() {
+    Thread worker = new Thread(this::run, name);
+    worker.setDaemon(true);
+    worker.start();
+  }
+
+  private void run() {
+    startNanos = System.nanoTime();
+    long tick = 0;
+    try {
+      while (!closed) {
+        long sleepNanos = startNanos + (tick + 1) * tickNanos - System.nanoTime();
+        if (sleepNanos > 0) {
+          TimeUnit.NANOSECONDS.sleep(sleepNanos);
+        }
+        transferScheduled(tick);
+        expire(buckets[(int) (tick & (buckets.length - 1))]);
+        tick++;
+      }
+    } catch (InterruptedException ex) {
+      log.warn("Interrupted while waiting for next tick of {}", name, ex);
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void transferScheduled(long currentTick) {
+    Entry entry;
+    while ((entry = scheduled.poll()) != null) {
+      if (entry.state.get() == PENDING) {
+        long deadlineTick = (entry.deadlineNanos - startNanos + tickNanos - 1) / tickNanos;
+        long targetTick = Math.max(deadlineTick, currentTick);
+        entry.rounds = (targetTick - currentTick) / buckets.length;
+        buckets[(int) (targetTick & (buckets.length - 1))].add(entry);
+      }
+    }
+  }
+
+  private void expire(Queue<Entry> bucket) {
+    for (int remaining = bucket.size(); remaining > 0; remaining--) {
+      Entry entry = bucket.poll();
+      if (entry.state.get() != PENDING) {
+        continue;
+      }
+      if (entry.rounds > 0) {
+        entry.rounds--;
+        bucket.add(entry);
+      } else if (entry.state.compareAndSet(PENDING, EXPIRED)) {
+        try {
+          onExpired.accept(entry.item);
+        } catch (Exception ex) {
+          log.error("Error while expiring {} in {}", entry.item, name, ex);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,321 @@
+/**
+ * Copyright 2017-2020 O2 Czech Republic, a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.o2.proxima.direct.view;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import cz.o2.proxima.direct.commitlog.Offset;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Snapshots of {@link TimeBoundedVersionedCache} stored in local directory.
+ *
+ * <p>The snapshots form a chain of a full snapshot followed by deltas containing keys updated since
+ * the previous snapshot. Each snapshot file stores {@link Offset Offsets} of the data it contains
+ * and is protected by a checksum. Files are written to a temporary file first and then atomically
+ * moved to the final location.
+ */
+@Slf4j
+class CacheSnapshots {
+
+  private static final int MAGIC = 0x50584356;
+  private static final int FORMAT_VERSION = 1;
+  private static final String TMP_SUFFIX = ".tmp";
+  private static final Pattern FILE_PATTERN = Pattern.compile("snapshot-([0-9]+)\\.(full|delta)");
+
+  @Value
+  private static class SnapshotFile {
+    File file;
+    long seq;
+    boolean full;
+  }
+
+  private final File dir;
+  private final int fullEvery;
+  private long nextSeq = 0;
+  private int deltasSinceFull = 0;
+  private boolean needsFull = true;
+
+  /**
+   * Create the snapshots.
+   *
+   * @param dir directory to store snapshots to
+   * @param fullEvery number of delta snapshots after which a full snapshot is written
+   */
+  CacheSnapshots(File dir, int fullEvery) {
+    Preconditions.checkArgument(fullEvery > 0, "fullEvery must be positive, got %s", fullEvery);
+    this.dir = Objects.requireNonNull(dir);
+    this.fullEvery = fullEvery;
+  }
+
+  /**
+   * Restore the newest valid chain of snapshots into given cache.
+   *
+   * @param cache the cache to restore
+   * @return offsets of the restored data, or empty if there is no valid snapshot
+   */
+  synchronized Optional<List<Offset>> restore(TimeBoundedVersionedCache cache) {
+    needsFull = true;
+    List<SnapshotFile> chain = validChain();
+    if (chain.isEmpty()) {
+      log.info("No valid snapshot found in {}", dir);
+      return Optional.empty();
+    }
+    try {
+      List<Offset> offsets = null;
+      Set<String> restored = new HashSet<>();
+      for (int i = chain.size() - 1; i >= 0; i--) {
+        try (DataInputStream input = open(chain.get(i).getFile())) {
+          List<Offset> fileOffsets = readHeader(input);
+          if (offsets == null) {
+            offsets = fileOffsets;
+          }
+          cache.readSnapshot(input, restored);
+        }
+      }
+      SnapshotFile last = chain.get(chain.size() - 1);
+      nextSeq = last.getSeq() + 1;
+      deltasSinceFull = chain.size() - 1;
+      needsFull = false;
+      log.info(
+          "Restored {} keys from {} snapshot files in {} with offsets {}",
+          restored.size(),
+          chain.size(),
+          dir,
+          offsets);
+      return Optional.of(offsets);
+    } catch (IOException | ClassNotFoundException ex) {
+      log.warn("Failed to restore snapshot from {}", dir, ex);
+      cache.clear();
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * Write snapshot of given cache. If the write fails, the next snapshot is full, because keys
+   * updated since last snapshot are no longer tracked by the cache.
+   *
+   * @param cache the cache to write
+   * @param offsets offsets of data that are contained in the cache
+   */
+  synchronized void write(TimeBoundedVersionedCache cache, List<Offset> offsets)
+      throws IOException {
+
+    if (!dir.exists() && !dir.mkdirs()) {
+      throw new IOException("Failed to create directory " + dir);
+    }
+    final boolean full = needsFull || deltasSinceFull >= fullEvery;
+    final long seq = nextSeq;
+    final File target = new File(dir, fileName(seq, full));
+    final File tmp = new File(dir, target.getName() + TMP_SUFFIX);
+    final long startTime = System.currentTimeMillis();
+    final long written;
+    try {
+      try (FileOutputStream fileOutput = new FileOutputStream(tmp)) {
+        CheckedOutputStream checked = new CheckedOutputStream(fileOutput, new CRC32());
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(checked));
+        output.writeInt(MAGIC);
+        output.writeInt(FORMAT_VERSION);
+        byte[] serializedOffsets = serializeOffsets(offsets);
+        output.writeInt(serializedOffsets.length);
+        output.write(serializedOffsets);
+        written = cache.writeSnapshot(output, full);
+        output.flush();
+        new DataOutputStream(fileOutput).writeLong(checked.getChecksum().getValue());
+        fileOutput.getFD().sync();
+      }
+      Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException | RuntimeException ex) {
+      needsFull = true;
+      if (tmp.exists()) {
+        delete(tmp);
+      }
+      throw ex;
+    }
+    nextSeq = seq + 1;
+    if (full) {
+      needsFull = false;
+      deltasSinceFull = 0;
+      deleteOlderThan(seq);
+    } else {
+      deltasSinceFull++;
+    }
+    log.info(
+        "Written {} snapshot {} with {} keys in {} millis",
+        full ? "full" : "delta",
+        target,
+        written,
+        System.currentTimeMillis() - startTime);
+  }
+
+  /** Force next snapshot to be full. */
+  synchronized void reset() {
+    needsFull = true;
+  }
+
+  @VisibleForTesting
+  List<File> listFiles() {
+    return listSnapshots().stream().map(SnapshotFile::getFile).collect(Collectors.toList());
+  }
+
+  private List<SnapshotFile> validChain() {
+    List<SnapshotFile> files = listSnapshots();
+    int lastFull = -1;
+    for (int i = files.size() - 1; i >= 0; i--) {
+      if (files.get(i).isFull() && isValid(files.get(i).getFile())) {
+        lastFull = i;
+        break;
+      }
+    }
+    if (lastFull < 0) {
+      return Collections.emptyList();
+    }
+    List<SnapshotFile> chain = new ArrayList<>();
+    chain.add(files.get(lastFull));
+    for (int i = lastFull + 1; i < files.size(); i++) {
+      SnapshotFile file = files.get(i);
+      if (file.isFull() || file.getSeq() != chain.get(chain.size() - 1).getSeq() + 1) {
+        break;
+      }
+      if (!isValid(file.getFile())) {
+        log.warn("Snapshot {} is corrupted, restoring from previous snapshots.", file.getFile());
+        break;
+      }
+      chain.add(file);
+    }
+    // remove anything that does not belong to the chain
+    long maxSeq = chain.get(chain.size() - 1).getSeq();
+    files.stream().filter(f -> f.getSeq() > maxSeq).forEach(f -> delete(f.getFile()));
+    return chain;
+  }
+
+  private List<SnapshotFile> listSnapshots() {
+    File[] files = dir.listFiles();
+    if (files == null) {
+      return Collections.emptyList();
+    }
+    List<SnapshotFile> ret = new ArrayList<>();
+    for (File f : files) {
+      Matcher matcher = FILE_PATTERN.matcher(f.getName());
+      if (matcher.matches()) {
+        ret.add(
+            new SnapshotFile(f, Long.parseLong(matcher.group(1)), matcher.group(2).equals("full")));
+      } else if (f.getName().endsWith(TMP_SUFFIX)) {
+        delete(f);
+      }
+    }
+    ret.sort((a, b) -> Long.compare(a.getSeq(), b.getSeq()));
+    return ret;
+  }
+
+  private void deleteOlderThan(long seq) {
+    listSnapshots().stream().filter(f -> f.getSeq() < seq).forEach(f -> delete(f.getFile()));
+  }
+
+  private static boolean isValid(File file) {
+    long length = file.length();
+    if (length < 2 * Integer.BYTES + Long.BYTES) {
+      return false;
+    }
+    try (InputStream input = new BufferedInputStream(new FileInputStream(file))) {
+      CheckedInputStream checked = new CheckedInputStream(input, new CRC32());
+      byte[] buffer = new byte[8192];
+      long remaining = length - Long.BYTES;
+      while (remaining > 0) {
+        int read = checked.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+        if (read < 0) {
+          return false;
+        }
+        remaining -= read;
+      }
+      long checksum = new DataInputStream(input).readLong();
+      return checksum == checked.getChecksum().getValue();
+    } catch (IOException ex) {
+      log.warn("Failed to validate snapshot {}", file, ex);
+      return false;
+    }
+  }
+
+  private static DataInputStream open(File file) throws IOException {
+    return new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<Offset> readHeader(DataInputStream input)
+      throws IOException, ClassNotFoundException {
+
+    if (input.readInt() != MAGIC) {
+      throw new IOException("Invalid magic number of snapshot");
+    }
+    int version = input.readInt();
+    if (version != FORMAT_VERSION) {
+      throw new IOException("Unsupported snapshot format version " + version);
+    }
+    byte[] serializedOffsets = new byte[input.readInt()];
+    input.readFully(serializedOffsets);
+    try (ObjectInputStream ois =
+        new ObjectInputStream(new ByteArrayInputStream(serializedOffsets))) {
+      return (List<Offset>) ois.readObject();
+    }
+  }
+
+  private static byte[] serializeOffsets(List<Offset> offsets) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    try (ObjectOutputStream oos = new ObjectOutputStream(baos)) {
+      oos.writeObject(new ArrayList<>(offsets));
+    }
+    return baos.toByteArray();
+  }
+
+  private static String fileName(long seq, boolean full) {
+    return String.format("snapshot-%020d.%s", seq, full ? "full" : "delta");
+  }
+
+  private static void delete(File file) {
+    if (!file.delete()) {
+      log.warn("Failed to delete {}", file);
+    }
+  }
+}
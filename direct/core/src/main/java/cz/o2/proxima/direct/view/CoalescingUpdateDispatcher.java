@@ -0,0 +1,186 @@
+/**
+ * Copyright 2017-2020 O2 Czech Republic, a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.o2.proxima.direct.view;
+
+import com.google.common.base.Preconditions;
+import cz.o2.proxima.functional.BiConsumer;
+import cz.o2.proxima.storage.StreamElement;
+import cz.o2.proxima.util.Pair;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.annotation.Nullable;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Asynchronous delivery of cache updates to update callback of {@link CachedView}.
+ *
+ * <p>Updates are collected for a batch window and then delivered in a single batch by a dedicated
+ * thread. Repeated updates of the same key and attribute within a batch are coalesced into single
+ * update carrying the element with the highest stamp and the value preceding the first of the
+ * coalesced updates, so that updates dispatched concurrently out of order do not replace newer
+ * element by older one. Number of pending updates is bounded, {@link #dispatch} blocks when the
+ * limit is reached.
+ */
+@Slf4j
+class CoalescingUpdateDispatcher implements AutoCloseable {
+
+  private static class Update {
+    StreamElement element;
+    @Nullable final Pair<Long, Object> oldValue;
+
+    Update(StreamElement element, @Nullable Pair<Long, Object> oldValue) {
+      this.element = element;
+      this.oldValue = oldValue;
+    }
+  }
+
+  private final BiConsumer<StreamElement, Pair<Long, Object>> callback;
+  private final long windowMs;
+  private final int capacity;
+  private final Lock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  private final Condition notFull = lock.newCondition();
+  private final Thread thread;
+
+  /** Pending updates keyed by key and attribute, in order of first update. */
+  private Map<Pair<String, String>, Update> pending = new LinkedHashMap<>();
+
+  private boolean running = true;
+
+  /**
+   * Create and start the dispatcher.
+   *
+   * @param name name of the dispatching thread
+   * @param callback the callback to deliver updates to
+   * @param windowMs duration of batch window in milliseconds
+   * @param capacity maximal number of pending updates
+   */
+  CoalescingUpdateDispatcher(
+      String name,
+      BiConsumer<StreamElement, Pair<Long, Object>> callback,
+      long windowMs,
+      int capacity) {
+
+    Preconditions.checkArgument(windowMs >= 0, "Window must not be negative, got %s", windowMs);
+    Preconditions.checkArgument(capacity > 0, "Capacity must be positive, got %s", capacity);
+    this.callback = callback;
+    this.windowMs = windowMs;
+    this.capacity = capacity;
+    this.thread = new Thread(this::run);
+    thread.setName(name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Enqueue update for delivery. Blocks while number of pending updates reaches the capacity.
+   *
+   * @param element the element that updated the cache
+   * @param oldValue the previous value of the attribute
+   * @throws InterruptedException when interrupted while waiting for free capacity
+   */
+  void dispatch(StreamElement element, @Nullable Pair<Long, Object> oldValue)
+      throws InterruptedException {
+
+    Pair<String, String> id = Pair.of(element.getKey(), element.getAttribute());
+    lock.lock();
+    try {
+      Update update = pending.get(id);
+      if (update != null) {
+        if (element.getStamp() >= update.element.getStamp()) {
+          update.element = element;
+        }
+        return;
+      }
+      while (running && pending.size() >= capacity) {
+        notFull.await();
+      }
+      if (!running) {
+        log.warn("Dropping update {} of closed dispatcher {}", element, thread.getName());
+        return;
+      }
+      pending.put(id, new Update(element, oldValue));
+      notEmpty.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Stop the dispatcher. Updates pending at the time of call are still delivered. */
+  @Override
+  public void close() {
+    lock.lock();
+    try {
+      running = false;
+      notEmpty.signalAll();
+      notFull.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void run() {
+    try {
+      while (true) {
+        lock.lock();
+        try {
+          while (running && pending.isEmpty()) {
+            notEmpty.await();
+          }
+          if (!running && pending.isEmpty()) {
+            return;
+          }
+        } finally {
+          lock.unlock();
+        }
+        if (windowMs > 0) {
+          // collect and coalesce updates arriving during the window
+          TimeUnit.MILLISECONDS.sleep(windowMs);
+        }
+        deliver(takeBatch());
+      }
+    } catch (InterruptedException ex) {
+      log.warn("Interrupted dispatching updates in {}", thread.getName(), ex);
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private Map<Pair<String, String>, Update> takeBatch() {
+    lock.lock();
+    try {
+      Map<Pair<String, String>, Update> batch = pending;
+      pending = new LinkedHashMap<>();
+      notFull.signalAll();
+      return batch;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void deliver(Map<Pair<String, String>, Update> batch) {
+    for (Update update : batch.values()) {
+      try {
+        callback.accept(update.element, update.oldValue);
+      } catch (Exception ex) {
+        log.error("Error delivering update {} to callback {}", update.element, callback, ex);
+      }
+    }
+  }
+}
@@ -0,0 +1,207 @@
+/**
+ * Copyright 2017-2020 O2 Czech Republic, a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.o2.proxima.direct.view;
+
+import com.google.common.annotations.VisibleForTesting;
+import cz.o2.proxima.functional.BiConsumer;
+import cz.o2.proxima.util.Pair;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Index of keys in order of insertion.
+ *
+ * <p>Each key is assigned a position from monotonically increasing sequence, so positions stay
+ * stable while keys are inserted and removed and listing can be resumed from position of the last
+ * listed key. Slots of removed keys are reclaimed when more than half of the slots is empty,
+ * without changing positions of the remaining keys. Lookup of position of a key is O(1), listing of
+ * keys from given position is O(log n + limit) plus number of skipped empty slots.
+ */
+class KeyIndex implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  /** Minimal number of slots before the index is compacted. */
+  private static final int MIN_COMPACT_SIZE = 1024;
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  /** Keys by slot, removed keys are {@code null}. */
+  private final List<String> slots = new ArrayList<>();
+
+  /** Positions of keys in slots, in ascending order. */
+  private int[] slotPositions = new int[16];
+
+  /** Positions of keys. */
+  private final Map<String, Integer> positions = new HashMap<>();
+
+  /** Position of next added key. */
+  private int nextPosition = 0;
+
+  /**
+   * Add new key to the index. The key must not be present in the index.
+   *
+   * @param key the key to add
+   */
+  void add(String key) {
+    Lock writeLock = lock.writeLock();
+    writeLock.lock();
+    try {
+      if (nextPosition == Integer.MAX_VALUE) {
+        // the sequence is exhausted, this is the only case the positions change
+        compact(true);
+      }
+      if (slots.size() == slotPositions.length) {
+        slotPositions = Arrays.copyOf(slotPositions, slotPositions.length * 2);
+      }
+      slotPositions[slots.size()] = nextPosition;
+      positions.put(key, nextPosition++);
+      slots.add(key);
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * Remove key from the index.
+   *
+   * @param key the key to remove
+   */
+  void remove(String key) {
+    Lock writeLock = lock.writeLock();
+    writeLock.lock();
+    try {
+      Integer position = positions.remove(key);
+      if (position != null) {
+        slots.set(slotOf(position), null);
+        if (slots.size() >= MIN_COMPACT_SIZE && positions.size() < slots.size() / 2) {
+          compact(false);
+        }
+      }
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * Retrieve position of given key.
+   *
+   * @param key the key
+   * @return position of the key, or position after the last key if the key is not present
+   */
+  int position(String key) {
+    Lock readLock = lock.readLock();
+    readLock.lock();
+    try {
+      Integer ret = positions.get(key);
+      return ret == null ? nextPosition : ret;
+    } finally {
+      readLock.unlock();
+    }
+  }
+
+  /**
+   * List keys starting at given position.
+   *
+   * @param offset the position to start at
+   * @param limit maximal number of keys to list, negative for unlimited
+   * @param consumer consumer of keys and their positions
+   */
+  void list(int offset, int limit, BiConsumer<Integer, String> consumer) {
+    final List<Pair<Integer, String>> toConsume = new ArrayList<>();
+    Lock readLock = lock.readLock();
+    readLock.lock();
+    try {
+      for (int i = slotOf(offset); i < slots.size() && toConsume.size() != limit; i++) {
+        String key = slots.get(i);
+        if (key != null) {
+          toConsume.add(Pair.of(slotPositions[i], key));
+        }
+      }
+    } finally {
+      readLock.unlock();
+    }
+    // do not call the consumer with lock held
+    toConsume.forEach(p -> consumer.accept(p.getFirst(), p.getSecond()));
+  }
+
+  /** @return number of keys in the index */
+  int size() {
+    Lock readLock = lock.readLock();
+    readLock.lock();
+    try {
+      return positions.size();
+    } finally {
+      readLock.unlock();
+    }
+  }
+
+  /** Remove all keys. */
+  void clear() {
+    Lock writeLock = lock.writeLock();
+    writeLock.lock();
+    try {
+      slots.clear();
+      positions.clear();
+      nextPosition = 0;
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  @VisibleForTesting
+  int getNumSlots() {
+    Lock readLock = lock.readLock();
+    readLock.lock();
+    try {
+      return slots.size();
+    } finally {
+      readLock.unlock();
+    }
+  }
+
+  /** @return slot of key with given position, or of the first key after the position */
+  private int slotOf(int position) {
+    int ret = Arrays.binarySearch(slotPositions, 0, slots.size(), position);
+    return ret >= 0 ? ret : -(ret + 1);
+  }
+
+  private void compact(boolean renumber) {
+    int target = 0;
+    for (int i = 0; i < slots.size(); i++) {
+      String key = slots.get(i);
+      if (key != null) {
+        slots.set(target, key);
+        slotPositions[target] = renumber ? target : slotPositions[i];
+        if (renumber) {
+          positions.put(key, target);
+        }
+        target++;
+      }
+    }
+    slots.subList(target, slots.size()).clear();
+    if (renumber) {
+      nextPosition = target;
+    }
+  }
+}
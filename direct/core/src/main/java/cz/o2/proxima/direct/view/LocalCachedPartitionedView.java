@@ -16,6 +16,7 @@
 package cz.o2.proxima.direct.view;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
 import cz.o2.proxima.direct.commitlog.CommitLogReader;
 import cz.o2.proxima.direct.commitlog.LogObserver;
 import cz.o2.proxima.direct.commitlog.ObserveHandle;
@@ -24,22 +25,38 @@ import cz.o2.proxima.direct.core.CommitCallback;
 import cz.o2.proxima.direct.core.OnlineAttributeWriter;
 import cz.o2.proxima.direct.core.Partition;
 import cz.o2.proxima.direct.randomaccess.KeyValue;
+import cz.o2.proxima.direct.randomaccess.RandomAccessReader;
 import cz.o2.proxima.direct.randomaccess.RandomOffset;
 import cz.o2.proxima.direct.randomaccess.RawOffset;
 import cz.o2.proxima.functional.BiConsumer;
+import cz.o2.proxima.functional.BiFunction;
 import cz.o2.proxima.functional.Consumer;
+import cz.o2.proxima.metrics.AbsoluteMetric;
+import cz.o2.proxima.metrics.GaugeMetric;
+import cz.o2.proxima.metrics.MetricsRegistry;
+import cz.o2.proxima.metrics.ScalarMetric;
 import cz.o2.proxima.repository.AttributeDescriptor;
 import cz.o2.proxima.repository.EntityDescriptor;
 import cz.o2.proxima.storage.StreamElement;
 import cz.o2.proxima.storage.commitlog.Position;
 import cz.o2.proxima.util.Pair;
+import java.io.File;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
@@ -52,12 +69,142 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public class LocalCachedPartitionedView implements CachedView {
 
+  /**
+   * Storage of cached data. Either {@code heap} (default) to store parsed values on heap, or {@code
+   * off-heap} to store serialized values in direct memory and deserialize them on read. Memory of
+   * off-heap storage is compacted by background expiry (see {@link #EXPIRY_INTERVAL_MS_CFG}).
+   */
+  public static final String STORAGE_CFG = "cached-view.storage";
+
+  /** Value of {@link #STORAGE_CFG} for off-heap storage. */
+  public static final String STORAGE_OFF_HEAP = "off-heap";
+
+  /** Value of {@link #STORAGE_CFG} for heap storage. */
+  public static final String STORAGE_HEAP = "heap";
+
+  /**
+   * Number of observers prefetching partitions in parallel. Defaults to number of available
+   * processors.
+   */
+  public static final String PREFETCH_PARALLELISM_CFG = "cached-view.prefetch.parallelism";
+
+  /** Number of prefetched elements to confirm at once. */
+  public static final String PREFETCH_BATCH_SIZE_CFG = "cached-view.prefetch.batch-size";
+
+  /**
+   * Maximal duration in milliseconds to retry failed prefetch for, measured from the first failure.
+   * Assignment of partitions fails when the prefetch does not succeed in time.
+   */
+  public static final String PREFETCH_RETRY_TIMEOUT_MS_CFG =
+      "cached-view.prefetch.retry-timeout-ms";
+
+  /**
+   * Local directory to store snapshots of the cache to. When set, the view restores the newest
+   * valid snapshot on {@link #assign} and continues consumption from offsets stored in the
+   * snapshot. Requires the reader to have externalizable offsets.
+   */
+  public static final String SNAPSHOT_DIR_CFG = "cached-view.snapshot.dir";
+
+  /** Interval between two snapshots in milliseconds. */
+  public static final String SNAPSHOT_INTERVAL_MS_CFG = "cached-view.snapshot.interval-ms";
+
+  /** Number of incremental snapshots after which a full snapshot is written. */
+  public static final String SNAPSHOT_FULL_EVERY_CFG = "cached-view.snapshot.full-every";
+
+  /**
+   * Interval between two runs of background expiry of old versions in milliseconds. Expiry is
+   * disabled when not set or zero, versions are then trimmed only on write.
+   */
+  public static final String EXPIRY_INTERVAL_MS_CFG = "cached-view.expiry.interval-ms";
+
+  /** Maximal duration of single run of background expiry in milliseconds. */
+  public static final String EXPIRY_BUDGET_MS_CFG = "cached-view.expiry.budget-ms";
+
+  /**
+   * Duration in milliseconds to keep deletes for in background expiry, so that they shadow late
+   * writes with older stamps. At least the duration to keep versions for. Defaults to one day.
+   */
+  public static final String EXPIRY_TOMBSTONE_GRACE_MS_CFG =
+      "cached-view.expiry.tombstone-grace-ms";
+
+  /**
+   * Maximal number of cached keys. When set, keys exceeding the limit are evicted using segmented
+   * LRU policy and reads of keys missing in the cache are served by family configured by {@link
+   * #READ_THROUGH_FAMILY_CFG}. The limit is applied to each segment of the cache independently, so
+   * the view might hold slightly more keys. Unbounded when not set or zero.
+   */
+  public static final String MAX_KEYS_CFG = "cached-view.max-keys";
+
+  /**
+   * Name of attribute family with random access to the cached attributes, that is used to read data
+   * missing in bounded cache. Used only together with {@link #MAX_KEYS_CFG}. Without the family,
+   * reads of evicted keys return empty results. Listing of entities and scans of wildcard
+   * attributes are served by the family, see {@link #setReadThrough}.
+   */
+  public static final String READ_THROUGH_FAMILY_CFG = "cached-view.read-through.family";
+
+  /**
+   * Mode of delivery of updates to update callback passed to {@link #assign}. Either {@code sync}
+   * (default) to call the callback for each update on the thread updating the cache, or {@code
+   * async} to deliver batches of coalesced updates on a dedicated thread.
+   */
+  public static final String CALLBACK_MODE_CFG = "cached-view.callback.mode";
+
+  /** Value of {@link #CALLBACK_MODE_CFG} for synchronous delivery. */
+  public static final String CALLBACK_MODE_SYNC = "sync";
+
+  /** Value of {@link #CALLBACK_MODE_CFG} for asynchronous delivery. */
+  public static final String CALLBACK_MODE_ASYNC = "async";
+
+  /**
+   * Duration of window in milliseconds to collect updates into single batch in asynchronous
+   * callback mode. Updates of the same key and attribute within the window are coalesced.
+   */
+  public static final String CALLBACK_WINDOW_MS_CFG = "cached-view.callback.window-ms";
+
+  /**
+   * Maximal number of updates pending delivery in asynchronous callback mode. Updating of the cache
+   * blocks when the limit is reached.
+   */
+  public static final String CALLBACK_QUEUE_SIZE_CFG = "cached-view.callback.queue-size";
+
+  /** Stamp of versions caching absence of attribute in the read-through family. */
+  private static final long ABSENT_STAMP = 0L;
+
+  private static final String METRICS_GROUP = "cz.o2.proxima.direct.view";
+
+  /** Initial delay before retry of failed prefetch, doubled with each failure. */
+  private static final long PREFETCH_INITIAL_BACKOFF_MS = 100L;
+
+  /** Maximal delay before retry of failed prefetch. */
+  private static final long PREFETCH_MAX_BACKOFF_MS = 10_000L;
+
+  /** Maximal number of UUIDs of written deletes to wait for echo from the commit log. */
+  private static final int MAX_WRITTEN_DELETES = 10_000;
+
   @Value
   @VisibleForTesting
   static class IntOffset implements RandomOffset {
     private final int offset;
   }
 
+  /** Map keeping only the most recently inserted entries. */
+  private static class RecentEntries<K, V> extends LinkedHashMap<K, V> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int capacity;
+
+    RecentEntries(int capacity) {
+      this.capacity = capacity;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+      return size() > capacity;
+    }
+  }
+
   private final CommitLogReader reader;
   private final EntityDescriptor entity;
 
@@ -67,27 +214,263 @@ public class LocalCachedPartitionedView implements CachedView {
   /** Cache for data in memory. */
   private final TimeBoundedVersionedCache cache;
 
+  /** Duration to keep versions in cache for. */
+  private final long keepCachedDuration;
+
+  /** Maximal number of cached keys, zero if unbounded. */
+  private final int maxKeys;
+
+  /** Reader of data missing in bounded cache. */
+  @Nullable private RandomAccessReader readThrough;
+
+  @Nullable private final AbsoluteMetric hits;
+
+  @Nullable private final AbsoluteMetric misses;
+
   /** Handle of the observation thread (if any running). */
   private final AtomicReference<ObserveHandle> handle = new AtomicReference<>();
 
+  /** Number of parallel prefetch observers. */
+  private final int prefetchParallelism;
+
+  /** Number of elements to confirm at once during prefetch. */
+  private final int prefetchBatchSize;
+
+  /** Maximal duration of retries of failed prefetch. */
+  private final long prefetchRetryTimeoutMs;
+
+  /** Directory to store snapshots to. */
+  @Nullable private final String snapshotDir;
+
+  /** Interval between two snapshots. */
+  private final long snapshotIntervalMs;
+
+  /** Number of incremental snapshots between two full snapshots. */
+  private final int snapshotFullEvery;
+
+  /** Interval between two runs of background expiry, zero if disabled. */
+  private final long expiryIntervalMs;
+
+  /** Time budget of single run of background expiry. */
+  private final long expiryBudgetMs;
+
+  /** Duration to keep deletes for in background expiry. */
+  private final long expiryTombstoneGraceMs;
+
+  /**
+   * Deletes written through this view, that would be removals when read from the commit log. Their
+   * echo from the commit log keeps the cached tombstone. The echo might carry different UUID (e.g.
+   * derived from offset in the commit log), so deletes are identified by key, attribute and stamp.
+   */
+  private final Map<String, Boolean> writtenDeletes =
+      Collections.synchronizedMap(new RecentEntries<>(MAX_WRITTEN_DELETES));
+
+  @Nullable private transient CacheSnapshots snapshots;
+
+  /** Executor of snapshots and expiry. */
+  @Nullable private transient ScheduledExecutorService maintenanceExecutor;
+
+  /** {@code true} to deliver updates to callback asynchronously. */
+  private final boolean asyncCallback;
+
+  /** Batch window of asynchronous callback. */
+  private final long callbackWindowMs;
+
+  /** Maximal number of pending updates of asynchronous callback. */
+  private final int callbackQueueSize;
+
   private BiConsumer<StreamElement, Pair<Long, Object>> updateCallback = (e, old) -> {};
 
+  @Nullable private transient CoalescingUpdateDispatcher dispatcher;
+
   public LocalCachedPartitionedView(
       EntityDescriptor entity, CommitLogReader reader, OnlineAttributeWriter writer) {
 
     this(entity, reader, writer, 60_000L);
   }
 
+  public LocalCachedPartitionedView(
+      EntityDescriptor entity,
+      CommitLogReader reader,
+      OnlineAttributeWriter writer,
+      Map<String, Object> cfg) {
+
+    this(entity, reader, writer, 60_000L, cfg);
+  }
+
   public LocalCachedPartitionedView(
       EntityDescriptor entity,
       CommitLogReader reader,
       OnlineAttributeWriter writer,
       long keepCachedDuration) {
 
-    this.cache = new TimeBoundedVersionedCache(entity, keepCachedDuration);
+    this(entity, reader, writer, keepCachedDuration, Collections.emptyMap());
+  }
+
+  public LocalCachedPartitionedView(
+      EntityDescriptor entity,
+      CommitLogReader reader,
+      OnlineAttributeWriter writer,
+      long keepCachedDuration,
+      Map<String, Object> cfg) {
+
+    this.maxKeys =
+        Optional.ofNullable(cfg.get(MAX_KEYS_CFG))
+            .map(v -> Integer.valueOf(v.toString()))
+            .orElse(0);
+    this.cache =
+        new TimeBoundedVersionedCache(
+            entity,
+            keepCachedDuration,
+            TimeBoundedVersionedCache.DEFAULT_SEGMENTS,
+            isOffHeap(cfg),
+            maxKeys);
+    this.keepCachedDuration = keepCachedDuration;
     this.reader = Objects.requireNonNull(reader);
     this.entity = Objects.requireNonNull(entity);
     this.writer = Objects.requireNonNull(writer);
+    if (maxKeys > 0) {
+      this.hits = cacheMetric("hits", AbsoluteMetric::of);
+      this.misses = cacheMetric("misses", AbsoluteMetric::of);
+      AbsoluteMetric evictions = cacheMetric("evictions", AbsoluteMetric::of);
+      cache.setEvictionListener(key -> evictions.increment());
+    } else {
+      this.hits = null;
+      this.misses = null;
+    }
+    this.prefetchParallelism =
+        Optional.ofNullable(cfg.get(PREFETCH_PARALLELISM_CFG))
+            .map(v -> Integer.valueOf(v.toString()))
+            .orElse(Runtime.getRuntime().availableProcessors());
+    this.prefetchBatchSize =
+        Optional.ofNullable(cfg.get(PREFETCH_BATCH_SIZE_CFG))
+            .map(v -> Integer.valueOf(v.toString()))
+            .orElse(1000);
+    this.prefetchRetryTimeoutMs =
+        Optional.ofNullable(cfg.get(PREFETCH_RETRY_TIMEOUT_MS_CFG))
+            .map(v -> Long.valueOf(v.toString()))
+            .orElse(600_000L);
+    this.snapshotDir =
+        Optional.ofNullable(cfg.get(SNAPSHOT_DIR_CFG)).map(Object::toString).orElse(null);
+    this.snapshotIntervalMs =
+        Optional.ofNullable(cfg.get(SNAPSHOT_INTERVAL_MS_CFG))
+            .map(v -> Long.valueOf(v.toString()))
+            .orElse(300_000L);
+    this.snapshotFullEvery =
+        Optional.ofNullable(cfg.get(SNAPSHOT_FULL_EVERY_CFG))
+            .map(v -> Integer.valueOf(v.toString()))
+            .orElse(10);
+    this.asyncCallback = isAsyncCallback(cfg);
+    this.callbackWindowMs =
+        Optional.ofNullable(cfg.get(CALLBACK_WINDOW_MS_CFG))
+            .map(v -> Long.valueOf(v.toString()))
+            .orElse(100L);
+    this.callbackQueueSize =
+        Optional.ofNullable(cfg.get(CALLBACK_QUEUE_SIZE_CFG))
+            .map(v -> Integer.valueOf(v.toString()))
+            .orElse(10_000);
+    this.expiryIntervalMs =
+        Optional.ofNullable(cfg.get(EXPIRY_INTERVAL_MS_CFG))
+            .map(v -> Long.valueOf(v.toString()))
+            .orElse(0L);
+    this.expiryBudgetMs =
+        Optional.ofNullable(cfg.get(EXPIRY_BUDGET_MS_CFG))
+            .map(v -> Long.valueOf(v.toString()))
+            .orElse(10L);
+    this.expiryTombstoneGraceMs =
+        Optional.ofNullable(cfg.get(EXPIRY_TOMBSTONE_GRACE_MS_CFG))
+            .map(v -> Long.valueOf(v.toString()))
+            .orElse(86_400_000L);
+    Preconditions.checkArgument(
+        prefetchParallelism > 0,
+        "%s must be positive, got %s",
+        PREFETCH_PARALLELISM_CFG,
+        prefetchParallelism);
+    Preconditions.checkArgument(
+        prefetchBatchSize > 0,
+        "%s must be positive, got %s",
+        PREFETCH_BATCH_SIZE_CFG,
+        prefetchBatchSize);
+    Preconditions.checkArgument(
+        prefetchRetryTimeoutMs >= 0,
+        "%s must not be negative, got %s",
+        PREFETCH_RETRY_TIMEOUT_MS_CFG,
+        prefetchRetryTimeoutMs);
+    Preconditions.checkArgument(
+        expiryIntervalMs >= 0,
+        "%s must not be negative, got %s",
+        EXPIRY_INTERVAL_MS_CFG,
+        expiryIntervalMs);
+    Preconditions.checkArgument(
+        expiryBudgetMs > 0, "%s must be positive, got %s", EXPIRY_BUDGET_MS_CFG, expiryBudgetMs);
+    Preconditions.checkArgument(
+        expiryTombstoneGraceMs >= 0,
+        "%s must not be negative, got %s",
+        EXPIRY_TOMBSTONE_GRACE_MS_CFG,
+        expiryTombstoneGraceMs);
+    Preconditions.checkArgument(
+        callbackWindowMs >= 0,
+        "%s must not be negative, got %s",
+        CALLBACK_WINDOW_MS_CFG,
+        callbackWindowMs);
+    Preconditions.checkArgument(
+        callbackQueueSize > 0,
+        "%s must be positive, got %s",
+        CALLBACK_QUEUE_SIZE_CFG,
+        callbackQueueSize);
+  }
+
+  /**
+   * Set reader of data missing in the cache. Used only when the number of cached keys is bounded by
+   * {@link #MAX_KEYS_CFG}. Reads of attributes missing in the cache are served by the reader and
+   * the results are cached. Listing of entities and scans of wildcard attributes are served by the
+   * reader, scanned values are replaced by newer versions present in the cache.
+   *
+   * <p>Note that the cache is not merged into listings and scans, so keys and wildcard attributes
+   * present only in the cache (e.g. written through the view and not yet persisted in the storage
+   * of the reader) are not listed until the reader returns them.
+   *
+   * @param readThrough the reader of the same attributes as this view
+   */
+  public void setReadThrough(@Nullable RandomAccessReader readThrough) {
+    Preconditions.checkState(
+        readThrough == null || maxKeys > 0,
+        "Read-through requires %s to be set in view of %s",
+        MAX_KEYS_CFG,
+        entity);
+    this.readThrough = readThrough;
+  }
+
+  private static boolean isOffHeap(Map<String, Object> cfg) {
+    String storage =
+        Optional.ofNullable(cfg.get(STORAGE_CFG)).map(Object::toString).orElse(STORAGE_HEAP);
+    switch (storage) {
+      case STORAGE_HEAP:
+        return false;
+      case STORAGE_OFF_HEAP:
+        return true;
+      default:
+        throw new IllegalArgumentException("Unknown value of " + STORAGE_CFG + ": " + storage);
+    }
+  }
+
+  private static String writtenDeleteId(StreamElement delete) {
+    return delete.getKey() + "#" + delete.getAttribute() + "#" + delete.getStamp();
+  }
+
+  private static boolean isAsyncCallback(Map<String, Object> cfg) {
+    String mode =
+        Optional.ofNullable(cfg.get(CALLBACK_MODE_CFG))
+            .map(Object::toString)
+            .orElse(CALLBACK_MODE_SYNC);
+    switch (mode) {
+      case CALLBACK_MODE_SYNC:
+        return false;
+      case CALLBACK_MODE_ASYNC:
+        return true;
+      default:
+        throw new IllegalArgumentException("Unknown value of " + CALLBACK_MODE_CFG + ": " + mode);
+    }
   }
 
   protected void onCache(StreamElement ingest, boolean overwrite) {
@@ -100,100 +483,456 @@ public class LocalCachedPartitionedView implements CachedView {
       } else {
         attrName = ingest.getAttribute();
       }
-      final boolean updated;
-      final Pair<Long, Object> oldVal;
-      synchronized (cache) {
-        oldVal = cache.get(ingest.getKey(), attrName, Long.MAX_VALUE);
-        updated =
-            cache.put(ingest.getKey(), attrName, ingest.getStamp(), overwrite, parsed.orElse(null));
+      final boolean remove;
+      if (ingest.isDelete() && isRemoval(ingest)) {
+        if (overwrite) {
+          // keep the tombstone when the delete is read back from the commit log
+          writtenDeletes.put(writtenDeleteId(ingest), Boolean.TRUE);
+          remove = false;
+        } else {
+          remove = writtenDeletes.remove(writtenDeleteId(ingest)) == null;
+        }
+      } else {
+        remove = false;
       }
-      if (updated) {
-        updateCallback.accept(ingest, oldVal);
+      CoalescingUpdateDispatcher currentDispatcher = dispatcher;
+      if (currentDispatcher == null) {
+        // the callback is invoked after the lock of the key is released,
+        // so that slow callback does not block readers of the cache
+        updateCache(
+            ingest,
+            attrName,
+            overwrite,
+            remove,
+            parsed,
+            oldVal -> updateCallback.accept(ingest, oldVal));
+      } else {
+        // enqueue the update with the old value, the dispatcher coalesces updates of the same key
+        updateCache(
+            ingest,
+            attrName,
+            overwrite,
+            remove,
+            parsed,
+            oldVal -> {
+              try {
+                currentDispatcher.dispatch(ingest, oldVal);
+              } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                log.warn("Interrupted while dispatching update {}", ingest, ex);
+              }
+            });
       }
     }
   }
 
+  private boolean updateCache(
+      StreamElement ingest,
+      String attrName,
+      boolean overwrite,
+      boolean remove,
+      Optional<Object> parsed,
+      Consumer<Pair<Long, Object>> onUpdate) {
+
+    if (remove) {
+      return cache.remove(ingest.getKey(), attrName, ingest.getStamp(), onUpdate);
+    }
+    return cache.put(
+        ingest.getKey(),
+        attrName,
+        ingest.getStamp(),
+        overwrite,
+        parsed.orElse(null),
+        ingest.getValue(),
+        onUpdate);
+  }
+
+  /**
+   * Check if given delete read from the commit log should physically remove data from the cache
+   * instead of being cached as a tombstone. Deletes written through this view are always cached,
+   * including when they are read back from the commit log, unless too many deletes were written
+   * since.
+   *
+   * @param delete the delete
+   * @return {@code true} to remove the data
+   */
+  protected boolean isRemoval(StreamElement delete) {
+    return false;
+  }
+
   @Override
   public void assign(
       Collection<Partition> partitions,
       BiConsumer<StreamElement, Pair<Long, Object>> updateCallback) {
 
-    close();
+    final List<Offset> previous =
+        Optional.ofNullable(handle.get())
+            .map(ObserveHandle::getCommittedOffsets)
+            .orElse(Collections.emptyList());
+    stop();
     this.updateCallback = Objects.requireNonNull(updateCallback);
-    CountDownLatch latch = new CountDownLatch(1);
-    AtomicLong prefetchedCount = new AtomicLong();
-    final long prefetchStartTime = System.currentTimeMillis();
+    if (asyncCallback) {
+      dispatcher =
+          new CoalescingUpdateDispatcher(
+              "cached-view-callback-" + entity.getName(),
+              updateCallback,
+              callbackWindowMs,
+              callbackQueueSize);
+    }
 
-    LogObserver prefetchObserver =
+    LogObserver observer =
         new LogObserver() {
 
           @Override
           public boolean onNext(StreamElement ingest, OnNextContext context) {
-            final long prefetched = prefetchedCount.incrementAndGet();
-            if (prefetched % 10000 == 0) {
-              log.info(
-                  "Prefetched so far {} elements in {} millis",
-                  prefetched,
-                  System.currentTimeMillis() - prefetchStartTime);
-            }
-            onCache(ingest, false);
-            context.confirm();
+            onUpdate(ingest, context);
             return true;
           }
 
           @Override
           public boolean onError(Throwable error) {
-            log.error("Failed to prefetch data", error);
+            log.error("Error in caching data. Restarting consumption", error);
             assign(partitions);
             return false;
           }
 
           @Override
-          public void onCompleted() {
-            latch.countDown();
-          }
-        };
-
-    LogObserver observer =
-        new LogObserver() {
-
-          @Override
-          public boolean onNext(StreamElement ingest, OnNextContext context) {
-            onCache(ingest, false);
-            context.confirm();
-            return true;
-          }
-
-          @Override
-          public boolean onError(Throwable error) {
-            log.error("Error in caching data. Restarting consumption", error);
-            assign(partitions);
-            return false;
+          public void onIdle(OnIdleContext context) {
+            LocalCachedPartitionedView.this.onIdle(context);
           }
         };
     try {
-      // prefetch the data
-      log.info(
-          "Starting prefetching old topic data for partitions {} with preUpdate {}",
-          partitions.stream().map(Partition::getId).collect(Collectors.toList()),
-          updateCallback);
-      ObserveHandle h =
-          reader.observeBulkPartitions(partitions, Position.OLDEST, true, prefetchObserver);
-      latch.await();
-      log.info(
-          "Finished prefetching of data after {} records in {} millis. Starting consumption of updates.",
-          prefetchedCount.get(),
-          System.currentTimeMillis() - prefetchStartTime);
-      List<Offset> offsets = h.getCommittedOffsets();
+      List<Offset> offsets = resumeOffsets(partitions, previous);
+      if (offsets != null) {
+        log.info("Resuming caching of partitions from offsets {}", offsets);
+      } else {
+        cache.setTrackUpdates(false);
+        cache.clear();
+        // prefetch the data
+        log.info(
+            "Starting prefetching old topic data for partitions {} with preUpdate {}",
+            partitions.stream().map(Partition::getId).collect(Collectors.toList()),
+            updateCallback);
+        offsets = restoreSnapshot(partitions);
+        if (offsets == null) {
+          offsets = initialOffsets(partitions);
+        }
+      }
       // continue the processing
+      cache.setTrackUpdates(snapshots != null);
+      onObserve(offsets);
       handle.set(reader.observeBulkOffsets(offsets, observer));
       handle.get().waitUntilReady();
+      scheduleMaintenance();
     } catch (InterruptedException ex) {
       Thread.currentThread().interrupt();
       throw new RuntimeException(ex);
     }
   }
 
+  /**
+   * Retrieve offsets to continue caching of given partitions from, keeping data already cached from
+   * previous assignment. When {@code null} is returned, the cache is cleared and the offsets are
+   * restored from snapshot or computed by {@link #initialOffsets}.
+   *
+   * @param partitions the newly assigned partitions
+   * @param previous committed offsets of the previous assignment, empty if there was none
+   * @return offsets to continue from, or {@code null} to rebuild the cache
+   */
+  @Nullable
+  protected List<Offset> resumeOffsets(Collection<Partition> partitions, List<Offset> previous) {
+    return null;
+  }
+
+  /**
+   * Fill the empty cache with data of given partitions. Blocks until all partitions are prefetched
+   * up to current data. Failed prefetch is retried with exponential backoff for at most {@link
+   * #PREFETCH_RETRY_TIMEOUT_MS_CFG}.
+   *
+   * @param partitions the partitions to prefetch
+   * @return offsets to continue caching of updates from
+   * @throws IllegalStateException when the prefetch does not succeed in time
+   */
+  protected List<Offset> initialOffsets(Collection<Partition> partitions)
+      throws InterruptedException {
+
+    long deadline = -1L;
+    long backoffMs = PREFETCH_INITIAL_BACKOFF_MS;
+    List<Offset> offsets;
+    while ((offsets = prefetch(partitions)) == null) {
+      long now = System.currentTimeMillis();
+      if (deadline < 0) {
+        deadline = now + prefetchRetryTimeoutMs;
+      }
+      if (now + backoffMs > deadline) {
+        throw new IllegalStateException(
+            String.format(
+                "Failed to prefetch partitions %s within %d ms",
+                partitions, prefetchRetryTimeoutMs));
+      }
+      log.info("Restarting prefetch of partitions {} in {} ms", partitions, backoffMs);
+      TimeUnit.MILLISECONDS.sleep(backoffMs);
+      backoffMs = Math.min(2 * backoffMs, PREFETCH_MAX_BACKOFF_MS);
+    }
+    return offsets;
+  }
+
+  /**
+   * Called before observing of updates starts from given offsets.
+   *
+   * @param offsets the offsets the observing starts from
+   */
+  protected void onObserve(List<Offset> offsets) {}
+
+  /**
+   * Cache update read from the commit log and confirm it.
+   *
+   * @param ingest the update
+   * @param context context of the update
+   */
+  protected void onUpdate(StreamElement ingest, LogObserver.OnNextContext context) {
+    onCache(ingest, false);
+    context.confirm();
+  }
+
+  /**
+   * Called when the observer of updates has no data to process.
+   *
+   * @param context context of the idle observer
+   */
+  protected void onIdle(LogObserver.OnIdleContext context) {}
+
+  /**
+   * Retrieve offsets of the last elements read by the observer of updates, including elements that
+   * were not delivered to {@link #onUpdate}.
+   *
+   * @return the offsets, empty when no updates are observed
+   */
+  protected List<Offset> getCurrentOffsets() {
+    return Optional.ofNullable(handle.get())
+        .map(ObserveHandle::getCurrentOffsets)
+        .orElse(Collections.emptyList());
+  }
+
+  /**
+   * Prefetch given partitions from the oldest data up to current data in parallel.
+   *
+   * @return offsets where the prefetch ended, or {@code null} if the prefetch failed
+   */
+  @Nullable
+  private List<Offset> prefetch(Collection<Partition> partitions) throws InterruptedException {
+    final List<List<Partition>> groups = new ArrayList<>();
+    int index = 0;
+    for (Partition p : partitions) {
+      if (groups.size() < prefetchParallelism) {
+        groups.add(new ArrayList<>());
+      }
+      groups.get(index++ % prefetchParallelism).add(p);
+    }
+    final long prefetchStartTime = System.currentTimeMillis();
+    final AtomicLong prefetchedCount = new AtomicLong();
+    final Map<Integer, GaugeMetric> progress = new ConcurrentHashMap<>();
+    final AtomicReference<Throwable> prefetchError = new AtomicReference<>();
+    final CountDownLatch latch = new CountDownLatch(groups.size());
+    final List<ObserveHandle> handles = new ArrayList<>();
+    for (List<Partition> group : groups) {
+      LogObserver prefetchObserver =
+          new LogObserver() {
+
+            final Map<Integer, AtomicLong> partitionCounts = new HashMap<>();
+            @Nullable OnNextContext unconfirmed = null;
+            int numUnconfirmed = 0;
+
+            @Override
+            public boolean onNext(StreamElement ingest, OnNextContext context) {
+              onCache(ingest, false);
+              final long prefetched = prefetchedCount.incrementAndGet();
+              if (prefetched % 10000 == 0) {
+                log.info(
+                    "Prefetched so far {} elements in {} millis",
+                    prefetched,
+                    System.currentTimeMillis() - prefetchStartTime);
+              }
+              int partitionId = context.getPartition().getId();
+              long partitionCount =
+                  partitionCounts
+                      .computeIfAbsent(partitionId, tmp -> new AtomicLong())
+                      .incrementAndGet();
+              unconfirmed = context;
+              if (++numUnconfirmed >= prefetchBatchSize) {
+                confirm();
+                progress
+                    .computeIfAbsent(partitionId, id -> prefetchProgressMetric(id))
+                    .increment(partitionCount);
+              }
+              return true;
+            }
+
+            @Override
+            public boolean onError(Throwable error) {
+              log.error("Failed to prefetch data of partitions {}", group, error);
+              prefetchError.set(error);
+              while (latch.getCount() > 0) {
+                latch.countDown();
+              }
+              return false;
+            }
+
+            @Override
+            public void onCompleted() {
+              confirm();
+              partitionCounts.forEach(
+                  (id, count) -> {
+                    progress
+                        .computeIfAbsent(id, tmp -> prefetchProgressMetric(id))
+                        .increment(count.get());
+                    log.info("Prefetched {} elements of partition {}", count.get(), id);
+                  });
+              latch.countDown();
+            }
+
+            private void confirm() {
+              if (unconfirmed != null) {
+                unconfirmed.confirm();
+                unconfirmed = null;
+                numUnconfirmed = 0;
+              }
+            }
+          };
+      handles.add(reader.observeBulkPartitions(group, Position.OLDEST, true, prefetchObserver));
+    }
+    latch.await();
+    if (prefetchError.get() != null) {
+      handles.forEach(ObserveHandle::close);
+      cache.clear();
+      return null;
+    }
+    log.info(
+        "Finished prefetching of data of {} partitions using {} observers after {} records in {} "
+            + "millis. Starting consumption of updates.",
+        partitions.size(),
+        groups.size(),
+        prefetchedCount.get(),
+        System.currentTimeMillis() - prefetchStartTime);
+    return handles
+        .stream()
+        .flatMap(h -> h.getCommittedOffsets().stream())
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * Restore cache from the newest valid snapshot, if snapshots are enabled.
+   *
+   * @return offsets to continue consumption from, or {@code null} if nothing was restored
+   */
+  @Nullable
+  private List<Offset> restoreSnapshot(Collection<Partition> partitions) {
+    if (snapshotDir == null) {
+      return null;
+    }
+    if (!reader.hasExternalizableOffsets()) {
+      log.warn(
+          "Reader {} does not have externalizable offsets, snapshots of view will be disabled.",
+          reader.getUri());
+      return null;
+    }
+    snapshots = new CacheSnapshots(new File(snapshotDir), snapshotFullEvery);
+    List<Offset> offsets = snapshots.restore(cache).orElse(null);
+    if (offsets != null) {
+      Set<Integer> restoredPartitions =
+          offsets.stream().map(o -> o.getPartition().getId()).collect(Collectors.toSet());
+      Set<Integer> assignedPartitions =
+          partitions.stream().map(Partition::getId).collect(Collectors.toSet());
+      if (!restoredPartitions.equals(assignedPartitions)) {
+        log.info(
+            "Snapshot contains partitions {}, but assigned are {}. Discarding snapshot.",
+            restoredPartitions,
+            assignedPartitions);
+        cache.clear();
+        snapshots.reset();
+        return null;
+      }
+    }
+    return offsets;
+  }
+
+  private void scheduleMaintenance() {
+    if (snapshots == null && expiryIntervalMs == 0) {
+      return;
+    }
+    maintenanceExecutor =
+        Executors.newSingleThreadScheduledExecutor(
+            r -> {
+              Thread t = new Thread(r);
+              t.setName("cached-view-maintenance-" + entity.getName());
+              t.setDaemon(true);
+              return t;
+            });
+    if (snapshots != null) {
+      maintenanceExecutor.scheduleWithFixedDelay(
+          this::snapshot, snapshotIntervalMs, snapshotIntervalMs, TimeUnit.MILLISECONDS);
+    }
+    if (expiryIntervalMs > 0) {
+      maintenanceExecutor.scheduleWithFixedDelay(
+          this::expire, expiryIntervalMs, expiryIntervalMs, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  @VisibleForTesting
+  void expire() {
+    // stamps are event time, so the cutoff is relative to the newest cached stamp
+    final long maxStamp = cache.getMaxStamp();
+    if (maxStamp == Long.MIN_VALUE) {
+      return;
+    }
+    try {
+      TimeBoundedVersionedCache.ExpiryResult result =
+          cache.expire(
+              maxStamp - keepCachedDuration,
+              maxStamp - Math.max(keepCachedDuration, expiryTombstoneGraceMs),
+              TimeUnit.MILLISECONDS.toNanos(expiryBudgetMs));
+      cacheMetric("evicted_versions", AbsoluteMetric::of).increment(result.getEvictedVersions());
+      cacheMetric("evicted_keys", AbsoluteMetric::of).increment(result.getEvictedKeys());
+      cacheMetric("cached_keys", GaugeMetric::of).increment(cache.size());
+      if (cache.isOffHeap()) {
+        cacheMetric("off_heap_allocated_bytes", GaugeMetric::of).increment(cache.getOffHeapBytes());
+        cacheMetric("off_heap_live_bytes", GaugeMetric::of).increment(cache.getOffHeapLiveBytes());
+      }
+    } catch (Exception ex) {
+      log.error("Failed to expire versions of view {}", this, ex);
+    }
+  }
+
+  private <M extends ScalarMetric> M cacheMetric(
+      String suffix, BiFunction<String, String, M> factory) {
+    return MetricsRegistry.getOrCreate(
+        METRICS_GROUP,
+        MetricsRegistry.toJmxCompatibleName(
+            entity.getName() + "_" + reader.getUri() + "_" + suffix),
+        name -> factory.apply(METRICS_GROUP, name));
+  }
+
+  @VisibleForTesting
+  void snapshot() {
+    ObserveHandle current = handle.get();
+    CacheSnapshots currentSnapshots = snapshots;
+    if (current != null && currentSnapshots != null) {
+      try {
+        currentSnapshots.write(cache, current.getCommittedOffsets());
+      } catch (Exception ex) {
+        log.error("Failed to write snapshot of view {}", this, ex);
+      }
+    }
+  }
+
+  private GaugeMetric prefetchProgressMetric(int partitionId) {
+    return MetricsRegistry.getOrCreate(
+        METRICS_GROUP,
+        MetricsRegistry.toJmxCompatibleName(
+            entity.getName() + "_" + reader.getUri() + "_prefetched_" + partitionId),
+        name -> GaugeMetric.of(METRICS_GROUP, name));
+  }
+
   @Override
   public Collection<Partition> getAssigned() {
     if (handle.get() != null) {
@@ -209,6 +948,9 @@ public class LocalCachedPartitionedView implements CachedView {
 
   @Override
   public RandomOffset fetchOffset(Listing type, String key) {
+    if (readThrough != null) {
+      return readThrough.fetchOffset(type, key);
+    }
     switch (type) {
       case ATTRIBUTE:
         return new RawOffset(key);
@@ -223,28 +965,128 @@ public class LocalCachedPartitionedView implements CachedView {
   public <T> Optional<KeyValue<T>> get(
       String key, String attribute, AttributeDescriptor<T> desc, long stamp) {
 
-    long deleteStamp = Long.MIN_VALUE;
-    synchronized (cache) {
-      if (desc.isWildcard()) {
-        // check for wildcard delete
-        Pair<Long, Object> wildcard = cache.get(key, desc.toAttributePrefix(), stamp);
-        if (wildcard != null && wildcard.getSecond() == null) {
-          // this is delete
-          // move the required stamp after the delete
-          deleteStamp = wildcard.getFirst();
+    // check for wildcard delete
+    String wildcardPrefix = desc.isWildcard() ? desc.toAttributePrefix() : null;
+    Pair<Long, Object> cached = cache.get(key, attribute, wildcardPrefix, stamp);
+    if (hits != null && misses != null) {
+      if (cached != null) {
+        hits.increment();
+      } else {
+        misses.increment();
+        if (readThrough != null) {
+          return getReadThrough(readThrough, key, attribute, desc, wildcardPrefix, stamp);
         }
       }
-      final long filterStamp = deleteStamp;
-      return Optional.ofNullable(cache.get(key, attribute, stamp))
-          .filter(e -> e.getFirst() >= filterStamp)
-          .flatMap(e -> Optional.ofNullable(toKv(key, attribute, e)));
     }
+    return Optional.ofNullable(cached).flatMap(e -> Optional.ofNullable(toKv(key, attribute, e)));
+  }
+
+  @Override
+  public <T> List<Optional<KeyValue<T>>> multiGet(
+      Collection<Pair<String, String>> keyAttributes, AttributeDescriptor<T> desc, long stamp) {
+
+    String wildcardPrefix = desc.isWildcard() ? desc.toAttributePrefix() : null;
+    List<Pair<String, String>> requested = new ArrayList<>(keyAttributes);
+    List<Pair<Long, Object>> cached = cache.get(requested, wildcardPrefix, stamp);
+    List<Optional<KeyValue<T>>> ret = new ArrayList<>(requested.size());
+    List<Integer> missing = new ArrayList<>();
+    for (int i = 0; i < requested.size(); i++) {
+      String key = requested.get(i).getFirst();
+      String attribute = requested.get(i).getSecond();
+      Pair<Long, Object> value = cached.get(i);
+      if (hits != null && misses != null) {
+        if (value != null) {
+          hits.increment();
+        } else {
+          misses.increment();
+          if (readThrough != null) {
+            missing.add(i);
+          }
+        }
+      }
+      ret.add(Optional.ofNullable(toKv(key, attribute, value)));
+    }
+    if (!missing.isEmpty()) {
+      // fetch all keys missing in the cache by single batch
+      List<Pair<String, String>> missingKeyAttributes = new ArrayList<>(missing.size());
+      missing.forEach(i -> missingKeyAttributes.add(requested.get(i)));
+      List<Optional<KeyValue<T>>> fetched = readThrough.multiGet(missingKeyAttributes, desc, stamp);
+      for (int i = 0; i < missing.size(); i++) {
+        Pair<String, String> keyAttribute = missingKeyAttributes.get(i);
+        ret.set(
+            missing.get(i),
+            cacheReadThrough(
+                keyAttribute.getFirst(),
+                keyAttribute.getSecond(),
+                desc,
+                wildcardPrefix,
+                stamp,
+                fetched.get(i)));
+      }
+    }
+    return ret;
+  }
+
+  private <T> Optional<KeyValue<T>> getReadThrough(
+      RandomAccessReader readThrough,
+      String key,
+      String attribute,
+      AttributeDescriptor<T> desc,
+      @Nullable String wildcardPrefix,
+      long stamp) {
+
+    return cacheReadThrough(
+        key, attribute, desc, wildcardPrefix, stamp, readThrough.get(key, attribute, desc, stamp));
+  }
+
+  private <T> Optional<KeyValue<T>> cacheReadThrough(
+      String key,
+      String attribute,
+      AttributeDescriptor<T> desc,
+      @Nullable String wildcardPrefix,
+      long stamp,
+      Optional<KeyValue<T>> kv) {
+
+    if (kv.isPresent()) {
+      cache.put(
+          key,
+          attribute,
+          kv.get().getStamp(),
+          false,
+          kv.get().getParsed().orElse(null),
+          kv.get().getValue(),
+          null);
+    } else {
+      // cache the absence, any version written later overrides this
+      cache.put(key, attribute, ABSENT_STAMP, false, null);
+    }
+    // read the result from cache, so that concurrent updates and wildcard deletes are respected
+    Pair<Long, Object> cached = cache.get(key, attribute, wildcardPrefix, stamp);
+    if (cached != null) {
+      return Optional.ofNullable(toKv(key, attribute, desc, cached));
+    }
+    if (cache.get(key, attribute, stamp) != null) {
+      // the value is shadowed by newer wildcard delete
+      return Optional.empty();
+    }
+    // the key was evicted meanwhile
+    return kv.filter(v -> v.getStamp() <= stamp);
   }
 
   @Override
   public void scanWildcardAll(
       String key, RandomOffset offset, long stamp, int limit, Consumer<KeyValue<?>> consumer) {
 
+    if (readThrough != null) {
+      // attributes present only in the cache are not scanned, see setReadThrough
+      readThrough.scanWildcardAll(
+          key,
+          offset,
+          stamp,
+          limit,
+          kv -> overrideFromCache(kv, stamp).ifPresent(consumer::accept));
+      return;
+    }
     String off = offset == null ? "" : ((RawOffset) offset).getOffset();
     scanWildcardPrefix(key, "", off, stamp, limit, consumer);
   }
@@ -259,10 +1101,54 @@ public class LocalCachedPartitionedView implements CachedView {
       int limit,
       Consumer<KeyValue<T>> consumer) {
 
+    if (readThrough != null) {
+      readThrough.scanWildcard(
+          key,
+          wildcard,
+          offset,
+          stamp,
+          limit,
+          kv -> overrideFromCache(kv, stamp).ifPresent(consumer::accept));
+      return;
+    }
     String off = offset == null ? wildcard.toAttributePrefix() : ((RawOffset) offset).getOffset();
     scanWildcardPrefix(key, wildcard.toAttributePrefix(), off, stamp, limit, (Consumer) consumer);
   }
 
+  /**
+   * Replace value read from the read-through reader by newer version from the cache.
+   *
+   * @return the value to return from scan, empty if the value was deleted
+   */
+  @SuppressWarnings("unchecked")
+  private <T> Optional<KeyValue<T>> overrideFromCache(KeyValue<T> kv, long stamp) {
+    AttributeDescriptor<T> desc = (AttributeDescriptor<T>) kv.getAttributeDescriptor();
+    Pair<Long, Object> cached = cache.get(kv.getKey(), kv.getAttribute(), stamp);
+    Pair<Long, Object> wildcard =
+        desc.isWildcard() ? cache.get(kv.getKey(), desc.toAttributePrefix(), stamp) : null;
+    long deleteStamp =
+        wildcard != null && wildcard.getSecond() == null ? wildcard.getFirst() : Long.MIN_VALUE;
+    if (deleteStamp >= kv.getStamp() && (cached == null || cached.getFirst() < deleteStamp)) {
+      return Optional.empty();
+    }
+    if (cached == null || cached.getFirst() < kv.getStamp()) {
+      return Optional.of(kv);
+    }
+    if (cached.getSecond() == null) {
+      return Optional.empty();
+    }
+    return Optional.of(
+        KeyValue.of(
+            entity,
+            desc,
+            kv.getKey(),
+            kv.getAttribute(),
+            kv.getOffset(),
+            (T) cached.getSecond(),
+            null,
+            cached.getFirst()));
+  }
+
   @SuppressWarnings("unchecked")
   private void scanWildcardPrefix(
       String key,
@@ -301,20 +1187,40 @@ public class LocalCachedPartitionedView implements CachedView {
   @Override
   public void listEntities(
       RandomOffset offset, int limit, Consumer<Pair<RandomOffset, String>> consumer) {
+    if (readThrough != null) {
+      readThrough.listEntities(offset, limit, consumer);
+      return;
+    }
     final IntOffset off = offset == null ? new IntOffset(0) : (IntOffset) offset;
-    final AtomicInteger newOff = new AtomicInteger(off.getOffset());
-    cache.keys(
+    cache.listKeys(
         off.getOffset(),
         limit,
-        key -> consumer.accept(Pair.of(new IntOffset(newOff.incrementAndGet()), key)));
+        (position, key) -> consumer.accept(Pair.of(new IntOffset(position + 1), key)));
   }
 
   @Override
   public void close() {
-    Optional.ofNullable(handle.getAndSet(null)).ifPresent(ObserveHandle::close);
+    stop();
+    snapshots = null;
+    cache.setTrackUpdates(false);
     cache.clear();
   }
 
+  /** Stop observing updates and maintenance, keeping the cached data. */
+  private void stop() {
+    if (maintenanceExecutor != null) {
+      maintenanceExecutor.shutdownNow();
+      maintenanceExecutor = null;
+    }
+    // store the latest state for fast restart
+    snapshot();
+    Optional.ofNullable(handle.getAndSet(null)).ifPresent(ObserveHandle::close);
+    if (dispatcher != null) {
+      dispatcher.close();
+      dispatcher = null;
+    }
+  }
+
   private @Nullable <T> KeyValue<T> toKv(
       String key, String attribute, @Nullable Pair<Long, Object> p) {
 
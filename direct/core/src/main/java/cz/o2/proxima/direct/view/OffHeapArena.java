@@ -0,0 +1,311 @@
+/**
+ * Copyright 2017-2020 O2 Czech Republic, a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.o2.proxima.direct.view;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Append-only arena of byte arrays allocated in direct (off-heap) memory.
+ *
+ * <p>Memory is allocated in chunks, each record is addressed by a {@code long} handle. Released
+ * records are not reused individually, a chunk is recycled as a whole once all its records have
+ * been released. Space of chunks with few live records is reclaimed by compaction, the owner of the
+ * handles moves the live records to the current chunk by {@link #relocate} while {@link
+ * #needsCompaction} holds.
+ *
+ * <p>The arena is not thread-safe, access has to be guarded by the caller. Concurrent calls to
+ * {@link #read} are safe, provided there is no concurrent modification.
+ */
+class OffHeapArena implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  /** Default size of single chunk in bytes. */
+  static final int DEFAULT_CHUNK_SIZE = 1 << 19;
+
+  /** Maximal number of released chunks to keep for reuse. */
+  private static final int MAX_FREE_CHUNKS = 2;
+
+  private static class Chunk {
+    final ByteBuffer buffer;
+    int used = 0;
+    int live = 0;
+
+    Chunk(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+  }
+
+  private final int chunkSize;
+
+  /** Chunks indexed by chunk id, released chunks are {@code null}. */
+  private transient List<Chunk> chunks = new ArrayList<>();
+
+  /** Ids of released chunks that can be reused. */
+  private transient Deque<Integer> freeIds = new ArrayDeque<>();
+
+  /** Released buffers of standard chunk size. */
+  private transient Deque<ByteBuffer> freeBuffers = new ArrayDeque<>();
+
+  private transient Chunk current = null;
+  private transient int currentId = -1;
+  private transient long allocatedBytes = 0;
+  private transient long liveBytes = 0;
+
+  OffHeapArena() {
+    this(DEFAULT_CHUNK_SIZE);
+  }
+
+  OffHeapArena(int chunkSize) {
+    Preconditions.checkArgument(chunkSize > 0, "Chunk size must be positive, got %s", chunkSize);
+    this.chunkSize = chunkSize;
+  }
+
+  /**
+   * Store given bytes in the arena.
+   *
+   * @param data the data to store
+   * @return handle of the stored data
+   */
+  long allocate(byte[] data) {
+    int size = data.length + Integer.BYTES;
+    if (current == null || current.buffer.capacity() - current.used < size) {
+      newChunk(size);
+    }
+    int offset = current.used;
+    ByteBuffer buffer = current.buffer.duplicate();
+    buffer.position(offset);
+    buffer.putInt(data.length);
+    buffer.put(data);
+    current.used += size;
+    current.live += size;
+    liveBytes += size;
+    return ((long) currentId << 32) | offset;
+  }
+
+  /**
+   * Read data stored under given handle.
+   *
+   * @param handle handle returned from {@link #allocate}
+   * @return the stored bytes
+   */
+  byte[] read(long handle) {
+    Chunk chunk = chunks.get(chunkId(handle));
+    int offset = offset(handle);
+    ByteBuffer buffer = chunk.buffer.duplicate();
+    byte[] ret = new byte[buffer.getInt(offset)];
+    buffer.position(offset + Integer.BYTES);
+    buffer.get(ret);
+    return ret;
+  }
+
+  /**
+   * Compare data stored under given handle with given bytes, without copying the data to heap.
+   *
+   * @param handle handle returned from {@link #allocate}
+   * @param data the data to compare with
+   * @return {@code true} if the stored data equal to given bytes
+   */
+  boolean contentEquals(long handle, byte[] data) {
+    Chunk chunk = chunks.get(chunkId(handle));
+    int offset = offset(handle);
+    ByteBuffer buffer = chunk.buffer.duplicate();
+    if (buffer.getInt(offset) != data.length) {
+      return false;
+    }
+    buffer.limit(offset + Integer.BYTES + data.length);
+    buffer.position(offset + Integer.BYTES);
+    return buffer.equals(ByteBuffer.wrap(data));
+  }
+
+  /**
+   * Release data stored under given handle.
+   *
+   * @param handle handle returned from {@link #allocate}
+   */
+  void release(long handle) {
+    int id = chunkId(handle);
+    Chunk chunk = chunks.get(id);
+    int size = chunk.buffer.getInt(offset(handle)) + Integer.BYTES;
+    chunk.live -= size;
+    liveBytes -= size;
+    if (chunk.live == 0 && chunk != current) {
+      releaseChunk(id, chunk);
+    }
+  }
+
+  /**
+   * Check if at least half of the allocated memory is not used by live records, so that the arena
+   * should be compacted by {@link #relocate}.
+   *
+   * @return {@code true} if the arena should be compacted
+   */
+  boolean needsCompaction() {
+    long usedBytes = allocatedBytes - (long) freeBuffers.size() * chunkSize;
+    return usedBytes > 2L * chunkSize && liveBytes * 2 < usedBytes;
+  }
+
+  /**
+   * Move record stored in chunk with less than half of its space live to the current chunk, so that
+   * the chunk can be released once all its records are moved. The old handle is released.
+   *
+   * @param handle handle returned from {@link #allocate} or {@link #relocate}
+   * @return new handle of the record or the same handle if the record was not moved
+   */
+  long relocate(long handle) {
+    Chunk chunk = chunks.get(chunkId(handle));
+    if (chunk == current || chunk.live * 2 >= chunk.used) {
+      return handle;
+    }
+    long ret = allocate(read(handle));
+    release(handle);
+    return ret;
+  }
+
+  /** Release all data. */
+  void clear() {
+    chunks.clear();
+    freeIds.clear();
+    freeBuffers.clear();
+    current = null;
+    currentId = -1;
+    allocatedBytes = 0;
+    liveBytes = 0;
+  }
+
+  /** @return total number of bytes allocated in direct memory */
+  long getAllocatedBytes() {
+    return allocatedBytes;
+  }
+
+  /** @return number of bytes of live records (including their headers) */
+  long getLiveBytes() {
+    return liveBytes;
+  }
+
+  @VisibleForTesting
+  int getNumChunks() {
+    return chunks.size() - freeIds.size();
+  }
+
+  private void newChunk(int minSize) {
+    if (current != null && current.live == 0) {
+      releaseChunk(currentId, current);
+    }
+    final ByteBuffer buffer;
+    if (minSize <= chunkSize) {
+      ByteBuffer free = freeBuffers.poll();
+      buffer = free != null ? free : allocateBuffer(chunkSize);
+    } else {
+      buffer = allocateBuffer(minSize);
+    }
+    current = new Chunk(buffer);
+    Integer freeId = freeIds.poll();
+    if (freeId != null) {
+      currentId = freeId;
+      chunks.set(currentId, current);
+    } else {
+      currentId = chunks.size();
+      chunks.add(current);
+    }
+  }
+
+  private ByteBuffer allocateBuffer(int size) {
+    allocatedBytes += size;
+    return ByteBuffer.allocateDirect(size);
+  }
+
+  private void releaseChunk(int id, Chunk chunk) {
+    chunks.set(id, null);
+    freeIds.push(id);
+    if (chunk.buffer.capacity() == chunkSize && freeBuffers.size() < MAX_FREE_CHUNKS) {
+      freeBuffers.push(chunk.buffer);
+    } else {
+      // the buffer will be freed by garbage collector
+      allocatedBytes -= chunk.buffer.capacity();
+    }
+    if (chunk == current) {
+      current = null;
+      currentId = -1;
+    }
+  }
+
+  private static int chunkId(long handle) {
+    return (int) (handle >>> 32);
+  }
+
+  private static int offset(long handle) {
+    return (int) handle;
+  }
+
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    out.defaultWriteObject();
+    out.writeInt(chunks.size());
+    out.writeInt(currentId);
+    for (Chunk chunk : chunks) {
+      if (chunk == null) {
+        out.writeInt(-1);
+      } else {
+        out.writeInt(chunk.buffer.capacity());
+        out.writeInt(chunk.used);
+        out.writeInt(chunk.live);
+        byte[] data = new byte[chunk.used];
+        ByteBuffer buffer = chunk.buffer.duplicate();
+        buffer.position(0);
+        buffer.get(data);
+        out.write(data);
+      }
+    }
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    chunks = new ArrayList<>();
+    freeIds = new ArrayDeque<>();
+    freeBuffers = new ArrayDeque<>();
+    allocatedBytes = 0;
+    liveBytes = 0;
+    int numChunks = in.readInt();
+    currentId = in.readInt();
+    for (int i = 0; i < numChunks; i++) {
+      int capacity = in.readInt();
+      if (capacity < 0) {
+        chunks.add(null);
+        freeIds.push(i);
+      } else {
+        Chunk chunk = new Chunk(allocateBuffer(capacity));
+        chunk.used = in.readInt();
+        chunk.live = in.readInt();
+        liveBytes += chunk.live;
+        byte[] data = new byte[chunk.used];
+        in.readFully(data);
+        chunk.buffer.put(data);
+        chunks.add(chunk);
+      }
+    }
+    current = currentId >= 0 ? chunks.get(currentId) : null;
+  }
+}
@@ -0,0 +1,158 @@
+/**
+ * Copyright 2017-2020 O2 Czech Republic, a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.o2.proxima.direct.view;
+
+import com.google.common.base.Preconditions;
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
+
+/**
+ * Segmented LRU eviction policy of keys.
+ *
+ * <p>New keys are admitted to probationary segment and are promoted to protected segment when
+ * accessed. Keys demoted from protected segment return to probationary segment. Victims are chosen
+ * from probationary segment first, so that keys written or read only once (e.g. during a scan) do
+ * not evict keys that are accessed frequently.
+ *
+ * <p>Accesses are recorded without locking into a bounded buffer and are applied to the order of
+ * keys by the next modification of the policy. Accesses exceeding capacity of the buffer are
+ * dropped, so the order is approximate under heavy read load.
+ */
+class SegmentedLru implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  /** Maximal number of accesses waiting to be applied. */
+  private static final int MAX_PENDING_ACCESSES = 1024;
+
+  private final int capacity;
+  private final int protectedCapacity;
+
+  /** Keys in probationary segment, in order of access. */
+  private final LinkedHashMap<String, Boolean> probation = new LinkedHashMap<>(16, 0.75f, true);
+
+  /** Keys in protected segment, in order of access. */
+  private final LinkedHashMap<String, Boolean> protectedKeys = new LinkedHashMap<>(16, 0.75f, true);
+
+  /** Accessed keys not yet applied to the order of keys. */
+  private final Queue<String> pendingAccesses = new ConcurrentLinkedQueue<>();
+
+  /** Number of elements in {@link #pendingAccesses}. */
+  private final AtomicInteger numPendingAccesses = new AtomicInteger();
+
+  SegmentedLru(int capacity) {
+    Preconditions.checkArgument(capacity > 0, "Capacity must be positive, got %s", capacity);
+    this.capacity = capacity;
+    // reserve at least fifth of the capacity for probationary segment
+    this.protectedCapacity = capacity - Math.max(1, capacity / 5);
+  }
+
+  /**
+   * Add new key to the policy.
+   *
+   * @param key the key to add
+   */
+  synchronized void add(String key) {
+    applyPendingAccesses();
+    if (protectedKeys.get(key) == null) {
+      probation.put(key, Boolean.TRUE);
+    }
+  }
+
+  /**
+   * Record access of given key. Keys not known to the policy are ignored. The call does not block,
+   * the access is applied by the next modification of the policy.
+   *
+   * @param key the accessed key
+   */
+  void touch(String key) {
+    if (numPendingAccesses.incrementAndGet() <= MAX_PENDING_ACCESSES) {
+      pendingAccesses.add(key);
+    } else {
+      numPendingAccesses.decrementAndGet();
+    }
+  }
+
+  /**
+   * Remove given key from the policy.
+   *
+   * @param key the key to remove
+   */
+  synchronized void remove(String key) {
+    applyPendingAccesses();
+    if (probation.remove(key) == null) {
+      protectedKeys.remove(key);
+    }
+  }
+
+  /**
+   * Remove and return key that should be evicted, if the number of keys exceeds capacity.
+   *
+   * @return the key to evict or {@code null} if the policy is within its capacity
+   */
+  @Nullable
+  synchronized String evict() {
+    applyPendingAccesses();
+    if (probation.size() + protectedKeys.size() <= capacity) {
+      return null;
+    }
+    Iterator<String> it =
+        probation.isEmpty() ? protectedKeys.keySet().iterator() : probation.keySet().iterator();
+    String victim = it.next();
+    it.remove();
+    return victim;
+  }
+
+  synchronized int size() {
+    return probation.size() + protectedKeys.size();
+  }
+
+  synchronized void clear() {
+    probation.clear();
+    protectedKeys.clear();
+    while (pendingAccesses.poll() != null) {
+      numPendingAccesses.decrementAndGet();
+    }
+  }
+
+  private void applyPendingAccesses() {
+    String key;
+    while ((key = pendingAccesses.poll()) != null) {
+      numPendingAccesses.decrementAndGet();
+      applyAccess(key);
+    }
+  }
+
+  private void applyAccess(String key) {
+    if (protectedKeys.get(key) != null) {
+      return;
+    }
+    if (probation.remove(key) != null) {
+      protectedKeys.put(key, Boolean.TRUE);
+      if (protectedKeys.size() > protectedCapacity) {
+        Iterator<String> it = protectedKeys.keySet().iterator();
+        String demoted = it.next();
+        it.remove();
+        probation.put(demoted, Boolean.TRUE);
+      }
+    }
+  }
+}
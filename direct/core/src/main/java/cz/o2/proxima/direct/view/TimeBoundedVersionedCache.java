@@ -16,67 +16,709 @@
 package cz.o2.proxima.direct.view;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import cz.o2.proxima.functional.BiConsumer;
 import cz.o2.proxima.functional.BiFunction;
 import cz.o2.proxima.functional.Consumer;
 import cz.o2.proxima.functional.UnaryFunction;
 import cz.o2.proxima.repository.AttributeDescriptor;
 import cz.o2.proxima.repository.EntityDescriptor;
+import cz.o2.proxima.scheme.ValueSerializer;
 import cz.o2.proxima.util.Pair;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
-import java.util.LinkedHashMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
 import java.util.TreeMap;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import javax.annotation.Nullable;
 import lombok.Value;
 import lombok.extern.slf4j.Slf4j;
 
-/** A cache for data based on timestamp. */
+/**
+ * A cache for data based on timestamp.
+ *
+ * <p>Keys are hashed into independently locked segments, so that reads and writes of different keys
+ * do not contend with each other. Operations on a single key are linearizable.
+ *
+ * <p>The cache can store either parsed values on heap, or serialized values in off-heap memory
+ * together with primitive version stamps. In the latter case values are deserialized lazily on
+ * read.
+ */
 @Slf4j
 class TimeBoundedVersionedCache implements Serializable {
 
   private static final long serialVersionUID = 1L;
 
+  /** Default number of segments. Must be power of two. */
+  static final int DEFAULT_SEGMENTS = 64;
+
   @Value
-  private static class Payload {
+  private static class Payload implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     @Nullable Object data;
     boolean overridable;
   }
 
+  /** Versions of single attribute of a key, ordered by stamp. */
+  interface Versions extends Serializable {
+
+    /** @return number of versions */
+    int size();
+
+    /** @return stamp of the oldest version, the versions must not be empty */
+    long firstStamp();
+
+    /** @return stamp of the newest version, the versions must not be empty */
+    long lastStamp();
+
+    /** @return {@code true} if the newest version is delete, the versions must not be empty */
+    boolean isLastDelete();
+
+    /**
+     * Retrieve version with highest stamp lower or equal to given stamp.
+     *
+     * @return pair of stamp and value or {@code null}
+     */
+    @Nullable
+    Pair<Long, Object> floor(long stamp, Segment segment, String attribute);
+
+    /**
+     * Retrieve the newest version in the form it is stored, without deserializing it. Use {@link
+     * Segment#decodeVersion} to get the value.
+     *
+     * @return pair of stamp and stored value or {@code null} if the versions are empty
+     */
+    @Nullable
+    Pair<Long, Object> last(Segment segment);
+
+    /**
+     * Insert or update version with given stamp.
+     *
+     * @return {@code true} if the versions were updated
+     */
+    boolean update(
+        long stamp,
+        boolean overwrite,
+        @Nullable Object value,
+        @Nullable byte[] serialized,
+        Segment segment,
+        String attribute);
+
+    /** Remove the oldest version. */
+    void removeFirst(Segment segment);
+
+    /** Pass all versions in serialized form to given consumer, ordered by stamp. */
+    void forEach(Segment segment, String attribute, VersionConsumer consumer) throws IOException;
+
+    /** Move values stored in sparse chunks of {@link OffHeapArena} of the segment. */
+    void compact(Segment segment);
+  }
+
+  /** Consumer of serialized versions. */
+  @FunctionalInterface
+  interface VersionConsumer {
+    void accept(long stamp, boolean overridable, @Nullable byte[] data) throws IOException;
+  }
+
+  /** {@link Versions} storing parsed values on heap. */
+  private static class HeapVersions extends TreeMap<Long, Payload> implements Versions {
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public long firstStamp() {
+      return firstKey();
+    }
+
+    @Override
+    public long lastStamp() {
+      return lastKey();
+    }
+
+    @Override
+    public boolean isLastDelete() {
+      return lastEntry().getValue().getData() == null;
+    }
+
+    @Nullable
+    @Override
+    public Pair<Long, Object> floor(long stamp, Segment segment, String attribute) {
+      Map.Entry<Long, Payload> floorEntry = floorEntry(stamp);
+      if (floorEntry != null) {
+        return Pair.of(floorEntry.getKey(), floorEntry.getValue().getData());
+      }
+      return null;
+    }
+
+    @Nullable
+    @Override
+    public Pair<Long, Object> last(Segment segment) {
+      Map.Entry<Long, Payload> lastEntry = lastEntry();
+      return lastEntry == null ? null : Pair.of(lastEntry.getKey(), lastEntry.getValue().getData());
+    }
+
+    @Override
+    public boolean update(
+        long stamp,
+        boolean overwrite,
+        @Nullable Object value,
+        @Nullable byte[] serialized,
+        Segment segment,
+        String attribute) {
+
+      final Payload oldPayload = get(stamp);
+      if (overwrite || oldPayload == null || oldPayload.overridable) {
+        Object data =
+            value == null && serialized != null ? segment.decode(attribute, serialized) : value;
+        Payload newPayload = new Payload(data, !overwrite);
+        put(stamp, newPayload);
+        return !newPayload.equals(oldPayload);
+      }
+      return false;
+    }
+
+    @Override
+    public void removeFirst(Segment segment) {
+      pollFirstEntry();
+    }
+
+    @Override
+    public void forEach(Segment segment, String attribute, VersionConsumer consumer)
+        throws IOException {
+
+      for (Map.Entry<Long, Payload> e : entrySet()) {
+        Object data = e.getValue().getData();
+        consumer.accept(
+            e.getKey(),
+            e.getValue().isOverridable(),
+            data == null ? null : segment.encode(attribute, data));
+      }
+    }
+
+    @Override
+    public void compact(Segment segment) {
+      // nothing stored off-heap
+    }
+  }
+
+  /**
+   * {@link Versions} storing primitive stamps and handles of serialized values stored in {@link
+   * OffHeapArena}.
+   */
+  private static class CompactVersions implements Versions {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Flag of overridable version stored in sign bit of the reference. */
+    private static final long OVERRIDABLE = Long.MIN_VALUE;
+
+    /** Reference of null (deleted) value. */
+    private static final long NULL_REF = Long.MAX_VALUE;
+
+    private long[] stamps = new long[1];
+    private long[] refs = new long[1];
+    private int size = 0;
+
+    @Override
+    public int size() {
+      return size;
+    }
+
+    @Override
+    public long firstStamp() {
+      Preconditions.checkState(size > 0, "Versions are empty");
+      return stamps[0];
+    }
+
+    @Override
+    public long lastStamp() {
+      Preconditions.checkState(size > 0, "Versions are empty");
+      return stamps[size - 1];
+    }
+
+    @Override
+    public boolean isLastDelete() {
+      Preconditions.checkState(size > 0, "Versions are empty");
+      return (refs[size - 1] & ~OVERRIDABLE) == NULL_REF;
+    }
+
+    @Nullable
+    @Override
+    public Pair<Long, Object> floor(long stamp, Segment segment, String attribute) {
+      int pos = Arrays.binarySearch(stamps, 0, size, stamp);
+      if (pos < 0) {
+        pos = -(pos + 1) - 1;
+        if (pos < 0) {
+          return null;
+        }
+      }
+      long ref = refs[pos] & ~OVERRIDABLE;
+      if (ref == NULL_REF) {
+        return Pair.of(stamps[pos], null);
+      }
+      return Pair.of(stamps[pos], segment.decode(attribute, segment.arena.read(ref)));
+    }
+
+    @Nullable
+    @Override
+    public Pair<Long, Object> last(Segment segment) {
+      if (size == 0) {
+        return null;
+      }
+      long ref = refs[size - 1] & ~OVERRIDABLE;
+      return Pair.of(stamps[size - 1], ref == NULL_REF ? null : segment.arena.read(ref));
+    }
+
+    @Override
+    public boolean update(
+        long stamp,
+        boolean overwrite,
+        @Nullable Object value,
+        @Nullable byte[] serialized,
+        Segment segment,
+        String attribute) {
+
+      final byte[] data =
+          serialized == null && value != null ? segment.encode(attribute, value) : serialized;
+      final int pos = Arrays.binarySearch(stamps, 0, size, stamp);
+      if (pos >= 0) {
+        final long oldRef = refs[pos];
+        final boolean oldOverridable = (oldRef & OVERRIDABLE) != 0;
+        if (!overwrite && !oldOverridable) {
+          return false;
+        }
+        final long oldHandle = oldRef & ~OVERRIDABLE;
+        if (oldOverridable == !overwrite) {
+          boolean same =
+              oldHandle == NULL_REF
+                  ? data == null
+                  : data != null && segment.arena.contentEquals(oldHandle, data);
+          if (same) {
+            return false;
+          }
+        }
+        if (oldHandle != NULL_REF) {
+          segment.arena.release(oldHandle);
+        }
+        refs[pos] = toRef(data, overwrite, segment);
+        return true;
+      }
+      final int insert = -(pos + 1);
+      if (size == stamps.length) {
+        stamps = Arrays.copyOf(stamps, size * 2);
+        refs = Arrays.copyOf(refs, size * 2);
+      }
+      System.arraycopy(stamps, insert, stamps, insert + 1, size - insert);
+      System.arraycopy(refs, insert, refs, insert + 1, size - insert);
+      stamps[insert] = stamp;
+      refs[insert] = toRef(data, overwrite, segment);
+      size++;
+      return true;
+    }
+
+    @Override
+    public void removeFirst(Segment segment) {
+      Preconditions.checkState(size > 0, "Versions are empty");
+      long handle = refs[0] & ~OVERRIDABLE;
+      if (handle != NULL_REF) {
+        segment.arena.release(handle);
+      }
+      size--;
+      System.arraycopy(stamps, 1, stamps, 0, size);
+      System.arraycopy(refs, 1, refs, 0, size);
+    }
+
+    @Override
+    public void forEach(Segment segment, String attribute, VersionConsumer consumer)
+        throws IOException {
+
+      for (int i = 0; i < size; i++) {
+        long ref = refs[i] & ~OVERRIDABLE;
+        consumer.accept(
+            stamps[i],
+            (refs[i] & OVERRIDABLE) != 0,
+            ref == NULL_REF ? null : segment.arena.read(ref));
+      }
+    }
+
+    @Override
+    public void compact(Segment segment) {
+      for (int i = 0; i < size; i++) {
+        long handle = refs[i] & ~OVERRIDABLE;
+        if (handle != NULL_REF) {
+          refs[i] = segment.arena.relocate(handle) | (refs[i] & OVERRIDABLE);
+        }
+      }
+    }
+
+    private static long toRef(@Nullable byte[] data, boolean overwrite, Segment segment) {
+      long handle = data == null ? NULL_REF : segment.arena.allocate(data);
+      return overwrite ? handle : handle | OVERRIDABLE;
+    }
+  }
+
+  class Segment implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    final ReadWriteLock lock = new ReentrantReadWriteLock();
+    final Map<String, NavigableMap<String, Versions>> cache = new HashMap<>();
+    @Nullable final OffHeapArena arena;
+
+    /** Eviction policy of keys, when number of keys is bounded. */
+    @Nullable final SegmentedLru lru;
+
+    /** Keys updated since last snapshot, when tracking of updates is enabled. */
+    Set<String> dirty = new HashSet<>();
+
+    /**
+     * Update notifications in order of updates of the segment, enqueued under the write lock and
+     * delivered after the lock is released.
+     */
+    final Deque<Runnable> notifications = new ArrayDeque<>();
+
+    /** {@code true} while some thread delivers {@link #notifications}. */
+    boolean notifying = false;
+
+    Segment(boolean offHeap, int maxKeys) {
+      this.arena = offHeap ? new OffHeapArena() : null;
+      this.lru = maxKeys > 0 ? new SegmentedLru(maxKeys) : null;
+    }
+
+    void touch(String key) {
+      if (lru != null) {
+        lru.touch(key);
+      }
+    }
+
+    Versions newVersions() {
+      return arena == null ? new HeapVersions() : new CompactVersions();
+    }
+
+    @Nullable
+    Object decode(String attribute, byte[] data) {
+      Object ret = serializerOf(attribute).flatMap(s -> s.deserialize(data)).orElse(null);
+      if (ret == null) {
+        log.warn("Failed to deserialize value of attribute {} in {}", attribute, entity);
+      }
+      return ret;
+    }
+
+    /**
+     * Convert version returned from {@link Versions#last} to pair of stamp and deserialized value.
+     * Does not need the lock of the segment.
+     */
+    @Nullable
+    Pair<Long, Object> decodeVersion(String attribute, @Nullable Pair<Long, Object> version) {
+      if (arena == null || version == null || version.getSecond() == null) {
+        return version;
+      }
+      return Pair.of(version.getFirst(), decode(attribute, (byte[]) version.getSecond()));
+    }
+
+    /**
+     * Enqueue notification of update of attribute. Must be called under the write lock, so that
+     * notifications follow the order of updates.
+     */
+    void enqueueUpdate(
+        String attribute,
+        @Nullable Pair<Long, Object> oldVal,
+        Consumer<Pair<Long, Object>> onUpdate) {
+
+      synchronized (notifications) {
+        notifications.add(() -> onUpdate.accept(decodeVersion(attribute, oldVal)));
+      }
+    }
+
+    /**
+     * Deliver enqueued notifications. Must be called without the lock of the segment. Only single
+     * thread delivers the notifications at a time, so notifications of the same key are never
+     * observed out of order. When other thread (or enclosing notification of the calling thread) is
+     * already delivering, the notifications are delivered by that thread.
+     */
+    void deliverUpdates() {
+      synchronized (notifications) {
+        if (notifying) {
+          return;
+        }
+        notifying = true;
+      }
+      while (true) {
+        final Runnable next;
+        synchronized (notifications) {
+          next = notifications.poll();
+          if (next == null) {
+            notifying = false;
+            return;
+          }
+        }
+        try {
+          next.run();
+        } catch (Exception ex) {
+          log.error("Failed to deliver update notification of entity {}", entity, ex);
+        }
+      }
+    }
+
+    byte[] encode(String attribute, Object value) {
+      return serializerOf(attribute)
+          .map(s -> s.serialize(value))
+          .orElseThrow(
+              () ->
+                  new IllegalArgumentException(
+                      "Missing attribute " + attribute + " in entity " + entity));
+    }
+
+    void clear() {
+      cache.clear();
+      dirty.clear();
+      if (arena != null) {
+        arena.clear();
+      }
+      if (lru != null) {
+        lru.clear();
+      }
+    }
+  }
+
   private final EntityDescriptor entity;
 
   private final long keepDuration;
 
-  private final Map<String, NavigableMap<String, NavigableMap<Long, Payload>>> cache;
+  private final Segment[] segments;
+
+  /** Track keys updated since last snapshot. */
+  private volatile boolean trackUpdates = false;
+
+  /** Interned attribute names, used only when storing data off-heap. */
+  private final Map<String, String> attributeNames = new ConcurrentHashMap<>();
+
+  /** Serializers of attributes, used only when storing data off-heap. */
+  private transient Map<String, Optional<ValueSerializer<Object>>> serializers =
+      new ConcurrentHashMap<>();
+
+  /** Keys in order of insertion. */
+  private final KeyIndex keyIndex = new KeyIndex();
+
+  /** Consumer of keys evicted due to exceeded maximal number of keys. */
+  @Nullable private Consumer<String> evictionListener = null;
+
+  /** Number of keys expired under single acquisition of segment lock. */
+  private static final int EXPIRY_BATCH_SIZE = 64;
+
+  /** Result of single call to {@link #expire}. */
+  @Value
+  static class ExpiryResult {
+    long evictedVersions;
+    long evictedKeys;
+  }
+
+  /** Lock guarding state of expiry. */
+  private transient Object expiryLock = new Object();
+
+  /** Index of segment currently being expired. */
+  private transient int expirySegment = 0;
+
+  /** Keys of segment being expired, {@code null} if expiry of the segment did not start yet. */
+  @Nullable private transient List<String> expiryKeys = null;
+
+  /** Position in {@link #expiryKeys}. */
+  private transient int expiryPosition = 0;
+
+  /** Highest stamp put to the cache. */
+  private final AtomicLong maxStamp = new AtomicLong(Long.MIN_VALUE);
 
   TimeBoundedVersionedCache(EntityDescriptor entity, long keepDuration) {
+    this(entity, keepDuration, DEFAULT_SEGMENTS);
+  }
+
+  TimeBoundedVersionedCache(EntityDescriptor entity, long keepDuration, int numSegments) {
+    this(entity, keepDuration, numSegments, false);
+  }
+
+  /**
+   * Create the cache.
+   *
+   * @param entity entity of the cached data
+   * @param keepDuration duration of versions to keep
+   * @param numSegments number of independently locked segments (power of two)
+   * @param offHeap {@code true} to store serialized values in off-heap memory
+   */
+  TimeBoundedVersionedCache(
+      EntityDescriptor entity, long keepDuration, int numSegments, boolean offHeap) {
+
+    this(entity, keepDuration, numSegments, offHeap, 0);
+  }
+
+  /**
+   * Create the cache.
+   *
+   * @param entity entity of the cached data
+   * @param keepDuration duration of versions to keep
+   * @param numSegments number of independently locked segments (power of two)
+   * @param offHeap {@code true} to store serialized values in off-heap memory
+   * @param maxKeys maximal number of cached keys, zero for unbounded cache. When bounded, keys are
+   *     evicted using segmented LRU policy maintained for each segment independently.
+   */
+  TimeBoundedVersionedCache(
+      EntityDescriptor entity, long keepDuration, int numSegments, boolean offHeap, int maxKeys) {
+
+    Preconditions.checkArgument(
+        numSegments > 0 && Integer.bitCount(numSegments) == 1,
+        "Number of segments must be positive power of two, got %s",
+        numSegments);
+    Preconditions.checkArgument(
+        maxKeys >= 0, "Maximal number of keys must not be negative, got %s", maxKeys);
     this.entity = entity;
     this.keepDuration = keepDuration;
-    this.cache = new LinkedHashMap<>();
+    this.segments = new Segment[numSegments];
+    // round up, so that the cache can hold at least maxKeys keys
+    int maxSegmentKeys = (maxKeys + numSegments - 1) / numSegments;
+    for (int i = 0; i < numSegments; i++) {
+      segments[i] = new Segment(offHeap, maxSegmentKeys);
+    }
+  }
+
+  /**
+   * Set consumer of keys evicted due to exceeded maximal number of keys. The consumer is called
+   * while holding lock of the evicted key.
+   *
+   * @param listener the consumer of evicted keys
+   */
+  void setEvictionListener(@Nullable Consumer<String> listener) {
+    this.evictionListener = listener;
   }
 
   @Nullable
-  synchronized Pair<Long, Object> get(String key, String attribute, long stamp) {
+  Pair<Long, Object> get(String key, String attribute, long stamp) {
+    Segment segment = segmentFor(key);
+    Lock lock = segment.lock.readLock();
+    lock.lock();
+    try {
+      segment.touch(key);
+      return getInternal(segment, key, attribute, stamp);
+    } finally {
+      lock.unlock();
+    }
+  }
 
-    NavigableMap<String, NavigableMap<Long, Payload>> attrMap;
-    attrMap = cache.get(key);
-    if (attrMap != null) {
-      NavigableMap<Long, Payload> valueMap = attrMap.get(attribute);
-      if (valueMap != null) {
-        Map.Entry<Long, Payload> floorEntry = valueMap.floorEntry(stamp);
-        if (floorEntry != null) {
-          return Pair.of(floorEntry.getKey(), floorEntry.getValue().getData());
-        }
+  /**
+   * Retrieve value of given attribute, unless it was deleted by a wildcard delete of given prefix
+   * later than the returned version. Both lookups are performed atomically.
+   *
+   * @param key key of the entity
+   * @param attribute the attribute to retrieve
+   * @param wildcardPrefix prefix of wildcard attribute to check for deletes, might be {@code null}
+   * @param stamp timestamp of the lookup
+   * @return pair of stamp and value (possibly {@code null} for deletes) or {@code null}
+   */
+  @Nullable
+  Pair<Long, Object> get(
+      String key, String attribute, @Nullable String wildcardPrefix, long stamp) {
+
+    Segment segment = segmentFor(key);
+    Lock lock = segment.lock.readLock();
+    lock.lock();
+    try {
+      segment.touch(key);
+      return getUnlessDeleted(segment, key, attribute, wildcardPrefix, stamp);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Retrieve values of multiple (key, attribute) pairs, unless deleted by a wildcard delete of
+   * given prefix. Lock of each segment is acquired only once for all keys of the segment.
+   *
+   * @param keyAttributes pairs of key and attribute to retrieve
+   * @param wildcardPrefix prefix of wildcard attribute to check for deletes, might be {@code null}
+   * @param stamp timestamp of the lookup
+   * @return list of pairs of stamp and value or {@code null}s in order of the requested pairs
+   */
+  List<Pair<Long, Object>> get(
+      List<Pair<String, String>> keyAttributes, @Nullable String wildcardPrefix, long stamp) {
+
+    Map<Segment, List<Integer>> bySegment = new HashMap<>();
+    for (int i = 0; i < keyAttributes.size(); i++) {
+      bySegment
+          .computeIfAbsent(segmentFor(keyAttributes.get(i).getFirst()), tmp -> new ArrayList<>())
+          .add(i);
+    }
+    List<Pair<Long, Object>> ret = new ArrayList<>(Collections.nCopies(keyAttributes.size(), null));
+    bySegment.forEach(
+        (segment, indices) -> {
+          Lock lock = segment.lock.readLock();
+          lock.lock();
+          try {
+            for (int i : indices) {
+              String key = keyAttributes.get(i).getFirst();
+              segment.touch(key);
+              ret.set(
+                  i,
+                  getUnlessDeleted(
+                      segment, key, keyAttributes.get(i).getSecond(), wildcardPrefix, stamp));
+            }
+          } finally {
+            lock.unlock();
+          }
+        });
+    return ret;
+  }
+
+  @Nullable
+  private static Pair<Long, Object> getUnlessDeleted(
+      Segment segment, String key, String attribute, @Nullable String wildcardPrefix, long stamp) {
+
+    long deleteStamp = Long.MIN_VALUE;
+    if (wildcardPrefix != null) {
+      Pair<Long, Object> wildcard = getInternal(segment, key, wildcardPrefix, stamp);
+      if (wildcard != null && wildcard.getSecond() == null) {
+        // this is delete
+        // move the required stamp after the delete
+        deleteStamp = wildcard.getFirst();
       }
     }
+    Pair<Long, Object> ret = getInternal(segment, key, attribute, stamp);
+    if (ret != null && ret.getFirst() >= deleteStamp) {
+      return ret;
+    }
     return null;
   }
 
   @VisibleForTesting
-  NavigableMap<String, NavigableMap<Long, Payload>> get(String key) {
-    return cache.get(key);
+  NavigableMap<String, Versions> get(String key) {
+    Segment segment = segmentFor(key);
+    Lock lock = segment.lock.readLock();
+    lock.lock();
+    try {
+      return segment.cache.get(key);
+    } finally {
+      lock.unlock();
+    }
   }
 
   void scan(
@@ -89,7 +731,7 @@ class TimeBoundedVersionedCache implements Serializable {
     scan(key, prefix, prefix, stamp, parentRecordExtractor, consumer);
   }
 
-  synchronized void scan(
+  void scan(
       String key,
       String prefix,
       String offset,
@@ -97,95 +739,575 @@ class TimeBoundedVersionedCache implements Serializable {
       UnaryFunction<String, String> parentRecordExtractor,
       BiFunction<String, Pair<Long, Object>, Boolean> consumer) {
 
-    NavigableMap<String, NavigableMap<Long, Payload>> attrMap;
-    attrMap = cache.get(key);
-    if (attrMap == null) {
-      return;
-    }
-    String lastParent = null;
-    Pair<Long, Object> parentEntry = null;
-    long parentTombstoneStamp = stamp;
-    for (Map.Entry<String, NavigableMap<Long, Payload>> e : attrMap.tailMap(offset).entrySet()) {
-
-      if (e.getKey().startsWith(prefix)) {
-        if (!e.getKey().equals(offset)) {
-          if (lastParent == null || !e.getKey().startsWith(lastParent)) {
-            lastParent = parentRecordExtractor.apply(e.getKey());
-            parentEntry = lastParent == null ? null : get(key, lastParent, stamp);
-            boolean isDelete = parentEntry != null && parentEntry.getSecond() == null;
-            parentTombstoneStamp = isDelete ? parentEntry.getFirst() : -1;
-          }
-          Map.Entry<Long, Payload> floorEntry = e.getValue().floorEntry(stamp);
-          if (floorEntry != null
-              && parentTombstoneStamp < floorEntry.getKey()
-              && !consumer.apply(
-                  e.getKey(), Pair.of(floorEntry.getKey(), floorEntry.getValue().getData()))) {
-            return;
+    Segment segment = segmentFor(key);
+    Lock lock = segment.lock.readLock();
+    lock.lock();
+    try {
+      NavigableMap<String, Versions> attrMap = segment.cache.get(key);
+      if (attrMap == null) {
+        return;
+      }
+      segment.touch(key);
+      String lastParent = null;
+      Pair<Long, Object> parentEntry = null;
+      long parentTombstoneStamp = stamp;
+      for (Map.Entry<String, Versions> e : attrMap.tailMap(offset).entrySet()) {
+
+        if (e.getKey().startsWith(prefix)) {
+          if (!e.getKey().equals(offset)) {
+            if (lastParent == null || !e.getKey().startsWith(lastParent)) {
+              lastParent = parentRecordExtractor.apply(e.getKey());
+              parentEntry =
+                  lastParent == null ? null : getInternal(segment, key, lastParent, stamp);
+              boolean isDelete = parentEntry != null && parentEntry.getSecond() == null;
+              parentTombstoneStamp = isDelete ? parentEntry.getFirst() : -1;
+            }
+            Pair<Long, Object> floor = e.getValue().floor(stamp, segment, e.getKey());
+            if (floor != null
+                && parentTombstoneStamp < floor.getFirst()
+                && !consumer.apply(e.getKey(), floor)) {
+              return;
+            }
           }
+        } else {
+          return;
         }
-      } else {
-        return;
       }
+    } finally {
+      lock.unlock();
     }
   }
 
-  synchronized int findPosition(String key) {
+  int findPosition(String key) {
     if (key.isEmpty()) {
       return 0;
     }
-    int ret = 0;
-    for (String k : cache.keySet()) {
-      if (k.equals(key)) {
-        break;
+    return keyIndex.position(key);
+  }
+
+  void keys(int offset, int limit, Consumer<String> keyConsumer) {
+    listKeys(offset, limit, (position, key) -> keyConsumer.accept(key));
+  }
+
+  /**
+   * List keys in order of insertion.
+   *
+   * @param offset position to start listing at
+   * @param limit maximal number of keys to list, negative for unlimited
+   * @param keyConsumer consumer of position and key
+   */
+  void listKeys(int offset, int limit, BiConsumer<Integer, String> keyConsumer) {
+    keyIndex.list(offset, limit, keyConsumer);
+  }
+
+  boolean put(String key, String attribute, long stamp, boolean overwrite, @Nullable Object value) {
+    return put(key, attribute, stamp, overwrite, value, null);
+  }
+
+  boolean put(
+      String key,
+      String attribute,
+      long stamp,
+      boolean overwrite,
+      @Nullable Object value,
+      @Nullable Consumer<Pair<Long, Object>> onUpdate) {
+
+    return put(key, attribute, stamp, overwrite, value, null, onUpdate);
+  }
+
+  /**
+   * Put new version of attribute to the cache.
+   *
+   * @param key key of the entity
+   * @param attribute name of the attribute
+   * @param stamp timestamp of the version
+   * @param overwrite {@code true} to overwrite any existing version with the same stamp
+   * @param value the value to cache ({@code null} for deletes)
+   * @param serialized serialized form of the value, if available. When storing data off-heap and
+   *     this is {@code null}, the value is serialized using serializer of the attribute.
+   * @param onUpdate optional consumer of the previous newest version of the attribute, called only
+   *     when the cache was updated. The consumer is called after the lock of the key is released,
+   *     in order of updates of the key. When other thread is delivering notifications of the same
+   *     segment at the time, the consumer is called by that thread, possibly after this method
+   *     returns.
+   * @return {@code true} if the cache was updated
+   */
+  boolean put(
+      String key,
+      String attribute,
+      long stamp,
+      boolean overwrite,
+      @Nullable Object value,
+      @Nullable byte[] serialized,
+      @Nullable Consumer<Pair<Long, Object>> onUpdate) {
+
+    long currentMax;
+    while (stamp > (currentMax = maxStamp.get()) && !maxStamp.compareAndSet(currentMax, stamp)) {
+      // retry
+    }
+    Segment segment = segmentFor(key);
+    Lock lock = segment.lock.writeLock();
+    final boolean updated;
+    final Pair<Long, Object> oldVal;
+    lock.lock();
+    try {
+      NavigableMap<String, Versions> attrMap = segment.cache.get(key);
+      if (attrMap == null) {
+        attrMap = new TreeMap<>();
+        segment.cache.put(key, attrMap);
+        keyIndex.add(key);
+        if (segment.lru != null) {
+          segment.lru.add(key);
+        }
+      }
+      Versions versions = attrMap.get(attribute);
+      if (versions == null) {
+        versions = segment.newVersions();
+        attrMap.put(segment.arena == null ? attribute : internAttribute(attribute), versions);
+      }
+      // keep the old version serialized, it is deserialized only if the cache gets updated
+      oldVal = onUpdate == null ? null : versions.last(segment);
+      boolean changed = false;
+      if (versions.size() == 0 || versions.firstStamp() - keepDuration < stamp) {
+        changed = versions.update(stamp, overwrite, value, serialized, segment, attribute);
+        if (changed) {
+          logPayloadUpdateIfNecessary(key, attribute, stamp, value);
+        }
+      }
+      while (versions.size() > 0 && versions.firstStamp() + keepDuration < stamp) {
+        versions.removeFirst(segment);
+      }
+      updated = changed;
+      if (updated && trackUpdates) {
+        segment.dirty.add(key);
       }
-      ret++;
+      if (updated && onUpdate != null) {
+        segment.enqueueUpdate(attribute, oldVal, onUpdate);
+      }
+      evictIfNecessary(segment);
+    } finally {
+      lock.unlock();
     }
-    return ret;
+    // notify outside of the lock, so that slow consumer does not block readers of the segment
+    if (onUpdate != null) {
+      segment.deliverUpdates();
+    }
+    return updated;
   }
 
-  synchronized void keys(int offset, int limit, Consumer<String> keyConsumer) {
-    int toTake = limit;
-    int toSkip = offset;
-    for (String key : cache.keySet()) {
-      if (toSkip-- <= 0) {
-        if (toTake != 0) {
-          keyConsumer.accept(key);
-          toTake--;
-        } else {
-          break;
+  /**
+   * Physically remove versions of attribute not newer than given stamp. The attribute is dropped
+   * when no version remains and so is the key when it has no attributes left. Unlike caching of
+   * delete, no tombstone is kept, so older versions cached later are not shadowed.
+   *
+   * @param key key of the entity
+   * @param attribute name of the attribute
+   * @param stamp timestamp of the removal
+   * @param onUpdate optional consumer of the previous newest version of the attribute, called only
+   *     when anything was removed, after the lock of the key is released, in order of updates of
+   *     the key
+   * @return {@code true} if the cache was updated
+   */
+  boolean remove(
+      String key, String attribute, long stamp, @Nullable Consumer<Pair<Long, Object>> onUpdate) {
+
+    Segment segment = segmentFor(key);
+    Lock lock = segment.lock.writeLock();
+    lock.lock();
+    try {
+      NavigableMap<String, Versions> attrMap = segment.cache.get(key);
+      Versions versions = attrMap == null ? null : attrMap.get(attribute);
+      if (versions == null || versions.size() == 0 || versions.firstStamp() > stamp) {
+        return false;
+      }
+      if (onUpdate != null) {
+        segment.enqueueUpdate(attribute, versions.last(segment), onUpdate);
+      }
+      while (versions.size() > 0 && versions.firstStamp() <= stamp) {
+        versions.removeFirst(segment);
+      }
+      if (versions.size() == 0) {
+        attrMap.remove(attribute);
+        if (attrMap.isEmpty()) {
+          segment.cache.remove(key);
+          keyIndex.remove(key);
+          if (segment.lru != null) {
+            segment.lru.remove(key);
+          }
+        }
+      }
+      if (trackUpdates) {
+        segment.dirty.add(key);
+      }
+    } finally {
+      lock.unlock();
+    }
+    if (onUpdate != null) {
+      segment.deliverUpdates();
+    }
+    return true;
+  }
+
+  /**
+   * Enable or disable tracking of keys updated since last snapshot.
+   *
+   * @param track {@code true} to track updated keys
+   */
+  void setTrackUpdates(boolean track) {
+    this.trackUpdates = track;
+  }
+
+  /**
+   * Write snapshot of the cache to given output. Data of each segment is copied to memory under the
+   * lock of the segment and written to the output after the lock is released. Tracked updated keys
+   * are reset by the call, so if the snapshot cannot be persisted, the next snapshot has to be
+   * full.
+   *
+   * @param output the output to write to
+   * @param full {@code true} to write all keys, {@code false} to write only keys updated since last
+   *     snapshot
+   * @return number of written keys
+   */
+  long writeSnapshot(DataOutput output, boolean full) throws IOException {
+    long written = 0;
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    for (Segment segment : segments) {
+      buffer.reset();
+      DataOutputStream segmentOutput = new DataOutputStream(buffer);
+      segment.lock.writeLock().lock();
+      final Set<String> keys;
+      try {
+        keys = full ? new HashSet<>(segment.cache.keySet()) : segment.dirty;
+        segment.dirty = new HashSet<>();
+        // downgrade to read lock
+        segment.lock.readLock().lock();
+      } finally {
+        segment.lock.writeLock().unlock();
+      }
+      try {
+        for (String key : keys) {
+          written++;
+          NavigableMap<String, Versions> attrMap = segment.cache.get(key);
+          segmentOutput.writeBoolean(true);
+          segmentOutput.writeUTF(key);
+          segmentOutput.writeInt(attrMap == null ? 0 : attrMap.size());
+          if (attrMap != null) {
+            for (Map.Entry<String, Versions> e : attrMap.entrySet()) {
+              segmentOutput.writeUTF(e.getKey());
+              segmentOutput.writeInt(e.getValue().size());
+              e.getValue()
+                  .forEach(
+                      segment,
+                      e.getKey(),
+                      (stamp, overridable, data) -> {
+                        segmentOutput.writeLong(stamp);
+                        segmentOutput.writeBoolean(overridable);
+                        segmentOutput.writeInt(data == null ? -1 : data.length);
+                        if (data != null) {
+                          segmentOutput.write(data);
+                        }
+                      });
+            }
+          }
+        }
+      } finally {
+        segment.lock.readLock().unlock();
+      }
+      segmentOutput.flush();
+      output.write(buffer.toByteArray());
+    }
+    output.writeBoolean(false);
+    return written;
+  }
+
+  /**
+   * Read snapshot written by {@link #writeSnapshot}. Keys contained in given set are skipped.
+   * Snapshots are therefore supposed to be read from the newest to the oldest.
+   *
+   * @param input the input to read from
+   * @param restored keys already restored from newer snapshots, updated with newly read keys
+   */
+  void readSnapshot(DataInput input, Set<String> restored) throws IOException {
+    while (input.readBoolean()) {
+      String key = input.readUTF();
+      boolean skip = !restored.add(key);
+      int numAttributes = input.readInt();
+      for (int i = 0; i < numAttributes; i++) {
+        String attribute = input.readUTF();
+        int numVersions = input.readInt();
+        for (int j = 0; j < numVersions; j++) {
+          long stamp = input.readLong();
+          boolean overridable = input.readBoolean();
+          int length = input.readInt();
+          byte[] data = null;
+          if (length >= 0) {
+            data = new byte[length];
+            input.readFully(data);
+          }
+          if (!skip) {
+            put(key, attribute, stamp, !overridable, null, data, null);
+          }
         }
       }
     }
   }
 
-  synchronized boolean put(
-      String key, String attribute, long stamp, boolean overwrite, @Nullable Object value) {
+  /** @return number of cached keys */
+  int size() {
+    return keyIndex.size();
+  }
+
+  /** @return highest stamp put to the cache, {@link Long#MIN_VALUE} if the cache is empty */
+  long getMaxStamp() {
+    return maxStamp.get();
+  }
 
-    AtomicBoolean updated = new AtomicBoolean();
-    cache.compute(
-        key,
-        (k, attrMap) -> {
-          if (attrMap == null) {
-            attrMap = new TreeMap<>();
+  /**
+   * Incrementally expire versions with stamp lower than given cutoff. The newest version of each
+   * attribute is kept, unless it is a delete older than given tombstone cutoff. Keys with no
+   * remaining attributes are removed. Expired wildcard deletes are removed together with versions
+   * of the wildcard attributes they delete. Deletes are kept longer than other versions, so that
+   * they shadow late writes with older stamps.
+   *
+   * <p>The expiry processes keys in small batches, so that segment locks are held only for short
+   * time. It returns after the time budget is exhausted (processing at least one batch) or after
+   * processing all segments once. Subsequent call resumes where the previous call stopped.
+   *
+   * @param cutoff the stamp to expire versions before
+   * @param tombstoneCutoff the stamp to expire deletes before, not greater than {@code cutoff}
+   * @param budgetNanos time budget in nanoseconds
+   * @return numbers of evicted versions and keys
+   */
+  ExpiryResult expire(long cutoff, long tombstoneCutoff, long budgetNanos) {
+    Preconditions.checkArgument(
+        tombstoneCutoff <= cutoff,
+        "Tombstone cutoff %s must not be greater than cutoff %s",
+        tombstoneCutoff,
+        cutoff);
+    final long start = System.nanoTime();
+    long evictedVersions = 0;
+    long evictedKeys = 0;
+    synchronized (expiryLock) {
+      int processedSegments = 0;
+      while (processedSegments < segments.length) {
+        Segment segment = segments[expirySegment];
+        if (expiryKeys == null) {
+          Lock lock = segment.lock.readLock();
+          lock.lock();
+          try {
+            expiryKeys = new ArrayList<>(segment.cache.keySet());
+          } finally {
+            lock.unlock();
           }
-          NavigableMap<Long, Payload> valueMap =
-              attrMap.computeIfAbsent(attribute, tmp -> new TreeMap<>());
-          if (valueMap.isEmpty() || valueMap.firstKey() - keepDuration < stamp) {
-            final Payload oldPayload = valueMap.get(stamp);
-            if (overwrite || oldPayload == null || oldPayload.overridable) {
-              logPayloadUpdateIfNecessary(key, attribute, stamp, value);
-              Payload newPayload = new Payload(value, !overwrite);
-              valueMap.put(stamp, newPayload);
-              updated.set(!newPayload.equals(oldPayload));
+          expiryPosition = 0;
+        }
+        Lock lock = segment.lock.writeLock();
+        lock.lock();
+        try {
+          int end = Math.min(expiryKeys.size(), expiryPosition + EXPIRY_BATCH_SIZE);
+          for (; expiryPosition < end; expiryPosition++) {
+            String key = expiryKeys.get(expiryPosition);
+            long evicted = expireKey(segment, key, cutoff, tombstoneCutoff);
+            if (segment.arena != null && segment.arena.needsCompaction()) {
+              compactKey(segment, key);
+            }
+            if (evicted > 0) {
+              evictedVersions += evicted;
+              if (trackUpdates) {
+                segment.dirty.add(key);
+              }
+              if (!segment.cache.containsKey(key)) {
+                evictedKeys++;
+              }
             }
           }
-          long first;
-          while ((first = valueMap.firstKey()) + keepDuration < stamp) {
-            valueMap.remove(first);
+        } finally {
+          lock.unlock();
+        }
+        if (expiryPosition >= expiryKeys.size()) {
+          expiryKeys = null;
+          expirySegment = (expirySegment + 1) % segments.length;
+          processedSegments++;
+        }
+        if (System.nanoTime() - start >= budgetNanos) {
+          break;
+        }
+      }
+    }
+    return new ExpiryResult(evictedVersions, evictedKeys);
+  }
+
+  /** Compact off-heap values of given key. Must be called with write lock of the segment held. */
+  private static void compactKey(Segment segment, String key) {
+    NavigableMap<String, Versions> attrMap = segment.cache.get(key);
+    if (attrMap != null) {
+      attrMap.values().forEach(versions -> versions.compact(segment));
+    }
+  }
+
+  /**
+   * Expire versions of given key. Must be called with write lock of the segment held.
+   *
+   * @return number of evicted versions
+   */
+  private long expireKey(Segment segment, String key, long cutoff, long tombstoneCutoff) {
+    NavigableMap<String, Versions> attrMap = segment.cache.get(key);
+    if (attrMap == null) {
+      return 0;
+    }
+    long evicted = 0;
+    // wildcard deletes are stored under attribute prefix, which ends with dot
+    List<Pair<String, Long>> expiredWildcardDeletes = new ArrayList<>();
+    for (Map.Entry<String, Versions> e : attrMap.entrySet()) {
+      Versions versions = e.getValue();
+      if (e.getKey().endsWith(".")
+          && versions.size() > 0
+          && versions.isLastDelete()
+          && versions.lastStamp() < tombstoneCutoff) {
+        expiredWildcardDeletes.add(Pair.of(e.getKey(), versions.lastStamp()));
+      }
+    }
+    for (Pair<String, Long> delete : expiredWildcardDeletes) {
+      String prefix = delete.getFirst();
+      long deleteStamp = delete.getSecond();
+      Iterator<Map.Entry<String, Versions>> it =
+          attrMap.tailMap(prefix, true).entrySet().iterator();
+      while (it.hasNext()) {
+        Map.Entry<String, Versions> e = it.next();
+        if (!e.getKey().startsWith(prefix)) {
+          break;
+        }
+        Versions versions = e.getValue();
+        // remove the delete itself and everything it deletes
+        long maxStamp = e.getKey().equals(prefix) ? Long.MAX_VALUE : deleteStamp;
+        while (versions.size() > 0 && versions.firstStamp() <= maxStamp) {
+          versions.removeFirst(segment);
+          evicted++;
+        }
+        if (versions.size() == 0) {
+          it.remove();
+        }
+      }
+    }
+    Iterator<Map.Entry<String, Versions>> it = attrMap.entrySet().iterator();
+    while (it.hasNext()) {
+      Versions versions = it.next().getValue();
+      while (versions.size() > 1 && versions.firstStamp() < cutoff) {
+        versions.removeFirst(segment);
+        evicted++;
+      }
+      if (versions.size() == 1
+          && versions.isLastDelete()
+          && versions.lastStamp() < tombstoneCutoff) {
+        versions.removeFirst(segment);
+        evicted++;
+      }
+      if (versions.size() == 0) {
+        it.remove();
+      }
+    }
+    if (attrMap.isEmpty()) {
+      segment.cache.remove(key);
+      keyIndex.remove(key);
+      if (segment.lru != null) {
+        segment.lru.remove(key);
+      }
+    }
+    return evicted;
+  }
+
+  /** Evict keys exceeding capacity of the segment. Must be called with write lock held. */
+  private void evictIfNecessary(Segment segment) {
+    if (segment.lru == null) {
+      return;
+    }
+    String victim;
+    while ((victim = segment.lru.evict()) != null) {
+      NavigableMap<String, Versions> attrMap = segment.cache.remove(victim);
+      if (attrMap != null) {
+        for (Versions versions : attrMap.values()) {
+          while (versions.size() > 0) {
+            versions.removeFirst(segment);
           }
-          return attrMap;
-        });
-    return updated.get();
+        }
+      }
+      keyIndex.remove(victim);
+      if (trackUpdates) {
+        segment.dirty.add(victim);
+      }
+      if (evictionListener != null) {
+        evictionListener.accept(victim);
+      }
+    }
+  }
+
+  /** @return {@code true} if values are stored in off-heap memory */
+  boolean isOffHeap() {
+    return segments[0].arena != null;
+  }
+
+  /** @return number of bytes of live values stored in off-heap memory */
+  long getOffHeapLiveBytes() {
+    long ret = 0;
+    for (Segment segment : segments) {
+      if (segment.arena != null) {
+        Lock lock = segment.lock.readLock();
+        lock.lock();
+        try {
+          ret += segment.arena.getLiveBytes();
+        } finally {
+          lock.unlock();
+        }
+      }
+    }
+    return ret;
+  }
+
+  /** @return number of bytes allocated in off-heap memory */
+  long getOffHeapBytes() {
+    long ret = 0;
+    for (Segment segment : segments) {
+      if (segment.arena != null) {
+        Lock lock = segment.lock.readLock();
+        lock.lock();
+        try {
+          ret += segment.arena.getAllocatedBytes();
+        } finally {
+          lock.unlock();
+        }
+      }
+    }
+    return ret;
+  }
+
+  @Nullable
+  private static Pair<Long, Object> getInternal(
+      Segment segment, String key, String attribute, long stamp) {
+
+    NavigableMap<String, Versions> attrMap = segment.cache.get(key);
+    if (attrMap != null) {
+      Versions versions = attrMap.get(attribute);
+      if (versions != null) {
+        return versions.floor(stamp, segment, attribute);
+      }
+    }
+    return null;
+  }
+
+  private String internAttribute(String attribute) {
+    return attributeNames.computeIfAbsent(attribute, a -> a);
+  }
+
+  private Optional<ValueSerializer<Object>> serializerOf(String attribute) {
+    return serializers.computeIfAbsent(
+        attribute, a -> entity.findAttribute(a, true).map(AttributeDescriptor::getValueSerializer));
+  }
+
+  private Segment segmentFor(String key) {
+    int h = key.hashCode();
+    // spread higher bits downwards, same as HashMap does
+    h ^= h >>> 16;
+    return segments[h & (segments.length - 1)];
   }
 
   private void logPayloadUpdateIfNecessary(
@@ -206,6 +1328,12 @@ class TimeBoundedVersionedCache implements Serializable {
     }
   }
 
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    serializers = new ConcurrentHashMap<>();
+    expiryLock = new Object();
+  }
+
   @Override
   public int hashCode() {
     return Objects.hash(super.hashCode(), keepDuration, entity);
@@ -221,7 +1349,21 @@ class TimeBoundedVersionedCache implements Serializable {
     return false;
   }
 
-  public synchronized void clear() {
-    cache.clear();
+  public void clear() {
+    // acquire all segment locks first, so that no key can be inserted concurrently
+    for (Segment segment : segments) {
+      segment.lock.writeLock().lock();
+    }
+    try {
+      for (Segment segment : segments) {
+        segment.clear();
+      }
+      keyIndex.clear();
+      maxStamp.set(Long.MIN_VALUE);
+    } finally {
+      for (Segment segment : segments) {
+        segment.lock.writeLock().unlock();
+      }
+    }
   }
 }
@@ -0,0 +1,162 @@
+/**
+ * Copyright 2017-2020 O2 Czech Republic, a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.o2.proxima.direct.commitlog;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.typesafe.config.ConfigFactory;
+import cz.o2.proxima.direct.commitlog.LogObserver.OnNextContext;
+import cz.o2.proxima.direct.core.AttributeWriterBase;
+import cz.o2.proxima.direct.core.DirectAttributeFamilyDescriptor;
+import cz.o2.proxima.direct.core.DirectDataOperator;
+import cz.o2.proxima.direct.core.Partition;
+import cz.o2.proxima.repository.AttributeDescriptor;
+import cz.o2.proxima.repository.EntityDescriptor;
+import cz.o2.proxima.repository.Repository;
+import cz.o2.proxima.storage.StreamElement;
+import cz.o2.proxima.util.Optionals;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Test {@link InstrumentedCommitLogReader}. */
+public class InstrumentedCommitLogReaderTest {
+
+  private final Repository repo =
+      Repository.of(ConfigFactory.load("test-reference.conf").resolve());
+  private final EntityDescriptor entity = Optionals.get(repo.findEntity("event"));
+  private final AttributeDescriptor<?> attr = Optionals.get(entity.findAttribute("data"));
+
+  private CommitLogReader reader;
+  private AttributeWriterBase writer;
+
+  @Before
+  public void setUp() {
+    DirectAttributeFamilyDescriptor family =
+        repo.getAllFamilies()
+            .filter(af -> af.getName().equals("event-storage-stream"))
+            .findAny()
+            .map(repo.asDataOperator(DirectDataOperator.class)::resolveRequired)
+            .get();
+    reader = family.getCommitLogReader().get();
+    writer = family.getWriter().get();
+  }
+
+  @Test
+  public void testDisabledByDefault() {
+    assertSame(reader, InstrumentedCommitLogReader.of(reader, "family", Collections.emptyMap()));
+    assertTrue(
+        InstrumentedCommitLogReader.of(
+                reader,
+                "family",
+                Collections.singletonMap(InstrumentedCommitLogReader.METRICS_ENABLED_CFG, "true"))
+            instanceof InstrumentedCommitLogReader);
+  }
+
+  @Test(timeout = 10000)
+  public void testObserveRecordsMetrics() throws InterruptedException {
+    InstrumentedCommitLogReader instrumented = new InstrumentedCommitLogReader(reader, "family", 0);
+    CountDownLatch latch = new CountDownLatch(1);
+    instrumented.observe(
+        "metrics-test",
+        new LogObserver() {
+
+          @Override
+          public boolean onNext(StreamElement ingest, OnNextContext context) {
+            context.confirm();
+            latch.countDown();
+            return true;
+          }
+
+          @Override
+          public boolean onError(Throwable error) {
+            throw new RuntimeException(error);
+          }
+        });
+    writer
+        .online()
+        .write(
+            StreamElement.upsert(
+                entity,
+                attr,
+                UUID.randomUUID().toString(),
+                "key",
+                attr.getName(),
+                System.currentTimeMillis() - 1000,
+                new byte[] {1}),
+            (succ, exc) -> {});
+    latch.await();
+    ConsumerMetrics metrics = ConsumerMetrics.of(instrumented.consumerName("metrics-test"));
+    assertTrue(metrics.getLatency().getValue().get50() >= 1000.0);
+    assertTrue(metrics.getOnNextDuration().getValue().get50() >= 0.0);
+    assertTrue(metrics.getDeliveryToConfirm().getValue().get50() >= 0.0);
+  }
+
+  @Test
+  public void testConsumerName() {
+    InstrumentedCommitLogReader instrumented = new InstrumentedCommitLogReader(reader, "family", 0);
+    assertEquals("family_name", instrumented.consumerName("name"));
+    assertEquals("family_unnamed", instrumented.consumerName(null));
+    assertEquals(
+        "family_unnamed",
+        instrumented.consumerName("unnamed-proxima-bulk-consumer-" + UUID.randomUUID()));
+  }
+
+  @Test
+  public void testUpdateLag() {
+    CommitLogReader lagging = mock(CommitLogReader.class);
+    when(lagging.hasExternalizableOffsets()).thenReturn(true);
+    when(lagging.fetchOffsetLag(any())).thenReturn(Collections.singletonMap(0, 5L));
+    InstrumentedCommitLogReader instrumented =
+        new InstrumentedCommitLogReader(lagging, "family", 1000);
+    InstrumentedLogObserver observer =
+        new InstrumentedLogObserver(
+            new LogObserver() {
+
+              @Override
+              public boolean onNext(StreamElement ingest, OnNextContext context) {
+                return true;
+              }
+
+              @Override
+              public boolean onError(Throwable error) {
+                return false;
+              }
+            },
+            ConsumerMetrics.of("lag-test"),
+            true);
+    OnNextContext context = mock(OnNextContext.class);
+    when(context.getPartition()).thenReturn(Partition.of(0));
+    when(context.getOffset()).thenReturn(mock(Offset.class));
+    observer.onNext(
+        StreamElement.upsert(
+            entity,
+            attr,
+            UUID.randomUUID().toString(),
+            "key",
+            attr.getName(),
+            System.currentTimeMillis(),
+            new byte[] {1}),
+        context);
+    instrumented.updateLag(observer);
+    assertEquals(5.0, observer.getMetrics().getPartitionLag(0).getValue(), 0.0001);
+  }
+}
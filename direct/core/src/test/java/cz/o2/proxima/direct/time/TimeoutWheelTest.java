@@ -0,0 +1,78 @@
+/**
+ * Copyright 2017-2020 O2 Czech Republic, a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.o2.proxima.direct.time;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+/** Test {@link TimeoutWheel}. */
+public class TimeoutWheelTest {
+
+  @Test(timeout = 10000)
+  public void testExpire() throws InterruptedException {
+    List<Integer> expired = Collections.synchronizedList(new ArrayList<>());
+    CountDownLatch latch = new CountDownLatch(3);
+    try (TimeoutWheel<Integer> wheel =
+        new TimeoutWheel<>(
+            "test-wheel",
+            10,
+            TimeUnit.MILLISECONDS,
+            4,
+            item -> {
+              expired.add(item);
+              latch.countDown();
+            })) {
+
+      long startNanos = System.nanoTime();
+      // the delay spans multiple rotations of the wheel
+      wheel.schedule(3, 200, TimeUnit.MILLISECONDS);
+      wheel.schedule(1, 20, TimeUnit.MILLISECONDS);
+      wheel.schedule(2, 50, TimeUnit.MILLISECONDS);
+      latch.await();
+      assertTrue(System.nanoTime() - startNanos >= TimeUnit.MILLISECONDS.toNanos(200));
+      assertEquals(3, expired.size());
+      assertEquals(3, (int) expired.get(2));
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void testCancel() throws InterruptedException {
+    List<Integer> expired = Collections.synchronizedList(new ArrayList<>());
+    CountDownLatch latch = new CountDownLatch(1);
+    try (TimeoutWheel<Integer> wheel =
+        new TimeoutWheel<>(
+            "test-wheel",
+            item -> {
+              expired.add(item);
+              latch.countDown();
+            })) {
+
+      TimeoutWheel.Timeout cancelled = wheel.schedule(1, 20, TimeUnit.MILLISECONDS);
+      TimeoutWheel.Timeout timeout = wheel.schedule(2, 50, TimeUnit.MILLISECONDS);
+      assertTrue(cancelled.cancel());
+      assertFalse(cancelled.cancel());
+      latch.await();
+      assertEquals(Collections.singletonList(2), expired);
+      assertFalse(timeout.cancel());
+    }
+  }
+}
@@ -0,0 +1,184 @@
+/**
+ * Copyright 2017-2020 O2 Czech Republic, a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.o2.proxima.direct.view;
+
+import static org.junit.Assert.*;
+
+import com.typesafe.config.ConfigFactory;
+import cz.o2.proxima.direct.commitlog.Offset;
+import cz.o2.proxima.direct.core.Partition;
+import cz.o2.proxima.repository.EntityDescriptor;
+import cz.o2.proxima.repository.Repository;
+import cz.o2.proxima.util.Pair;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import lombok.Value;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Test suite for {@link CacheSnapshots}. */
+public class CacheSnapshotsTest {
+
+  @Value
+  private static class TestOffset implements Offset {
+    int partitionId;
+    long offset;
+
+    @Override
+    public Partition getPartition() {
+      return Partition.of(partitionId);
+    }
+
+    @Override
+    public long getWatermark() {
+      return Long.MIN_VALUE;
+    }
+  }
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  final Repository repo = Repository.of(ConfigFactory.load("test-reference.conf").resolve());
+  final EntityDescriptor entity = repo.getEntity("gateway");
+  final long now = System.currentTimeMillis();
+  File dir;
+
+  @Before
+  public void setUp() throws IOException {
+    dir = folder.newFolder();
+  }
+
+  @Test
+  public void testRestoreEmpty() {
+    CacheSnapshots snapshots = new CacheSnapshots(dir, 2);
+    assertFalse(snapshots.restore(newCache(false)).isPresent());
+  }
+
+  @Test
+  public void testWriteAndRestoreHeap() throws IOException {
+    testWriteAndRestore(false);
+  }
+
+  @Test
+  public void testWriteAndRestoreOffHeap() throws IOException {
+    testWriteAndRestore(true);
+  }
+
+  private void testWriteAndRestore(boolean offHeap) throws IOException {
+    TimeBoundedVersionedCache cache = newCache(offHeap);
+    CacheSnapshots snapshots = new CacheSnapshots(dir, 2);
+    cache.put("key1", "metric", now, false, 1.0f);
+    cache.put("key2", "metric", now, false, 2.0f);
+    snapshots.write(cache, offsets(1));
+    cache.put("key1", "metric", now + 1, true, 3.0f);
+    cache.put("key3", "metric", now, false, null);
+    snapshots.write(cache, offsets(2));
+    assertEquals(2, snapshots.listFiles().size());
+
+    TimeBoundedVersionedCache restored = newCache(offHeap);
+    Optional<List<Offset>> offsets = new CacheSnapshots(dir, 2).restore(restored);
+    assertEquals(Optional.of(offsets(2)), offsets);
+    assertEquals(Pair.of(now, 1.0f), restored.get("key1", "metric", now));
+    assertEquals(Pair.of(now + 1, 3.0f), restored.get("key1", "metric", now + 1));
+    assertEquals(Pair.of(now, 2.0f), restored.get("key2", "metric", now));
+    assertEquals(Pair.of(now, null), restored.get("key3", "metric", now));
+    // the restored version is not overridable
+    assertFalse(restored.put("key1", "metric", now + 1, false, 4.0f));
+  }
+
+  @Test
+  public void testCorruptedDeltaIgnored() throws IOException {
+    TimeBoundedVersionedCache cache = newCache(false);
+    CacheSnapshots snapshots = new CacheSnapshots(dir, 2);
+    cache.put("key1", "metric", now, false, 1.0f);
+    snapshots.write(cache, offsets(1));
+    cache.put("key1", "metric", now + 1, false, 2.0f);
+    snapshots.write(cache, offsets(2));
+    List<File> files = snapshots.listFiles();
+    try (RandomAccessFile file = new RandomAccessFile(files.get(1), "rw")) {
+      file.setLength(file.length() - 1);
+    }
+    TimeBoundedVersionedCache restored = newCache(false);
+    assertEquals(Optional.of(offsets(1)), new CacheSnapshots(dir, 2).restore(restored));
+    assertEquals(Pair.of(now, 1.0f), restored.get("key1", "metric", now + 1));
+    assertEquals(1, snapshots.listFiles().size());
+  }
+
+  @Test
+  public void testFullSnapshotRemovesOlderFiles() throws IOException {
+    TimeBoundedVersionedCache cache = newCache(false);
+    cache.setTrackUpdates(true);
+    CacheSnapshots snapshots = new CacheSnapshots(dir, 2);
+    for (int i = 0; i < 4; i++) {
+      cache.put("key" + i, "metric", now, false, (float) i);
+      snapshots.write(cache, offsets(i));
+    }
+    // full, delta, delta, full
+    List<File> files = snapshots.listFiles();
+    assertEquals(1, files.size());
+    assertTrue(files.get(0).getName().endsWith(".full"));
+    TimeBoundedVersionedCache restored = newCache(false);
+    assertEquals(Optional.of(offsets(3)), new CacheSnapshots(dir, 2).restore(restored));
+    for (int i = 0; i < 4; i++) {
+      assertEquals(Pair.of(now, (float) i), restored.get("key" + i, "metric", now));
+    }
+  }
+
+  @Test
+  public void testFailedWriteForcesFullSnapshot() throws IOException {
+    TimeBoundedVersionedCache cache = newCache(false);
+    CacheSnapshots snapshots = new CacheSnapshots(dir, 2);
+    cache.put("key1", "metric", now, false, 1.0f);
+    snapshots.write(cache, offsets(1));
+    cache.put("key2", "metric", now, false, 2.0f);
+    // make the move of the delta snapshot to its final location fail
+    File blocking = new File(dir, "snapshot-00000000000000000001.delta");
+    assertTrue(new File(blocking, "file").mkdirs());
+    try {
+      snapshots.write(cache, offsets(2));
+      fail("Should have thrown exception");
+    } catch (IOException ex) {
+      // expected
+    }
+    assertTrue(new File(blocking, "file").delete());
+    assertTrue(blocking.delete());
+    cache.put("key3", "metric", now, false, 3.0f);
+    snapshots.write(cache, offsets(3));
+    List<File> files = snapshots.listFiles();
+    assertEquals(1, files.size());
+    assertTrue(files.get(0).getName().endsWith(".full"));
+    TimeBoundedVersionedCache restored = newCache(false);
+    assertEquals(Optional.of(offsets(3)), new CacheSnapshots(dir, 2).restore(restored));
+    for (int i = 1; i <= 3; i++) {
+      assertEquals(Pair.of(now, (float) i), restored.get("key" + i, "metric", now));
+    }
+  }
+
+  private TimeBoundedVersionedCache newCache(boolean offHeap) {
+    TimeBoundedVersionedCache ret = new TimeBoundedVersionedCache(entity, 60_000L, 4, offHeap);
+    ret.setTrackUpdates(true);
+    return ret;
+  }
+
+  private static List<Offset> offsets(long offset) {
+    return Arrays.asList(new TestOffset(0, offset), new TestOffset(1, offset));
+  }
+}
@@ -0,0 +1,146 @@
+/**
+ * Copyright 2017-2020 O2 Czech Republic, a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.o2.proxima.direct.view;
+
+import static org.junit.Assert.*;
+
+import com.typesafe.config.ConfigFactory;
+import cz.o2.proxima.repository.AttributeDescriptor;
+import cz.o2.proxima.repository.EntityDescriptor;
+import cz.o2.proxima.repository.Repository;
+import cz.o2.proxima.storage.StreamElement;
+import cz.o2.proxima.util.Pair;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+/** Test suite for {@link CoalescingUpdateDispatcher}. */
+public class CoalescingUpdateDispatcherTest {
+
+  Repository repo = Repository.of(ConfigFactory.load("test-reference.conf"));
+  EntityDescriptor gateway =
+      repo.findEntity("gateway")
+          .orElseThrow(() -> new IllegalStateException("Missing entity gateway"));
+  AttributeDescriptor<?> armed =
+      gateway
+          .findAttribute("armed")
+          .orElseThrow(() -> new IllegalStateException("Missing attribute armed"));
+  long now = System.currentTimeMillis();
+
+  @Test(timeout = 10000)
+  public void testUpdatesCoalesced() throws InterruptedException {
+    List<Pair<StreamElement, Pair<Long, Object>>> delivered =
+        Collections.synchronizedList(new ArrayList<>());
+    CountDownLatch latch = new CountDownLatch(2);
+    CoalescingUpdateDispatcher dispatcher =
+        new CoalescingUpdateDispatcher(
+            "test",
+            (e, old) -> {
+              delivered.add(Pair.of(e, old));
+              latch.countDown();
+            },
+            500,
+            100);
+    StreamElement last = update("key1", now + 2);
+    dispatcher.dispatch(update("key1", now), null);
+    dispatcher.dispatch(update("key1", now + 1), Pair.of(now, "first"));
+    dispatcher.dispatch(update("key2", now), null);
+    dispatcher.dispatch(last, Pair.of(now + 1, "second"));
+    latch.await();
+    dispatcher.close();
+    assertEquals(2, delivered.size());
+    assertSame(last, delivered.get(0).getFirst());
+    assertNull(delivered.get(0).getSecond());
+    assertEquals("key2", delivered.get(1).getFirst().getKey());
+  }
+
+  @Test(timeout = 10000)
+  public void testOlderUpdateDoesNotReplaceNewer() throws InterruptedException {
+    List<StreamElement> delivered = Collections.synchronizedList(new ArrayList<>());
+    CountDownLatch latch = new CountDownLatch(1);
+    CoalescingUpdateDispatcher dispatcher =
+        new CoalescingUpdateDispatcher(
+            "test",
+            (e, old) -> {
+              delivered.add(e);
+              latch.countDown();
+            },
+            500,
+            100);
+    StreamElement newer = update("key1", now + 1);
+    dispatcher.dispatch(newer, Pair.of(now, "first"));
+    dispatcher.dispatch(update("key1", now), null);
+    latch.await();
+    dispatcher.close();
+    assertEquals(Collections.singletonList(newer), delivered);
+  }
+
+  @Test(timeout = 10000)
+  public void testDispatchBlocksWhenFull() throws InterruptedException {
+    CountDownLatch delivering = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    CoalescingUpdateDispatcher dispatcher =
+        new CoalescingUpdateDispatcher(
+            "test",
+            (e, old) -> {
+              delivering.countDown();
+              try {
+                release.await();
+              } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+              }
+            },
+            0,
+            1);
+    dispatcher.dispatch(update("key1", now), null);
+    delivering.await();
+    // fills the queue
+    dispatcher.dispatch(update("key2", now), null);
+    // coalesced with the pending update, does not block
+    dispatcher.dispatch(update("key2", now + 1), null);
+    CountDownLatch dispatched = new CountDownLatch(1);
+    Thread thread =
+        new Thread(
+            () -> {
+              try {
+                dispatcher.dispatch(update("key3", now), null);
+                dispatched.countDown();
+              } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+              }
+            });
+    thread.start();
+    assertFalse(dispatched.await(200, TimeUnit.MILLISECONDS));
+    release.countDown();
+    dispatched.await();
+    dispatcher.close();
+  }
+
+  private StreamElement update(String key, long stamp) {
+    return StreamElement.upsert(
+        gateway,
+        armed,
+        UUID.randomUUID().toString(),
+        key,
+        armed.getName(),
+        stamp,
+        new byte[] {1, 2, 3});
+  }
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright 2017-2020 O2 Czech Republic, a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.o2.proxima.direct.view;
+
+import static org.junit.Assert.*;
+
+import cz.o2.proxima.util.Pair;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+/** Test suite for {@link KeyIndex}. */
+public class KeyIndexTest {
+
+  final KeyIndex index = new KeyIndex();
+
+  @Test
+  public void testPositionsAndListing() {
+    for (int i = 0; i < 10; i++) {
+      index.add("key" + i);
+    }
+    assertEquals(3, index.position("key3"));
+    assertEquals(10, index.position("missing"));
+    assertEquals(
+        Arrays.asList(Pair.of(3, "key3"), Pair.of(4, "key4")), list(index.position("key3"), 2));
+    assertEquals(10, list(0, -1).size());
+    assertTrue(list(10, 5).isEmpty());
+  }
+
+  @Test
+  public void testPositionsStableAfterRemove() {
+    for (int i = 0; i < 10; i++) {
+      index.add("key" + i);
+    }
+    index.remove("key4");
+    index.remove("key5");
+    assertEquals(8, index.size());
+    assertEquals(6, index.position("key6"));
+    assertEquals(Arrays.asList(Pair.of(3, "key3"), Pair.of(6, "key6")), list(3, 2));
+    index.add("key4");
+    assertEquals(10, index.position("key4"));
+  }
+
+  @Test
+  public void testCompactionKeepsPositions() {
+    int numKeys = 4096;
+    for (int i = 0; i < numKeys; i++) {
+      index.add("key" + i);
+    }
+    for (int i = 0; i < numKeys - 1; i++) {
+      index.remove("key" + i);
+    }
+    assertEquals(1, index.size());
+    String last = "key" + (numKeys - 1);
+    assertEquals(Arrays.asList(Pair.of(numKeys - 1, last)), list(0, -1));
+    assertEquals(numKeys - 1, index.position(last));
+    // the index was compacted
+    assertTrue(index.getNumSlots() < numKeys);
+    index.add("new");
+    assertEquals(numKeys, index.position("new"));
+  }
+
+  @Test
+  public void testPagingAcrossCompaction() {
+    int numKeys = 4096;
+    for (int i = 0; i < numKeys; i++) {
+      index.add("key" + i);
+    }
+    List<Pair<Integer, String>> page = list(0, 10);
+    assertEquals(Pair.of(9, "key9"), page.get(9));
+    // remove keys of the first page and more, so that the index is compacted
+    for (int i = 0; i < numKeys / 2 + 10; i++) {
+      index.remove("key" + i);
+    }
+    assertTrue(index.getNumSlots() < numKeys);
+    int next = page.get(9).getFirst() + 1;
+    page = list(next, 1);
+    assertEquals(Arrays.asList(Pair.of(numKeys / 2 + 10, "key" + (numKeys / 2 + 10))), page);
+  }
+
+  private List<Pair<Integer, String>> list(int offset, int limit) {
+    List<Pair<Integer, String>> ret = new ArrayList<>();
+    index.list(offset, limit, (position, key) -> ret.add(Pair.of(position, key)));
+    return ret;
+  }
+}
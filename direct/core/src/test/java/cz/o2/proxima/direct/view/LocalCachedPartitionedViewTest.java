@@ -16,37 +16,65 @@
 package cz.o2.proxima.direct.view;
 
 import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 import com.google.common.collect.Sets;
 import com.typesafe.config.ConfigFactory;
 import cz.o2.proxima.direct.commitlog.CommitLogReader;
+import cz.o2.proxima.direct.commitlog.LogObserver;
+import cz.o2.proxima.direct.commitlog.ObserveHandle;
+import cz.o2.proxima.direct.commitlog.Offset;
 import cz.o2.proxima.direct.core.DirectAttributeFamilyDescriptor;
 import cz.o2.proxima.direct.core.DirectDataOperator;
 import cz.o2.proxima.direct.core.OnlineAttributeWriter;
 import cz.o2.proxima.direct.core.Partition;
 import cz.o2.proxima.direct.randomaccess.KeyValue;
+import cz.o2.proxima.direct.randomaccess.RandomAccessReader;
 import cz.o2.proxima.direct.randomaccess.RandomAccessReader.Listing;
 import cz.o2.proxima.direct.randomaccess.RandomOffset;
+import cz.o2.proxima.direct.randomaccess.RawOffset;
 import cz.o2.proxima.repository.AttributeDescriptor;
 import cz.o2.proxima.repository.EntityDescriptor;
 import cz.o2.proxima.repository.Repository;
 import cz.o2.proxima.storage.StorageType;
 import cz.o2.proxima.storage.StreamElement;
+import cz.o2.proxima.storage.commitlog.Position;
 import cz.o2.proxima.util.Pair;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 /** Test suite for {@link LocalCachedPartitionedView}. */
 public class LocalCachedPartitionedViewTest {
 
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
   Repository repo = Repository.of(ConfigFactory.load("test-reference.conf").resolve());
   DirectDataOperator direct = repo.asDataOperator(DirectDataOperator.class);
   EntityDescriptor gateway =
@@ -84,6 +112,34 @@ public class LocalCachedPartitionedViewTest {
     assertTrue(view.get("key", armed, now).isPresent());
   }
 
+  @Test
+  public void testWrittenDeleteKeptWhenReadFromCommitLog() {
+    view =
+        new LocalCachedPartitionedView(gateway, reader, writer) {
+          @Override
+          protected boolean isRemoval(StreamElement delete) {
+            return true;
+          }
+        };
+    view.assign(singlePartition());
+    writer.write(update("key", armed, now), (succ, exc) -> {});
+    writer.write(delete("key", armed, now + 1), (succ, exc) -> {});
+    // delete read from the commit log removes the data
+    assertFalse(view.get("key", armed, now + 1).isPresent());
+    writer.write(update("key", armed, now), (succ, exc) -> {});
+    assertTrue(view.get("key", armed, now + 1).isPresent());
+    view.write(delete("key", armed, now + 1), (succ, exc) -> {});
+    // late update must not resurrect the data deleted through the view
+    writer.write(update("key", armed, now), (succ, exc) -> {});
+    assertFalse(view.get("key", armed, now + 1).isPresent());
+    view.cache(delete("echo", armed, now + 1));
+    // echo of the delete read from the commit log carries different UUID
+    writer.write(delete("echo", armed, now + 1), (succ, exc) -> {});
+    writer.write(update("echo", armed, now), (succ, exc) -> {});
+    assertFalse(view.get("echo", armed, now + 1).isPresent());
+    view.close();
+  }
+
   @Test
   public void testWriteOnCacheError() {
     view.assign(
@@ -271,6 +327,336 @@ public class LocalCachedPartitionedViewTest {
     assertNotEquals(firstOffset, next.get());
   }
 
+  @Test
+  public void testOffHeapStorage() {
+    view =
+        new LocalCachedPartitionedView(
+            gateway,
+            reader,
+            writer,
+            Collections.singletonMap(
+                LocalCachedPartitionedView.STORAGE_CFG,
+                LocalCachedPartitionedView.STORAGE_OFF_HEAP));
+    writer.write(update("key", "device.1", device, now - 1000), (succ, exc) -> {});
+    view.assign(singlePartition());
+    writer.write(update("key", armed, now), (succ, exc) -> {});
+    KeyValue<?> kv = view.get("key", armed, now).orElse(null);
+    assertNotNull(kv);
+    assertArrayEquals(new byte[] {1, 2, 3}, (byte[]) kv.getParsedRequired());
+    assertTrue(view.get("key", "device.1", device, now).isPresent());
+    writer.write(deleteWildcard("key", device, now), (succ, exc) -> {});
+    assertFalse(view.get("key", "device.1", device, now).isPresent());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnknownStorage() {
+    new LocalCachedPartitionedView(
+        gateway,
+        reader,
+        writer,
+        Collections.singletonMap(LocalCachedPartitionedView.STORAGE_CFG, "unknown"));
+  }
+
+  @Test(timeout = 10000)
+  public void testParallelPrefetch() throws InterruptedException {
+    int numPartitions = 8;
+    List<Partition> partitions = new ArrayList<>();
+    for (int i = 0; i < numPartitions; i++) {
+      int id = i;
+      partitions.add(() -> id);
+    }
+    CommitLogReader mockReader = mock(CommitLogReader.class);
+    ObserveHandle followHandle = mock(ObserveHandle.class);
+    Set<Thread> prefetchThreads = Collections.synchronizedSet(new HashSet<>());
+    when(mockReader.observeBulkPartitions(anyCollection(), eq(Position.OLDEST), eq(true), any()))
+        .thenAnswer(
+            invocation -> {
+              Collection<Partition> observed = invocation.getArgument(0);
+              LogObserver observer = invocation.getArgument(3);
+              List<Offset> observedOffsets = new ArrayList<>();
+              Thread thread =
+                  new Thread(
+                      () -> {
+                        for (Partition p : observed) {
+                          LogObserver.OnNextContext context = mock(LogObserver.OnNextContext.class);
+                          when(context.getPartition()).thenReturn(p);
+                          observer.onNext(update("key" + p.getId(), armed, now), context);
+                          Offset offset = mock(Offset.class);
+                          when(offset.getPartition()).thenReturn(p);
+                          observedOffsets.add(offset);
+                        }
+                        observer.onCompleted();
+                      });
+              prefetchThreads.add(thread);
+              thread.start();
+              ObserveHandle handle = mock(ObserveHandle.class);
+              when(handle.getCommittedOffsets()).thenReturn(observedOffsets);
+              return handle;
+            });
+    when(mockReader.observeBulkOffsets(any(), any())).thenReturn(followHandle);
+    view =
+        new LocalCachedPartitionedView(
+            gateway,
+            mockReader,
+            writer,
+            Collections.singletonMap(LocalCachedPartitionedView.PREFETCH_PARALLELISM_CFG, 4));
+    view.assign(partitions);
+    verify(mockReader, times(4))
+        .observeBulkPartitions(anyCollection(), eq(Position.OLDEST), eq(true), any());
+    verify(mockReader)
+        .observeBulkOffsets(argThat((Collection<Offset> c) -> c.size() == numPartitions), any());
+    assertEquals(4, prefetchThreads.size());
+    for (int i = 0; i < numPartitions; i++) {
+      assertTrue(view.get("key" + i, armed, now).isPresent());
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void testFailedPrefetchRetried() {
+    CommitLogReader mockReader = mock(CommitLogReader.class);
+    AtomicInteger attempts = new AtomicInteger();
+    when(mockReader.observeBulkPartitions(anyCollection(), eq(Position.OLDEST), eq(true), any()))
+        .thenAnswer(
+            invocation -> {
+              LogObserver observer = invocation.getArgument(3);
+              if (attempts.incrementAndGet() < 3) {
+                observer.onError(new IllegalStateException("Fail"));
+              } else {
+                observer.onCompleted();
+              }
+              return mock(ObserveHandle.class);
+            });
+    when(mockReader.observeBulkOffsets(any(), any())).thenReturn(mock(ObserveHandle.class));
+    view = new LocalCachedPartitionedView(gateway, mockReader, writer);
+    view.assign(singlePartition());
+    assertEquals(3, attempts.get());
+  }
+
+  @Test(timeout = 10000, expected = IllegalStateException.class)
+  public void testFailedPrefetchRetryTimeout() {
+    CommitLogReader mockReader = mock(CommitLogReader.class);
+    when(mockReader.observeBulkPartitions(anyCollection(), eq(Position.OLDEST), eq(true), any()))
+        .thenAnswer(
+            invocation -> {
+              LogObserver observer = invocation.getArgument(3);
+              observer.onError(new IllegalStateException("Fail"));
+              return mock(ObserveHandle.class);
+            });
+    view =
+        new LocalCachedPartitionedView(
+            gateway,
+            mockReader,
+            writer,
+            Collections.singletonMap(
+                LocalCachedPartitionedView.PREFETCH_RETRY_TIMEOUT_MS_CFG, 1000));
+    view.assign(singlePartition());
+  }
+
+  @Test(timeout = 10000)
+  public void testSnapshotAndRestore() throws IOException {
+    File dir = folder.newFolder();
+    Map<String, Object> cfg = new HashMap<>();
+    cfg.put(LocalCachedPartitionedView.SNAPSHOT_DIR_CFG, dir.getAbsolutePath());
+    view = new LocalCachedPartitionedView(gateway, reader, writer, cfg);
+    writer.write(update("key1", armed, now), (succ, exc) -> {});
+    view.assign(singlePartition());
+    writer.write(update("key2", armed, now), (succ, exc) -> {});
+    view.close();
+    File[] files = dir.listFiles();
+    assertNotNull(files);
+    assertEquals(1, files.length);
+
+    view = new LocalCachedPartitionedView(gateway, reader, writer, cfg);
+    view.assign(singlePartition());
+    assertTrue(view.get("key1", armed, now).isPresent());
+    assertTrue(view.get("key2", armed, now).isPresent());
+    writer.write(update("key3", armed, now), (succ, exc) -> {});
+    assertTrue(view.get("key3", armed, now).isPresent());
+    view.close();
+  }
+
+  @Test(timeout = 10000)
+  public void testExpire() throws InterruptedException {
+    Map<String, Object> cfg = new HashMap<>();
+    cfg.put(LocalCachedPartitionedView.EXPIRY_INTERVAL_MS_CFG, 3_600_000);
+    cfg.put(LocalCachedPartitionedView.EXPIRY_TOMBSTONE_GRACE_MS_CFG, 2000);
+    view = new LocalCachedPartitionedView(gateway, reader, writer, 1000L, cfg);
+    view.assign(singlePartition());
+    writer.write(update("kept", armed, now - 5000), (succ, exc) -> {});
+    writer.write(update("kept", armed, now - 4500), (succ, exc) -> {});
+    writer.write(update("deleted", armed, now - 5000), (succ, exc) -> {});
+    writer.write(delete("deleted", armed, now - 4500), (succ, exc) -> {});
+    writer.write(update("recently-deleted", armed, now - 1700), (succ, exc) -> {});
+    writer.write(delete("recently-deleted", armed, now - 1500), (succ, exc) -> {});
+    writer.write(update("other", armed, now), (succ, exc) -> {});
+    // wait until the view has consumed all the writes
+    while (!view.get("other", armed, now).isPresent()) {
+      TimeUnit.MILLISECONDS.sleep(10);
+    }
+    assertTrue(view.get("kept", armed, now - 4800).isPresent());
+    // the cutoff is relative to the newest stamp, not to the current time
+    view.expire();
+    assertFalse(view.get("kept", armed, now - 4800).isPresent());
+    assertTrue(view.get("kept", armed, now).isPresent());
+    List<String> keys = new ArrayList<>();
+    view.listEntities(p -> keys.add(p.getSecond()));
+    assertEquals(Arrays.asList("kept", "recently-deleted", "other"), keys);
+    // the delete within grace period shadows late write
+    writer.write(update("recently-deleted", armed, now - 1600), (succ, exc) -> {});
+    assertFalse(view.get("recently-deleted", armed, now).isPresent());
+    view.close();
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testBoundedWithReadThrough() {
+    AttributeDescriptor<Object> armedDesc = (AttributeDescriptor<Object>) armed;
+    view =
+        new LocalCachedPartitionedView(
+            gateway,
+            reader,
+            writer,
+            Collections.singletonMap(LocalCachedPartitionedView.MAX_KEYS_CFG, 1000));
+    RandomAccessReader readThrough = mock(RandomAccessReader.class);
+    when(readThrough.get(eq("cold"), eq("armed"), any(), anyLong()))
+        .thenReturn(
+            Optional.of(
+                KeyValue.of(
+                    gateway,
+                    armedDesc,
+                    "cold",
+                    "armed",
+                    new RawOffset("armed"),
+                    new byte[] {4},
+                    now - 100)));
+    view.setReadThrough(readThrough);
+    view.assign(singlePartition());
+    writer.write(update("hot", armed, now), (succ, exc) -> {});
+    assertTrue(view.get("hot", armedDesc, now).isPresent());
+    // cold key is read from the read-through reader and cached
+    for (int i = 0; i < 2; i++) {
+      KeyValue<Object> kv = view.get("cold", armedDesc, now).orElse(null);
+      assertNotNull(kv);
+      assertArrayEquals(new byte[] {4}, (byte[]) kv.getParsedRequired());
+    }
+    verify(readThrough, times(1)).get(eq("cold"), eq("armed"), any(), anyLong());
+    // newer write from the commit log overrides the read value
+    writer.write(delete("cold", armed, now), (succ, exc) -> {});
+    assertFalse(view.get("cold", armedDesc, now).isPresent());
+    // absence of a key is cached too
+    assertFalse(view.get("absent", armedDesc, now).isPresent());
+    assertFalse(view.get("absent", armedDesc, now).isPresent());
+    verify(readThrough, times(1)).get(eq("absent"), eq("armed"), any(), anyLong());
+    verify(readThrough, times(0)).get(eq("hot"), eq("armed"), any(), anyLong());
+    view.close();
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testMultiGetWithReadThrough() {
+    AttributeDescriptor<Object> armedDesc = (AttributeDescriptor<Object>) armed;
+    view =
+        new LocalCachedPartitionedView(
+            gateway,
+            reader,
+            writer,
+            Collections.singletonMap(LocalCachedPartitionedView.MAX_KEYS_CFG, 1000));
+    RandomAccessReader readThrough = mock(RandomAccessReader.class);
+    when(readThrough.multiGet(anyCollection(), any(), anyLong()))
+        .thenReturn(
+            Arrays.asList(
+                Optional.of(
+                    KeyValue.of(
+                        gateway,
+                        armedDesc,
+                        "cold",
+                        "armed",
+                        new RawOffset("armed"),
+                        new byte[] {4},
+                        now - 100)),
+                Optional.empty()));
+    view.setReadThrough(readThrough);
+    view.assign(singlePartition());
+    writer.write(update("hot", armed, now), (succ, exc) -> {});
+    List<Pair<String, String>> keyAttributes =
+        Arrays.asList(
+            Pair.of("cold", "armed"), Pair.of("hot", "armed"), Pair.of("absent", "armed"));
+    for (int i = 0; i < 2; i++) {
+      List<Optional<KeyValue<Object>>> values = view.multiGet(keyAttributes, armedDesc, now);
+      assertEquals(3, values.size());
+      assertArrayEquals(new byte[] {4}, (byte[]) values.get(0).get().getParsedRequired());
+      assertTrue(values.get(1).isPresent());
+      assertFalse(values.get(2).isPresent());
+    }
+    // only keys missing in the cache are fetched, by single batch
+    verify(readThrough, times(1))
+        .multiGet(
+            eq(Arrays.asList(Pair.of("cold", "armed"), Pair.of("absent", "armed"))),
+            any(),
+            anyLong());
+    view.close();
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testReadThroughShadowedByWildcardDelete() {
+    AttributeDescriptor<Object> deviceDesc = (AttributeDescriptor<Object>) device;
+    view =
+        new LocalCachedPartitionedView(
+            gateway,
+            reader,
+            writer,
+            Collections.singletonMap(LocalCachedPartitionedView.MAX_KEYS_CFG, 1000));
+    RandomAccessReader readThrough = mock(RandomAccessReader.class);
+    when(readThrough.get(eq("key"), eq("device.1"), any(), anyLong()))
+        .thenReturn(
+            Optional.of(
+                KeyValue.of(
+                    gateway,
+                    deviceDesc,
+                    "key",
+                    "device.1",
+                    new RawOffset("device.1"),
+                    new byte[] {1},
+                    now - 100)));
+    view.setReadThrough(readThrough);
+    view.assign(singlePartition());
+    writer.write(deleteWildcard("key", device, now), (succ, exc) -> {});
+    // the value read from the read-through reader is older than the cached wildcard delete
+    assertFalse(view.get("key", "device.1", deviceDesc, now).isPresent());
+    verify(readThrough, times(1)).get(eq("key"), eq("device.1"), any(), anyLong());
+    view.close();
+  }
+
+  @Test(timeout = 10000)
+  public void testAsyncCallback() throws InterruptedException {
+    Map<String, Object> cfg = new HashMap<>();
+    cfg.put(
+        LocalCachedPartitionedView.CALLBACK_MODE_CFG,
+        LocalCachedPartitionedView.CALLBACK_MODE_ASYNC);
+    cfg.put(LocalCachedPartitionedView.CALLBACK_WINDOW_MS_CFG, 0);
+    view = new LocalCachedPartitionedView(gateway, reader, writer, cfg);
+    List<Pair<StreamElement, Pair<Long, Object>>> updates =
+        Collections.synchronizedList(new ArrayList<>());
+    CountDownLatch latch = new CountDownLatch(1);
+    view.assign(
+        singlePartition(),
+        (e, old) -> {
+          updates.add(Pair.of(e, old));
+          // the updates might be coalesced, wait for the last one
+          if (e.getStamp() == now + 1) {
+            latch.countDown();
+          }
+        });
+    writer.write(update("key", armed, now), (succ, exc) -> {});
+    writer.write(update("key", armed, now + 1), (succ, exc) -> {});
+    latch.await();
+    assertTrue(updates.size() <= 2);
+    assertNull(updates.get(0).getSecond());
+    assertTrue(view.get("key", armed, now + 1).isPresent());
+    view.close();
+  }
+
   private StreamElement deleteWildcard(String key, AttributeDescriptor<?> desc, long stamp) {
 
     return StreamElement.deleteWildcard(gateway, desc, UUID.randomUUID().toString(), key, stamp);
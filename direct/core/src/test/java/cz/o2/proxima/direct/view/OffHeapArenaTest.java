@@ -0,0 +1,124 @@
+/**
+ * Copyright 2017-2020 O2 Czech Republic, a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.o2.proxima.direct.view;
+
+import static org.junit.Assert.*;
+
+import cz.o2.proxima.util.TestUtils;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+/** Test suite for {@link OffHeapArena}. */
+public class OffHeapArenaTest {
+
+  @Test
+  public void testAllocateAndRead() {
+    OffHeapArena arena = new OffHeapArena(64);
+    long first = arena.allocate(bytes("first"));
+    long second = arena.allocate(bytes("second"));
+    long empty = arena.allocate(new byte[] {});
+    assertEquals("first", string(arena.read(first)));
+    assertEquals("second", string(arena.read(second)));
+    assertEquals(0, arena.read(empty).length);
+    assertEquals(1, arena.getNumChunks());
+  }
+
+  @Test
+  public void testContentEquals() {
+    OffHeapArena arena = new OffHeapArena(64);
+    long first = arena.allocate(bytes("first"));
+    long second = arena.allocate(bytes("second"));
+    assertTrue(arena.contentEquals(first, bytes("first")));
+    assertFalse(arena.contentEquals(first, bytes("firs")));
+    assertFalse(arena.contentEquals(first, bytes("frist")));
+    assertTrue(arena.contentEquals(second, bytes("second")));
+  }
+
+  @Test
+  public void testAllocateLargerThanChunk() {
+    OffHeapArena arena = new OffHeapArena(8);
+    long handle = arena.allocate(bytes("larger than chunk"));
+    assertEquals("larger than chunk", string(arena.read(handle)));
+  }
+
+  @Test
+  public void testChunkReleasedWhenEmpty() {
+    OffHeapArena arena = new OffHeapArena(16);
+    List<Long> handles = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      handles.add(arena.allocate(bytes("value" + i)));
+    }
+    int numChunks = arena.getNumChunks();
+    assertTrue(numChunks > 1);
+    for (int i = 0; i < 9; i++) {
+      arena.release(handles.get(i));
+    }
+    // only the current chunk holds the last value
+    assertEquals(1, arena.getNumChunks());
+    assertEquals("value9", string(arena.read(handles.get(9))));
+    long handle = arena.allocate(bytes("value10"));
+    assertEquals("value10", string(arena.read(handle)));
+  }
+
+  @Test
+  public void testRelocateReclaimsSparseChunks() {
+    OffHeapArena arena = new OffHeapArena(64);
+    List<Long> handles = new ArrayList<>();
+    for (int i = 0; i < 40; i++) {
+      handles.add(arena.allocate(bytes("value" + (char) ('0' + i))));
+    }
+    int numChunks = arena.getNumChunks();
+    assertEquals(7, numChunks);
+    // keep every fourth value, so that no chunk is released
+    for (int i = 0; i < 40; i++) {
+      if (i % 4 != 0) {
+        arena.release(handles.get(i));
+      }
+    }
+    assertEquals(numChunks, arena.getNumChunks());
+    assertEquals(10 * (bytes("value0").length + Integer.BYTES), arena.getLiveBytes());
+    assertTrue(arena.needsCompaction());
+    for (int i = 0; i < 40; i += 4) {
+      handles.set(i, arena.relocate(handles.get(i)));
+    }
+    assertFalse(arena.needsCompaction());
+    assertEquals(3, arena.getNumChunks());
+    for (int i = 0; i < 40; i += 4) {
+      assertEquals("value" + (char) ('0' + i), string(arena.read(handles.get(i))));
+    }
+  }
+
+  @Test
+  public void testSerializable() throws IOException, ClassNotFoundException {
+    OffHeapArena arena = new OffHeapArena(16);
+    long first = arena.allocate(bytes("first"));
+    long second = arena.allocate(bytes("second"));
+    arena.release(first);
+    OffHeapArena deserialized = TestUtils.deserializeObject(TestUtils.serializeObject(arena));
+    assertEquals("second", string(deserialized.read(second)));
+  }
+
+  private static byte[] bytes(String s) {
+    return s.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static String string(byte[] bytes) {
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright 2017-2020 O2 Czech Republic, a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.o2.proxima.direct.view;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/** Test suite for {@link SegmentedLru}. */
+public class SegmentedLruTest {
+
+  final SegmentedLru lru = new SegmentedLru(5);
+
+  @Test
+  public void testEvictLeastRecentlyAdded() {
+    for (int i = 0; i < 5; i++) {
+      lru.add("key" + i);
+    }
+    assertNull(lru.evict());
+    lru.add("key5");
+    assertEquals("key0", lru.evict());
+    assertNull(lru.evict());
+    assertEquals(5, lru.size());
+  }
+
+  @Test
+  public void testAccessedKeysProtected() {
+    for (int i = 0; i < 5; i++) {
+      lru.add("key" + i);
+    }
+    lru.touch("key0");
+    lru.touch("key1");
+    // keys added once do not evict accessed keys
+    for (int i = 5; i < 10; i++) {
+      lru.add("key" + i);
+      assertEquals("key" + (i - 3), lru.evict());
+    }
+    lru.remove("key0");
+    lru.remove("key9");
+    assertEquals(3, lru.size());
+  }
+
+  @Test
+  public void testProtectedSegmentDemotes() {
+    for (int i = 0; i < 5; i++) {
+      lru.add("key" + i);
+      lru.touch("key" + i);
+    }
+    // protected segment holds four keys, the first accessed key was demoted
+    lru.add("key5");
+    assertEquals("key0", lru.evict());
+    lru.clear();
+    assertEquals(0, lru.size());
+  }
+
+  @Test
+  public void testAccessesAppliedOnModification() {
+    for (int i = 0; i < 5; i++) {
+      lru.add("key" + i);
+    }
+    // accesses exceeding the buffer are dropped
+    for (int i = 0; i < 5000; i++) {
+      lru.touch("key0");
+    }
+    lru.add("key5");
+    assertEquals("key1", lru.evict());
+  }
+}
@@ -0,0 +1,200 @@
+/**
+ * Copyright 2017-2020 O2 Czech Republic, a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.o2.proxima.direct.view;
+
+import com.typesafe.config.ConfigFactory;
+import cz.o2.proxima.repository.EntityDescriptor;
+import cz.o2.proxima.repository.Repository;
+import cz.o2.proxima.util.Pair;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.annotation.Nullable;
+import lombok.Value;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Contention benchmark of {@link TimeBoundedVersionedCache}. Single writer thread competes with
+ * multiple reader threads. The baseline is {@link SynchronizedCache}, the original implementation
+ * with every method {@code synchronized} on the cache. The test sources have to be compiled with
+ * {@code -Pbenchmark} to generate the benchmark.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TimeBoundedVersionedCacheBenchmark {
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(
+            new OptionsBuilder()
+                .include(TimeBoundedVersionedCacheBenchmark.class.getSimpleName())
+                .build())
+        .run();
+  }
+
+  /** Common interface of benchmarked caches. */
+  private interface Cache {
+
+    boolean put(String key, String attribute, long stamp, boolean overwrite, Object value);
+
+    @Nullable
+    Pair<Long, Object> get(String key, String attribute, long stamp);
+  }
+
+  /**
+   * Copy of {@code get} and {@code put} of the original {@link TimeBoundedVersionedCache} guarded
+   * by single monitor, with debug logging omitted.
+   */
+  private static class SynchronizedCache implements Cache {
+
+    @Value
+    private static class Payload {
+      @Nullable Object data;
+      boolean overridable;
+    }
+
+    private final long keepDuration;
+    private final Map<String, NavigableMap<String, NavigableMap<Long, Payload>>> cache =
+        new LinkedHashMap<>();
+
+    SynchronizedCache(long keepDuration) {
+      this.keepDuration = keepDuration;
+    }
+
+    @Nullable
+    @Override
+    public synchronized Pair<Long, Object> get(String key, String attribute, long stamp) {
+      NavigableMap<String, NavigableMap<Long, Payload>> attrMap = cache.get(key);
+      if (attrMap != null) {
+        NavigableMap<Long, Payload> valueMap = attrMap.get(attribute);
+        if (valueMap != null) {
+          Map.Entry<Long, Payload> floorEntry = valueMap.floorEntry(stamp);
+          if (floorEntry != null) {
+            return Pair.of(floorEntry.getKey(), floorEntry.getValue().getData());
+          }
+        }
+      }
+      return null;
+    }
+
+    @Override
+    public synchronized boolean put(
+        String key, String attribute, long stamp, boolean overwrite, @Nullable Object value) {
+
+      AtomicBoolean updated = new AtomicBoolean();
+      cache.compute(
+          key,
+          (k, attrMap) -> {
+            if (attrMap == null) {
+              attrMap = new TreeMap<>();
+            }
+            NavigableMap<Long, Payload> valueMap =
+                attrMap.computeIfAbsent(attribute, tmp -> new TreeMap<>());
+            if (valueMap.isEmpty() || valueMap.firstKey() - keepDuration < stamp) {
+              final Payload oldPayload = valueMap.get(stamp);
+              if (overwrite || oldPayload == null || oldPayload.overridable) {
+                Payload newPayload = new Payload(value, !overwrite);
+                valueMap.put(stamp, newPayload);
+                updated.set(!newPayload.equals(oldPayload));
+              }
+            }
+            long first;
+            while ((first = valueMap.firstKey()) + keepDuration < stamp) {
+              valueMap.remove(first);
+            }
+            return attrMap;
+          });
+      return updated.get();
+    }
+  }
+
+  private static final int NUM_KEYS = 100_000;
+
+  @Param({"synchronized", "striped"})
+  String implementation;
+
+  Cache cache;
+  String[] keys;
+  long now;
+
+  @Setup
+  public void setUp() {
+    Repository repo = Repository.of(ConfigFactory.load("test-reference.conf").resolve());
+    EntityDescriptor entity = repo.getEntity("gateway");
+    if (implementation.equals("synchronized")) {
+      cache = new SynchronizedCache(60_000L);
+    } else {
+      TimeBoundedVersionedCache striped = new TimeBoundedVersionedCache(entity, 60_000L);
+      cache =
+          new Cache() {
+            @Override
+            public boolean put(
+                String key, String attribute, long stamp, boolean overwrite, Object value) {
+              return striped.put(key, attribute, stamp, overwrite, value);
+            }
+
+            @Override
+            public Pair<Long, Object> get(String key, String attribute, long stamp) {
+              return striped.get(key, attribute, stamp);
+            }
+          };
+    }
+    keys = new String[NUM_KEYS];
+    now = System.currentTimeMillis();
+    for (int i = 0; i < NUM_KEYS; i++) {
+      keys[i] = "key" + i;
+      cache.put(keys[i], "armed", now, false, i);
+    }
+  }
+
+  @Benchmark
+  @Group("readWrite")
+  @GroupThreads(1)
+  public boolean put() {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    return cache.put(
+        keys[random.nextInt(NUM_KEYS)], "armed", now + random.nextInt(1000), false, "value");
+  }
+
+  @Benchmark
+  @Group("readWrite")
+  @GroupThreads(15)
+  public Object get() {
+    return cache.get(keys[ThreadLocalRandom.current().nextInt(NUM_KEYS)], "armed", Long.MAX_VALUE);
+  }
+}
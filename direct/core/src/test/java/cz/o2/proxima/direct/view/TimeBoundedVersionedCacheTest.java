@@ -21,8 +21,19 @@ import com.typesafe.config.ConfigFactory;
 import cz.o2.proxima.repository.EntityDescriptor;
 import cz.o2.proxima.repository.Repository;
 import cz.o2.proxima.util.Pair;
+import cz.o2.proxima.util.TestUtils;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import org.junit.Test;
 
 /** Test suite for {@link TimeBoundedVersionedCache}. */
@@ -118,6 +129,49 @@ public class TimeBoundedVersionedCacheTest {
     assertNull(cache.get("key", "attribute.", now + 1));
   }
 
+  @Test
+  public void testMultiGet() {
+    TimeBoundedVersionedCache cache = new TimeBoundedVersionedCache(entity, 60_000L, 4);
+    assertTrue(cache.put("key1", "device.1", now, false, "value1"));
+    assertTrue(cache.put("key2", "device.1", now, false, "value2"));
+    assertTrue(cache.put("key3", "device.1", now, false, "value3"));
+    assertTrue(cache.put("key3", "device.", now + 1, false, null));
+    List<Pair<Long, Object>> values =
+        cache.get(
+            Arrays.asList(
+                Pair.of("key1", "device.1"),
+                Pair.of("key2", "device.1"),
+                Pair.of("key3", "device.1"),
+                Pair.of("key4", "device.1"),
+                Pair.of("key1", "device.2")),
+            "device.",
+            now + 1);
+    assertEquals(
+        Arrays.asList(Pair.of(now, "value1"), Pair.of(now, "value2"), null, null, null), values);
+  }
+
+  @Test
+  public void testRemove() {
+    TimeBoundedVersionedCache cache = new TimeBoundedVersionedCache(entity, 60_000L);
+    assertTrue(cache.put("key", "armed", now, false, "test1"));
+    assertTrue(cache.put("key", "armed", now + 1, false, "test2"));
+    assertTrue(cache.put("key", "attribute", now, false, "other"));
+    assertFalse(cache.remove("key", "armed", now - 1, null));
+    List<Pair<Long, Object>> removed = new ArrayList<>();
+    assertTrue(cache.remove("key", "armed", now, removed::add));
+    assertEquals(Arrays.asList(Pair.of(now + 1, "test2")), removed);
+    assertEquals(Pair.of(now + 1, "test2"), cache.get("key", "armed", now + 1));
+    assertTrue(cache.remove("key", "armed", now + 1, null));
+    assertNull(cache.get("key", "armed", now + 1));
+    assertEquals(1, cache.size());
+    assertTrue(cache.remove("key", "attribute", now + 1, null));
+    assertNull(cache.get("key"));
+    assertEquals(0, cache.size());
+    // no tombstone is kept, so older version is cached again
+    assertTrue(cache.put("key", "armed", now - 1, false, "test0"));
+    assertEquals(Pair.of(now - 1, "test0"), cache.get("key", "armed", now));
+  }
+
   @Test
   public void testMultiCacheScan() {
     TimeBoundedVersionedCache cache = new TimeBoundedVersionedCache(entity, 60_000L);
@@ -229,4 +283,341 @@ public class TimeBoundedVersionedCacheTest {
         });
     assertEquals(2, scanned.size());
   }
+
+  @Test
+  public void testPutCallbackReceivesPreviousVersion() {
+    TimeBoundedVersionedCache cache = new TimeBoundedVersionedCache(entity, 60_000L);
+    List<Pair<Long, Object>> previous = new ArrayList<>();
+    assertTrue(cache.put("key", "attribute", now, false, "test1", previous::add));
+    assertTrue(cache.put("key", "attribute", now + 1, false, "test2", previous::add));
+    assertFalse(cache.put("key", "attribute", now - 120_000L, false, "test3", previous::add));
+    assertEquals(Arrays.asList(null, Pair.of(now, "test1")), previous);
+  }
+
+  @Test
+  public void testGetWithWildcardDelete() {
+    TimeBoundedVersionedCache cache = new TimeBoundedVersionedCache(entity, 60_000L);
+    assertTrue(cache.put("key", "a.1", now, false, "test1"));
+    assertTrue(cache.put("key", "a.", now + 1, false, null));
+    assertEquals(Pair.of(now, "test1"), cache.get("key", "a.1", "a.", now));
+    assertNull(cache.get("key", "a.1", "a.", now + 1));
+    assertEquals(Pair.of(now, "test1"), cache.get("key", "a.1", null, now + 1));
+  }
+
+  @Test(timeout = 20000)
+  public void testConcurrentPutsToDifferentKeys() throws InterruptedException {
+    TimeBoundedVersionedCache cache = new TimeBoundedVersionedCache(entity, 60_000L, 8);
+    int numThreads = 4;
+    int numKeys = 1000;
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    CountDownLatch latch = new CountDownLatch(numThreads);
+    for (int t = 0; t < numThreads; t++) {
+      int thread = t;
+      executor.execute(
+          () -> {
+            for (int i = 0; i < numKeys; i++) {
+              cache.put("key" + thread + "-" + i, "attribute", now, false, i);
+              cache.get("key" + ((thread + 1) % numThreads) + "-" + i, "attribute", now);
+            }
+            latch.countDown();
+          });
+    }
+    latch.await();
+    executor.shutdown();
+    Set<String> keys = new HashSet<>();
+    cache.keys(0, -1, keys::add);
+    assertEquals(numThreads * numKeys, keys.size());
+    for (int t = 0; t < numThreads; t++) {
+      for (int i = 0; i < numKeys; i++) {
+        assertEquals(Pair.of(now, i), cache.get("key" + t + "-" + i, "attribute", now));
+      }
+    }
+  }
+
+  @Test
+  public void testKeysPaging() {
+    TimeBoundedVersionedCache cache = new TimeBoundedVersionedCache(entity, 60_000L);
+    for (int i = 0; i < 10; i++) {
+      cache.put("key" + i, "attribute", now, false, i);
+    }
+    List<String> keys = new ArrayList<>();
+    cache.keys(cache.findPosition("key3"), 3, keys::add);
+    assertEquals(Arrays.asList("key3", "key4", "key5"), keys);
+    keys.clear();
+    cache.keys(8, 5, keys::add);
+    assertEquals(Arrays.asList("key8", "key9"), keys);
+  }
+
+  @Test
+  public void testOffHeapPutGet() {
+    TimeBoundedVersionedCache cache = new TimeBoundedVersionedCache(entity, 60_000L, 4, true);
+    assertTrue(cache.put("key", "metric", now, false, 1.0f));
+    assertTrue(cache.put("key", "metric", now + 1, false, 2.0f));
+    assertTrue(cache.put("key", "armed", now, false, null, new byte[] {1}, null));
+    assertTrue(cache.put("key", "armed", now + 1, false, null));
+    assertEquals(Pair.of(now, 1.0f), cache.get("key", "metric", now));
+    assertEquals(Pair.of(now + 1, 2.0f), cache.get("key", "metric", now + 1));
+    assertArrayEquals(new byte[] {1}, (byte[]) cache.get("key", "armed", now).getSecond());
+    assertEquals(Pair.of(now + 1, null), cache.get("key", "armed", now + 1));
+    assertNull(cache.get("key", "metric", now - 1));
+    assertEquals(2, cache.get("key").get("metric").size());
+    assertTrue(cache.getOffHeapBytes() > 0);
+    cache.clear();
+    assertNull(cache.get("key", "metric", now));
+  }
+
+  @Test
+  public void testOffHeapOverwriteAndTimeout() {
+    TimeBoundedVersionedCache cache = new TimeBoundedVersionedCache(entity, 60_000L, 4, true);
+    assertTrue(cache.put("key", "metric", now, false, 1.0f));
+    assertTrue(cache.put("key", "metric", now, false, 2.0f));
+    assertFalse(cache.put("key", "metric", now, false, 2.0f));
+    assertTrue(cache.put("key", "metric", now, true, 3.0f));
+    assertFalse(cache.put("key", "metric", now, false, 4.0f));
+    assertEquals(Pair.of(now, 3.0f), cache.get("key", "metric", now));
+    assertFalse(cache.put("key", "metric", now - 120_000L, false, 5.0f));
+    assertTrue(cache.put("key", "metric", now + 30_000L, false, 6.0f));
+    assertTrue(cache.put("key", "metric", now + 120_000L, false, 7.0f));
+    assertEquals(1, cache.get("key").get("metric").size());
+    assertEquals(Pair.of(now + 120_000L, 7.0f), cache.get("key", "metric", now + 120_000L));
+  }
+
+  @Test
+  public void testOffHeapScanWithTombstoneDelete() {
+    TimeBoundedVersionedCache cache = new TimeBoundedVersionedCache(entity, 60_000L, 4, true);
+    assertTrue(cache.put("key", "device.1", now, false, new byte[] {1}));
+    assertTrue(cache.put("key", "device.", now + 1, false, null));
+    assertTrue(cache.put("key", "device.2", now + 2, false, new byte[] {2}));
+    Map<String, Pair<Long, Object>> scanned = new HashMap<>();
+    cache.scan(
+        "key",
+        "device.",
+        now + 2,
+        k -> "device.",
+        (k, v) -> {
+          scanned.put(k, v);
+          return true;
+        });
+    assertEquals(1, scanned.size());
+    assertArrayEquals(new byte[] {2}, (byte[]) scanned.get("device.2").getSecond());
+  }
+
+  @Test
+  public void testOffHeapValuesNotRetainedOnHeap() {
+    TimeBoundedVersionedCache cache = new TimeBoundedVersionedCache(entity, 60_000L, 4, true);
+    byte[] value = new byte[1024];
+    for (int i = 0; i < 1000; i++) {
+      assertTrue(cache.put("key" + i, "armed", now, false, value));
+    }
+    // values are held in direct memory and deserialized into new instances on read
+    assertTrue(cache.getOffHeapBytes() >= 1000 * value.length);
+    Object read = cache.get("key0", "armed", now).getSecond();
+    assertNotSame(value, read);
+    assertArrayEquals(value, (byte[]) read);
+  }
+
+  @Test
+  public void testOffHeapUpdateCallbackReceivesDecodedValue() {
+    TimeBoundedVersionedCache cache = new TimeBoundedVersionedCache(entity, 60_000L, 4, true);
+    List<Pair<Long, Object>> updates = new ArrayList<>();
+    assertTrue(cache.put("key", "metric", now, false, 1.0f, updates::add));
+    assertTrue(cache.put("key", "metric", now + 1, false, 2.0f, updates::add));
+    assertFalse(cache.put("key", "metric", now + 1, false, 2.0f, updates::add));
+    assertTrue(cache.remove("key", "metric", now + 1, updates::add));
+    assertEquals(Arrays.asList(null, Pair.of(now, 1.0f), Pair.of(now + 1, 2.0f)), updates);
+  }
+
+  @Test
+  public void testOffHeapSerializable() throws IOException, ClassNotFoundException {
+    TimeBoundedVersionedCache cache = new TimeBoundedVersionedCache(entity, 60_000L, 4, true);
+    assertTrue(cache.put("key", "metric", now, false, 1.0f));
+    TimeBoundedVersionedCache deserialized =
+        TestUtils.deserializeObject(TestUtils.serializeObject(cache));
+    assertEquals(Pair.of(now, 1.0f), deserialized.get("key", "metric", now));
+  }
+
+  @Test
+  public void testExpireKeepsNewestVersion() {
+    TimeBoundedVersionedCache cache = new TimeBoundedVersionedCache(entity, 60_000L, 4);
+    assertTrue(cache.put("key", "attribute", now, false, "test1"));
+    assertTrue(cache.put("key", "attribute", now + 1, false, "test2"));
+    assertTrue(cache.put("key", "attribute", now + 2, false, "test3"));
+    TimeBoundedVersionedCache.ExpiryResult result = cache.expire(now + 2, now + 2, Long.MAX_VALUE);
+    assertEquals(2, result.getEvictedVersions());
+    assertEquals(0, result.getEvictedKeys());
+    assertEquals(1, cache.get("key").get("attribute").size());
+    assertEquals(Pair.of(now + 2, "test3"), cache.get("key", "attribute", now + 2));
+    result = cache.expire(now + 1_000L, now + 1_000L, Long.MAX_VALUE);
+    assertEquals(0, result.getEvictedVersions());
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void testExpireRemovesDeletedKeys() {
+    TimeBoundedVersionedCache cache = new TimeBoundedVersionedCache(entity, 60_000L, 4);
+    assertTrue(cache.put("key1", "attribute", now, false, "test1"));
+    assertTrue(cache.put("key1", "attribute", now + 1, false, null));
+    assertTrue(cache.put("key2", "attribute", now, false, "test2"));
+    assertTrue(cache.put("key2", "device.1", now, false, new byte[] {1}));
+    assertTrue(cache.put("key2", "device.2", now + 3, false, new byte[] {2}));
+    assertTrue(cache.put("key2", "device.", now + 2, false, null));
+    TimeBoundedVersionedCache.ExpiryResult result = cache.expire(now + 1, now + 1, Long.MAX_VALUE);
+    // the value shadowed by the delete of key1 is evicted, the tombstone is still within grace
+    assertEquals(1, result.getEvictedVersions());
+    assertEquals(0, result.getEvictedKeys());
+    result = cache.expire(now + 3, now + 3, Long.MAX_VALUE);
+    // tombstone of key1, the wildcard delete and device.1 deleted by it
+    assertEquals(3, result.getEvictedVersions());
+    assertEquals(1, result.getEvictedKeys());
+    assertNull(cache.get("key1"));
+    assertEquals(1, cache.size());
+    assertEquals(new HashSet<>(Arrays.asList("attribute", "device.2")), cache.get("key2").keySet());
+  }
+
+  @Test
+  public void testExpireKeepsTombstonesWithinGrace() {
+    TimeBoundedVersionedCache cache = new TimeBoundedVersionedCache(entity, 60_000L, 4);
+    assertTrue(cache.put("key", "attribute", now, false, "test1"));
+    assertTrue(cache.put("key", "attribute", now + 1, false, null));
+    assertEquals(now + 1, cache.getMaxStamp());
+    TimeBoundedVersionedCache.ExpiryResult result = cache.expire(now + 2, now, Long.MAX_VALUE);
+    assertEquals(1, result.getEvictedVersions());
+    assertEquals(0, result.getEvictedKeys());
+    // late write older than the delete is shadowed by the kept tombstone
+    assertTrue(cache.put("key", "attribute", now, false, "test2"));
+    assertEquals(Pair.of(now + 1, null), cache.get("key", "attribute", now + 2));
+    result = cache.expire(now + 2, now + 2, Long.MAX_VALUE);
+    assertEquals(1, result.getEvictedKeys());
+    assertEquals(0, cache.size());
+  }
+
+  @Test(timeout = 20000)
+  public void testConcurrentUpdatesOfKeyNotifiedInOrder() throws InterruptedException {
+    TimeBoundedVersionedCache cache = new TimeBoundedVersionedCache(entity, 60_000L, 4);
+    int numThreads = 4;
+    int numUpdates = 1000;
+    List<Pair<Object, Object>> notified = Collections.synchronizedList(new ArrayList<>());
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    CountDownLatch latch = new CountDownLatch(numThreads);
+    for (int t = 0; t < numThreads; t++) {
+      int thread = t;
+      executor.execute(
+          () -> {
+            for (int i = 0; i < numUpdates; i++) {
+              String value = thread + "-" + i;
+              cache.put(
+                  "key",
+                  "attribute",
+                  now,
+                  true,
+                  value,
+                  old -> notified.add(Pair.of(old == null ? null : old.getSecond(), value)));
+            }
+            latch.countDown();
+          });
+    }
+    latch.await();
+    executor.shutdown();
+    assertEquals(numThreads * numUpdates, notified.size());
+    assertNull(notified.get(0).getFirst());
+    for (int i = 1; i < notified.size(); i++) {
+      assertEquals(notified.get(i - 1).getSecond(), notified.get(i).getFirst());
+    }
+    assertEquals(
+        Pair.of(now, notified.get(notified.size() - 1).getSecond()),
+        cache.get("key", "attribute", now));
+  }
+
+  @Test
+  public void testUpdateFromNotification() {
+    TimeBoundedVersionedCache cache = new TimeBoundedVersionedCache(entity, 60_000L, 1);
+    List<String> notified = new ArrayList<>();
+    cache.put(
+        "key",
+        "attribute",
+        now,
+        false,
+        "first",
+        old -> {
+          notified.add("first");
+          cache.put("key", "attribute", now + 1, false, "second", o -> notified.add("second"));
+          // notification of the nested update is delivered after this one
+          notified.add("first-done");
+        });
+    assertEquals(Arrays.asList("first", "first-done", "second"), notified);
+    assertEquals(Pair.of(now + 1, "second"), cache.get("key", "attribute", now + 1));
+  }
+
+  @Test(timeout = 20000)
+  public void testExpireIsIncremental() {
+    TimeBoundedVersionedCache cache = new TimeBoundedVersionedCache(entity, 60_000L, 4);
+    int numKeys = 1000;
+    for (int i = 0; i < numKeys; i++) {
+      cache.put("key" + i, "attribute", now, false, null);
+    }
+    long evicted = 0;
+    while (evicted < numKeys) {
+      // zero budget processes single batch of keys
+      TimeBoundedVersionedCache.ExpiryResult result = cache.expire(now + 1, now + 1, 0L);
+      assertTrue(result.getEvictedKeys() < numKeys);
+      evicted += result.getEvictedKeys();
+    }
+    assertEquals(numKeys, evicted);
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testBoundedNumberOfKeys() {
+    TimeBoundedVersionedCache cache = new TimeBoundedVersionedCache(entity, 60_000L, 1, false, 2);
+    List<String> evicted = new ArrayList<>();
+    cache.setEvictionListener(evicted::add);
+    assertTrue(cache.put("key1", "attribute", now, false, "test1"));
+    assertTrue(cache.put("key2", "attribute", now, false, "test2"));
+    // access protects key1 from eviction
+    assertNotNull(cache.get("key1", "attribute", now));
+    assertTrue(cache.put("key3", "attribute", now, false, "test3"));
+    assertEquals(Arrays.asList("key2"), evicted);
+    assertNull(cache.get("key2", "attribute", now));
+    assertEquals(2, cache.size());
+    List<String> keys = new ArrayList<>();
+    cache.keys(0, -1, keys::add);
+    assertEquals(Arrays.asList("key1", "key3"), keys);
+  }
+
+  @Test
+  public void testBoundedOffHeapReleasesMemory() {
+    TimeBoundedVersionedCache cache = new TimeBoundedVersionedCache(entity, 60_000L, 1, true, 1);
+    for (int i = 0; i < 10_000; i++) {
+      cache.put("key" + i, "armed", now, false, new byte[1024]);
+    }
+    assertEquals(1, cache.size());
+    // at most a single chunk is kept for the only cached key
+    assertTrue(cache.getOffHeapBytes() <= 2 * (1 << 19));
+  }
+
+  @Test
+  public void testExpireCompactsOffHeapMemory() {
+    TimeBoundedVersionedCache cache = new TimeBoundedVersionedCache(entity, 60_000L, 1, true);
+    byte[] value = new byte[1024];
+    for (int i = 0; i < 5000; i++) {
+      assertTrue(cache.put("key" + i, "armed", now, false, value));
+      if (i % 10 != 0) {
+        assertTrue(cache.put("key" + i, "armed", now + 1, false, null));
+      }
+    }
+    long allocated = cache.getOffHeapBytes();
+    // expire nine of each ten keys, so that each chunk holds few live values
+    cache.expire(now + 2, now + 2, Long.MAX_VALUE);
+    assertEquals(500, cache.size());
+    assertEquals(500 * (value.length + Integer.BYTES), cache.getOffHeapLiveBytes());
+    // values of keys expired before the memory needed compaction are moved by next run
+    cache.expire(now + 2, now + 2, Long.MAX_VALUE);
+    // live values were moved out of sparse chunks, they fit single chunk, which might be split
+    // with the current chunk, and two released chunks are kept for reuse
+    assertTrue(allocated > 8 * (1 << 19));
+    assertTrue(cache.getOffHeapBytes() <= 4 * (1 << 19));
+    for (int i = 0; i < 5000; i += 10) {
+      assertArrayEquals(value, (byte[]) cache.get("key" + i, "armed", now).getSecond());
+    }
+  }
 }
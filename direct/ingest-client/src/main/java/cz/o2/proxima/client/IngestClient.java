@@ -19,60 +19,222 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.TextFormat;
+import cz.o2.proxima.direct.time.TimeoutWheel;
 import cz.o2.proxima.proto.service.IngestServiceGrpc;
-import cz.o2.proxima.proto.service.IngestServiceGrpc.IngestServiceStub;
 import cz.o2.proxima.proto.service.RetrieveServiceGrpc;
 import cz.o2.proxima.proto.service.Rpc;
 import io.grpc.Channel;
+import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
 import io.grpc.stub.StreamObserver;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Queue;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 import javax.annotation.Nullable;
 import lombok.AccessLevel;
 import lombok.Getter;
-import lombok.Value;
 import lombok.extern.slf4j.Slf4j;
 
-/** A client being able to connect and write requests to the ingest gateway. */
+/**
+ * A client being able to connect and write requests to the ingest gateway. Requests are sharded by
+ * key to {@code Options#getChannels()} channels, each with its own ingest stream, so that ordering
+ * of requests for the same key is preserved.
+ */
 @Slf4j
 public class IngestClient implements AutoCloseable {
 
   /** Request sent through the channel */
-  @Value
   private class Request {
 
-    final Consumer<Rpc.Status> consumer;
-    final ScheduledFuture<?> timeoutFuture;
+    final Shard shard;
     final Rpc.Ingest payload;
+    final Consumer<Rpc.Status> consumer;
+    @Nullable volatile TimeoutWheel.Timeout timeoutHandle;
+
+    Request(Shard shard, Rpc.Ingest payload, Consumer<Rpc.Status> consumer) {
+      this.shard = shard;
+      this.payload = payload;
+      this.consumer = consumer;
+    }
 
     /**
-     * Confirm the status and remove the timeout schedule
+     * Confirm the status and remove the timeout schedule. Called only by the thread that removed
+     * the request from in-flight requests of its shard.
      *
      * @param status of the request
      */
-    private void setStatus(Rpc.Status status) {
-      if (timeoutFuture == null || timeoutFuture.cancel(false)) {
-        consumer.accept(status);
+    void setStatus(Rpc.Status status) {
+      Optional.ofNullable(timeoutHandle).ifPresent(TimeoutWheel.Timeout::cancel);
+      inflightPermits.release();
+      consumer.accept(status);
+    }
+
+    /** Fail the request with timeout, unless it has been already confirmed. */
+    void timeout() {
+      if (shard.inFlightRequests.remove(payload.getUuid(), this)) {
+        setStatus(
+            Rpc.Status.newBuilder()
+                .setUuid(payload.getUuid())
+                .setStatus(504)
+                .setStatusMessage(
+                    "Timeout while waiting for response of request UUID " + payload.getUuid())
+                .build());
       }
     }
+  }
+
+  /** Single ingest stream with its own in-flight requests and bulk of requests to be sent. */
+  private class Shard {
+
+    /** Map of UUID of message to the consumer of the message status. */
+    final Map<String, Request> inFlightRequests = new ConcurrentHashMap<>();
+
+    final Queue<Rpc.Ingest> pending = new ConcurrentLinkedQueue<>();
+    final AtomicInteger pendingCount = new AtomicInteger();
+    final AtomicBoolean flushing = new AtomicBoolean();
+    final AtomicBoolean reopening = new AtomicBoolean();
+    final Rpc.IngestBulk.Builder bulkBuilder = Rpc.IngestBulk.newBuilder();
+    final Channel channel;
+    final StreamObserver<Rpc.StatusBulk> statusObserver = newStatusObserver();
+
+    @Nullable volatile StreamObserver<Rpc.IngestBulk> ingestRequestObserver;
+
+    Shard(Channel channel) {
+      this.channel = channel;
+    }
 
-    /** Retry to send the request. */
-    void retry() {
-      // we don't setup any timeout
-      sendTry(payload, -1L, TimeUnit.MILLISECONDS, consumer, true);
+    void open() {
+      reopening.set(false);
+      ingestRequestObserver = openIngestStream(channel, statusObserver);
+      inFlightRequests.values().forEach(r -> add(r.payload));
+      flush();
+    }
+
+    void add(Rpc.Ingest ingest) {
+      pending.add(ingest);
+      if (pendingCount.incrementAndGet() >= options.getMaxFlushRecords()) {
+        flush();
+      }
+    }
+
+    /**
+     * Send pending requests. Requests are sent by single thread at a time, concurrent callers
+     * return immediately and leave the work to the thread that is currently flushing. Failure to
+     * send reopens the ingest stream of this shard only.
+     */
+    void flush() {
+      while (pendingCount.get() > 0 && flushing.compareAndSet(false, true)) {
+        try {
+          Rpc.Ingest ingest;
+          while ((ingest = pending.poll()) != null) {
+            pendingCount.decrementAndGet();
+            bulkBuilder.addIngest(ingest);
+            if (bulkBuilder.getIngestCount() >= options.getMaxFlushRecords()) {
+              sendBulk();
+            }
+          }
+          sendBulk();
+        } catch (RuntimeException ex) {
+          bulkBuilder.clear();
+          onError(ex);
+        } finally {
+          flushing.set(false);
+        }
+      }
+    }
+
+    private void sendBulk() {
+      if (bulkBuilder.getIngestCount() > 0) {
+        StreamObserver<Rpc.IngestBulk> observer = ingestRequestObserver;
+        if (observer != null) {
+          observer.onNext(bulkBuilder.build());
+        } else {
+          log.warn("Cannot send bulk due to null observer. " + "This might suggest bug in code.");
+        }
+        bulkBuilder.clear();
+      }
+    }
+
+    /**
+     * Reopen the ingest stream after delay, without blocking the calling thread. Requests in flight
+     * are resent by {@link #open}.
+     */
+    void onError(Throwable thrwbl) {
+      ingestRequestObserver = null;
+      if (reopening.compareAndSet(false, true)) {
+        log.warn("Error on channel, reopening ingest stream", thrwbl);
+        REOPENS.schedule(this, 1, TimeUnit.SECONDS);
+      } else {
+        log.debug("Error on channel with ingest stream already being reopened", thrwbl);
+      }
+    }
+
+    /**
+     * Complete the ingest stream. The stream is completed under the same guard as {@link #flush},
+     * so that it is never called concurrently with sending of a bulk.
+     */
+    void close() {
+      while (!flushing.compareAndSet(false, true)) {
+        Thread.yield();
+      }
+      try {
+        Optional.ofNullable(ingestRequestObserver).ifPresent(StreamObserver::onCompleted);
+      } finally {
+        flushing.set(false);
+      }
+    }
+
+    private StreamObserver<Rpc.StatusBulk> newStatusObserver() {
+
+      return new StreamObserver<Rpc.StatusBulk>() {
+        @Override
+        public void onNext(Rpc.StatusBulk bulk) {
+          for (Rpc.Status status : bulk.getStatusList()) {
+            final Request request = inFlightRequests.remove(status.getUuid());
+            if (request == null) {
+              log.warn(
+                  "Received response for unknown message {}", TextFormat.shortDebugString(status));
+            } else {
+              request.setStatus(status);
+            }
+          }
+        }
+
+        @Override
+        public void onError(Throwable thrwbl) {
+          Shard.this.onError(thrwbl);
+        }
+
+        @Override
+        public void onCompleted() {
+          inFlightRequests.values().forEach(r -> inflightPermits.release());
+          inFlightRequests.clear();
+          closedLatch.countDown();
+        }
+      };
     }
   }
 
+  /** Timeouts of requests in flight of all clients, expired requests are failed with status 504. */
+  private static final TimeoutWheel<Request> TIMEOUTS =
+      new TimeoutWheel<>(IngestClient.class.getSimpleName() + "-timeouts", Request::timeout);
+
+  /** Delayed reopening of ingest streams of shards of all clients after error. */
+  private static final TimeoutWheel<Shard> REOPENS =
+      new TimeoutWheel<>(IngestClient.class.getSimpleName() + "-reopens", Shard::open);
+
   /**
    * Create {@link IngestClient} instance
    *
@@ -100,18 +262,13 @@ public class IngestClient implements AutoCloseable {
   @Getter private final int port;
   @Getter private final Options options;
 
-  /** Map of UUID of message to the consumer of the message status. */
-  private final Map<String, Request> inFlightRequests;
-
-  @VisibleForTesting Channel channel = null;
+  /** Permits for requests in flight, shared by all shards. */
+  private final Semaphore inflightPermits;
 
-  @VisibleForTesting IngestServiceStub ingestStub = null;
+  @Nullable private volatile Shard[] shards = null;
 
   @VisibleForTesting RetrieveServiceGrpc.RetrieveServiceBlockingStub retrieveStub = null;
-  private final Rpc.IngestBulk.Builder bulkBuilder = Rpc.IngestBulk.newBuilder();
-  private final CountDownLatch closedLatch = new CountDownLatch(1);
-
-  @VisibleForTesting final StreamObserver<Rpc.StatusBulk> statusObserver = newStatusObserver();
+  private final CountDownLatch closedLatch;
 
   @VisibleForTesting
   @Getter(AccessLevel.PACKAGE)
@@ -119,18 +276,13 @@ public class IngestClient implements AutoCloseable {
 
   private final AtomicReference<Throwable> flushThreadExc = new AtomicReference<>();
 
-  @VisibleForTesting StreamObserver<Rpc.IngestBulk> ingestRequestObserver;
-
-  private final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1);
-
-  private long lastFlush = System.nanoTime();
-
   @VisibleForTesting
   IngestClient(String host, int port, Options options) {
     this.host = host;
     this.port = port;
     this.options = options;
-    this.inFlightRequests = Collections.synchronizedMap(new HashMap<>());
+    this.inflightPermits = new Semaphore(options.getMaxInflightRequests());
+    this.closedLatch = new CountDownLatch(options.getChannels());
   }
 
   private Thread createFlushThread() {
@@ -157,66 +309,11 @@ public class IngestClient implements AutoCloseable {
 
   private void flushLoop(long flushTimeNanos) {
     try {
-      long nowNanos = System.nanoTime();
-      long waitTimeNanos = flushTimeNanos - nowNanos + lastFlush;
-      synchronized (this) {
-        if (waitTimeNanos > 0) {
-          wait(waitTimeNanos / 1_000_000L, (int) (waitTimeNanos % 1_000_000L));
-        }
-      }
-      synchronized (IngestClient.this) {
-        flush();
-      }
-    } catch (InterruptedException ex) {
-      Thread.currentThread().interrupt();
-    }
-  }
-
-  private StreamObserver<Rpc.StatusBulk> newStatusObserver() {
-
-    return new StreamObserver<Rpc.StatusBulk>() {
-      @Override
-      public void onNext(Rpc.StatusBulk bulk) {
-        for (Rpc.Status status : bulk.getStatusList()) {
-          final String uuid = status.getUuid();
-          final Request request = inFlightRequests.remove(uuid);
-          if (request == null) {
-            log.warn(
-                "Received response for unknown message {}", TextFormat.shortDebugString(status));
-          } else {
-            synchronized (inFlightRequests) {
-              inFlightRequests.notifyAll();
-            }
-            request.setStatus(status);
-          }
-        }
-      }
-
-      @Override
-      public void onError(Throwable thrwbl) {
-        IngestClient.this.onError(thrwbl);
-      }
-
-      @Override
-      public void onCompleted() {
-        synchronized (inFlightRequests) {
-          inFlightRequests.clear();
-        }
-        closedLatch.countDown();
-      }
-    };
-  }
-
-  private synchronized void onError(Throwable thrwbl) {
-    ingestStub = null;
-    try {
-      log.warn("Error on channel, closing ingestStub", thrwbl);
-      TimeUnit.SECONDS.sleep(1);
+      TimeUnit.NANOSECONDS.sleep(flushTimeNanos);
+      flush();
     } catch (InterruptedException ex) {
-      log.warn("Interrupted while waiting before channel open retry.", ex);
       Thread.currentThread().interrupt();
     }
-    createChannelAndStub();
   }
 
   /**
@@ -240,7 +337,7 @@ public class IngestClient implements AutoCloseable {
   public void send(
       Rpc.Ingest ingest, long timeout, TimeUnit unit, Consumer<Rpc.Status> statusConsumer) {
 
-    sendTry(ingest, timeout, unit, statusConsumer, false);
+    sendTry(ingest, timeout, unit, statusConsumer);
   }
 
   /**
@@ -450,98 +547,142 @@ public class IngestClient implements AutoCloseable {
     return listAttributes(list.build());
   }
 
+  /**
+   * Send synchronously batch of {@link cz.o2.proxima.proto.service.Rpc.GetRequest}s to retrieve
+   * data from the system by single call.
+   *
+   * @param requests the requests to send
+   * @return responses to the requests, in order of the requests
+   */
+  public List<Rpc.GetResponse> multiGet(List<Rpc.GetRequest> requests) {
+    ensureChannel();
+    Rpc.GetResponse[] responses = new Rpc.GetResponse[requests.size()];
+    retrieveStub
+        .multiGet(Rpc.MultiGetRequest.newBuilder().addAllGet(requests).build())
+        .forEachRemaining(r -> responses[r.getIndex()] = r.getResponse());
+    return Arrays.asList(responses);
+  }
+
+  /**
+   * Send synchronously batch of {@link cz.o2.proxima.proto.service.Rpc.ListRequest}s to retrieve
+   * attributes of entities by single call.
+   *
+   * @param requests the requests to send
+   * @return responses to the requests, in order of the requests
+   */
+  public List<Rpc.ListResponse> multiListAttributes(List<Rpc.ListRequest> requests) {
+    ensureChannel();
+    Rpc.ListResponse[] responses = new Rpc.ListResponse[requests.size()];
+    retrieveStub
+        .multiListAttributes(Rpc.MultiListRequest.newBuilder().addAllList(requests).build())
+        .forEachRemaining(r -> responses[r.getIndex()] = r.getResponse());
+    return Arrays.asList(responses);
+  }
+
   /** Send the request with timeout. */
   private void sendTry(
-      Rpc.Ingest ingest,
-      long timeout,
-      TimeUnit unit,
-      Consumer<Rpc.Status> statusConsumer,
-      boolean isRetry) {
+      Rpc.Ingest ingest, long timeout, TimeUnit unit, Consumer<Rpc.Status> statusConsumer) {
 
     if (Strings.isNullOrEmpty(ingest.getUuid())) {
       throw new IllegalArgumentException(
           "UUID cannot be null, because it is used to confirm messages.");
     }
 
-    synchronized (this) {
-      ensureChannel();
-      Throwable flushExc = flushThreadExc.getAndSet(null);
-      if (flushExc != null) {
-        log.warn("Received exception from flush thread. Restarting flush thread.", flushExc);
-        onError(flushExc);
-        flushThread.set(null);
-      }
+    ensureChannel();
+    Throwable flushExc = flushThreadExc.getAndSet(null);
+    if (flushExc != null) {
+      // failures to send are handled by the failing shard, the thread only needs to be restarted
+      log.warn("Received exception from flush thread. Restarting flush thread.", flushExc);
+      flushThread.set(null);
     }
 
     flushThread.getAndUpdate(current -> current == null ? createFlushThread() : current);
 
-    ScheduledFuture<?> scheduled = null;
-    if (timeout > 0) {
-      scheduled =
-          timer.schedule(
-              () -> {
-                inFlightRequests.remove(ingest.getUuid());
-                statusConsumer.accept(
-                    Rpc.Status.newBuilder()
-                        .setStatus(504)
-                        .setStatusMessage(
-                            "Timeout while waiting for response of request UUID "
-                                + ingest.getUuid())
-                        .build());
-              },
-              timeout,
-              unit);
-    }
-
-    while (!isRetry && inFlightRequests.size() >= options.getMaxInflightRequests()) {
-      synchronized (inFlightRequests) {
-        try {
-          inFlightRequests.wait(100);
-        } catch (InterruptedException ex) {
-          Thread.currentThread().interrupt();
+    // single deadline for both waiting for permit and waiting for the response
+    long deadlineNanos = System.nanoTime() + unit.toNanos(timeout);
+    try {
+      if (timeout > 0) {
+        if (!inflightPermits.tryAcquire(timeout, unit)) {
           statusConsumer.accept(
               Rpc.Status.newBuilder()
-                  .setStatus(417)
-                  .setStatusMessage("Interrupted while waiting for the requests to settle")
+                  .setUuid(ingest.getUuid())
+                  .setStatus(504)
+                  .setStatusMessage(
+                      "Timeout while waiting for the requests to settle for request UUID "
+                          + ingest.getUuid())
                   .build());
           return;
         }
+      } else {
+        inflightPermits.acquire();
       }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      statusConsumer.accept(
+          Rpc.Status.newBuilder()
+              .setStatus(417)
+              .setStatusMessage("Interrupted while waiting for the requests to settle")
+              .build());
+      return;
     }
 
-    inFlightRequests.putIfAbsent(ingest.getUuid(), new Request(statusConsumer, scheduled, ingest));
-
-    synchronized (this) {
-      bulkBuilder.addIngest(ingest);
-      if (bulkBuilder.getIngestCount() >= options.getMaxFlushRecords()) {
-        flush();
-      }
+    Shard shard = shardFor(ingest);
+    Request request = new Request(shard, ingest, statusConsumer);
+    if (shard.inFlightRequests.putIfAbsent(ingest.getUuid(), request) != null) {
+      log.warn("Request with UUID {} is already in flight", ingest.getUuid());
+      inflightPermits.release();
+      statusConsumer.accept(
+          Rpc.Status.newBuilder()
+              .setUuid(ingest.getUuid())
+              .setStatus(409)
+              .setStatusMessage("Request with UUID " + ingest.getUuid() + " is already in flight")
+              .build());
+      return;
     }
+    if (timeout > 0) {
+      request.timeoutHandle =
+          TIMEOUTS.schedule(request, deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+    shard.add(ingest);
+  }
+
+  private Shard shardFor(Rpc.Ingest ingest) {
+    Shard[] current = shards;
+    return current[Math.floorMod(ingest.getKey().hashCode(), current.length)];
   }
 
   @VisibleForTesting
   synchronized void createChannelAndStub() {
-
-    if (channel == null) {
-      channel =
-          ManagedChannelBuilder.forAddress(host, port)
-              .usePlaintext()
-              .executor(options.getExecutor())
-              .build();
+    if (shards == null) {
+      Shard[] created = new Shard[options.getChannels()];
+      for (int i = 0; i < created.length; i++) {
+        created[i] = new Shard(createChannel());
+      }
+      retrieveStub = RetrieveServiceGrpc.newBlockingStub(created[0].channel);
+      for (Shard shard : created) {
+        shard.open();
+      }
+      shards = created;
     }
+  }
 
-    retrieveStub = RetrieveServiceGrpc.newBlockingStub(channel);
-    ingestStub = IngestServiceGrpc.newStub(channel);
+  @VisibleForTesting
+  Channel createChannel() {
+    return ManagedChannelBuilder.forAddress(host, port)
+        .usePlaintext()
+        .executor(options.getExecutor())
+        .build();
+  }
 
-    ingestRequestObserver = ingestStub.ingestBulk(statusObserver);
+  @VisibleForTesting
+  StreamObserver<Rpc.IngestBulk> openIngestStream(
+      Channel channel, StreamObserver<Rpc.StatusBulk> statusObserver) {
 
-    synchronized (inFlightRequests) {
-      inFlightRequests.values().forEach(Request::retry);
-    }
+    return IngestServiceGrpc.newStub(channel).ingestBulk(statusObserver);
   }
 
   private void ensureChannel() {
-    if (channel == null) {
+    if (shards == null) {
       createChannelAndStub();
     }
   }
@@ -549,25 +690,18 @@ public class IngestClient implements AutoCloseable {
   @Override
   public void close() {
 
-    final boolean channelNotNull;
-    synchronized (this) {
-      flush();
-      channelNotNull = channel != null;
-    }
+    flush();
+    final Shard[] current = shards;
 
-    if (channelNotNull) {
-      while (!inFlightRequests.isEmpty()) {
-        synchronized (inFlightRequests) {
-          try {
-            inFlightRequests.wait(100);
-          } catch (InterruptedException ex) {
-            Thread.currentThread().interrupt();
-            break;
-          }
-        }
+    if (current != null) {
+      try {
+        inflightPermits.acquire(options.getMaxInflightRequests());
+        inflightPermits.release(options.getMaxInflightRequests());
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
       }
-      synchronized (this) {
-        ingestRequestObserver.onCompleted();
+      for (Shard shard : current) {
+        shard.close();
       }
 
       Optional.ofNullable(flushThread.get()).ifPresent(Thread::interrupt);
@@ -578,19 +712,23 @@ public class IngestClient implements AutoCloseable {
       } catch (InterruptedException ex) {
         Thread.currentThread().interrupt();
       }
-      channel = null;
+      for (Shard shard : current) {
+        if (shard.channel instanceof ManagedChannel) {
+          ((ManagedChannel) shard.channel).shutdown();
+        }
+      }
+      synchronized (this) {
+        shards = null;
+      }
     }
   }
 
-  private synchronized void flush() {
-    if (bulkBuilder.getIngestCount() > 0) {
-      if (ingestRequestObserver != null) {
-        ingestRequestObserver.onNext(bulkBuilder.build());
-      } else {
-        log.warn("Cannot send bulk due to null observer. " + "This might suggest bug in code.");
+  private void flush() {
+    Shard[] current = shards;
+    if (current != null) {
+      for (Shard shard : current) {
+        shard.flush();
       }
-      bulkBuilder.clear();
     }
-    lastFlush = System.nanoTime();
   }
 }
@@ -46,4 +46,8 @@ public class Options {
   @Getter @Setter
   /** Maximal count of inflight records. */
   private int maxInflightRequests = 500000;
+
+  @Getter @Setter
+  /** Number of channels to shard requests to by key. */
+  private int channels = 1;
 }
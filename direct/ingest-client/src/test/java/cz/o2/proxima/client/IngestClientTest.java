@@ -17,17 +17,20 @@ package cz.o2.proxima.client;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.mockito.Mockito.mock;
 
 import com.google.protobuf.ByteString;
-import cz.o2.proxima.proto.service.IngestServiceGrpc;
 import cz.o2.proxima.proto.service.Rpc;
 import io.grpc.Channel;
 import io.grpc.stub.StreamObserver;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Deque;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
@@ -43,11 +46,13 @@ public class IngestClientTest {
   private final int port = 4001;
   private List<Rpc.Ingest> ingested;
   private Deque<Rpc.Status> statuses;
+  private Map<Channel, List<Rpc.Ingest>> streams;
 
   @Before
   public void setUp() {
     ingested = new ArrayList<>();
     statuses = new LinkedList<>();
+    streams = new HashMap<>();
   }
 
   @Test(expected = IllegalArgumentException.class)
@@ -295,6 +300,47 @@ public class IngestClientTest {
     assertEquals(2, received.size());
   }
 
+  @Test(timeout = 10000)
+  public void testShardedRequests() throws InterruptedException {
+    Options opts = new Options();
+    opts.setChannels(4);
+    opts.setMaxFlushRecords(10);
+    IngestClient client = create(opts);
+    int numRequests = 100;
+    CountDownLatch latch = new CountDownLatch(numRequests);
+    List<Rpc.Status> received = Collections.synchronizedList(new ArrayList<>());
+    for (int i = 0; i < numRequests; i++) {
+      statuses.add(Rpc.Status.newBuilder().setStatus(200).build());
+    }
+    for (int i = 0; i < numRequests; i++) {
+      client.send(
+          Rpc.Ingest.newBuilder()
+              .setUuid(UUID.randomUUID().toString())
+              .setKey("gw" + (i % 20))
+              .setEntity("gateway")
+              .setAttribute("armed")
+              .setValue(ByteString.EMPTY)
+              .build(),
+          s -> {
+            received.add(s);
+            latch.countDown();
+          });
+    }
+    latch.await();
+    assertEquals(numRequests, received.size());
+    assertEquals(numRequests, ingested.size());
+    Map<String, Channel> channelForKey = new HashMap<>();
+    synchronized (statuses) {
+      streams.forEach(
+          (channel, ingests) -> {
+            for (Rpc.Ingest ingest : ingests) {
+              assertEquals(channel, channelForKey.computeIfAbsent(ingest.getKey(), k -> channel));
+            }
+          });
+    }
+    assertEquals(20, channelForKey.size());
+  }
+
   @Test(timeout = 10000)
   public void testTimeoutRequest() throws InterruptedException {
     IngestClient client = create(new Options());
@@ -319,36 +365,64 @@ public class IngestClientTest {
     assertEquals(504, status.get().getStatus());
   }
 
+  @Test(timeout = 10000)
+  public void testDuplicateUuidRejected() {
+    IngestClient client = create(new Options());
+    AtomicReference<Rpc.Status> first = new AtomicReference<>();
+    AtomicReference<Rpc.Status> second = new AtomicReference<>();
+    Rpc.Ingest ingest =
+        Rpc.Ingest.newBuilder()
+            .setUuid(UUID.randomUUID().toString())
+            .setKey("gw1")
+            .setEntity("gateway")
+            .setAttribute("armed")
+            .setValue(ByteString.EMPTY)
+            .build();
+    // no status is returned, so the first request stays in flight
+    client.send(ingest, first::set);
+    client.send(ingest, second::set);
+    assertNotNull(second.get());
+    assertEquals(409, second.get().getStatus());
+    assertNull(first.get());
+  }
+
   private IngestClient create(Options opts) {
     return new IngestClient(host, port, opts) {
 
       @Override
-      void createChannelAndStub() {
-        this.channel = mockChannel();
-        this.ingestStub = IngestServiceGrpc.newStub(channel);
-        this.ingestRequestObserver =
-            new StreamObserver<Rpc.IngestBulk>() {
+      Channel createChannel() {
+        return mockChannel();
+      }
 
-              @Override
-              public void onNext(Rpc.IngestBulk bulk) {
-                ingested.addAll(bulk.getIngestList());
-                Rpc.StatusBulk.Builder responses = Rpc.StatusBulk.newBuilder();
-                bulk.getIngestList()
-                    .forEach(
-                        i -> {
-                          if (!statuses.isEmpty()) {
-                            responses.addStatus(statuses.pop().toBuilder().setUuid(i.getUuid()));
-                          }
-                        });
-                statusObserver.onNext(responses.build());
-              }
+      @Override
+      StreamObserver<Rpc.IngestBulk> openIngestStream(
+          Channel channel, StreamObserver<Rpc.StatusBulk> statusObserver) {
+
+        return new StreamObserver<Rpc.IngestBulk>() {
+
+          @Override
+          public void onNext(Rpc.IngestBulk bulk) {
+            Rpc.StatusBulk.Builder responses = Rpc.StatusBulk.newBuilder();
+            synchronized (statuses) {
+              ingested.addAll(bulk.getIngestList());
+              streams.computeIfAbsent(channel, k -> new ArrayList<>()).addAll(bulk.getIngestList());
+              bulk.getIngestList()
+                  .forEach(
+                      i -> {
+                        if (!statuses.isEmpty()) {
+                          responses.addStatus(statuses.pop().toBuilder().setUuid(i.getUuid()));
+                        }
+                      });
+            }
+            statusObserver.onNext(responses.build());
+          }
 
-              @Override
-              public void onError(Throwable thrwbl) {}
+          @Override
+          public void onError(Throwable thrwbl) {}
 
-              @Override
-              public void onCompleted() {}
-            };
+          @Override
+          public void onCompleted() {}
+        };
       }
     };
   }
@@ -20,12 +20,14 @@ import static org.junit.Assert.assertEquals;
 import com.google.protobuf.ByteString;
 import cz.o2.proxima.proto.service.RetrieveServiceGrpc;
 import cz.o2.proxima.proto.service.Rpc;
+import io.grpc.Channel;
 import io.grpc.Server;
 import io.grpc.inprocess.InProcessChannelBuilder;
 import io.grpc.inprocess.InProcessServerBuilder;
 import io.grpc.stub.StreamObserver;
 import io.grpc.util.MutableHandlerRegistry;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import org.junit.After;
@@ -140,6 +142,54 @@ public class RetrieveServiceTest {
     assertEquals(400, response.getStatus());
   }
 
+  @Test
+  public void testMultiGet() {
+    mockRetrieveService(
+        Arrays.asList(
+            Rpc.GetResponse.newBuilder().setStatus(200).build(),
+            Rpc.GetResponse.newBuilder().setStatus(404).build()));
+    List<Rpc.GetResponse> response =
+        client.multiGet(
+            Arrays.asList(
+                Rpc.GetRequest.newBuilder()
+                    .setEntity("gateway")
+                    .setKey("gw1")
+                    .setAttribute("armed")
+                    .build(),
+                Rpc.GetRequest.newBuilder()
+                    .setEntity("gateway")
+                    .setKey("gw2")
+                    .setAttribute("armed")
+                    .build()));
+    assertEquals(2, response.size());
+    assertEquals(200, response.get(0).getStatus());
+    assertEquals(404, response.get(1).getStatus());
+  }
+
+  @Test
+  public void testMultiListAttributes() {
+    mockRetrieveService(
+        Arrays.asList(
+            Rpc.ListResponse.newBuilder()
+                .setStatus(200)
+                .addValue(
+                    Rpc.ListResponse.AttrValue.newBuilder()
+                        .setAttribute("armed")
+                        .setValue(ByteString.EMPTY)
+                        .build())
+                .build(),
+            Rpc.ListResponse.newBuilder().setStatus(400).build()));
+    List<Rpc.ListResponse> response =
+        client.multiListAttributes(
+            Arrays.asList(
+                Rpc.ListRequest.newBuilder().setEntity("gateway").setKey("gw1").build(),
+                Rpc.ListRequest.newBuilder().setEntity("gateway").build()));
+    assertEquals(2, response.size());
+    assertEquals(200, response.get(0).getStatus());
+    assertEquals("armed", response.get(0).getValue(0).getAttribute());
+    assertEquals(400, response.get(1).getStatus());
+  }
+
   private void mockRetrieveService(List<?> responses) {
     RetrieveServiceGrpc.RetrieveServiceImplBase fakeRetrieveServiceIml =
         new RetrieveServiceGrpc.RetrieveServiceImplBase() {
@@ -157,6 +207,36 @@ public class RetrieveServiceTest {
             responses.forEach(r -> responseObserver.onNext((Rpc.ListResponse) r));
             responseObserver.onCompleted();
           }
+
+          @Override
+          public void multiGet(
+              Rpc.MultiGetRequest request, StreamObserver<Rpc.MultiGetResponse> responseObserver) {
+
+            // respond in reverse order
+            for (int i = responses.size() - 1; i >= 0; i--) {
+              responseObserver.onNext(
+                  Rpc.MultiGetResponse.newBuilder()
+                      .setIndex(i)
+                      .setResponse((Rpc.GetResponse) responses.get(i))
+                      .build());
+            }
+            responseObserver.onCompleted();
+          }
+
+          @Override
+          public void multiListAttributes(
+              Rpc.MultiListRequest request,
+              StreamObserver<Rpc.MultiListResponse> responseObserver) {
+
+            for (int i = responses.size() - 1; i >= 0; i--) {
+              responseObserver.onNext(
+                  Rpc.MultiListResponse.newBuilder()
+                      .setIndex(i)
+                      .setResponse((Rpc.ListResponse) responses.get(i))
+                      .build());
+            }
+            responseObserver.onCompleted();
+          }
         };
     serviceRegistry.addService(fakeRetrieveServiceIml);
   }
@@ -165,9 +245,16 @@ public class RetrieveServiceTest {
     return new IngestClient(host, port, opts) {
 
       @Override
-      void createChannelAndStub() {
-        this.channel = InProcessChannelBuilder.forName(serverName).directExecutor().build();
-        this.retrieveStub = RetrieveServiceGrpc.newBlockingStub(this.channel);
+      Channel createChannel() {
+        return InProcessChannelBuilder.forName(serverName).directExecutor().build();
+      }
+
+      @Override
+      StreamObserver<Rpc.IngestBulk> openIngestStream(
+          Channel channel, StreamObserver<Rpc.StatusBulk> statusObserver) {
+
+        // ingest service is not available in this test
+        return null;
       }
     };
   }
@@ -25,6 +25,39 @@ public class Constants {
   public static final int DEFAULT_PORT = 4001;
   public static final String CFG_NUM_THREADS = "ingest.server.num-threads";
   public static final int DEFAULT_NUM_THREADS = 10 * CORES;
+  public static final String CFG_ACCESS_LOG_SAMPLE_RATE = "ingest.access-log.sample-rate";
+  public static final double DEFAULT_ACCESS_LOG_SAMPLE_RATE = 0.0;
+  public static final String CFG_BULK_FLUSH_SIZE = "ingest.bulk.flush-size";
+  public static final int DEFAULT_BULK_FLUSH_SIZE = 500;
+  public static final String CFG_BULK_FLUSH_LATENCY_MS = "ingest.bulk.flush-latency-ms";
+  public static final long DEFAULT_BULK_FLUSH_LATENCY_MS = 100;
+  public static final String CFG_BULK_MAX_INFLIGHT_PER_STREAM =
+      "ingest.bulk.max-inflight-per-stream";
+  public static final int DEFAULT_BULK_MAX_INFLIGHT_PER_STREAM = 10_000;
+  public static final String CFG_BULK_MAX_INFLIGHT = "ingest.bulk.max-inflight";
+  public static final int DEFAULT_BULK_MAX_INFLIGHT = 100_000;
+  /** Prefix of limits of concurrent reads per storage scheme, or {@code default} for others. */
+  public static final String CFG_RETRIEVE_MAX_CONCURRENCY = "retrieve.max-concurrency";
+
+  public static final int DEFAULT_RETRIEVE_MAX_CONCURRENCY = 64;
+  /**
+   * Prefix of limits of reads waiting for a permit per storage scheme, or {@code default} for
+   * others. Reads exceeding the limit are rejected.
+   */
+  public static final String CFG_RETRIEVE_MAX_QUEUED = "retrieve.max-queued";
+
+  public static final int DEFAULT_RETRIEVE_MAX_QUEUED = 1000;
+  /**
+   * Prefix of limits of readers of single family per storage scheme, or {@code default} for others.
+   * Defaults to the limit of concurrent reads, unless the storage has thread-safe client.
+   */
+  public static final String CFG_RETRIEVE_MAX_READERS = "retrieve.max-readers";
+  /** Default limit of readers of single family of storage with thread-safe asynchronous client. */
+  public static final int DEFAULT_RETRIEVE_MAX_READERS_THREAD_SAFE = 4;
+  /** Maximal number of requests of a batch read by single reader. */
+  public static final String CFG_RETRIEVE_BATCH_CHUNK_SIZE = "retrieve.batch.chunk-size";
+
+  public static final int DEFAULT_RETRIEVE_BATCH_CHUNK_SIZE = 100;
 
   private Constants() {
     // nop
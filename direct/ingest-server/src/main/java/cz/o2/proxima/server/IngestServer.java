@@ -189,11 +189,12 @@ public class IngestServer {
   private void run() {
     final int port =
         cfg.hasPath(Constants.CFG_PORT) ? cfg.getInt(Constants.CFG_PORT) : Constants.DEFAULT_PORT;
+    RetrieveService retrieveService = new RetrieveService(repo, direct, cfg, executor);
     io.grpc.Server server =
         ServerBuilder.forPort(port)
             .executor(executor)
-            .addService(new IngestService(repo, direct, scheduler))
-            .addService(new RetrieveService(repo, direct))
+            .addService(new IngestService(repo, direct, scheduler, cfg))
+            .addService(retrieveService)
             .build();
 
     Runtime.getRuntime()
@@ -212,6 +213,8 @@ public class IngestServer {
       log.info("Server shutdown.");
     } catch (Exception ex) {
       Utils.die("Failed to start the server", ex);
+    } finally {
+      retrieveService.close();
     }
     Metrics.LIVENESS.reset();
   }
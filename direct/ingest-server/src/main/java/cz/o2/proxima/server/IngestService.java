@@ -15,12 +15,25 @@
  */
 package cz.o2.proxima.server;
 
+import static cz.o2.proxima.server.Constants.CFG_ACCESS_LOG_SAMPLE_RATE;
+import static cz.o2.proxima.server.Constants.CFG_BULK_FLUSH_LATENCY_MS;
+import static cz.o2.proxima.server.Constants.CFG_BULK_FLUSH_SIZE;
+import static cz.o2.proxima.server.Constants.CFG_BULK_MAX_INFLIGHT;
+import static cz.o2.proxima.server.Constants.CFG_BULK_MAX_INFLIGHT_PER_STREAM;
+import static cz.o2.proxima.server.Constants.DEFAULT_ACCESS_LOG_SAMPLE_RATE;
+import static cz.o2.proxima.server.Constants.DEFAULT_BULK_FLUSH_LATENCY_MS;
+import static cz.o2.proxima.server.Constants.DEFAULT_BULK_FLUSH_SIZE;
+import static cz.o2.proxima.server.Constants.DEFAULT_BULK_MAX_INFLIGHT;
+import static cz.o2.proxima.server.Constants.DEFAULT_BULK_MAX_INFLIGHT_PER_STREAM;
 import static cz.o2.proxima.server.IngestServer.ingestRequest;
 import static cz.o2.proxima.server.IngestServer.notFound;
 import static cz.o2.proxima.server.IngestServer.status;
 
+import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.google.protobuf.TextFormat;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
 import cz.o2.proxima.direct.core.DirectDataOperator;
 import cz.o2.proxima.proto.service.IngestServiceGrpc;
 import cz.o2.proxima.proto.service.Rpc;
@@ -29,17 +42,19 @@ import cz.o2.proxima.repository.EntityDescriptor;
 import cz.o2.proxima.repository.Repository;
 import cz.o2.proxima.server.metrics.Metrics;
 import cz.o2.proxima.storage.StreamElement;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
+import java.util.Iterator;
 import java.util.Optional;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
+import javax.annotation.Nullable;
 import lombok.extern.slf4j.Slf4j;
 
 /** The ingestion service. */
@@ -49,13 +64,54 @@ public class IngestService extends IngestServiceGrpc.IngestServiceImplBase {
   private final Repository repo;
   private final DirectDataOperator direct;
   private final ScheduledExecutorService scheduler;
+  private final double accessLogSampleRate;
+  private final int bulkFlushSize;
+  private final long bulkFlushLatencyMs;
+  private final int maxInflightPerStream;
+  private final int maxInflight;
+
+  /** Number of ingests of all bulk streams waiting for status. */
+  private final AtomicInteger inflightIngests = new AtomicInteger();
+
+  /** Bulk streams waiting for in-flight ingests to drop below budget. */
+  private final Queue<IngestBulkObserver> stalledStreams = new ConcurrentLinkedQueue<>();
 
   public IngestService(
       Repository repo, DirectDataOperator direct, ScheduledExecutorService scheduler) {
 
+    this(repo, direct, scheduler, ConfigFactory.empty());
+  }
+
+  public IngestService(
+      Repository repo, DirectDataOperator direct, ScheduledExecutorService scheduler, Config cfg) {
+
     this.repo = repo;
     this.direct = direct;
     this.scheduler = scheduler;
+    this.accessLogSampleRate =
+        cfg.hasPath(CFG_ACCESS_LOG_SAMPLE_RATE)
+            ? cfg.getDouble(CFG_ACCESS_LOG_SAMPLE_RATE)
+            : DEFAULT_ACCESS_LOG_SAMPLE_RATE;
+    this.bulkFlushSize =
+        cfg.hasPath(CFG_BULK_FLUSH_SIZE)
+            ? cfg.getInt(CFG_BULK_FLUSH_SIZE)
+            : DEFAULT_BULK_FLUSH_SIZE;
+    this.bulkFlushLatencyMs =
+        cfg.hasPath(CFG_BULK_FLUSH_LATENCY_MS)
+            ? cfg.getLong(CFG_BULK_FLUSH_LATENCY_MS)
+            : DEFAULT_BULK_FLUSH_LATENCY_MS;
+    this.maxInflightPerStream =
+        cfg.hasPath(CFG_BULK_MAX_INFLIGHT_PER_STREAM)
+            ? cfg.getInt(CFG_BULK_MAX_INFLIGHT_PER_STREAM)
+            : DEFAULT_BULK_MAX_INFLIGHT_PER_STREAM;
+    this.maxInflight =
+        cfg.hasPath(CFG_BULK_MAX_INFLIGHT)
+            ? cfg.getInt(CFG_BULK_MAX_INFLIGHT)
+            : DEFAULT_BULK_MAX_INFLIGHT;
+    Preconditions.checkArgument(bulkFlushSize > 0, "%s must be positive", CFG_BULK_FLUSH_SIZE);
+    Preconditions.checkArgument(
+        maxInflightPerStream > 0, "%s must be positive", CFG_BULK_MAX_INFLIGHT_PER_STREAM);
+    Preconditions.checkArgument(maxInflight > 0, "%s must be positive", CFG_BULK_MAX_INFLIGHT);
   }
 
   private class IngestObserver implements StreamObserver<Rpc.Ingest> {
@@ -120,132 +176,223 @@ public class IngestService extends IngestServiceGrpc.IngestServiceImplBase {
     }
   }
 
+  /**
+   * Observer of bulk ingests of single stream. Statuses are accumulated without locking and flushed
+   * to the client in bulks of at most {@link Constants#CFG_BULK_FLUSH_SIZE} statuses, either when
+   * the size is reached, or when the oldest pending status waits for {@link
+   * Constants#CFG_BULK_FLUSH_LATENCY_MS}. Only single flush of the stream runs at a time and calls
+   * of the response observer are serialized with errors of the stream.
+   *
+   * <p>When the stream supports manual flow control, next bulk is requested from the client only
+   * while in-flight ingests of the stream and of the whole server are within {@link
+   * Constants#CFG_BULK_MAX_INFLIGHT_PER_STREAM} and {@link Constants#CFG_BULK_MAX_INFLIGHT}, and
+   * the stream is ready to send statuses to the client. Otherwise the stream is stalled until
+   * statuses of enough ingests are received and the stream becomes ready.
+   */
   private class IngestBulkObserver implements StreamObserver<Rpc.IngestBulk> {
 
     final StreamObserver<Rpc.StatusBulk> responseObserver;
-    final Queue<Rpc.Status> statusQueue = new ConcurrentLinkedQueue<>();
-    final AtomicBoolean completed = new AtomicBoolean(false);
-    final Object inflightRequestsLock = new Object();
+    final Queue<Rpc.Status> statuses = new ConcurrentLinkedQueue<>();
+    final AtomicInteger pendingStatuses = new AtomicInteger();
     final AtomicInteger inflightRequests = new AtomicInteger();
-    final AtomicLong lastFlushNanos = new AtomicLong(System.nanoTime());
-    final Rpc.StatusBulk.Builder builder = Rpc.StatusBulk.newBuilder();
-    static final long MAX_SLEEP_NANOS = 100000000L;
-    static final int MAX_QUEUED_STATUSES = 500;
-
-    Runnable flushTask = createFlushTask();
-
-    // schedule the flush periodically
-    ScheduledFuture<?> flushFuture =
-        scheduler.scheduleAtFixedRate(
-            flushTask, MAX_SLEEP_NANOS, MAX_SLEEP_NANOS, TimeUnit.NANOSECONDS);
+    final AtomicBoolean flushing = new AtomicBoolean();
+    final AtomicBoolean flushScheduled = new AtomicBoolean();
+    final AtomicBoolean completed = new AtomicBoolean();
+    final AtomicBoolean closed = new AtomicBoolean();
+    final AtomicBoolean stalled = new AtomicBoolean();
+    final Object responseObserverLock = new Object();
+    @Nullable final ServerCallStreamObserver<Rpc.StatusBulk> flowControl;
 
     IngestBulkObserver(StreamObserver<Rpc.StatusBulk> responseObserver) {
       this.responseObserver = responseObserver;
+      if (responseObserver instanceof ServerCallStreamObserver) {
+        flowControl = (ServerCallStreamObserver<Rpc.StatusBulk>) responseObserver;
+        flowControl.disableAutoInboundFlowControl();
+        flowControl.setOnReadyHandler(this::onReady);
+        flowControl.request(1);
+      } else {
+        flowControl = null;
+      }
     }
 
-    private Runnable createFlushTask() {
-      return () -> {
-        try {
-          synchronized (builder) {
-            while (statusQueue.size() > MAX_QUEUED_STATUSES) {
-              peekQueueToBuilderAndFlush();
-            }
-            long now = System.nanoTime();
-            if (now - lastFlushNanos.get() >= MAX_SLEEP_NANOS) {
-              while (!statusQueue.isEmpty()) {
-                peekQueueToBuilderAndFlush();
-              }
-            }
-            if (builder.getStatusCount() > 0) {
-              responseObserver.onNext(builder.build());
-              builder.clear();
-            }
-            if (completed.get() && inflightRequests.get() == 0 && statusQueue.isEmpty()) {
+    @Override
+    public void onNext(Rpc.IngestBulk bulk) {
+      Metrics.INGEST_BULK.increment();
+      Metrics.BULK_SIZE.increment(bulk.getIngestCount());
+      inflightRequests.addAndGet(bulk.getIngestCount());
+      inflightIngests.addAndGet(bulk.getIngestCount());
+      Metrics.INFLIGHT_INGESTS.increment(bulk.getIngestCount());
+      for (Rpc.Ingest request : bulk.getIngestList()) {
+        processSingleIngest(request, this::onStatus);
+      }
+      requestNextOrStall();
+    }
 
-              responseObserver.onCompleted();
-            }
-          }
-        } catch (Exception ex) {
-          log.error("Failed to send bulk status", ex);
-        }
-      };
+    private void onStatus(Rpc.Status status) {
+      statuses.add(status);
+      if (pendingStatuses.incrementAndGet() >= bulkFlushSize) {
+        requestFlush();
+      } else {
+        scheduleFlush();
+      }
+      inflightIngests.decrementAndGet();
+      Metrics.INFLIGHT_INGESTS.decrement();
+      if (inflightRequests.decrementAndGet() == 0 && completed.get()) {
+        requestFlush();
+      }
+      if (!stalledStreams.isEmpty()) {
+        resumeStalledStreams();
+      }
+    }
+
+    private boolean canRequestNext() {
+      return inflightRequests.get() < maxInflightPerStream
+          && inflightIngests.get() < maxInflight
+          && flowControl.isReady();
+    }
+
+    /** Resume the stream stalled by client not receiving statuses. */
+    private void onReady() {
+      if (stalled.get() && tryResume()) {
+        stalledStreams.remove(this);
+      }
+    }
+
+    private void requestNextOrStall() {
+      if (flowControl == null) {
+        return;
+      }
+      if (canRequestNext()) {
+        flowControl.request(1);
+      } else {
+        stalled.set(true);
+        Metrics.STREAM_STALLS.increment();
+        Metrics.STALLED_STREAMS.increment();
+        stalledStreams.add(this);
+        // statuses might have been received before the stream was marked stalled
+        resumeStalledStreams();
+      }
     }
 
-    private void peekQueueToBuilderAndFlush() {
-      synchronized (builder) {
-        builder.addStatus(statusQueue.poll());
-        if (builder.getStatusCount() >= 1000) {
-          flush();
+    /**
+     * Request next bulk if the stream is stalled and the budget allows it.
+     *
+     * @return {@code true} if the stream is no longer stalled
+     */
+    private boolean tryResume() {
+      if (!stalled.get()) {
+        return true;
+      }
+      if (closed.get() || completed.get()) {
+        if (stalled.compareAndSet(true, false)) {
+          Metrics.STALLED_STREAMS.decrement();
         }
+        return true;
+      }
+      if (canRequestNext() && stalled.compareAndSet(true, false)) {
+        Metrics.STALLED_STREAMS.decrement();
+        flowControl.request(1);
+        return true;
+      }
+      return false;
+    }
+
+    /** Flush pending statuses asynchronously, unless a flush is already running. */
+    private void requestFlush() {
+      if (flushing.compareAndSet(false, true)) {
+        scheduler.execute(this::flush);
+      }
+    }
+
+    /** Flush pending statuses after the flush latency, unless such flush is already scheduled. */
+    private void scheduleFlush() {
+      if (!flushScheduled.get() && flushScheduled.compareAndSet(false, true)) {
+        scheduler.schedule(
+            () -> {
+              flushScheduled.set(false);
+              requestFlush();
+            },
+            bulkFlushLatencyMs,
+            TimeUnit.MILLISECONDS);
       }
     }
 
-    /** Flush response(s) to the observer. */
     private void flush() {
-      synchronized (builder) {
-        lastFlushNanos.set(System.nanoTime());
-        Rpc.StatusBulk bulk = builder.build();
-        if (bulk.getStatusCount() > 0) {
+      try {
+        Rpc.StatusBulk.Builder builder = Rpc.StatusBulk.newBuilder();
+        Rpc.Status status;
+        while ((status = statuses.poll()) != null) {
+          pendingStatuses.decrementAndGet();
+          builder.addStatus(status);
+          if (builder.getStatusCount() >= bulkFlushSize) {
+            send(builder.build());
+            builder = Rpc.StatusBulk.newBuilder();
+          }
+        }
+        if (builder.getStatusCount() > 0) {
+          send(builder.build());
+        }
+        if (isDone() && statuses.isEmpty()) {
+          synchronized (responseObserverLock) {
+            if (closed.compareAndSet(false, true)) {
+              responseObserver.onCompleted();
+            }
+          }
+        }
+      } catch (Exception ex) {
+        log.error("Failed to send bulk status", ex);
+      } finally {
+        flushing.set(false);
+      }
+      // handle statuses added while the flush was finishing
+      if (pendingStatuses.get() >= bulkFlushSize || (isDone() && !closed.get())) {
+        requestFlush();
+      } else if (pendingStatuses.get() > 0) {
+        scheduleFlush();
+      }
+    }
+
+    private void send(Rpc.StatusBulk bulk) {
+      synchronized (responseObserverLock) {
+        if (!closed.get()) {
           responseObserver.onNext(bulk);
         }
-        builder.clear();
       }
     }
 
-    @Override
-    public void onNext(Rpc.IngestBulk bulk) {
-      Metrics.INGEST_BULK.increment();
-      Metrics.BULK_SIZE.increment(bulk.getIngestCount());
-      inflightRequests.addAndGet(bulk.getIngestCount());
-      bulk.getIngestList()
-          .stream()
-          .forEach(
-              r ->
-                  processSingleIngest(
-                      r,
-                      status -> {
-                        statusQueue.add(status);
-                        if (statusQueue.size() >= MAX_QUEUED_STATUSES) {
-                          // enqueue flush
-                          scheduler.execute(flushTask);
-                        }
-                        if (inflightRequests.decrementAndGet() == 0) {
-                          // there is no more inflight requests
-                          synchronized (inflightRequestsLock) {
-                            inflightRequestsLock.notifyAll();
-                          }
-                        }
-                      }));
+    private boolean isDone() {
+      return completed.get() && inflightRequests.get() == 0;
     }
 
     @Override
     public void onError(Throwable error) {
       log.error("Error from client", error);
       // close the connection
-      responseObserver.onError(error);
-      flushFuture.cancel(true);
+      synchronized (responseObserverLock) {
+        if (closed.compareAndSet(false, true)) {
+          responseObserver.onError(error);
+        }
+      }
+      // release the stream from stalled streams
+      tryResume();
     }
 
     @Override
     public void onCompleted() {
       completed.set(true);
-      flushFuture.cancel(true);
-      // flush all responses to the observer
-      synchronized (inflightRequests) {
-        while (inflightRequests.get() > 0) {
-          try {
-            inflightRequests.wait(100);
-          } catch (InterruptedException ex) {
-            log.warn("Interrupted while waiting to send responses to client", ex);
-            Thread.currentThread().interrupt();
-          }
-        }
+      // the stream is completed by flush after statuses of all requests are sent
+      if (inflightRequests.get() == 0) {
+        requestFlush();
       }
-      while (!statusQueue.isEmpty()) {
-        peekQueueToBuilderAndFlush();
+    }
+  }
+
+  private void resumeStalledStreams() {
+    Iterator<IngestBulkObserver> it = stalledStreams.iterator();
+    while (it.hasNext()) {
+      if (it.next().tryResume()) {
+        it.remove();
       }
-      flush();
-      responseObserver.onCompleted();
     }
   }
 
@@ -256,11 +403,7 @@ public class IngestService extends IngestServiceGrpc.IngestServiceImplBase {
     }
     Consumer<Rpc.Status> loggingConsumer =
         rpc -> {
-          log.info(
-              "Input ingest {}: {}, {}",
-              TextFormat.shortDebugString(request),
-              rpc.getStatus(),
-              rpc.getStatus() == 200 ? "OK" : rpc.getStatusMessage());
+          logAccess(request, rpc);
           consumer.accept(rpc);
         };
     Metrics.INGESTS.increment();
@@ -274,6 +417,26 @@ public class IngestService extends IngestServiceGrpc.IngestServiceImplBase {
     }
   }
 
+  /** Log failed ingests and sample of successful ones. */
+  private void logAccess(Rpc.Ingest request, Rpc.Status status) {
+    boolean ok = status.getStatus() == 200;
+    if ((!ok || isAccessSampled()) && log.isInfoEnabled()) {
+      log.info(
+          "Input ingest entity={} attribute={} key={} uuid={} status={} message={}",
+          request.getEntity(),
+          request.getAttribute(),
+          request.getKey(),
+          request.getUuid(),
+          status.getStatus(),
+          ok ? "OK" : status.getStatusMessage());
+    }
+  }
+
+  private boolean isAccessSampled() {
+    return accessLogSampleRate > 0.0
+        && ThreadLocalRandom.current().nextDouble() < accessLogSampleRate;
+  }
+
   /**
    * Ingest the given request and return {@code true} if successfully ingested and {@code false} if
    * the request is invalid.
@@ -330,9 +493,7 @@ public class IngestService extends IngestServiceGrpc.IngestServiceImplBase {
   public StreamObserver<Rpc.IngestBulk> ingestBulk(
       StreamObserver<Rpc.StatusBulk> responseObserver) {
 
-    // the responseObserver doesn't have to be synchronized in this
-    // case, because the communication with the observer is done
-    // in single flush thread
+    // calls of the responseObserver are synchronized by the observer
 
     return new IngestBulkObserver(responseObserver);
   }
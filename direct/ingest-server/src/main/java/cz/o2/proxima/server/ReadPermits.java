@@ -0,0 +1,112 @@
+/**
+ * Copyright 2017-2020 O2 Czech Republic, a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.o2.proxima.server;
+
+import com.google.common.annotations.VisibleForTesting;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Permits of concurrent reads of single storage. Reads exceeding the permits wait in bounded queue
+ * without blocking any thread and are started when a permit is released, reads exceeding the queue
+ * are rejected.
+ */
+@Slf4j
+class ReadPermits {
+
+  /** Actions to run by the current thread after the running action, to avoid deep recursion. */
+  private static final ThreadLocal<Deque<Runnable>> SCHEDULED = new ThreadLocal<>();
+
+  /**
+   * Run given action in the calling thread. When called from an action run by this method, the
+   * action is run after the calling action completes, so that chains of reads completed
+   * synchronously do not overflow the stack.
+   *
+   * @param action the action to run
+   */
+  static void run(Runnable action) {
+    Deque<Runnable> scheduled = SCHEDULED.get();
+    if (scheduled != null) {
+      scheduled.add(action);
+      return;
+    }
+    scheduled = new ArrayDeque<>();
+    SCHEDULED.set(scheduled);
+    try {
+      Runnable next = action;
+      while (next != null) {
+        try {
+          next.run();
+        } catch (Exception ex) {
+          log.error("Failed to run {}", next, ex);
+        }
+        next = scheduled.poll();
+      }
+    } finally {
+      SCHEDULED.remove();
+    }
+  }
+
+  private final int maxQueued;
+  private final Deque<Runnable> waiting = new ArrayDeque<>();
+  private int available;
+
+  ReadPermits(int maxConcurrency, int maxQueued) {
+    this.available = maxConcurrency;
+    this.maxQueued = maxQueued;
+  }
+
+  /**
+   * Run given action with a permit, either immediately or when a permit is released. The action
+   * must return the permit by {@link #release}.
+   *
+   * @param onPermit the action to run holding the permit
+   * @return {@code false} if the action was rejected, because too many actions wait for a permit
+   */
+  boolean acquire(Runnable onPermit) {
+    synchronized (this) {
+      if (available == 0) {
+        if (waiting.size() >= maxQueued) {
+          return false;
+        }
+        waiting.add(onPermit);
+        return true;
+      }
+      available--;
+    }
+    run(onPermit);
+    return true;
+  }
+
+  /** Return permit acquired by {@link #acquire}, passing it to the oldest waiting action. */
+  void release() {
+    final Runnable next;
+    synchronized (this) {
+      next = waiting.poll();
+      if (next == null) {
+        available++;
+        return;
+      }
+    }
+    run(next);
+  }
+
+  @VisibleForTesting
+  synchronized int getWaiting() {
+    return waiting.size();
+  }
+}
@@ -0,0 +1,178 @@
+/**
+ * Copyright 2017-2020 O2 Czech Republic, a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.o2.proxima.server;
+
+import com.google.common.annotations.VisibleForTesting;
+import cz.o2.proxima.direct.randomaccess.RandomAccessReader;
+import cz.o2.proxima.util.SerializableUtils;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.Consumer;
+import javax.annotation.Nullable;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Pool of {@link RandomAccessReader}s of single attribute family. Each reader is used by single
+ * thread at a time, readers are added to the pool by cloning the reader of the family when all
+ * existing readers are in use, up to given maximal number of readers. Number of concurrent reads is
+ * limited by {@link ReadPermits} shared by all families of the same storage. Reads holding a permit
+ * and finding no free reader wait for a reader to be released, without blocking any thread.
+ */
+@Slf4j
+class ReaderPool {
+
+  private final RandomAccessReader reader;
+  private final ReadPermits permits;
+  private final int maxReaders;
+  /** Readers not in use. Guarded by {@code this}. */
+  private final Deque<RandomAccessReader> idle = new ArrayDeque<>();
+  /** Reads holding a permit and waiting for a reader. Guarded by {@code this}. */
+  private final Deque<Consumer<RandomAccessReader>> waiting = new ArrayDeque<>();
+  /** Clones of the reader, closed by {@link #close}. Guarded by {@code this}. */
+  private final List<RandomAccessReader> clones = new ArrayList<>();
+  /** Number of readers, including clones being created. Guarded by {@code this}. */
+  private int size = 1;
+
+  private boolean cloneable = true;
+
+  ReaderPool(RandomAccessReader reader, ReadPermits permits, int maxReaders) {
+    this.reader = reader;
+    this.permits = permits;
+    this.maxReaders = maxReaders;
+    idle.add(reader);
+  }
+
+  /**
+   * Acquire reader for exclusive use. The reader is passed to given consumer when both permit of
+   * the storage and a reader are available, which might be after this method returns. The reader
+   * must be returned by {@link #release}.
+   *
+   * @param onReader consumer of the acquired reader
+   * @return {@code false} if the read was rejected, because too many reads wait for a permit
+   */
+  boolean acquire(Consumer<RandomAccessReader> onReader) {
+    return permits.acquire(() -> acquireReader(onReader));
+  }
+
+  /**
+   * Return reader acquired by {@link #acquire}, passing it to the oldest read waiting for a reader.
+   *
+   * @param acquired the reader to return
+   */
+  void release(RandomAccessReader acquired) {
+    final Consumer<RandomAccessReader> next;
+    synchronized (this) {
+      next = waiting.poll();
+      if (next == null) {
+        idle.add(acquired);
+      }
+    }
+    if (next != null) {
+      // the permit of the released read is no longer needed, the waiting read holds its own
+      ReadPermits.run(() -> next.accept(acquired));
+    }
+    permits.release();
+  }
+
+  @VisibleForTesting
+  synchronized int size() {
+    return size;
+  }
+
+  /** Close all clones of the reader. The reader of the family itself is not closed. */
+  void close() {
+    List<RandomAccessReader> toClose;
+    synchronized (this) {
+      cloneable = false;
+      toClose = new ArrayList<>(clones);
+      clones.clear();
+    }
+    for (RandomAccessReader r : toClose) {
+      try {
+        r.close();
+      } catch (IOException ex) {
+        log.warn("Failed to close {}", r, ex);
+      }
+    }
+  }
+
+  private void acquireReader(Consumer<RandomAccessReader> onReader) {
+    RandomAccessReader acquired;
+    synchronized (this) {
+      acquired = idle.poll();
+      if (acquired == null) {
+        if (!cloneable || size >= maxReaders) {
+          waiting.add(onReader);
+          return;
+        }
+        // reserve the slot, so that the clone is created outside of the lock
+        size++;
+      }
+    }
+    if (acquired == null) {
+      acquired = newReader();
+      if (acquired == null) {
+        synchronized (this) {
+          acquired = idle.poll();
+          if (acquired == null) {
+            waiting.add(onReader);
+            return;
+          }
+        }
+      }
+    }
+    onReader.accept(acquired);
+  }
+
+  @Nullable
+  private RandomAccessReader newReader() {
+    try {
+      RandomAccessReader cloned = SerializableUtils.clone(reader);
+      synchronized (this) {
+        if (cloneable) {
+          clones.add(cloned);
+          log.info("Created reader {} of {}", size, reader);
+          return cloned;
+        }
+      }
+      // the pool was closed in the meantime
+      cloned.close();
+    } catch (Exception ex) {
+      final boolean first;
+      final int existing;
+      synchronized (this) {
+        first = cloneable;
+        cloneable = false;
+        existing = --size;
+      }
+      if (first) {
+        log.error(
+            "Failed to clone reader {}, reads of the family will wait for {} existing readers",
+            reader,
+            existing,
+            ex);
+      }
+      return null;
+    }
+    synchronized (this) {
+      size--;
+    }
+    return null;
+  }
+}
@@ -15,13 +15,28 @@
  */
 package cz.o2.proxima.server;
 
+import static cz.o2.proxima.server.Constants.CFG_RETRIEVE_BATCH_CHUNK_SIZE;
+import static cz.o2.proxima.server.Constants.CFG_RETRIEVE_MAX_CONCURRENCY;
+import static cz.o2.proxima.server.Constants.CFG_RETRIEVE_MAX_QUEUED;
+import static cz.o2.proxima.server.Constants.CFG_RETRIEVE_MAX_READERS;
+import static cz.o2.proxima.server.Constants.DEFAULT_RETRIEVE_BATCH_CHUNK_SIZE;
+import static cz.o2.proxima.server.Constants.DEFAULT_RETRIEVE_MAX_CONCURRENCY;
+import static cz.o2.proxima.server.Constants.DEFAULT_RETRIEVE_MAX_QUEUED;
+import static cz.o2.proxima.server.Constants.DEFAULT_RETRIEVE_MAX_READERS_THREAD_SAFE;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.MessageOrBuilder;
 import com.google.protobuf.TextFormat;
-import cz.o2.proxima.direct.core.DirectAttributeFamilyDescriptor;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigUtil;
 import cz.o2.proxima.direct.core.DirectDataOperator;
+import cz.o2.proxima.direct.randomaccess.AsyncRandomAccessReader;
 import cz.o2.proxima.direct.randomaccess.KeyValue;
 import cz.o2.proxima.direct.randomaccess.RandomAccessReader;
+import cz.o2.proxima.functional.UnaryFunction;
 import cz.o2.proxima.proto.service.RetrieveServiceGrpc;
 import cz.o2.proxima.proto.service.Rpc;
 import cz.o2.proxima.proto.service.Rpc.ListResponse;
@@ -29,27 +44,204 @@ import cz.o2.proxima.repository.AttributeDescriptor;
 import cz.o2.proxima.repository.EntityDescriptor;
 import cz.o2.proxima.repository.Repository;
 import cz.o2.proxima.server.metrics.Metrics;
+import cz.o2.proxima.util.Pair;
 import io.grpc.stub.StreamObserver;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import lombok.Value;
 import lombok.extern.slf4j.Slf4j;
 
 /** Service for reading data. */
 @Slf4j
 public class RetrieveService extends RetrieveServiceGrpc.RetrieveServiceImplBase {
 
-  private final Map<AttributeDescriptor<?>, RandomAccessReader> readerMap;
+  /** Read of single request using reader of the attribute family of the request. */
+  @FunctionalInterface
+  private interface Read<T> {
+    T apply(RandomAccessReader reader) throws Status;
+  }
+
+  /** Validation of single request, returning the read to execute. */
+  @FunctionalInterface
+  private interface Prepare<Q, T> {
+    Pair<ReaderPool, Read<T>> apply(Q request) throws Status;
+  }
+
+  /** Creation of response with non-OK status. */
+  @FunctionalInterface
+  private interface StatusResponse<T> {
+    T create(int statusCode, String message);
+  }
+
+  /** Receiver of results of reads of items of a batch. */
+  private interface Responder<Q, T> {
+    void ok(BatchItem<Q, T> item, T response);
+
+    void fail(BatchItem<Q, T> item, int statusCode, String message);
+  }
+
+  /** Read of chunk of a batch using single reader of the attribute family of the chunk. */
+  @FunctionalInterface
+  private interface ChunkRead<Q, T> {
+    void apply(RandomAccessReader reader, List<BatchItem<Q, T>> items, Responder<Q, T> responder);
+  }
+
+  @Value
+  private static class BatchItem<Q, T> {
+    int index;
+    Q request;
+    Read<T> read;
+  }
+
+  /** Asynchronous reader of family of storage with thread-safe client. */
+  @Value
+  private static class AsyncFamilyReader {
+    AsyncRandomAccessReader reader;
+    /** Permits of concurrent reads of the storage of the family. */
+    ReadPermits permits;
+  }
+
+  /** Immutable map of attributes to pools of readers of their random access families. */
+  private final Map<AttributeDescriptor<?>, ReaderPool> readerMap;
+
+  /**
+   * Immutable map of attributes to asynchronous readers of their random access families, for
+   * storages with asynchronous client only. Other storages are read by readers of {@link
+   * #readerMap}, so that each reader is used by single thread and clones are bounded by the pool.
+   */
+  private final Map<AttributeDescriptor<?>, AsyncFamilyReader> asyncReaderMap;
+
   private final Repository repo;
-  private final DirectDataOperator direct;
+  private final int batchChunkSize;
+  private final Executor executor;
 
   public RetrieveService(Repository repo, DirectDataOperator direct) {
+    this(repo, direct, ConfigFactory.empty());
+  }
+
+  public RetrieveService(Repository repo, DirectDataOperator direct, Config cfg) {
+    this(repo, direct, cfg, MoreExecutors.directExecutor());
+  }
+
+  public RetrieveService(
+      Repository repo, DirectDataOperator direct, Config cfg, Executor executor) {
+
     this.repo = repo;
-    this.direct = direct;
-    this.readerMap = Collections.synchronizedMap(new HashMap<>());
+    this.executor = executor;
+    this.batchChunkSize =
+        cfg.hasPath(CFG_RETRIEVE_BATCH_CHUNK_SIZE)
+            ? cfg.getInt(CFG_RETRIEVE_BATCH_CHUNK_SIZE)
+            : DEFAULT_RETRIEVE_BATCH_CHUNK_SIZE;
+    Map<String, ReadPermits> permits = new HashMap<>();
+    this.readerMap = createReaderMap(direct, cfg, permits);
+    this.asyncReaderMap = createAsyncReaderMap(direct, cfg, permits);
+  }
+
+  /** Close readers created by the service. Readers of the families are not closed. */
+  public void close() {
+    new HashSet<>(readerMap.values()).forEach(ReaderPool::close);
+    new HashSet<>(asyncReaderMap.values())
+        .forEach(
+            family -> {
+              try {
+                family.getReader().close();
+              } catch (IOException ex) {
+                log.warn("Failed to close {}", family.getReader(), ex);
+              }
+            });
+  }
+
+  private static Map<AttributeDescriptor<?>, ReaderPool> createReaderMap(
+      DirectDataOperator direct, Config cfg, Map<String, ReadPermits> permits) {
+
+    Map<AttributeDescriptor<?>, ReaderPool> ret = new HashMap<>();
+    direct
+        .getAllFamilies()
+        .filter(af -> af.getDesc().getAccess().canRandomRead())
+        .forEach(
+            af ->
+                af.getRandomAccessReader()
+                    .ifPresent(
+                        reader -> {
+                          String scheme = af.getDesc().getStorageUri().getScheme();
+                          ReaderPool pool =
+                              new ReaderPool(
+                                  reader,
+                                  permitsOf(permits, cfg, scheme),
+                                  maxReaders(cfg, scheme, reader));
+                          af.getAttributes().forEach(a -> ret.putIfAbsent(a, pool));
+                        }));
+    return Collections.unmodifiableMap(ret);
   }
 
-  private class Status extends Exception {
+  private static Map<AttributeDescriptor<?>, AsyncFamilyReader> createAsyncReaderMap(
+      DirectDataOperator direct, Config cfg, Map<String, ReadPermits> permits) {
+
+    Map<AttributeDescriptor<?>, AsyncFamilyReader> ret = new HashMap<>();
+    direct
+        .getAllFamilies()
+        .filter(af -> af.getDesc().getAccess().canRandomRead())
+        .forEach(
+            af ->
+                af.getRandomAccessReader()
+                    .flatMap(RandomAccessReader::asAsync)
+                    .ifPresent(
+                        reader -> {
+                          String scheme = af.getDesc().getStorageUri().getScheme();
+                          AsyncFamilyReader family =
+                              new AsyncFamilyReader(reader, permitsOf(permits, cfg, scheme));
+                          af.getAttributes().forEach(a -> ret.putIfAbsent(a, family));
+                        }));
+    return Collections.unmodifiableMap(ret);
+  }
+
+  private static ReadPermits permitsOf(
+      Map<String, ReadPermits> permits, Config cfg, String scheme) {
+
+    return permits.computeIfAbsent(
+        scheme,
+        tmp ->
+            new ReadPermits(
+                maxConcurrency(cfg, scheme),
+                schemeValue(cfg, CFG_RETRIEVE_MAX_QUEUED, scheme, DEFAULT_RETRIEVE_MAX_QUEUED)));
+  }
+
+  private static int maxConcurrency(Config cfg, String scheme) {
+    return schemeValue(cfg, CFG_RETRIEVE_MAX_CONCURRENCY, scheme, DEFAULT_RETRIEVE_MAX_CONCURRENCY);
+  }
+
+  private static int maxReaders(Config cfg, String scheme, RandomAccessReader reader) {
+    // each reader of storage with thread-safe client holds own connection, few readers suffice
+    int defaultValue =
+        reader.asAsync().isPresent()
+            ? DEFAULT_RETRIEVE_MAX_READERS_THREAD_SAFE
+            : maxConcurrency(cfg, scheme);
+    return Math.max(1, schemeValue(cfg, CFG_RETRIEVE_MAX_READERS, scheme, defaultValue));
+  }
+
+  private static int schemeValue(Config cfg, String prefix, String scheme, int defaultValue) {
+    String path = prefix + "." + ConfigUtil.quoteString(scheme);
+    if (cfg.hasPath(path)) {
+      return cfg.getInt(path);
+    }
+    String defaultPath = prefix + ".default";
+    return cfg.hasPath(defaultPath) ? cfg.getInt(defaultPath) : defaultValue;
+  }
+
+  private static class Status extends Exception {
     final int statusCode;
     final String message;
 
@@ -63,54 +255,100 @@ public class RetrieveService extends RetrieveServiceGrpc.RetrieveServiceImplBase
   public void listAttributes(
       Rpc.ListRequest request, StreamObserver<Rpc.ListResponse> responseObserver) {
 
+    Metrics.LIST_REQUESTS.increment();
+    final CompletableFuture<Rpc.ListResponse> response;
     try {
-      Metrics.LIST_REQUESTS.increment();
-      if (request.getEntity().isEmpty()
-          || request.getKey().isEmpty()
-          || request.getWildcardPrefix().isEmpty()) {
-        throw new Status(400, "Missing some required fields");
-      }
-
-      EntityDescriptor entity =
-          repo.findEntity(request.getEntity())
-              .orElseThrow(() -> new Status(404, "Entity " + request.getEntity() + " not found"));
-
-      AttributeDescriptor<Object> wildcard =
-          entity
-              .findAttribute(request.getWildcardPrefix() + ".*")
-              .orElseThrow(
-                  () ->
-                      new Status(
-                          404,
-                          "Entity "
-                              + request.getEntity()
-                              + " does not have wildcard attribute "
-                              + request.getWildcardPrefix()));
-
-      RandomAccessReader reader = instantiateReader(wildcard);
-
-      Rpc.ListResponse.Builder response = Rpc.ListResponse.newBuilder().setStatus(200);
-
-      synchronized (reader) {
-        reader.scanWildcard(
-            request.getKey(),
-            wildcard,
-            reader.fetchOffset(RandomAccessReader.Listing.ATTRIBUTE, request.getOffset()),
-            request.getLimit() > 0 ? request.getLimit() : -1,
-            kv ->
-                response.addValue(
-                    Rpc.ListResponse.AttrValue.newBuilder()
-                        .setAttribute(kv.getAttribute())
-                        .setValue(ByteString.copyFrom(kv.getValue()))));
-      }
-      replyLogged(responseObserver, request, response.build());
+      AttributeDescriptor<Object> wildcard = getWildcard(request);
+      response =
+          readAsync(
+              wildcard,
+              reader ->
+                  reader
+                      .scanWildcard(
+                          request.getKey(),
+                          wildcard,
+                          reader.fetchOffset(
+                              RandomAccessReader.Listing.ATTRIBUTE, request.getOffset()),
+                          System.currentTimeMillis(),
+                          request.getLimit() > 0 ? request.getLimit() : -1)
+                      .thenApply(
+                          kvs -> {
+                            Rpc.ListResponse.Builder builder =
+                                Rpc.ListResponse.newBuilder().setStatus(200);
+                            kvs.forEach(kv -> builder.addValue(attrValue(kv)));
+                            return builder.build();
+                          }),
+              reader -> listWildcard(reader, request, wildcard));
     } catch (Status s) {
       replyStatusLogged(responseObserver, request, s.statusCode, s.message);
+      responseObserver.onCompleted();
+      return;
     } catch (Exception ex) {
       log.error("Failed to process request {}", request, ex);
       replyStatusLogged(responseObserver, request, 500, ex.getMessage());
+      responseObserver.onCompleted();
+      return;
     }
-    responseObserver.onCompleted();
+    response.whenComplete(
+        (result, err) -> {
+          if (err != null) {
+            log.error("Failed to process request {}", request, err);
+            replyStatusLogged(responseObserver, request, 500, unwrap(err).getMessage());
+          } else {
+            replyLogged(responseObserver, request, result);
+          }
+          responseObserver.onCompleted();
+        });
+  }
+
+  private Pair<ReaderPool, Read<Rpc.ListResponse>> prepareList(Rpc.ListRequest request)
+      throws Status {
+
+    AttributeDescriptor<Object> wildcard = getWildcard(request);
+    return Pair.of(getReaderPool(wildcard), reader -> listWildcard(reader, request, wildcard));
+  }
+
+  private static Rpc.ListResponse listWildcard(
+      RandomAccessReader reader, Rpc.ListRequest request, AttributeDescriptor<Object> wildcard) {
+
+    Rpc.ListResponse.Builder response = Rpc.ListResponse.newBuilder().setStatus(200);
+    reader.scanWildcard(
+        request.getKey(),
+        wildcard,
+        reader.fetchOffset(RandomAccessReader.Listing.ATTRIBUTE, request.getOffset()),
+        request.getLimit() > 0 ? request.getLimit() : -1,
+        kv -> response.addValue(attrValue(kv)));
+    return response.build();
+  }
+
+  private AttributeDescriptor<Object> getWildcard(Rpc.ListRequest request) throws Status {
+    if (request.getEntity().isEmpty()
+        || request.getKey().isEmpty()
+        || request.getWildcardPrefix().isEmpty()) {
+      throw new Status(400, "Missing some required fields");
+    }
+
+    EntityDescriptor entity =
+        repo.findEntity(request.getEntity())
+            .orElseThrow(() -> new Status(404, "Entity " + request.getEntity() + " not found"));
+
+    return entity
+        .findAttribute(request.getWildcardPrefix() + ".*")
+        .orElseThrow(
+            () ->
+                new Status(
+                    404,
+                    "Entity "
+                        + request.getEntity()
+                        + " does not have wildcard attribute "
+                        + request.getWildcardPrefix()));
+  }
+
+  private static Rpc.ListResponse.AttrValue attrValue(KeyValue<?> kv) {
+    return Rpc.ListResponse.AttrValue.newBuilder()
+        .setAttribute(kv.getAttribute())
+        .setValue(ByteString.copyFrom(kv.getValue()))
+        .build();
   }
 
   private static void replyStatusLogged(
@@ -119,10 +357,7 @@ public class RetrieveService extends RetrieveServiceGrpc.RetrieveServiceImplBase
       int statusCode,
       String message) {
 
-    replyLogged(
-        responseObserver,
-        request,
-        ListResponse.newBuilder().setStatus(statusCode).setStatusMessage(message).build());
+    replyLogged(responseObserver, request, listStatus(statusCode, message));
   }
 
   private static void replyLogged(
@@ -133,95 +368,425 @@ public class RetrieveService extends RetrieveServiceGrpc.RetrieveServiceImplBase
     responseObserver.onNext(response);
   }
 
-  @SuppressWarnings("unchecked")
+  private static Rpc.ListResponse listStatus(int statusCode, String message) {
+    return ListResponse.newBuilder().setStatus(statusCode).setStatusMessage(message).build();
+  }
+
   @Override
   public void get(Rpc.GetRequest request, StreamObserver<Rpc.GetResponse> responseObserver) {
 
     Metrics.GET_REQUESTS.increment();
 
+    final CompletableFuture<Optional<KeyValue<Object>>> value;
     try {
-      if (request.getEntity().isEmpty()
-          || request.getKey().isEmpty()
-          || request.getAttribute().isEmpty()) {
-        throw new Status(400, "Missing some required fields");
-      }
-
-      EntityDescriptor entity =
-          repo.findEntity(request.getEntity())
-              .orElseThrow(() -> new Status(404, "Entity " + request.getEntity() + " not found"));
-
-      AttributeDescriptor<Object> attribute =
-          entity
-              .findAttribute(request.getAttribute())
-              .orElseThrow(
-                  () ->
-                      new Status(
-                          404,
-                          "Entity "
-                              + request.getEntity()
-                              + " does not have attribute "
-                              + request.getAttribute()));
-
-      RandomAccessReader reader = instantiateReader(attribute);
-
-      synchronized (reader) {
-        KeyValue<Object> kv =
-            reader
-                .get(request.getKey(), request.getAttribute(), attribute)
-                .orElseThrow(
-                    () ->
-                        new Status(
-                            404,
-                            "Key "
-                                + request.getKey()
-                                + " and/or attribute "
-                                + request.getAttribute()
-                                + " not found"));
-
-        logStatus("get", request, 200, "OK");
-        responseObserver.onNext(
-            Rpc.GetResponse.newBuilder()
-                .setStatus(200)
-                .setValue(ByteString.copyFrom(kv.getValue()))
-                .build());
-      }
+      AttributeDescriptor<Object> attribute = getAttribute(request);
+      value =
+          readAsync(
+              attribute,
+              reader ->
+                  reader.get(
+                      request.getKey(),
+                      request.getAttribute(),
+                      attribute,
+                      System.currentTimeMillis()),
+              reader ->
+                  reader.get(
+                      request.getKey(),
+                      request.getAttribute(),
+                      attribute,
+                      System.currentTimeMillis()));
     } catch (Status s) {
       logStatus("get", request, s.statusCode, s.message);
-      responseObserver.onNext(
-          Rpc.GetResponse.newBuilder().setStatus(s.statusCode).setStatusMessage(s.message).build());
+      responseObserver.onNext(getStatus(s.statusCode, s.message));
+      responseObserver.onCompleted();
+      return;
     } catch (Exception ex) {
       log.error("Failed to process request {}", request, ex);
       logStatus("get", request, 500, ex.getMessage());
-      responseObserver.onNext(
-          Rpc.GetResponse.newBuilder().setStatus(500).setStatusMessage(ex.getMessage()).build());
-    }
-    responseObserver.onCompleted();
-  }
-
-  private RandomAccessReader instantiateReader(AttributeDescriptor<?> attr) throws Status {
-
-    synchronized (readerMap) {
-      RandomAccessReader reader = readerMap.get(attr);
-      if (reader == null) {
-        DirectAttributeFamilyDescriptor family =
-            direct
-                .getFamiliesForAttribute(attr)
-                .stream()
-                .filter(af -> af.getDesc().getAccess().canRandomRead())
-                .findAny()
-                .orElseThrow(
-                    () -> new Status(400, "Attribute " + attr + " has no random access family"));
-
-        RandomAccessReader newReader =
-            family
-                .getRandomAccessReader()
-                .orElseThrow(
-                    () -> new Status(500, "Random access family " + family + " has no reader"));
-        family.getAttributes().forEach(a -> readerMap.put(a, newReader));
-        return newReader;
+      responseObserver.onNext(getStatus(500, ex.getMessage()));
+      responseObserver.onCompleted();
+      return;
+    }
+    value.whenComplete(
+        (kv, err) -> {
+          if (err != null) {
+            String message = unwrap(err).getMessage();
+            log.error("Failed to process request {}", request, err);
+            logStatus("get", request, 500, message);
+            responseObserver.onNext(getStatus(500, message));
+          } else if (kv.isPresent()) {
+            logStatus("get", request, 200, "OK");
+            responseObserver.onNext(getResponse(kv.get()));
+          } else {
+            Status s = notFound(request);
+            logStatus("get", request, s.statusCode, s.message);
+            responseObserver.onNext(getStatus(s.statusCode, s.message));
+          }
+          responseObserver.onCompleted();
+        });
+  }
+
+  private Pair<ReaderPool, Read<Rpc.GetResponse>> prepareGet(Rpc.GetRequest request) throws Status {
+
+    AttributeDescriptor<Object> attribute = getAttribute(request);
+    return Pair.of(
+        getReaderPool(attribute),
+        reader ->
+            getResponse(
+                reader
+                    .get(request.getKey(), request.getAttribute(), attribute)
+                    .orElseThrow(() -> notFound(request))));
+  }
+
+  private AttributeDescriptor<Object> getAttribute(Rpc.GetRequest request) throws Status {
+    if (request.getEntity().isEmpty()
+        || request.getKey().isEmpty()
+        || request.getAttribute().isEmpty()) {
+      throw new Status(400, "Missing some required fields");
+    }
+
+    EntityDescriptor entity =
+        repo.findEntity(request.getEntity())
+            .orElseThrow(() -> new Status(404, "Entity " + request.getEntity() + " not found"));
+
+    return entity
+        .findAttribute(request.getAttribute())
+        .orElseThrow(
+            () ->
+                new Status(
+                    404,
+                    "Entity "
+                        + request.getEntity()
+                        + " does not have attribute "
+                        + request.getAttribute()));
+  }
+
+  private static Status notFound(Rpc.GetRequest request) {
+    return new Status(
+        404,
+        "Key " + request.getKey() + " and/or attribute " + request.getAttribute() + " not found");
+  }
+
+  private static Rpc.GetResponse getResponse(KeyValue<?> kv) {
+    return Rpc.GetResponse.newBuilder()
+        .setStatus(200)
+        .setValue(ByteString.copyFrom(kv.getValue()))
+        .build();
+  }
+
+  private static Rpc.GetResponse getStatus(int statusCode, String message) {
+    return Rpc.GetResponse.newBuilder().setStatus(statusCode).setStatusMessage(message).build();
+  }
+
+  @Override
+  public void multiGet(
+      Rpc.MultiGetRequest request, StreamObserver<Rpc.MultiGetResponse> responseObserver) {
+
+    Metrics.MULTI_GET_REQUESTS.increment();
+    readBatch(
+        "multiGet",
+        request.getGetList(),
+        this::prepareGet,
+        this::readGets,
+        RetrieveService::getStatus,
+        (index, response) -> {
+          synchronized (responseObserver) {
+            responseObserver.onNext(
+                Rpc.MultiGetResponse.newBuilder().setIndex(index).setResponse(response).build());
+          }
+        },
+        responseObserver::onCompleted);
+  }
+
+  @Override
+  public void multiListAttributes(
+      Rpc.MultiListRequest request, StreamObserver<Rpc.MultiListResponse> responseObserver) {
+
+    Metrics.MULTI_LIST_REQUESTS.increment();
+    readBatch(
+        "multiListAttributes",
+        request.getListList(),
+        this::prepareList,
+        RetrieveService::readEach,
+        RetrieveService::listStatus,
+        (index, response) -> {
+          synchronized (responseObserver) {
+            responseObserver.onNext(
+                Rpc.MultiListResponse.newBuilder().setIndex(index).setResponse(response).build());
+          }
+        },
+        responseObserver::onCompleted);
+  }
+
+  /**
+   * Read batch of requests. Requests are grouped by attribute family and split into chunks of at
+   * most {@link Constants#CFG_RETRIEVE_BATCH_CHUNK_SIZE} requests. Each chunk is read by single
+   * reader of the family and the chunks are read in parallel using the executor. Chunks finding no
+   * free permit of the storage or reader of the family wait in queue without blocking threads of
+   * the executor, chunks exceeding the queue are rejected.
+   */
+  private <Q extends MessageOrBuilder, T> void readBatch(
+      String name,
+      List<Q> requests,
+      Prepare<Q, T> prepare,
+      ChunkRead<Q, T> chunkRead,
+      StatusResponse<T> statusResponse,
+      BiConsumer<Integer, T> onResponse,
+      Runnable onCompleted) {
+
+    Map<ReaderPool, List<BatchItem<Q, T>>> families = new HashMap<>();
+    for (int i = 0; i < requests.size(); i++) {
+      Q request = requests.get(i);
+      try {
+        Pair<ReaderPool, Read<T>> prepared = prepare.apply(request);
+        families
+            .computeIfAbsent(prepared.getFirst(), tmp -> new ArrayList<>())
+            .add(new BatchItem<>(i, request, prepared.getSecond()));
+      } catch (Status s) {
+        logStatus(name, request, s.statusCode, s.message);
+        onResponse.accept(i, statusResponse.create(s.statusCode, s.message));
       }
-      return reader;
     }
+    List<Pair<ReaderPool, List<BatchItem<Q, T>>>> chunks = new ArrayList<>();
+    families.forEach(
+        (pool, items) ->
+            Lists.partition(items, batchChunkSize).forEach(c -> chunks.add(Pair.of(pool, c))));
+    if (chunks.isEmpty()) {
+      onCompleted.run();
+      return;
+    }
+    AtomicInteger pending = new AtomicInteger(chunks.size());
+    Runnable onChunkCompleted =
+        () -> {
+          if (pending.decrementAndGet() == 0) {
+            onCompleted.run();
+          }
+        };
+    for (Pair<ReaderPool, List<BatchItem<Q, T>>> chunk : chunks) {
+      readChunk(
+          name,
+          chunk.getFirst(),
+          chunk.getSecond(),
+          chunkRead,
+          statusResponse,
+          onResponse,
+          onChunkCompleted);
+    }
+  }
+
+  private <Q extends MessageOrBuilder, T> void readChunk(
+      String name,
+      ReaderPool pool,
+      List<BatchItem<Q, T>> items,
+      ChunkRead<Q, T> chunkRead,
+      StatusResponse<T> statusResponse,
+      BiConsumer<Integer, T> onResponse,
+      Runnable onChunkCompleted) {
+
+    Responder<Q, T> responder =
+        new Responder<Q, T>() {
+
+          @Override
+          public void ok(BatchItem<Q, T> item, T response) {
+            logStatus(name, item.getRequest(), 200, "OK");
+            onResponse.accept(item.getIndex(), response);
+          }
+
+          @Override
+          public void fail(BatchItem<Q, T> item, int statusCode, String message) {
+            logStatus(name, item.getRequest(), statusCode, message);
+            onResponse.accept(item.getIndex(), statusResponse.create(statusCode, message));
+          }
+        };
+    Consumer<Throwable> onFailed =
+        err -> {
+          log.error("Failed to read {} requests", items.size(), err);
+          items.forEach(item -> responder.fail(item, 500, err.getMessage()));
+          onChunkCompleted.run();
+        };
+    boolean accepted =
+        pool.acquire(
+            reader ->
+                execute(
+                    () -> {
+                      try {
+                        chunkRead.apply(reader, items, responder);
+                      } finally {
+                        pool.release(reader);
+                        onChunkCompleted.run();
+                      }
+                    },
+                    reader,
+                    pool,
+                    onFailed));
+    if (!accepted) {
+      Status s = rejected();
+      items.forEach(item -> responder.fail(item, s.statusCode, s.message));
+      onChunkCompleted.run();
+    }
+  }
+
+  /** Read items of chunk one by one. */
+  private static <Q extends MessageOrBuilder, T> void readEach(
+      RandomAccessReader reader, List<BatchItem<Q, T>> items, Responder<Q, T> responder) {
+
+    for (BatchItem<Q, T> item : items) {
+      try {
+        responder.ok(item, item.getRead().apply(reader));
+      } catch (Status s) {
+        responder.fail(item, s.statusCode, s.message);
+      } catch (Exception ex) {
+        log.error("Failed to process request {}", item.getRequest(), ex);
+        responder.fail(item, 500, ex.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Read chunk of get requests by single {@link RandomAccessReader#multiGet} per attribute, so that
+   * storages able to fetch multiple values at once are not queried for each request separately.
+   */
+  private void readGets(
+      RandomAccessReader reader,
+      List<BatchItem<Rpc.GetRequest, Rpc.GetResponse>> items,
+      Responder<Rpc.GetRequest, Rpc.GetResponse> responder) {
+
+    Map<AttributeDescriptor<Object>, List<BatchItem<Rpc.GetRequest, Rpc.GetResponse>>> attributes =
+        new HashMap<>();
+    for (BatchItem<Rpc.GetRequest, Rpc.GetResponse> item : items) {
+      try {
+        attributes
+            .computeIfAbsent(getAttribute(item.getRequest()), tmp -> new ArrayList<>())
+            .add(item);
+      } catch (Status s) {
+        responder.fail(item, s.statusCode, s.message);
+      }
+    }
+    attributes.forEach(
+        (attribute, attributeItems) -> {
+          List<Optional<KeyValue<Object>>> values;
+          try {
+            values =
+                reader.multiGet(
+                    attributeItems
+                        .stream()
+                        .map(i -> Pair.of(i.getRequest().getKey(), i.getRequest().getAttribute()))
+                        .collect(Collectors.toList()),
+                    attribute);
+          } catch (Exception ex) {
+            log.error("Failed to read {} requests of {}", attributeItems.size(), attribute, ex);
+            attributeItems.forEach(item -> responder.fail(item, 500, ex.getMessage()));
+            return;
+          }
+          for (int i = 0; i < attributeItems.size(); i++) {
+            BatchItem<Rpc.GetRequest, Rpc.GetResponse> item = attributeItems.get(i);
+            Optional<KeyValue<Object>> kv = values.get(i);
+            if (kv.isPresent()) {
+              responder.ok(item, getResponse(kv.get()));
+            } else {
+              Status s = notFound(item.getRequest());
+              responder.fail(item, s.statusCode, s.message);
+            }
+          }
+        });
+  }
+
+  /**
+   * Read using asynchronous reader of the attribute, or using reader of the pool of the attribute
+   * in the executor, if the storage has no asynchronous client. The read holds permit of the
+   * storage until completed, reads exceeding the permits wait in queue without blocking the calling
+   * thread, reads exceeding the queue are rejected.
+   */
+  private <T> CompletableFuture<T> readAsync(
+      AttributeDescriptor<?> attr,
+      UnaryFunction<AsyncRandomAccessReader, CompletableFuture<T>> read,
+      Read<T> blockingRead)
+      throws Status {
+
+    AsyncFamilyReader family = asyncReaderMap.get(attr);
+    if (family == null) {
+      return readBlocking(getReaderPool(attr), blockingRead);
+    }
+    ReadPermits permits = family.getPermits();
+    CompletableFuture<T> ret = new CompletableFuture<>();
+    boolean accepted =
+        permits.acquire(
+            () -> {
+              final CompletableFuture<T> result;
+              try {
+                result = read.apply(family.getReader());
+              } catch (Throwable err) {
+                permits.release();
+                ret.completeExceptionally(err);
+                return;
+              }
+              result.whenComplete(
+                  (value, err) -> {
+                    permits.release();
+                    if (err != null) {
+                      ret.completeExceptionally(err);
+                    } else {
+                      ret.complete(value);
+                    }
+                  });
+            });
+    if (!accepted) {
+      throw rejected();
+    }
+    return ret;
+  }
+
+  private <T> CompletableFuture<T> readBlocking(ReaderPool pool, Read<T> read) throws Status {
+    CompletableFuture<T> ret = new CompletableFuture<>();
+    boolean accepted =
+        pool.acquire(
+            reader ->
+                execute(
+                    () -> {
+                      try {
+                        ret.complete(read.apply(reader));
+                      } catch (Throwable err) {
+                        ret.completeExceptionally(err);
+                      } finally {
+                        pool.release(reader);
+                      }
+                    },
+                    reader,
+                    pool,
+                    ret::completeExceptionally));
+    if (!accepted) {
+      throw rejected();
+    }
+    return ret;
+  }
+
+  /** Execute read holding reader of the pool, releasing the reader if the read cannot be run. */
+  private void execute(
+      Runnable read, RandomAccessReader reader, ReaderPool pool, Consumer<Throwable> onFailed) {
+
+    try {
+      executor.execute(read);
+    } catch (RuntimeException ex) {
+      pool.release(reader);
+      onFailed.accept(ex);
+    }
+  }
+
+  private static Throwable unwrap(Throwable err) {
+    return err instanceof CompletionException && err.getCause() != null ? err.getCause() : err;
+  }
+
+  private ReaderPool getReaderPool(AttributeDescriptor<?> attr) throws Status {
+    ReaderPool pool = readerMap.get(attr);
+    if (pool == null) {
+      throw new Status(400, "Attribute " + attr + " has no random access family");
+    }
+    return pool;
+  }
+
+  private static Status rejected() {
+    Metrics.READS_REJECTED.increment();
+    return new Status(503, "Too many concurrent reads, try again later");
   }
 
   private static void logStatus(String name, MessageOrBuilder request, int status, String message) {
@@ -16,31 +16,21 @@
 package cz.o2.proxima.server.metrics;
 
 import cz.o2.proxima.functional.UnaryFunction;
+import cz.o2.proxima.metrics.AbsoluteMetric;
 import cz.o2.proxima.metrics.ApproxPercentileMetric;
 import cz.o2.proxima.metrics.GaugeMetric;
 import cz.o2.proxima.metrics.Metric;
+import cz.o2.proxima.metrics.MetricsRegistry;
 import cz.o2.proxima.metrics.TimeAveragingMetric;
 import cz.o2.proxima.repository.AttributeDescriptor;
-import java.lang.management.ManagementFactory;
 import java.time.Duration;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import javax.management.InstanceAlreadyExistsException;
-import javax.management.MBeanRegistrationException;
-import javax.management.MBeanServer;
-import javax.management.MalformedObjectNameException;
-import javax.management.NotCompliantMBeanException;
-import javax.management.ObjectName;
-import lombok.extern.slf4j.Slf4j;
 
 /** Metrics related to the ingest server. */
-@Slf4j
 public class Metrics {
 
-  private static final MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
-  private static final Map<String, Metric<?>> EXISTING_METRICS = new ConcurrentHashMap<>();
   public static final String GROUP = "cz.o2.proxima.server";
 
   public static final TimeAveragingMetric INGEST_SINGLE =
@@ -68,6 +58,15 @@ public class Metrics {
   public static final TimeAveragingMetric LIST_REQUESTS =
       getOrCreate("list-requests", name -> TimeAveragingMetric.of(GROUP, name, 1_000));
 
+  public static final TimeAveragingMetric MULTI_GET_REQUESTS =
+      getOrCreate("multi-get-requests", name -> TimeAveragingMetric.of(GROUP, name, 1_000));
+
+  public static final TimeAveragingMetric MULTI_LIST_REQUESTS =
+      getOrCreate("multi-list-requests", name -> TimeAveragingMetric.of(GROUP, name, 1_000));
+
+  public static final TimeAveragingMetric READS_REJECTED =
+      getOrCreate("reads-rejected", name -> TimeAveragingMetric.of(GROUP, name, 1_000));
+
   public static final TimeAveragingMetric UPDATE_REQUESTS =
       getOrCreate("update-requests", name -> TimeAveragingMetric.of(GROUP, name, 1_000));
 
@@ -92,6 +91,15 @@ public class Metrics {
   public static final TimeAveragingMetric INVALID_REQUEST =
       getOrCreate("invalid-request", name -> TimeAveragingMetric.of(GROUP, name, 1_000));
 
+  public static final AbsoluteMetric INFLIGHT_INGESTS =
+      getOrCreate("inflight-ingests", name -> AbsoluteMetric.of(GROUP, name));
+
+  public static final AbsoluteMetric STALLED_STREAMS =
+      getOrCreate("stalled-streams", name -> AbsoluteMetric.of(GROUP, name));
+
+  public static final TimeAveragingMetric STREAM_STALLS =
+      getOrCreate("stream-stalls", name -> TimeAveragingMetric.of(GROUP, name, 1_000));
+
   public static final GaugeMetric LIVENESS =
       getOrCreate("liveness", name -> GaugeMetric.of(GROUP, name));
 
@@ -171,36 +179,14 @@ public class Metrics {
     }
   }
 
-  @SuppressWarnings("unchecked")
-  public static <T, M extends Metric<T>> M getOrCreate(
-      String name, UnaryFunction<String, M> factory) {
-    return (M)
-        EXISTING_METRICS.computeIfAbsent(
-            name,
-            tmp -> {
-              M metric = factory.apply(name);
-              registerWithMBeanServer(metric, mbs);
-              return metric;
-            });
-  }
-
   /**
-   * Register this metric with {@link MBeanServer}.
+   * Retrieve existing or create new metric of the ingest server.
    *
-   * @param mbs the MBeanServer
+   * @see MetricsRegistry#getOrCreate
    */
-  private static void registerWithMBeanServer(Metric<?> m, MBeanServer mbs) {
-    try {
-      ObjectName mxbeanName =
-          new ObjectName(
-              m.getGroup() + "." + m.getName() + ":type=" + m.getClass().getSimpleName());
-      mbs.registerMBean(m, mxbeanName);
-    } catch (InstanceAlreadyExistsException
-        | MBeanRegistrationException
-        | NotCompliantMBeanException
-        | MalformedObjectNameException ex) {
-      log.warn("Failed to register metric {} with MBeanServer", m, ex);
-    }
+  public static <T, M extends Metric<T>> M getOrCreate(
+      String name, UnaryFunction<String, M> factory) {
+    return MetricsRegistry.getOrCreate(GROUP, name, factory);
   }
 
   private Metrics() {
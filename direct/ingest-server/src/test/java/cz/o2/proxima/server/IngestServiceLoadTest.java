@@ -0,0 +1,157 @@
+/**
+ * Copyright 2017-2020 O2 Czech Republic, a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.o2.proxima.server;
+
+import static org.junit.Assert.*;
+
+import com.google.protobuf.ByteString;
+import com.typesafe.config.ConfigFactory;
+import cz.o2.proxima.proto.service.IngestServiceGrpc;
+import cz.o2.proxima.proto.service.Rpc;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Load test of bulk ingest through in-process gRPC channel. Reports throughput and latency
+ * percentiles of acknowledgements of ingests.
+ */
+@Slf4j
+public class IngestServiceLoadTest {
+
+  private static final int NUM_BULKS = 200;
+  private static final int BULK_SIZE = 100;
+
+  private final String serverName = "load test of " + getClass().getName();
+
+  private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+  private IngestServer server;
+  private Server grpcServer;
+  private ManagedChannel channel;
+
+  @Before
+  public void setUp() throws IOException {
+    server =
+        new IngestServer(
+            ConfigFactory.load().withFallback(ConfigFactory.load("test-reference.conf")).resolve(),
+            true);
+    grpcServer =
+        InProcessServerBuilder.forName(serverName)
+            .executor(executor)
+            .addService(new IngestService(server.repo, server.direct, server.scheduler))
+            .build()
+            .start();
+    channel = InProcessChannelBuilder.forName(serverName).build();
+  }
+
+  @After
+  public void tearDown() throws InterruptedException {
+    channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+    grpcServer.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+    executor.shutdownNow();
+  }
+
+  @Test(timeout = 60000)
+  public void testBulkIngestThroughputAndLatency() throws InterruptedException {
+    int total = NUM_BULKS * BULK_SIZE;
+    Map<String, Long> sentNanos = new ConcurrentHashMap<>();
+    long[] latencies = new long[total];
+    AtomicInteger received = new AtomicInteger();
+    AtomicInteger failed = new AtomicInteger();
+    CountDownLatch completed = new CountDownLatch(1);
+
+    StreamObserver<Rpc.IngestBulk> requests =
+        IngestServiceGrpc.newStub(channel)
+            .ingestBulk(
+                new StreamObserver<Rpc.StatusBulk>() {
+
+                  @Override
+                  public void onNext(Rpc.StatusBulk bulk) {
+                    long now = System.nanoTime();
+                    for (Rpc.Status status : bulk.getStatusList()) {
+                      if (status.getStatus() != 200) {
+                        failed.incrementAndGet();
+                      }
+                      Long sent = sentNanos.remove(status.getUuid());
+                      if (sent != null) {
+                        latencies[received.getAndIncrement()] = now - sent;
+                      }
+                    }
+                  }
+
+                  @Override
+                  public void onError(Throwable error) {
+                    log.error("Error in load test", error);
+                    completed.countDown();
+                  }
+
+                  @Override
+                  public void onCompleted() {
+                    completed.countDown();
+                  }
+                });
+
+    long startNanos = System.nanoTime();
+    for (int i = 0; i < NUM_BULKS; i++) {
+      Rpc.IngestBulk.Builder bulk = Rpc.IngestBulk.newBuilder();
+      for (int j = 0; j < BULK_SIZE; j++) {
+        String uuid = i + "-" + j;
+        bulk.addIngest(
+            Rpc.Ingest.newBuilder()
+                .setEntity("dummy")
+                .setAttribute("data")
+                .setUuid(uuid)
+                .setKey("key" + j)
+                .setValue(ByteString.EMPTY)
+                .build());
+        sentNanos.put(uuid, System.nanoTime());
+      }
+      requests.onNext(bulk.build());
+    }
+    requests.onCompleted();
+    completed.await();
+    long durationNanos = System.nanoTime() - startNanos;
+
+    assertEquals(total, received.get());
+    assertEquals(0, failed.get());
+    assertTrue(sentNanos.isEmpty());
+    Arrays.sort(latencies);
+    log.info(
+        "Ingested {} elements in {} ms ({} per second), latency p50 {} us, p99 {} us, max {} us",
+        total,
+        TimeUnit.NANOSECONDS.toMillis(durationNanos),
+        total * 1_000_000_000L / durationNanos,
+        TimeUnit.NANOSECONDS.toMicros(latencies[total / 2]),
+        TimeUnit.NANOSECONDS.toMicros(latencies[total * 99 / 100]),
+        TimeUnit.NANOSECONDS.toMicros(latencies[total - 1]));
+  }
+}
@@ -19,21 +19,34 @@ import static org.junit.Assert.*;
 
 import com.google.protobuf.ByteString;
 import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigValueFactory;
 import cz.o2.proxima.direct.storage.InMemBulkStorage;
 import cz.o2.proxima.direct.storage.InMemStorage;
 import cz.o2.proxima.proto.service.Rpc;
 import cz.o2.proxima.repository.Repository;
 import cz.o2.proxima.scheme.proto.test.Scheme;
+import cz.o2.proxima.server.metrics.Metrics;
 import cz.o2.proxima.server.test.Test.ExtendedMessage;
 import cz.o2.proxima.util.Pair;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -262,6 +275,276 @@ public class IngestServiceTest {
     assertEquals(412, status.getStatus());
   }
 
+  @Test(timeout = 10000)
+  public void testIngestBulkFlowControl() throws InterruptedException {
+    AtomicBoolean autoFlowControl = new AtomicBoolean(true);
+    AtomicInteger requested = new AtomicInteger();
+    StreamObserver<Rpc.IngestBulk> result =
+        ingest.ingestBulk(
+            new ServerCallStreamObserver<Rpc.StatusBulk>() {
+
+              @Override
+              public boolean isCancelled() {
+                return false;
+              }
+
+              @Override
+              public void setOnCancelHandler(Runnable onCancelHandler) {}
+
+              @Override
+              public void setCompression(String compression) {}
+
+              @Override
+              public boolean isReady() {
+                return true;
+              }
+
+              @Override
+              public void setOnReadyHandler(Runnable onReadyHandler) {}
+
+              @Override
+              public void disableAutoInboundFlowControl() {
+                autoFlowControl.set(false);
+              }
+
+              @Override
+              public void request(int count) {
+                requested.addAndGet(count);
+              }
+
+              @Override
+              public void setMessageCompression(boolean enable) {}
+
+              @Override
+              public void onNext(Rpc.StatusBulk value) {
+                responseObserver.onNext(value);
+              }
+
+              @Override
+              public void onError(Throwable t) {
+                responseObserver.onError(t);
+              }
+
+              @Override
+              public void onCompleted() {
+                responseObserver.onCompleted();
+              }
+            });
+    assertFalse(autoFlowControl.get());
+    assertEquals(1, requested.get());
+    for (int i = 0; i < 3; i++) {
+      result.onNext(
+          bulk(
+              Rpc.Ingest.newBuilder()
+                  .setEntity("dummy")
+                  .setAttribute("data")
+                  .setUuid(UUID.randomUUID().toString())
+                  .setKey("my-dummy-entity")
+                  .setValue(ByteString.EMPTY)
+                  .build()));
+    }
+    // writes are confirmed synchronously, so next bulk is requested after each bulk
+    assertEquals(4, requested.get());
+    result.onCompleted();
+    latch.await();
+    assertEquals(3, responses.size());
+  }
+
+  @Test(timeout = 10000)
+  public void testIngestBulkStalledWhenNotReady() throws InterruptedException {
+    AtomicBoolean ready = new AtomicBoolean(true);
+    AtomicReference<Runnable> onReady = new AtomicReference<>();
+    AtomicInteger requested = new AtomicInteger();
+    StreamObserver<Rpc.IngestBulk> result =
+        ingest.ingestBulk(
+            new ServerCallStreamObserver<Rpc.StatusBulk>() {
+
+              @Override
+              public boolean isCancelled() {
+                return false;
+              }
+
+              @Override
+              public void setOnCancelHandler(Runnable onCancelHandler) {}
+
+              @Override
+              public void setCompression(String compression) {}
+
+              @Override
+              public boolean isReady() {
+                return ready.get();
+              }
+
+              @Override
+              public void setOnReadyHandler(Runnable onReadyHandler) {
+                onReady.set(onReadyHandler);
+              }
+
+              @Override
+              public void disableAutoInboundFlowControl() {}
+
+              @Override
+              public void request(int count) {
+                requested.addAndGet(count);
+              }
+
+              @Override
+              public void setMessageCompression(boolean enable) {}
+
+              @Override
+              public void onNext(Rpc.StatusBulk value) {
+                responseObserver.onNext(value);
+              }
+
+              @Override
+              public void onError(Throwable t) {
+                responseObserver.onError(t);
+              }
+
+              @Override
+              public void onCompleted() {
+                responseObserver.onCompleted();
+              }
+            });
+    assertNotNull(onReady.get());
+    assertEquals(1, requested.get());
+    double stalledBefore = Metrics.STALLED_STREAMS.getValue();
+    ready.set(false);
+    result.onNext(bulk(validIngest()));
+    // the client does not receive statuses, so no more bulks are requested
+    assertEquals(1, requested.get());
+    assertEquals(stalledBefore + 1, Metrics.STALLED_STREAMS.getValue(), 0.0001);
+    ready.set(true);
+    onReady.get().run();
+    assertEquals(2, requested.get());
+    assertEquals(stalledBefore, Metrics.STALLED_STREAMS.getValue(), 0.0001);
+    result.onNext(bulk(validIngest()));
+    assertEquals(3, requested.get());
+    result.onCompleted();
+    latch.await();
+    assertEquals(2, responses.size());
+  }
+
+  @Test(timeout = 10000)
+  public void testIngestBulkFlushBySize() {
+    ManualScheduler scheduler = new ManualScheduler();
+    ingest = bulkFlushingService(scheduler, 2, 3_600_000L);
+    List<Rpc.StatusBulk> bulks = new ArrayList<>();
+    StreamObserver<Rpc.IngestBulk> result = ingest.ingestBulk(collecting(bulks));
+    result.onNext(bulk(validIngest()));
+    // single status waits for the flush latency
+    assertTrue(scheduler.executed.isEmpty());
+    assertEquals(1, scheduler.scheduled.size());
+    result.onNext(bulk(validIngest()));
+    assertEquals(1, scheduler.executed.size());
+    assertTrue(bulks.isEmpty());
+    scheduler.runExecuted();
+    assertEquals(1, bulks.size());
+    assertEquals(2, bulks.get(0).getStatusCount());
+    // the latency flush has nothing left to send
+    scheduler.runScheduled();
+    scheduler.runExecuted();
+    assertEquals(1, bulks.size());
+    scheduler.shutdownNow();
+  }
+
+  @Test(timeout = 10000)
+  public void testIngestBulkFlushByLatency() {
+    ManualScheduler scheduler = new ManualScheduler();
+    ingest = bulkFlushingService(scheduler, 10, 50L);
+    List<Rpc.StatusBulk> bulks = new ArrayList<>();
+    StreamObserver<Rpc.IngestBulk> result = ingest.ingestBulk(collecting(bulks));
+    result.onNext(bulk(validIngest()));
+    result.onNext(bulk(validIngest()));
+    assertTrue(scheduler.executed.isEmpty());
+    // single flush is scheduled for both statuses
+    assertEquals(Collections.singletonList(50L), scheduler.delays);
+    scheduler.runScheduled();
+    assertTrue(bulks.isEmpty());
+    scheduler.runExecuted();
+    assertEquals(1, bulks.size());
+    assertEquals(2, bulks.get(0).getStatusCount());
+    scheduler.shutdownNow();
+  }
+
+  /** Scheduler collecting tasks to be run by the test. */
+  private static class ManualScheduler extends ScheduledThreadPoolExecutor {
+
+    final List<Runnable> executed = new ArrayList<>();
+    final List<Runnable> scheduled = new ArrayList<>();
+    final List<Long> delays = new ArrayList<>();
+
+    ManualScheduler() {
+      super(1);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+      executed.add(command);
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+      scheduled.add(command);
+      delays.add(unit.toMillis(delay));
+      return null;
+    }
+
+    void runExecuted() {
+      run(executed);
+    }
+
+    void runScheduled() {
+      run(scheduled);
+    }
+
+    private static void run(List<Runnable> tasks) {
+      List<Runnable> toRun = new ArrayList<>(tasks);
+      tasks.clear();
+      toRun.forEach(Runnable::run);
+    }
+  }
+
+  private IngestService bulkFlushingService(
+      ScheduledExecutorService scheduler, int flushSize, long flushLatencyMs) {
+
+    return new IngestService(
+        server.repo,
+        server.direct,
+        scheduler,
+        ConfigFactory.empty()
+            .withValue(Constants.CFG_BULK_FLUSH_SIZE, ConfigValueFactory.fromAnyRef(flushSize))
+            .withValue(
+                Constants.CFG_BULK_FLUSH_LATENCY_MS,
+                ConfigValueFactory.fromAnyRef(flushLatencyMs)));
+  }
+
+  private static StreamObserver<Rpc.StatusBulk> collecting(List<Rpc.StatusBulk> bulks) {
+    return new StreamObserver<Rpc.StatusBulk>() {
+
+      @Override
+      public void onNext(Rpc.StatusBulk value) {
+        bulks.add(value);
+      }
+
+      @Override
+      public void onError(Throwable t) {}
+
+      @Override
+      public void onCompleted() {}
+    };
+  }
+
+  private static Rpc.Ingest validIngest() {
+    return Rpc.Ingest.newBuilder()
+        .setEntity("dummy")
+        .setAttribute("data")
+        .setUuid(UUID.randomUUID().toString())
+        .setKey("my-dummy-entity")
+        .setValue(ByteString.EMPTY)
+        .build();
+  }
+
   private Rpc.IngestBulk bulk(Rpc.Ingest... ingests) {
     Rpc.IngestBulk.Builder ret = Rpc.IngestBulk.newBuilder();
     for (Rpc.Ingest ingest : ingests) {
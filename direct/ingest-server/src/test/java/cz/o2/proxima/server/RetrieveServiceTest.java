@@ -17,6 +17,7 @@ package cz.o2.proxima.server;
 
 import static org.junit.Assert.*;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.typesafe.config.ConfigFactory;
 import cz.o2.proxima.proto.service.Rpc;
@@ -26,8 +27,12 @@ import cz.o2.proxima.server.test.Test.ExtendedMessage;
 import cz.o2.proxima.storage.StreamElement;
 import io.grpc.stub.StreamObserver;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
 import org.junit.Before;
 import org.junit.Test;
@@ -173,6 +178,390 @@ public class RetrieveServiceTest {
     assertArrayEquals(new byte[] {1, 2, 3}, response.getValue().toByteArray());
   }
 
+  @Test(timeout = 20000)
+  public void testGetConcurrent() throws InterruptedException {
+    EntityDescriptor entity = server.repo.getEntity("dummy");
+    AttributeDescriptor<?> attribute = entity.getAttribute("data");
+    String key = "my-fancy-entity-key";
+    server
+        .direct
+        .getWriter(attribute)
+        .get()
+        .write(
+            StreamElement.upsert(
+                entity,
+                attribute,
+                UUID.randomUUID().toString(),
+                key,
+                attribute.getName(),
+                System.currentTimeMillis(),
+                new byte[] {1, 2, 3}),
+            (s, err) -> {});
+    Rpc.GetRequest request =
+        Rpc.GetRequest.newBuilder()
+            .setEntity(entity.getName())
+            .setAttribute(attribute.getName())
+            .setKey(key)
+            .build();
+
+    int numThreads = 8;
+    int numRequests = 100;
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    List<Rpc.GetResponse> responses = Collections.synchronizedList(new ArrayList<>());
+    CountDownLatch finished = new CountDownLatch(numThreads * numRequests);
+    for (int i = 0; i < numThreads; i++) {
+      executor.execute(
+          () -> {
+            for (int j = 0; j < numRequests; j++) {
+              retrieve.get(
+                  request,
+                  new StreamObserver<Rpc.GetResponse>() {
+                    @Override
+                    public void onNext(Rpc.GetResponse res) {
+                      responses.add(res);
+                    }
+
+                    @Override
+                    public void onError(Throwable thrwbl) {
+                      throw new RuntimeException(thrwbl);
+                    }
+
+                    @Override
+                    public void onCompleted() {
+                      finished.countDown();
+                    }
+                  });
+            }
+          });
+    }
+    finished.await();
+    executor.shutdown();
+
+    assertEquals(numThreads * numRequests, responses.size());
+    for (Rpc.GetResponse response : responses) {
+      assertEquals(response.getStatusMessage(), 200, response.getStatus());
+      assertArrayEquals(new byte[] {1, 2, 3}, response.getValue().toByteArray());
+    }
+  }
+
+  @Test(timeout = 20000)
+  public void testGetAsync() throws InterruptedException {
+    EntityDescriptor entity = server.repo.getEntity("dummy");
+    AttributeDescriptor<?> attribute = entity.getAttribute("data");
+    String key = "my-fancy-entity-key";
+    server
+        .direct
+        .getWriter(attribute)
+        .get()
+        .write(
+            StreamElement.upsert(
+                entity,
+                attribute,
+                UUID.randomUUID().toString(),
+                key,
+                attribute.getName(),
+                System.currentTimeMillis(),
+                new byte[] {1, 2, 3}),
+            (s, err) -> {});
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    retrieve = new RetrieveService(server.repo, server.direct, ConfigFactory.empty(), executor);
+    Rpc.GetRequest request =
+        Rpc.GetRequest.newBuilder()
+            .setEntity(entity.getName())
+            .setAttribute(attribute.getName())
+            .setKey(key)
+            .build();
+    List<Rpc.GetResponse> responses = Collections.synchronizedList(new ArrayList<>());
+    List<Thread> threads = Collections.synchronizedList(new ArrayList<>());
+    CountDownLatch finished = new CountDownLatch(1);
+    retrieve.get(
+        request,
+        new StreamObserver<Rpc.GetResponse>() {
+          @Override
+          public void onNext(Rpc.GetResponse res) {
+            responses.add(res);
+            threads.add(Thread.currentThread());
+          }
+
+          @Override
+          public void onError(Throwable thrwbl) {
+            throw new RuntimeException(thrwbl);
+          }
+
+          @Override
+          public void onCompleted() {
+            finished.countDown();
+          }
+        });
+
+    finished.await();
+    executor.shutdownNow();
+    assertEquals(1, responses.size());
+    assertEquals(200, responses.get(0).getStatus());
+    assertArrayEquals(new byte[] {1, 2, 3}, responses.get(0).getValue().toByteArray());
+    // the blocking read was executed by the executor, not by the calling thread
+    assertNotEquals(Thread.currentThread(), threads.get(0));
+  }
+
+  @Test
+  public void testGetRejectedWhenConcurrencyExhausted() {
+    retrieve =
+        new RetrieveService(
+            server.repo,
+            server.direct,
+            ConfigFactory.parseMap(
+                ImmutableMap.of(
+                    Constants.CFG_RETRIEVE_MAX_CONCURRENCY + ".default",
+                    0,
+                    Constants.CFG_RETRIEVE_MAX_QUEUED + ".default",
+                    0)));
+    Rpc.GetRequest request =
+        Rpc.GetRequest.newBuilder()
+            .setEntity("dummy")
+            .setAttribute("data")
+            .setKey("some-key")
+            .build();
+    List<Rpc.GetResponse> responses = new ArrayList<>();
+    retrieve.get(
+        request,
+        new StreamObserver<Rpc.GetResponse>() {
+          @Override
+          public void onNext(Rpc.GetResponse res) {
+            responses.add(res);
+          }
+
+          @Override
+          public void onError(Throwable thrwbl) {
+            throw new RuntimeException(thrwbl);
+          }
+
+          @Override
+          public void onCompleted() {}
+        });
+
+    assertEquals(1, responses.size());
+    assertEquals(503, responses.get(0).getStatus());
+  }
+
+  @Test
+  public void testGetQueuedWhenConcurrencyExhausted() {
+    EntityDescriptor entity = server.repo.getEntity("dummy");
+    AttributeDescriptor<?> attribute = entity.getAttribute("data");
+    server
+        .direct
+        .getWriter(attribute)
+        .get()
+        .write(
+            StreamElement.upsert(
+                entity,
+                attribute,
+                UUID.randomUUID().toString(),
+                "key",
+                attribute.getName(),
+                System.currentTimeMillis(),
+                new byte[] {1, 2, 3}),
+            (s, err) -> {});
+    List<Runnable> tasks = new ArrayList<>();
+    retrieve =
+        new RetrieveService(
+            server.repo,
+            server.direct,
+            ConfigFactory.parseMap(
+                ImmutableMap.of(
+                    Constants.CFG_RETRIEVE_MAX_CONCURRENCY + ".default",
+                    1,
+                    Constants.CFG_RETRIEVE_MAX_QUEUED + ".default",
+                    1)),
+            tasks::add);
+    Rpc.GetRequest request =
+        Rpc.GetRequest.newBuilder()
+            .setEntity(entity.getName())
+            .setAttribute(attribute.getName())
+            .setKey("key")
+            .build();
+    List<Rpc.GetResponse> responses = new ArrayList<>();
+    StreamObserver<Rpc.GetResponse> observer =
+        new StreamObserver<Rpc.GetResponse>() {
+          @Override
+          public void onNext(Rpc.GetResponse res) {
+            responses.add(res);
+          }
+
+          @Override
+          public void onError(Throwable thrwbl) {
+            throw new RuntimeException(thrwbl);
+          }
+
+          @Override
+          public void onCompleted() {}
+        };
+    // first read holds the permit, second waits for it and third is rejected
+    retrieve.get(request, observer);
+    retrieve.get(request, observer);
+    retrieve.get(request, observer);
+    assertEquals(1, tasks.size());
+    assertEquals(1, responses.size());
+    assertEquals(503, responses.get(0).getStatus());
+    tasks.remove(0).run();
+    assertEquals(1, tasks.size());
+    tasks.remove(0).run();
+    assertEquals(3, responses.size());
+    assertEquals(200, responses.get(1).getStatus());
+    assertEquals(200, responses.get(2).getStatus());
+  }
+
+  @Test(timeout = 20000)
+  public void testMultiGet() throws InterruptedException {
+    EntityDescriptor entity = server.repo.getEntity("dummy");
+    AttributeDescriptor<?> data = entity.getAttribute("data");
+    AttributeDescriptor<?> wildcard = entity.getAttribute("wildcard.*");
+    String key = "my-fancy-entity-key";
+    server
+        .direct
+        .getWriter(data)
+        .get()
+        .write(
+            StreamElement.upsert(
+                entity,
+                data,
+                UUID.randomUUID().toString(),
+                key,
+                data.getName(),
+                System.currentTimeMillis(),
+                new byte[] {1, 2, 3}),
+            (s, err) -> {});
+    server
+        .direct
+        .getWriter(wildcard)
+        .get()
+        .write(
+            StreamElement.upsert(
+                entity,
+                wildcard,
+                UUID.randomUUID().toString(),
+                key,
+                "wildcard.1",
+                System.currentTimeMillis(),
+                new byte[] {4}),
+            (s, err) -> {});
+    Rpc.MultiGetRequest request =
+        Rpc.MultiGetRequest.newBuilder()
+            .addGet(
+                Rpc.GetRequest.newBuilder()
+                    .setEntity(entity.getName())
+                    .setAttribute(data.getName())
+                    .setKey(key))
+            .addGet(
+                Rpc.GetRequest.newBuilder()
+                    .setEntity(entity.getName())
+                    .setAttribute("wildcard.1")
+                    .setKey(key))
+            .addGet(
+                Rpc.GetRequest.newBuilder()
+                    .setEntity(entity.getName())
+                    .setAttribute(data.getName())
+                    .setKey("not-existing-key"))
+            .addGet(Rpc.GetRequest.newBuilder().setEntity(entity.getName()))
+            .build();
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    retrieve =
+        new RetrieveService(
+            server.repo,
+            server.direct,
+            ConfigFactory.parseMap(ImmutableMap.of(Constants.CFG_RETRIEVE_BATCH_CHUNK_SIZE, 1)),
+            executor);
+    Rpc.GetResponse[] responses = new Rpc.GetResponse[request.getGetCount()];
+    CountDownLatch finished = new CountDownLatch(1);
+    retrieve.multiGet(
+        request,
+        new StreamObserver<Rpc.MultiGetResponse>() {
+          @Override
+          public void onNext(Rpc.MultiGetResponse res) {
+            assertNull(responses[res.getIndex()]);
+            responses[res.getIndex()] = res.getResponse();
+          }
+
+          @Override
+          public void onError(Throwable thrwbl) {
+            throw new RuntimeException(thrwbl);
+          }
+
+          @Override
+          public void onCompleted() {
+            finished.countDown();
+          }
+        });
+    finished.await();
+    executor.shutdown();
+
+    assertEquals(200, responses[0].getStatus());
+    assertArrayEquals(new byte[] {1, 2, 3}, responses[0].getValue().toByteArray());
+    assertEquals(200, responses[1].getStatus());
+    assertArrayEquals(new byte[] {4}, responses[1].getValue().toByteArray());
+    assertEquals(404, responses[2].getStatus());
+    assertEquals(400, responses[3].getStatus());
+  }
+
+  @Test(timeout = 20000)
+  public void testMultiListAttributes() throws InterruptedException {
+    EntityDescriptor entity = server.repo.getEntity("dummy");
+    AttributeDescriptor<?> wildcard = entity.getAttribute("wildcard.*");
+    for (int i = 0; i < 3; i++) {
+      server
+          .direct
+          .getWriter(wildcard)
+          .get()
+          .write(
+              StreamElement.upsert(
+                  entity,
+                  wildcard,
+                  UUID.randomUUID().toString(),
+                  "key" + i,
+                  "wildcard." + i,
+                  System.currentTimeMillis(),
+                  new byte[] {(byte) i}),
+              (s, err) -> {});
+    }
+    Rpc.MultiListRequest.Builder request = Rpc.MultiListRequest.newBuilder();
+    for (int i = 0; i < 3; i++) {
+      request.addList(
+          Rpc.ListRequest.newBuilder()
+              .setEntity(entity.getName())
+              .setWildcardPrefix("wildcard")
+              .setKey("key" + i));
+    }
+    List<Rpc.MultiListResponse> responses = new ArrayList<>();
+    AtomicBoolean finished = new AtomicBoolean(false);
+    retrieve.multiListAttributes(
+        request.build(),
+        new StreamObserver<Rpc.MultiListResponse>() {
+          @Override
+          public void onNext(Rpc.MultiListResponse res) {
+            responses.add(res);
+          }
+
+          @Override
+          public void onError(Throwable thrwbl) {
+            throw new RuntimeException(thrwbl);
+          }
+
+          @Override
+          public void onCompleted() {
+            finished.set(true);
+          }
+        });
+
+    assertTrue(finished.get());
+    assertEquals(3, responses.size());
+    for (Rpc.MultiListResponse response : responses) {
+      int index = response.getIndex();
+      assertEquals(200, response.getResponse().getStatus());
+      assertEquals(1, response.getResponse().getValueCount());
+      assertEquals("wildcard." + index, response.getResponse().getValue(0).getAttribute());
+    }
+  }
+
   @Test
   public void testGetNotFound() throws InterruptedException {
     final Rpc.GetRequest request =
@@ -18,6 +18,7 @@ package cz.o2.proxima.direct.cassandra;
 import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.Cluster;
 import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Session;
 import com.datastax.driver.core.Statement;
 import com.google.common.annotations.VisibleForTesting;
@@ -53,6 +54,7 @@ public class CassandraDBAccessor extends AbstractStorage implements DataAccessor
   static final String CQL_FACTORY_CFG = "cqlFactory";
   static final String CQL_STRING_CONVERTER = "converter";
   static final String CQL_PARALLEL_SCANS = "scanParallelism";
+  static final String CQL_MULTI_GET_PARALLELISM = "multiGetParallelism";
 
   @Getter(AccessLevel.PACKAGE)
   private final CqlFactory cqlFactory;
@@ -63,6 +65,9 @@ public class CassandraDBAccessor extends AbstractStorage implements DataAccessor
   /** Parallel scans. */
   @Getter(AccessLevel.PACKAGE)
   private final int batchParallelism;
+  /** Maximal number of reads of single multi get in flight. */
+  @Getter(AccessLevel.PACKAGE)
+  private final int multiGetParallelism;
   /** Our cassandra cluster. */
   @Nullable private transient Cluster cluster;
   /** Session we are connected to. */
@@ -89,6 +94,13 @@ public class CassandraDBAccessor extends AbstractStorage implements DataAccessor
           "Batch parallelism must be at least 2, got " + batchParallelism);
     }
 
+    tmp = cfg.get(CQL_MULTI_GET_PARALLELISM);
+    multiGetParallelism = tmp != null ? Integer.parseInt(tmp.toString()) : 32;
+    if (multiGetParallelism < 1) {
+      throw new IllegalArgumentException(
+          "Multi get parallelism must be at least 1, got " + multiGetParallelism);
+    }
+
     tmp = cfg.get(CQL_STRING_CONVERTER);
     StringConverter<String> c = StringConverter.getDefault();
     if (tmp != null) {
@@ -109,6 +121,17 @@ public class CassandraDBAccessor extends AbstractStorage implements DataAccessor
 
   @VisibleForTesting
   ResultSet execute(Statement statement) {
+    logStatement(statement);
+    return session.execute(statement);
+  }
+
+  @VisibleForTesting
+  ResultSetFuture executeAsync(Statement statement) {
+    logStatement(statement);
+    return session.executeAsync(statement);
+  }
+
+  private void logStatement(Statement statement) {
     if (log.isDebugEnabled()) {
       if (statement instanceof BoundStatement) {
         BoundStatement s = (BoundStatement) statement;
@@ -121,7 +144,6 @@ public class CassandraDBAccessor extends AbstractStorage implements DataAccessor
             statement.getOutgoingPayload());
       }
     }
-    return session.execute(statement);
   }
 
   @VisibleForTesting
@@ -17,23 +17,40 @@ package cz.o2.proxima.direct.cassandra;
 
 import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
 import com.datastax.driver.core.Token;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
 import cz.o2.proxima.direct.cassandra.CqlFactory.KvIterable;
+import cz.o2.proxima.direct.randomaccess.AsyncRandomAccessReader;
 import cz.o2.proxima.direct.randomaccess.KeyValue;
 import cz.o2.proxima.direct.randomaccess.RandomAccessReader;
 import cz.o2.proxima.direct.randomaccess.RandomOffset;
 import cz.o2.proxima.functional.Consumer;
+import cz.o2.proxima.functional.UnaryFunction;
 import cz.o2.proxima.repository.AttributeDescriptor;
 import cz.o2.proxima.storage.AbstractStorage;
 import cz.o2.proxima.util.Pair;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import javax.annotation.Nullable;
 import lombok.extern.slf4j.Slf4j;
 
-/** A {@link RandomAccessReader} for Cassandra. */
+/**
+ * A {@link RandomAccessReader} for Cassandra. Statements are created under lock of the reader,
+ * because the {@link CqlFactory} is not thread-safe, but are executed outside of the lock, so that
+ * reads waiting for the storage do not block each other.
+ */
 @Slf4j
 class CassandraRandomReader extends AbstractStorage implements RandomAccessReader {
 
@@ -45,18 +62,57 @@ class CassandraRandomReader extends AbstractStorage implements RandomAccessReade
   }
 
   @Override
-  public synchronized <T> Optional<KeyValue<T>> get(
+  public <T> Optional<KeyValue<T>> get(
       String key, String attribute, AttributeDescriptor<T> desc, long stamp) {
 
-    Session session = accessor.ensureSession();
     BoundStatement statement =
-        accessor.getCqlFactory().getReadStatement(key, attribute, desc, session);
+        createStatement(
+            session -> accessor.getCqlFactory().getReadStatement(key, attribute, desc, session));
     ResultSet result;
     try {
       result = accessor.execute(statement);
     } catch (Exception ex) {
       throw new RuntimeException(ex);
     }
+    return toKeyValue(result, key, attribute, desc);
+  }
+
+  @Override
+  public <T> List<Optional<KeyValue<T>>> multiGet(
+      Collection<Pair<String, String>> keyAttributes, AttributeDescriptor<T> desc, long stamp) {
+
+    int parallelism = accessor.getMultiGetParallelism();
+    List<Pair<String, String>> requests = new ArrayList<>(keyAttributes);
+    // reads are processed in parallel, each completed read is replaced by next one,
+    // so that at most parallelism reads are in flight
+    Deque<ResultSetFuture> inflight = new ArrayDeque<>(parallelism);
+    List<Optional<KeyValue<T>>> ret = new ArrayList<>(requests.size());
+    int issued = 0;
+    try {
+      for (Pair<String, String> keyAttribute : requests) {
+        while (issued < requests.size() && inflight.size() < parallelism) {
+          Pair<String, String> next = requests.get(issued++);
+          BoundStatement statement =
+              createStatement(
+                  session ->
+                      accessor
+                          .getCqlFactory()
+                          .getReadStatement(next.getFirst(), next.getSecond(), desc, session));
+          inflight.add(accessor.executeAsync(statement));
+        }
+        ResultSet result = inflight.poll().getUninterruptibly();
+        ret.add(toKeyValue(result, keyAttribute.getFirst(), keyAttribute.getSecond(), desc));
+      }
+    } catch (Exception ex) {
+      inflight.forEach(f -> f.cancel(true));
+      throw new RuntimeException(ex);
+    }
+    return ret;
+  }
+
+  private <T> Optional<KeyValue<T>> toKeyValue(
+      ResultSet result, String key, String attribute, AttributeDescriptor<T> desc) {
+
     // the row has to have format (value)
     for (Row row : result) {
       ByteBuffer val = row.getBytes(0);
@@ -105,7 +161,7 @@ class CassandraRandomReader extends AbstractStorage implements RandomAccessReade
 
   @Override
   @SuppressWarnings("unchecked")
-  public synchronized <T> void scanWildcard(
+  public <T> void scanWildcard(
       String key,
       AttributeDescriptor<T> wildcard,
       @Nullable RandomOffset offset,
@@ -114,81 +170,106 @@ class CassandraRandomReader extends AbstractStorage implements RandomAccessReade
       Consumer<KeyValue<T>> consumer) {
 
     try {
-      Session session = accessor.ensureSession();
       BoundStatement statement =
-          accessor
-              .getCqlFactory()
-              .getListStatement(key, wildcard, (Offsets.Raw) offset, limit, session);
+          createStatement(
+              session ->
+                  accessor
+                      .getCqlFactory()
+                      .getListStatement(key, wildcard, (Offsets.Raw) offset, limit, session));
 
       ResultSet result = accessor.execute(statement);
-      // the row has to have format (attribute, value)
-      for (Row row : result) {
-        Object attribute = row.getObject(0);
-        ByteBuffer val = row.getBytes(1);
-        if (val != null) {
-          byte[] rowValue = val.array();
-          // by convention
-          String name = wildcard.toAttributePrefix() + accessor.getConverter().asString(attribute);
-
-          Optional<T> parsed = wildcard.getValueSerializer().deserialize(rowValue);
-
-          if (parsed.isPresent()) {
-            consumer.accept(
-                KeyValue.of(
-                    getEntityDescriptor(),
-                    wildcard,
-                    key,
-                    name,
-                    new Offsets.Raw(name),
-                    parsed.get(),
-                    rowValue));
-          } else {
-            log.error("Failed to parse value for key {} attribute {}.{}", key, wildcard, attribute);
-          }
-        }
-      }
+      consumeWildcard(result, key, wildcard, consumer);
     } catch (Exception ex) {
       log.error("Failed to scan wildcard attribute {}", wildcard, ex);
       throw new RuntimeException(ex);
     }
   }
 
+  private <T> void consumeWildcard(
+      ResultSet result,
+      String key,
+      AttributeDescriptor<T> wildcard,
+      Consumer<KeyValue<T>> consumer) {
+
+    // the row has to have format (attribute, value)
+    for (Row row : result) {
+      Object attribute = row.getObject(0);
+      ByteBuffer val = row.getBytes(1);
+      if (val != null) {
+        byte[] rowValue = val.array();
+        // by convention
+        String name = wildcard.toAttributePrefix() + accessor.getConverter().asString(attribute);
+
+        Optional<T> parsed = wildcard.getValueSerializer().deserialize(rowValue);
+
+        if (parsed.isPresent()) {
+          consumer.accept(
+              KeyValue.of(
+                  getEntityDescriptor(),
+                  wildcard,
+                  key,
+                  name,
+                  new Offsets.Raw(name),
+                  parsed.get(),
+                  rowValue));
+        } else {
+          log.error("Failed to parse value for key {} attribute {}.{}", key, wildcard, attribute);
+        }
+      }
+    }
+  }
+
   @Override
-  public synchronized void listEntities(
+  public void listEntities(
       RandomOffset offset, int limit, Consumer<Pair<RandomOffset, String>> consumer) {
 
-    Session session = accessor.ensureSession();
     BoundStatement statement =
-        accessor.getCqlFactory().getListEntitiesStatement((Offsets.Token) offset, limit, session);
+        createStatement(
+            session ->
+                accessor
+                    .getCqlFactory()
+                    .getListEntitiesStatement((Offsets.Token) offset, limit, session));
 
     try {
       ResultSet result = accessor.execute(statement);
-      for (Row row : result) {
-        String key = row.getString(0);
-        Token token = row.getToken(1);
-        consumer.accept(Pair.of(new Offsets.Token((long) token.getValue()), key));
-      }
+      consumeEntities(result, consumer);
     } catch (Exception ex) {
       throw new RuntimeException(ex);
     }
   }
 
+  private static void consumeEntities(
+      ResultSet result, Consumer<Pair<RandomOffset, String>> consumer) {
+
+    for (Row row : result) {
+      String key = row.getString(0);
+      Token token = row.getToken(1);
+      consumer.accept(Pair.of(new Offsets.Token((long) token.getValue()), key));
+    }
+  }
+
+  @Override
+  public Optional<AsyncRandomAccessReader> asAsync() {
+    return Optional.of(new AsyncReader());
+  }
+
   @Override
   public synchronized void close() {
     accessor.close();
   }
 
   @Override
-  public synchronized RandomOffset fetchOffset(Listing type, String key) {
+  public RandomOffset fetchOffset(Listing type, String key) {
     try {
       switch (type) {
         case ATTRIBUTE:
           return new Offsets.Raw(key);
 
         case ENTITY:
-          Session session = accessor.ensureSession();
           ResultSet res =
-              accessor.execute(accessor.getCqlFactory().getFetchTokenStatement(key, session));
+              accessor.execute(
+                  createStatement(
+                      session -> accessor.getCqlFactory().getFetchTokenStatement(key, session)));
           if (res.isExhausted()) {
             return new Offsets.Token(Long.MIN_VALUE);
           }
@@ -201,4 +282,103 @@ class CassandraRandomReader extends AbstractStorage implements RandomAccessReade
       throw new RuntimeException(ex);
     }
   }
+
+  private synchronized <S extends Statement> S createStatement(UnaryFunction<Session, S> factory) {
+    return factory.apply(accessor.ensureSession());
+  }
+
+  /**
+   * {@link AsyncRandomAccessReader} executing statements asynchronously. Statements are created
+   * under lock of the enclosing reader, which is never held while waiting for the storage.
+   */
+  private class AsyncReader implements AsyncRandomAccessReader {
+
+    @Override
+    public RandomOffset fetchOffset(Listing type, String key) {
+      return CassandraRandomReader.this.fetchOffset(type, key);
+    }
+
+    @Override
+    public <T> CompletableFuture<Optional<KeyValue<T>>> get(
+        String key, String attribute, AttributeDescriptor<T> desc, long stamp) {
+
+      return execute(
+          session -> accessor.getCqlFactory().getReadStatement(key, attribute, desc, session),
+          result -> toKeyValue(result, key, attribute, desc));
+    }
+
+    @Override
+    public <T> CompletableFuture<List<KeyValue<T>>> scanWildcard(
+        String key,
+        AttributeDescriptor<T> wildcard,
+        @Nullable RandomOffset offset,
+        long stamp,
+        int limit) {
+
+      return execute(
+          session ->
+              accessor
+                  .getCqlFactory()
+                  .getListStatement(key, wildcard, (Offsets.Raw) offset, limit, session),
+          result -> {
+            List<KeyValue<T>> ret = new ArrayList<>();
+            consumeWildcard(result, key, wildcard, ret::add);
+            return ret;
+          });
+    }
+
+    @Override
+    public CompletableFuture<List<Pair<RandomOffset, String>>> listEntities(
+        @Nullable RandomOffset offset, int limit) {
+
+      return execute(
+          session ->
+              accessor
+                  .getCqlFactory()
+                  .getListEntitiesStatement((Offsets.Token) offset, limit, session),
+          result -> {
+            List<Pair<RandomOffset, String>> ret = new ArrayList<>();
+            consumeEntities(result, ret::add);
+            return ret;
+          });
+    }
+
+    @Override
+    public void close() {
+      // the session is owned by the enclosing reader
+    }
+
+    private <T> CompletableFuture<T> execute(
+        UnaryFunction<Session, Statement> statement, UnaryFunction<ResultSet, T> parse) {
+
+      CompletableFuture<T> ret = new CompletableFuture<>();
+      ResultSetFuture future;
+      try {
+        future = accessor.executeAsync(createStatement(statement));
+      } catch (Exception ex) {
+        ret.completeExceptionally(ex);
+        return ret;
+      }
+      Futures.addCallback(
+          future,
+          new FutureCallback<ResultSet>() {
+
+            @Override
+            public void onSuccess(ResultSet result) {
+              try {
+                ret.complete(parse.apply(result));
+              } catch (Exception ex) {
+                ret.completeExceptionally(ex);
+              }
+            }
+
+            @Override
+            public void onFailure(Throwable err) {
+              ret.completeExceptionally(err);
+            }
+          },
+          MoreExecutors.directExecutor());
+      return ret;
+    }
+  }
 }
@@ -22,12 +22,16 @@ import static org.mockito.Mockito.when;
 import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.Cluster;
 import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
 import com.datastax.driver.core.Statement;
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.Futures;
 import com.typesafe.config.ConfigFactory;
 import cz.o2.proxima.direct.batch.BatchLogObserver;
 import cz.o2.proxima.direct.core.Partition;
+import cz.o2.proxima.direct.randomaccess.AsyncRandomAccessReader;
 import cz.o2.proxima.direct.randomaccess.KeyValue;
 import cz.o2.proxima.direct.randomaccess.RandomAccessReader;
 import cz.o2.proxima.repository.AttributeDescriptor;
@@ -36,6 +40,7 @@ import cz.o2.proxima.repository.ConfigRepository;
 import cz.o2.proxima.repository.EntityDescriptor;
 import cz.o2.proxima.repository.Repository;
 import cz.o2.proxima.storage.StreamElement;
+import cz.o2.proxima.util.Pair;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.ByteBuffer;
@@ -48,7 +53,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import lombok.Getter;
@@ -64,6 +71,11 @@ public class CassandraDBAccessorTest {
 
     @Getter final List<Statement> executed = new ArrayList<>();
 
+    /** Maximal number of futures returned by {@link #executeAsync} and not yet waited for. */
+    @Getter int maxInflight = 0;
+
+    int inflight = 0;
+
     public TestDBAccessor(EntityDescriptor entityDesc, URI uri, Map<String, Object> cfg) {
 
       super(entityDesc, uri, cfg);
@@ -75,6 +87,12 @@ public class CassandraDBAccessorTest {
       return res;
     }
 
+    @Override
+    ResultSetFuture executeAsync(Statement statement) {
+      maxInflight = Math.max(maxInflight, ++inflight);
+      return new CompletedResultSetFuture(execute(statement), () -> inflight--);
+    }
+
     @Override
     Cluster getCluster(URI uri) {
       Cluster ret = mock(Cluster.class);
@@ -83,6 +101,29 @@ public class CassandraDBAccessorTest {
     }
   }
 
+  static final class CompletedResultSetFuture extends AbstractFuture<ResultSet>
+      implements ResultSetFuture {
+
+    private final Runnable onGet;
+
+    CompletedResultSetFuture(ResultSet res, Runnable onGet) {
+      this.onGet = onGet;
+      set(res);
+    }
+
+    @Override
+    public ResultSet getUninterruptibly() {
+      onGet.run();
+      return Futures.getUnchecked(this);
+    }
+
+    @Override
+    public ResultSet getUninterruptibly(long timeout, TimeUnit unit) {
+      onGet.run();
+      return Futures.getUnchecked(this);
+    }
+  }
+
   static final class TestCqlFactory implements CqlFactory {
 
     @Override
@@ -311,6 +352,102 @@ public class CassandraDBAccessorTest {
     assertArrayEquals(payload, (byte[]) value.get().getValue());
   }
 
+  /** Test get of multiple keys. */
+  @Test
+  public void testMultiGetSuccess() {
+    entity = EntityDescriptor.newBuilder().setName("dummy").build();
+
+    byte[] payload = new byte[] {1, 2};
+    Row row = mock(Row.class);
+    when(row.getBytes(0)).thenReturn(ByteBuffer.wrap(payload));
+    List<Row> rows = Collections.singletonList(row);
+
+    ResultSet res = mock(ResultSet.class);
+    when(res.iterator()).thenAnswer(invocation -> rows.iterator());
+
+    TestDBAccessor accessor =
+        new TestDBAccessor(
+            entity, URI.create("cassandra://localhost/"), getCfg(TestCqlFactory.class));
+    RandomAccessReader db = accessor.newRandomReader();
+
+    accessor.setRes(res);
+
+    List<Optional<KeyValue<byte[]>>> values =
+        db.multiGet(Arrays.asList(Pair.of("key1", "dummy"), Pair.of("key2", "dummy")), attr);
+    assertEquals(2, values.size());
+    assertEquals(2, accessor.getExecuted().size());
+    assertEquals("key1", values.get(0).get().getKey());
+    assertEquals("key2", values.get(1).get().getKey());
+    assertArrayEquals(payload, (byte[]) values.get(1).get().getValue());
+  }
+
+  /** Test that multi get keeps limited number of reads in flight. */
+  @Test
+  public void testMultiGetBoundedParallelism() {
+    entity = EntityDescriptor.newBuilder().setName("dummy").build();
+
+    byte[] payload = new byte[] {1, 2};
+    Row row = mock(Row.class);
+    when(row.getBytes(0)).thenReturn(ByteBuffer.wrap(payload));
+    List<Row> rows = Collections.singletonList(row);
+
+    ResultSet res = mock(ResultSet.class);
+    when(res.iterator()).thenAnswer(invocation -> rows.iterator());
+
+    Map<String, Object> cfg = getCfg(TestCqlFactory.class);
+    cfg.put(CassandraDBAccessor.CQL_MULTI_GET_PARALLELISM, 2);
+    TestDBAccessor accessor = new TestDBAccessor(entity, URI.create("cassandra://localhost/"), cfg);
+    RandomAccessReader db = accessor.newRandomReader();
+
+    accessor.setRes(res);
+
+    List<Pair<String, String>> requests = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      requests.add(Pair.of("key" + i, "dummy"));
+    }
+    List<Optional<KeyValue<byte[]>>> values = db.multiGet(requests, attr);
+    assertEquals(5, values.size());
+    assertEquals(5, accessor.getExecuted().size());
+    assertEquals(2, accessor.getMaxInflight());
+    for (int i = 0; i < 5; i++) {
+      assertEquals("key" + i, values.get(i).get().getKey());
+    }
+  }
+
+  /** Test asynchronous get and list of attribute. */
+  @Test
+  public void testAsyncGetAndList() throws InterruptedException, ExecutionException {
+    entity = EntityDescriptor.newBuilder().setName("dummy").build();
+
+    byte[] payload = new byte[] {1, 2};
+    Row row = mock(Row.class);
+    when(row.getObject(0)).thenReturn("1");
+    when(row.getBytes(0)).thenReturn(ByteBuffer.wrap(payload));
+    when(row.getBytes(1)).thenReturn(ByteBuffer.wrap(payload));
+    List<Row> rows = Collections.singletonList(row);
+
+    ResultSet res = mock(ResultSet.class);
+    when(res.iterator()).thenAnswer(invocation -> rows.iterator());
+
+    TestDBAccessor accessor =
+        new TestDBAccessor(
+            entity, URI.create("cassandra://localhost/"), getCfg(TestCqlFactory.class));
+    AsyncRandomAccessReader db = accessor.newRandomReader().asAsync().get();
+
+    accessor.setRes(res);
+
+    Optional<KeyValue<byte[]>> value = db.get("key", "dummy", attr, Long.MAX_VALUE).get();
+    assertTrue(value.isPresent());
+    assertEquals("key", value.get().getKey());
+    assertArrayEquals(payload, (byte[]) value.get().getValue());
+
+    List<KeyValue<byte[]>> listed =
+        db.scanWildcard("key", attrWildcard, null, Long.MAX_VALUE, 10).get();
+    assertEquals(1, listed.size());
+    assertEquals("device.1", listed.get(0).getAttribute());
+    assertEquals(2, accessor.getExecuted().size());
+  }
+
   /** Test failed get does throw exceptions. */
   @Test(expected = RuntimeException.class)
   public void testGetFailed() {
@@ -29,6 +29,9 @@ import cz.o2.proxima.util.Pair;
 import java.io.IOException;
 import java.net.URI;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import lombok.EqualsAndHashCode;
@@ -90,6 +93,33 @@ public class RandomHBaseReader extends HBaseClientWrapper implements RandomAcces
     }
   }
 
+  @Override
+  public <T> List<Optional<KeyValue<T>>> multiGet(
+      Collection<Pair<String, String>> keyAttributes, AttributeDescriptor<T> desc, long stamp) {
+
+    ensureClient();
+    List<Get> gets = new ArrayList<>(keyAttributes.size());
+    for (Pair<String, String> keyAttribute : keyAttributes) {
+      Get get = new Get(keyAttribute.getFirst().getBytes(StandardCharsets.UTF_8));
+      get.addColumn(family, keyAttribute.getSecond().getBytes(StandardCharsets.UTF_8));
+      gets.add(get);
+    }
+    try {
+      Result[] results = client.get(gets);
+      List<Optional<KeyValue<T>>> ret = new ArrayList<>(results.length);
+      int i = 0;
+      for (Pair<String, String> keyAttribute : keyAttributes) {
+        Cell cell =
+            results[i++].getColumnLatestCell(
+                family, keyAttribute.getSecond().getBytes(StandardCharsets.UTF_8));
+        ret.add(Optional.ofNullable(cell == null ? null : kv(desc, cell)));
+      }
+      return ret;
+    } catch (IOException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
   @SuppressWarnings("unchecked")
   @Override
   public <T> void scanWildcard(
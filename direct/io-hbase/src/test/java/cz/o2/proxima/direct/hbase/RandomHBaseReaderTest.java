@@ -18,6 +18,7 @@ package cz.o2.proxima.direct.hbase;
 import static cz.o2.proxima.direct.hbase.HbaseTestUtil.bytes;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import com.typesafe.config.ConfigFactory;
@@ -113,6 +114,28 @@ public class RandomHBaseReaderTest {
     assertEquals(now, res.get().getStamp());
   }
 
+  @Test
+  public void testMultiGet() throws IOException {
+    long now = 1500000000000L;
+    write("key1", "wildcard.1", "value1", now);
+    write("key2", "wildcard.2", "value2", now + 1);
+    List<Optional<KeyValue<byte[]>>> res =
+        reader.multiGet(
+            Arrays.asList(
+                Pair.of("key1", "wildcard.1"),
+                Pair.of("key2", "wildcard.1"),
+                Pair.of("key2", "wildcard.2")),
+            wildcard);
+    assertEquals(3, res.size());
+    assertTrue(res.get(0).isPresent());
+    assertArrayEquals(bytes("value1"), res.get(0).get().getValue());
+    assertFalse(res.get(1).isPresent());
+    assertTrue(res.get(2).isPresent());
+    assertEquals("key2", res.get(2).get().getKey());
+    assertArrayEquals(bytes("value2"), res.get(2).get().getValue());
+    assertEquals(now + 1, res.get(2).get().getStamp());
+  }
+
   @Test
   public void testRandomGetWildcard() throws IOException {
     long now = 1500000000000L;
@@ -0,0 +1,210 @@
+/**
+ * Copyright 2017-2020 O2 Czech Republic, a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.o2.proxima.direct.kafka;
+
+import cz.o2.proxima.functional.BiFunction;
+import cz.o2.proxima.metrics.AbsoluteMetric;
+import cz.o2.proxima.metrics.GaugeMetric;
+import cz.o2.proxima.metrics.MetricsRegistry;
+import cz.o2.proxima.metrics.ScalarMetric;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.TopicPartition;
+
+/**
+ * Commits offsets prepared by {@link ElementConsumer} to kafka. Offsets are collected on each poll
+ * and committed either synchronously or asynchronously, at most once per configured interval unless
+ * the number of uncommitted offsets reaches configured limit. Offsets are always committed
+ * synchronously when partitions are revoked or the consumer is closed.
+ *
+ * <p>All methods have to be called from the polling thread. Kafka calls callbacks of asynchronous
+ * commits on the same thread.
+ */
+@Slf4j
+class CommitFlusher {
+
+  static final String METRICS_GROUP = "kafka-consumer";
+
+  private static final String RECORDS_LAG_MAX = "records-lag-max";
+
+  private final boolean async;
+  private final long intervalMs;
+  private final long maxOffsets;
+  private final GaugeMetric commitLatency;
+  private final GaugeMetric uncommitted;
+  private final GaugeMetric lag;
+  private final AbsoluteMetric failures;
+
+  /** Offsets prepared for commit, but not yet sent to kafka. */
+  private final Map<TopicPartition, OffsetAndMetadata> pending = new HashMap<>();
+
+  /** Last offsets acknowledged by kafka. */
+  private final Map<TopicPartition, Long> committed = new HashMap<>();
+
+  /** Highest offsets sent to kafka, of partitions assigned to the consumer. */
+  private final Map<TopicPartition, Long> sent = new HashMap<>();
+
+  private long pendingOffsets = 0;
+  private long lastCommitMs = System.currentTimeMillis();
+
+  /**
+   * Create the flusher.
+   *
+   * @param metricsPrefix prefix of names of metrics of the consumer
+   * @param async {@code true} to commit asynchronously on each poll
+   * @param intervalMs minimal interval between two commits in milliseconds
+   * @param maxOffsets number of uncommitted offsets that triggers commit regardless of the
+   *     interval, zero to disable
+   */
+  CommitFlusher(String metricsPrefix, boolean async, long intervalMs, long maxOffsets) {
+    this.async = async;
+    this.intervalMs = intervalMs;
+    this.maxOffsets = maxOffsets;
+    this.commitLatency = metric(metricsPrefix, "commit_latency_ms", GaugeMetric::of);
+    this.uncommitted = metric(metricsPrefix, "uncommitted_offsets", GaugeMetric::of);
+    this.lag = metric(metricsPrefix, "records_lag_max", GaugeMetric::of);
+    this.failures = metric(metricsPrefix, "commit_failures", AbsoluteMetric::of);
+  }
+
+  /**
+   * Collect offsets of the consumer and commit them if the commit is due.
+   *
+   * @param kafka the kafka consumer
+   * @param consumer the consumer of elements
+   */
+  void flush(Consumer<?, ?> kafka, ElementConsumer<?, ?> consumer) {
+    collect(consumer.prepareOffsetsForCommit());
+    long now = System.currentTimeMillis();
+    if (!pending.isEmpty()
+        && (now - lastCommitMs >= intervalMs || maxOffsets > 0 && pendingOffsets >= maxOffsets)) {
+      commit(kafka, async);
+      updateLag(kafka);
+    }
+    uncommitted.increment(pendingOffsets);
+  }
+
+  /**
+   * Synchronously commit all offsets collected so far, including offsets of the consumer.
+   *
+   * @param kafka the kafka consumer
+   * @param consumer the consumer of elements
+   */
+  void flushSync(Consumer<?, ?> kafka, ElementConsumer<?, ?> consumer) {
+    collect(consumer.prepareOffsetsForCommit());
+    commit(kafka, false);
+    uncommitted.increment(pendingOffsets);
+  }
+
+  /**
+   * Commit offsets of partitions being revoked and forget their state.
+   *
+   * @param kafka the kafka consumer
+   * @param consumer the consumer of elements
+   * @param revoked the revoked partitions
+   */
+  void onRevoked(
+      Consumer<?, ?> kafka, ElementConsumer<?, ?> consumer, Collection<TopicPartition> revoked) {
+
+    flushSync(kafka, consumer);
+    pending.keySet().removeAll(revoked);
+    committed.keySet().removeAll(revoked);
+    sent.keySet().removeAll(revoked);
+  }
+
+  private void collect(Map<TopicPartition, OffsetAndMetadata> offsets) {
+    for (Map.Entry<TopicPartition, OffsetAndMetadata> e : offsets.entrySet()) {
+      OffsetAndMetadata previous = pending.put(e.getKey(), e.getValue());
+      Long previousOffset =
+          previous != null ? Long.valueOf(previous.offset()) : committed.get(e.getKey());
+      pendingOffsets +=
+          previousOffset != null ? Math.max(0, e.getValue().offset() - previousOffset) : 1;
+    }
+  }
+
+  private void commit(Consumer<?, ?> kafka, boolean commitAsync) {
+    lastCommitMs = System.currentTimeMillis();
+    if (pending.isEmpty()) {
+      return;
+    }
+    Map<TopicPartition, OffsetAndMetadata> toCommit = new HashMap<>(pending);
+    pending.clear();
+    pendingOffsets = 0;
+    toCommit.forEach((tp, offset) -> sent.merge(tp, offset.offset(), Math::max));
+    long startNanos = System.nanoTime();
+    if (commitAsync) {
+      kafka.commitAsync(
+          toCommit,
+          (offsets, exc) -> {
+            if (exc == null) {
+              onCommitted(toCommit, startNanos);
+            } else {
+              onFailed(toCommit, exc);
+            }
+          });
+    } else {
+      kafka.commitSync(toCommit);
+      onCommitted(toCommit, startNanos);
+    }
+  }
+
+  private void onCommitted(Map<TopicPartition, OffsetAndMetadata> offsets, long startNanos) {
+    commitLatency.increment(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+    offsets.forEach((tp, offset) -> committed.merge(tp, offset.offset(), Math::max));
+  }
+
+  private void onFailed(Map<TopicPartition, OffsetAndMetadata> offsets, Exception exc) {
+    log.warn("Failed to commit offsets {}, will retry with next commit", offsets, exc);
+    failures.increment();
+    for (Map.Entry<TopicPartition, OffsetAndMetadata> e : offsets.entrySet()) {
+      // retry only the newest offset sent for partition still assigned, so that a newer commit
+      // in flight or a commit of partition revoked meanwhile is never rolled back
+      Long highestSent = sent.get(e.getKey());
+      OffsetAndMetadata newer = pending.get(e.getKey());
+      if (highestSent != null && highestSent <= e.getValue().offset() && newer == null) {
+        pending.put(e.getKey(), e.getValue());
+        pendingOffsets++;
+      }
+    }
+  }
+
+  private void updateLag(Consumer<?, ?> kafka) {
+    for (Map.Entry<MetricName, ? extends org.apache.kafka.common.Metric> e :
+        kafka.metrics().entrySet()) {
+      if (e.getKey().name().equals(RECORDS_LAG_MAX) && e.getKey().tags().size() == 1) {
+        Object value = e.getValue().metricValue();
+        if (value instanceof Number && !Double.isNaN(((Number) value).doubleValue())) {
+          lag.increment(((Number) value).doubleValue());
+        }
+        return;
+      }
+    }
+  }
+
+  private static <M extends ScalarMetric> M metric(
+      String prefix, String suffix, BiFunction<String, String, M> factory) {
+
+    return MetricsRegistry.getOrCreate(
+        METRICS_GROUP,
+        MetricsRegistry.toJmxCompatibleName(prefix + "_" + suffix),
+        name -> factory.apply(METRICS_GROUP, name));
+  }
+}
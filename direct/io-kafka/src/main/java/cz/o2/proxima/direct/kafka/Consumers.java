@@ -64,6 +64,16 @@ class Consumers {
       return observer().onError(err);
     }
 
+    @Override
+    public long getUnconfirmed(TopicPartition tp) {
+      Long current = processing.get(tp.partition());
+      Long confirmed = committed.get(tp.partition());
+      if (current == null) {
+        return 0;
+      }
+      return Math.max(0, current + 1 - (confirmed == null ? 0 : confirmed));
+    }
+
     @Override
     public void onAssign(KafkaConsumer<K, V> consumer, Collection<TopicOffset> offsets) {
       committed.clear();
@@ -137,6 +147,12 @@ class Consumers {
       return prepareCommit.apply();
     }
 
+    @Override
+    public long getUnconfirmed(TopicPartition tp) {
+      // confirmations can come out of order, so count pending offsets
+      return committer.getPending(tp);
+    }
+
     @Override
     LogObserver observer() {
       return observer;
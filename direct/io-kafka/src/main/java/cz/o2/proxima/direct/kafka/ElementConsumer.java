@@ -62,6 +62,14 @@ interface ElementConsumer<K, V> {
   /** @return list of committed offsets */
   List<TopicOffset> getCommittedOffsets();
 
+  /**
+   * Retrieve number of offsets of given partition passed to the observer but not yet confirmed.
+   *
+   * @param tp the partition
+   * @return number of unconfirmed offsets
+   */
+  long getUnconfirmed(TopicPartition tp);
+
   /** Called when processing finishes. */
   void onCompleted();
 
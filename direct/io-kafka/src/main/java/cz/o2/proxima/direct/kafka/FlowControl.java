@@ -0,0 +1,216 @@
+/**
+ * Copyright 2017-2020 O2 Czech Republic, a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.o2.proxima.direct.kafka;
+
+import cz.o2.proxima.functional.Factory;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.common.TopicPartition;
+
+/**
+ * Flow control of kafka consumer based on {@link Consumer#pause} and {@link Consumer#resume}.
+ * Unlike sleeping in the poll loop, paused consumer keeps polling, so it stays member of its group.
+ *
+ * <p>All assigned partitions are paused while the consumer exceeds maximal rate of bytes or
+ * records. Single partition is paused when number of its offsets not yet confirmed by the observer
+ * reaches configured limit and is resumed when the number drops to half of the limit. When the
+ * observer does not confirm any offset of paused partition within stall timeout, it likely waits
+ * for more data to confirm a batch larger than the limit. The partition is then resumed and it is
+ * not paused again until the observer confirms some of its offsets.
+ *
+ * <p>All methods have to be called from the polling thread.
+ */
+@Slf4j
+class FlowControl {
+
+  @Nullable private final TokenBucket bytes;
+  @Nullable private final TokenBucket records;
+  private final long maxUnconfirmed;
+  private final long stallTimeoutNanos;
+  private final Factory<Long> nanoTime;
+
+  /** Progress of confirmation of offsets of partition paused due to unconfirmed offsets. */
+  private static class Progress {
+
+    /** Lowest number of unconfirmed offsets seen so far. */
+    long unconfirmed;
+
+    /** Time of last decrease of unconfirmed offsets. */
+    long sinceNanos;
+
+    Progress(long unconfirmed, long sinceNanos) {
+      this.unconfirmed = unconfirmed;
+      this.sinceNanos = sinceNanos;
+    }
+  }
+
+  /** Partitions paused due to unconfirmed offsets. */
+  private final Map<TopicPartition, Progress> backPressured = new HashMap<>();
+
+  /**
+   * Partitions resumed because the observer stalled, with highest number of unconfirmed offsets
+   * seen since.
+   */
+  private final Map<TopicPartition, Long> stalled = new HashMap<>();
+
+  /** Partitions paused in last call to {@link #apply}. */
+  private final Set<Integer> paused = new HashSet<>();
+
+  /**
+   * Create the flow control.
+   *
+   * @param maxBytesPerSec maximal number of bytes read per second, {@link Long#MAX_VALUE} if
+   *     unlimited
+   * @param maxRecordsPerSec maximal number of records read per second, {@link Long#MAX_VALUE} if
+   *     unlimited
+   * @param maxUnconfirmed maximal number of unconfirmed offsets of single partition, zero if
+   *     unlimited
+   * @param stallTimeoutMs time in milliseconds after which partition with no confirmed offsets is
+   *     resumed
+   */
+  FlowControl(
+      long maxBytesPerSec, long maxRecordsPerSec, long maxUnconfirmed, long stallTimeoutMs) {
+
+    this(maxBytesPerSec, maxRecordsPerSec, maxUnconfirmed, stallTimeoutMs, System::nanoTime);
+  }
+
+  FlowControl(
+      long maxBytesPerSec,
+      long maxRecordsPerSec,
+      long maxUnconfirmed,
+      long stallTimeoutMs,
+      Factory<Long> nanoTime) {
+
+    this.bytes = maxBytesPerSec < Long.MAX_VALUE ? new TokenBucket(maxBytesPerSec, nanoTime) : null;
+    this.records =
+        maxRecordsPerSec < Long.MAX_VALUE ? new TokenBucket(maxRecordsPerSec, nanoTime) : null;
+    this.maxUnconfirmed = maxUnconfirmed;
+    this.stallTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(stallTimeoutMs);
+    this.nanoTime = nanoTime;
+  }
+
+  /**
+   * Account records that were polled.
+   *
+   * @param numBytes size of polled records
+   * @param numRecords number of polled records
+   */
+  void onPolled(long numBytes, long numRecords) {
+    if (bytes != null) {
+      bytes.consume(numBytes);
+    }
+    if (records != null) {
+      records.consume(numRecords);
+    }
+  }
+
+  /**
+   * Pause and resume partitions of the consumer according to current rate and number of unconfirmed
+   * offsets.
+   *
+   * @param kafka the kafka consumer
+   * @param consumer the consumer of elements
+   */
+  void apply(Consumer<?, ?> kafka, ElementConsumer<?, ?> consumer) {
+    if (bytes == null && records == null && maxUnconfirmed <= 0) {
+      return;
+    }
+    Set<TopicPartition> assignment = kafka.assignment();
+    backPressured.keySet().retainAll(assignment);
+    stalled.keySet().retainAll(assignment);
+    if (maxUnconfirmed > 0) {
+      long now = nanoTime.apply();
+      for (TopicPartition tp : assignment) {
+        applyUnconfirmed(tp, consumer.getUnconfirmed(tp), now);
+      }
+    }
+    boolean rateExceeded =
+        bytes != null && !bytes.isAvailable() || records != null && !records.isAvailable();
+    Set<TopicPartition> toPause = rateExceeded ? assignment : backPressured.keySet();
+    Set<TopicPartition> toResume = new HashSet<>(kafka.paused());
+    toResume.removeAll(toPause);
+    if (!toResume.isEmpty()) {
+      kafka.resume(toResume);
+    }
+    if (!toPause.isEmpty()) {
+      kafka.pause(toPause);
+    }
+    paused.clear();
+    toPause.forEach(tp -> paused.add(tp.partition()));
+  }
+
+  private void applyUnconfirmed(TopicPartition tp, long unconfirmed, long now) {
+    Long stalledUnconfirmed = stalled.get(tp);
+    if (stalledUnconfirmed != null) {
+      if (unconfirmed >= stalledUnconfirmed) {
+        // the observer still waits for more data
+        stalled.put(tp, unconfirmed);
+        return;
+      }
+      stalled.remove(tp);
+    }
+    Progress progress = backPressured.get(tp);
+    if (progress == null) {
+      if (unconfirmed >= maxUnconfirmed) {
+        log.debug("Pausing partition {} with {} unconfirmed offsets", tp, unconfirmed);
+        backPressured.put(tp, new Progress(unconfirmed, now));
+      }
+    } else if (unconfirmed <= maxUnconfirmed / 2) {
+      log.debug("Resuming partition {} with {} unconfirmed offsets", tp, unconfirmed);
+      backPressured.remove(tp);
+    } else if (unconfirmed < progress.unconfirmed) {
+      progress.unconfirmed = unconfirmed;
+      progress.sinceNanos = now;
+    } else if (now - progress.sinceNanos >= stallTimeoutNanos) {
+      log.warn(
+          "Resuming partition {} with {} unconfirmed offsets, because no offset was confirmed "
+              + "within {} ms. The observer might confirm in batches larger than {}.",
+          tp,
+          unconfirmed,
+          TimeUnit.NANOSECONDS.toMillis(stallTimeoutNanos),
+          maxUnconfirmed);
+      backPressured.remove(tp);
+      stalled.put(tp, unconfirmed);
+    }
+  }
+
+  /**
+   * Check if any partition is paused due to unconfirmed offsets. Consumer waiting for the observer
+   * to confirm them is not idle.
+   *
+   * @return {@code true} if some partition was paused due to unconfirmed offsets by last call to
+   *     {@link #apply}
+   */
+  boolean hasBackPressure() {
+    return !backPressured.isEmpty();
+  }
+
+  /**
+   * Check if partition was paused by last call to {@link #apply}.
+   *
+   * @param partition the partition
+   * @return {@code true} if paused
+   */
+  boolean isPaused(int partition) {
+    return paused.contains(partition);
+  }
+}
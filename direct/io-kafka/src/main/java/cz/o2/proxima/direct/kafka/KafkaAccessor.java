@@ -16,6 +16,7 @@
 package cz.o2.proxima.direct.kafka;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.google.common.collect.Iterables;
 import cz.o2.proxima.direct.commitlog.CommitLogReader;
@@ -24,7 +25,6 @@ import cz.o2.proxima.direct.core.Context;
 import cz.o2.proxima.direct.core.DataAccessor;
 import cz.o2.proxima.direct.kafka.KafkaStreamElement.KafkaStreamElementSerializer;
 import cz.o2.proxima.direct.view.CachedView;
-import cz.o2.proxima.direct.view.LocalCachedPartitionedView;
 import cz.o2.proxima.repository.AttributeFamilyDescriptor;
 import cz.o2.proxima.repository.EntityDescriptor;
 import cz.o2.proxima.storage.AbstractStorage;
@@ -37,6 +37,7 @@ import java.util.Collections;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Properties;
+import javax.annotation.Nullable;
 import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
@@ -65,6 +66,21 @@ public class KafkaAccessor extends AbstractStorage implements DataAccessor {
   public static final String SERIALIZER_CLASS = "serializer-class";
   /** Maximal read speed in bytes per second. */
   public static final String MAX_BYTES_PER_SEC = "bytes-per-sec-max";
+  /** Maximal read speed in records per second. */
+  public static final String MAX_RECORDS_PER_SEC = "records-per-sec-max";
+  /**
+   * Maximal number of offsets of single partition passed to observer and not yet confirmed. The
+   * partition is paused when the limit is reached and resumed when half of the offsets is
+   * confirmed. Zero (default) means unlimited.
+   */
+  public static final String MAX_UNCONFIRMED_OFFSETS = "poll.max-unconfirmed-offsets";
+  /**
+   * Time in milliseconds after which partition paused due to {@link #MAX_UNCONFIRMED_OFFSETS} is
+   * resumed, when the observer did not confirm any of its offsets meanwhile. Such observer likely
+   * confirms in batches larger than the limit and waits for more data. The partition is paused
+   * again after the observer confirms some offsets. Defaults to ten seconds.
+   */
+  public static final String UNCONFIRMED_STALL_TIMEOUT_MS = "poll.unconfirmed-stall-timeout-ms";
   /** Allowed timestamp skew between consumer and producer. */
   public static final String TIMESTAMP_SKEW = "timestamp-skew";
   /** Number of records per poll() */
@@ -74,13 +90,54 @@ public class KafkaAccessor extends AbstractStorage implements DataAccessor {
   /** Log stale commit interval in milliseconds. */
   public static final String LOG_STALE_COMMIT_INTERVAL_MS = "commit.log-stale-interval-ms";
 
+  /**
+   * Mode of committing offsets to kafka, either {@code sync} (default) or {@code async}. Offsets
+   * are always committed synchronously when partitions are revoked or the consumer is closed.
+   */
+  public static final String COMMIT_MODE = "commit.mode";
+  /** Minimal interval between two commits in milliseconds, zero (default) commits on each poll. */
+  public static final String COMMIT_INTERVAL_MS = "commit.interval-ms";
+  /** Number of uncommitted offsets that triggers commit before the commit interval elapses. */
+  public static final String COMMIT_MAX_OFFSETS = "commit.max-offsets";
+
   /**
    * Minimal time poll() has to return empty records, before first moving watermark to processing
    * time. This controls time needed to initialize kafka consumer.
    */
   public static final String EMPTY_POLL_TIME = "poll.allowed-empty-before-watermark-move";
 
+  /**
+   * Number of threads decoding polled records in parallel. Zero (default) decodes records on the
+   * polling thread. Records are always delivered to observers on the polling thread in order of
+   * each partition.
+   */
+  public static final String POLL_DECODER_THREADS = "poll.decoder.threads";
+
+  /** Maximal number of records of single partition decoded by single decoder task. */
+  public static final String POLL_DECODER_CHUNK_SIZE = "poll.decoder.chunk-size";
+
+  /** Maximal number of chunks of records decoded ahead of delivery to observer. */
+  public static final String POLL_DECODER_MAX_IN_FLIGHT = "poll.decoder.max-in-flight";
+
+  /**
+   * Treat the topic as compacted, so that tombstones read by cached view remove data from the view.
+   * When not set, cached view reads cleanup policy of the topic on assignment.
+   */
+  public static final String TOPIC_COMPACTED = "topic.compacted";
+
+  /**
+   * Interval in milliseconds of refreshing number of partitions of the topic cached by writer. The
+   * number is refreshed after failed write as well.
+   */
+  public static final String WRITER_PARTITIONS_REFRESH_MS = "writer.partitions-refresh-ms";
+
+  /**
+   * Prefix of options passed to kafka consumer and producer with the prefix removed. Use it to tune
+   * producer batching, e.g. {@code kafka.linger.ms}, {@code kafka.batch.size}, {@code
+   * kafka.compression.type}, {@code kafka.enable.idempotence} or {@code kafka.acks}.
+   */
   public static final String WRITER_CONFIG_PREFIX = "kafka.";
+
   private static final int PRODUCE_CONFIG_PREFIX_LENGTH = WRITER_CONFIG_PREFIX.length();
 
   @Getter private final String topic;
@@ -97,9 +154,24 @@ public class KafkaAccessor extends AbstractStorage implements DataAccessor {
   @Getter(AccessLevel.PACKAGE)
   private long maxBytesPerSec = Long.MAX_VALUE;
 
+  @Getter(AccessLevel.PACKAGE)
+  private long maxRecordsPerSec = Long.MAX_VALUE;
+
+  @Getter(AccessLevel.PACKAGE)
+  private long maxUnconfirmedOffsets = 0;
+
+  @Getter(AccessLevel.PACKAGE)
+  private long unconfirmedStallTimeoutMs = 10_000L;
+
   @Getter(AccessLevel.PACKAGE)
   private long timestampSkew = 100;
 
+  @Getter(AccessLevel.PACKAGE)
+  private long writerPartitionsRefreshMs = 10000;
+
+  /** Value of {@link #TOPIC_COMPACTED}, {@code null} to read cleanup policy of the topic. */
+  @Nullable private Boolean topicCompacted = null;
+
   @Getter(AccessLevel.PACKAGE)
   private int maxPollRecords = 500;
 
@@ -109,6 +181,24 @@ public class KafkaAccessor extends AbstractStorage implements DataAccessor {
   @Getter(AccessLevel.PACKAGE)
   private long logStaleCommitIntervalNs = Long.MAX_VALUE;
 
+  @Getter(AccessLevel.PACKAGE)
+  private boolean commitAsync = false;
+
+  @Getter(AccessLevel.PACKAGE)
+  private long commitIntervalMs = 0;
+
+  @Getter(AccessLevel.PACKAGE)
+  private long commitMaxOffsets = 0;
+
+  @Getter(AccessLevel.PACKAGE)
+  private int pollDecoderThreads = 0;
+
+  @Getter(AccessLevel.PACKAGE)
+  private int pollDecoderChunkSize = 100;
+
+  @Getter(AccessLevel.PACKAGE)
+  private int pollDecoderMaxInFlight = -1;
+
   @Getter(AccessLevel.PACKAGE)
   private KafkaWatermarkConfiguration watermarkConfiguration;
 
@@ -146,6 +236,21 @@ public class KafkaAccessor extends AbstractStorage implements DataAccessor {
             .map(v -> Long.valueOf(v.toString()))
             .orElse(maxBytesPerSec);
 
+    this.maxRecordsPerSec =
+        Optional.ofNullable(cfg.get(MAX_RECORDS_PER_SEC))
+            .map(v -> Long.valueOf(v.toString()))
+            .orElse(maxRecordsPerSec);
+
+    this.maxUnconfirmedOffsets =
+        Optional.ofNullable(cfg.get(MAX_UNCONFIRMED_OFFSETS))
+            .map(v -> Long.valueOf(v.toString()))
+            .orElse(maxUnconfirmedOffsets);
+
+    this.unconfirmedStallTimeoutMs =
+        Optional.ofNullable(cfg.get(UNCONFIRMED_STALL_TIMEOUT_MS))
+            .map(v -> Long.valueOf(v.toString()))
+            .orElse(unconfirmedStallTimeoutMs);
+
     this.timestampSkew =
         Optional.ofNullable(cfg.get(TIMESTAMP_SKEW))
             .map(v -> Long.valueOf(v.toString()))
@@ -166,6 +271,55 @@ public class KafkaAccessor extends AbstractStorage implements DataAccessor {
             .map(v -> Long.valueOf(v.toString()) * 1_000_000L)
             .orElse(logStaleCommitIntervalNs);
 
+    this.commitAsync =
+        Optional.ofNullable(cfg.get(COMMIT_MODE))
+            .map(Object::toString)
+            .map(
+                mode -> {
+                  Preconditions.checkArgument(
+                      mode.equals("sync") || mode.equals("async"),
+                      "Invalid %s %s, expected sync or async",
+                      COMMIT_MODE,
+                      mode);
+                  return mode.equals("async");
+                })
+            .orElse(commitAsync);
+
+    this.commitIntervalMs =
+        Optional.ofNullable(cfg.get(COMMIT_INTERVAL_MS))
+            .map(v -> Long.valueOf(v.toString()))
+            .orElse(commitIntervalMs);
+
+    this.commitMaxOffsets =
+        Optional.ofNullable(cfg.get(COMMIT_MAX_OFFSETS))
+            .map(v -> Long.valueOf(v.toString()))
+            .orElse(commitMaxOffsets);
+
+    this.pollDecoderThreads =
+        Optional.ofNullable(cfg.get(POLL_DECODER_THREADS))
+            .map(v -> Integer.valueOf(v.toString()))
+            .orElse(pollDecoderThreads);
+
+    this.pollDecoderChunkSize =
+        Optional.ofNullable(cfg.get(POLL_DECODER_CHUNK_SIZE))
+            .map(v -> Integer.valueOf(v.toString()))
+            .orElse(pollDecoderChunkSize);
+
+    this.pollDecoderMaxInFlight =
+        Optional.ofNullable(cfg.get(POLL_DECODER_MAX_IN_FLIGHT))
+            .map(v -> Integer.valueOf(v.toString()))
+            .orElse(2 * Math.max(1, pollDecoderThreads));
+
+    this.writerPartitionsRefreshMs =
+        Optional.ofNullable(cfg.get(WRITER_PARTITIONS_REFRESH_MS))
+            .map(v -> Long.valueOf(v.toString()))
+            .orElse(writerPartitionsRefreshMs);
+
+    this.topicCompacted =
+        Optional.ofNullable(cfg.get(TOPIC_COMPACTED))
+            .map(v -> Boolean.valueOf(v.toString()))
+            .orElse(null);
+
     @SuppressWarnings("unchecked")
     Class<ElementSerializer<?, ?>> serializer =
         Optional.ofNullable(cfg.get(SERIALIZER_CLASS))
@@ -181,20 +335,36 @@ public class KafkaAccessor extends AbstractStorage implements DataAccessor {
             + "consumerPollInterval {},"
             + "partitionerClass {}, "
             + "maxBytesPerSec {}, "
+            + "maxRecordsPerSec {}, "
+            + "maxUnconfirmedOffsets {}, "
+            + "unconfirmedStallTimeoutMs {}, "
             + "timestampSkew {}, "
             + "maxPollRecords {}, "
             + "autoCommitIntervalNs {}, "
             + "logStaleCommitIntervalNs {}, "
             + "serializerClass {},"
+            + "commitAsync {}, "
+            + "commitIntervalMs {}, "
+            + "pollDecoderThreads {}, "
+            + "writerPartitionsRefreshMs {}, "
+            + "topicCompacted {}, "
             + "for URI {}",
         consumerPollInterval,
         partitioner.getClass(),
         maxBytesPerSec,
+        maxRecordsPerSec,
+        maxUnconfirmedOffsets,
+        unconfirmedStallTimeoutMs,
         timestampSkew,
         maxPollRecords,
         autoCommitIntervalNs,
         logStaleCommitIntervalNs,
         serializerClass,
+        commitAsync,
+        commitIntervalMs,
+        pollDecoderThreads,
+        writerPartitionsRefreshMs,
+        topicCompacted,
         getUri());
   }
 
@@ -238,20 +408,40 @@ public class KafkaAccessor extends AbstractStorage implements DataAccessor {
   public boolean isAcceptable(AttributeFamilyDescriptor familyDescriptor) {
     // Force checks for data compacting on state-commit-log topics
     if (familyDescriptor.getAccess().isStateCommitLog()) {
-      try (AdminClient adminClient = createAdmin()) {
-        final DescribeConfigsResult configsResult =
-            adminClient.describeConfigs(
-                Collections.singleton(new ConfigResource(ConfigResource.Type.TOPIC, this.topic)));
-        final Config config =
-            ExceptionUtils.uncheckedFactory(
-                () -> Iterables.getOnlyElement(configsResult.all().get().values()));
-        final ConfigEntry cleanupPolicy = config.get(TopicConfig.CLEANUP_POLICY_CONFIG);
-        return verifyCleanupPolicy(cleanupPolicy);
-      }
+      return verifyCleanupPolicy(fetchCleanupPolicy());
     }
     return true;
   }
 
+  /**
+   * Check if the topic is compacted. Uses {@link #TOPIC_COMPACTED} when set, reads cleanup policy
+   * of the topic otherwise.
+   *
+   * @return {@code true} if the topic is compacted
+   */
+  boolean isTopicCompacted() {
+    if (topicCompacted != null) {
+      return topicCompacted;
+    }
+    ConfigEntry cleanupPolicy = fetchCleanupPolicy();
+    return cleanupPolicy != null
+        && cleanupPolicy.value().contains(TopicConfig.CLEANUP_POLICY_COMPACT);
+  }
+
+  @VisibleForTesting
+  @Nullable
+  ConfigEntry fetchCleanupPolicy() {
+    try (AdminClient adminClient = createAdmin()) {
+      final DescribeConfigsResult configsResult =
+          adminClient.describeConfigs(
+              Collections.singleton(new ConfigResource(ConfigResource.Type.TOPIC, this.topic)));
+      final Config config =
+          ExceptionUtils.uncheckedFactory(
+              () -> Iterables.getOnlyElement(configsResult.all().get().values()));
+      return config.get(TopicConfig.CLEANUP_POLICY_CONFIG);
+    }
+  }
+
   @VisibleForTesting
   public boolean verifyCleanupPolicy(ConfigEntry cleanupPolicy) {
     if (cleanupPolicy != null
@@ -276,8 +466,7 @@ public class KafkaAccessor extends AbstractStorage implements DataAccessor {
 
   @Override
   public Optional<CachedView> getCachedView(Context context) {
-    return Optional.of(
-        new LocalCachedPartitionedView(getEntityDescriptor(), newReader(context), newWriter()));
+    return Optional.of(new KafkaCachedView(this, newReader(context), newWriter()));
   }
 
   KafkaWriter newWriter() {
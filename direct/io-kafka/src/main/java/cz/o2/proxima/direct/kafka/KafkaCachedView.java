@@ -0,0 +1,273 @@
+/**
+ * Copyright 2017-2020 O2 Czech Republic, a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.o2.proxima.direct.kafka;
+
+import com.google.common.base.Preconditions;
+import cz.o2.proxima.direct.commitlog.LogObserver;
+import cz.o2.proxima.direct.commitlog.Offset;
+import cz.o2.proxima.direct.core.OnlineAttributeWriter;
+import cz.o2.proxima.direct.core.Partition;
+import cz.o2.proxima.direct.view.LocalCachedPartitionedView;
+import cz.o2.proxima.functional.BiConsumer;
+import cz.o2.proxima.storage.StreamElement;
+import cz.o2.proxima.util.Pair;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import javax.annotation.Nullable;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * {@link LocalCachedPartitionedView} of kafka topic.
+ *
+ * <ul>
+ *   <li>When the topic is compacted (see {@link KafkaAccessor#TOPIC_COMPACTED}), tombstones read
+ *       from the topic remove data from the view instead of being cached.
+ *   <li>When partitions are reassigned, data of partitions that remain assigned is kept and their
+ *       consumption continues from offsets reached so far. Only newly assigned partitions are read
+ *       from the beginning.
+ *   <li>The view is caught up when it read all partitions up to their end offsets as of the time of
+ *       the assignment. A partition is caught up as well when the view is idle and did not advance
+ *       in the partition since it was last idle, as records at the end of the partition need not be
+ *       delivered (e.g. transaction markers). Unless {@link #WAIT_CAUGHT_UP_CFG} is {@code false},
+ *       {@link #assign} blocks until then, at most for {@link #CAUGHT_UP_TIMEOUT_MS_CFG}.
+ * </ul>
+ */
+@Slf4j
+public class KafkaCachedView extends LocalCachedPartitionedView {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * Wait in {@link #assign} until the view is caught up (default). When {@code false}, the view is
+   * filled in background and readiness can be checked by {@link #isCaughtUp()}.
+   */
+  public static final String WAIT_CAUGHT_UP_CFG = "cached-view.assign.wait-caught-up";
+
+  /**
+   * Maximal duration in milliseconds {@link #assign} waits for the view to catch up. When the
+   * timeout elapses, the view continues to catch up in background. Defaults to ten minutes.
+   */
+  public static final String CAUGHT_UP_TIMEOUT_MS_CFG = "cached-view.assign.caught-up-timeout-ms";
+
+  private final KafkaAccessor accessor;
+  private final KafkaLogReader reader;
+  private final boolean waitCaughtUp;
+  private final long caughtUpTimeoutMs;
+
+  /** {@code true} if the topic was compacted as of the last assignment. */
+  private transient volatile boolean compacted;
+
+  /** Ids of currently assigned partitions. */
+  private transient Set<Integer> assigned = Collections.emptySet();
+
+  /** End offsets of partitions that are not yet caught up. */
+  @Nullable private transient volatile Map<Integer, Long> pendingEndOffsets;
+
+  /** Offsets read in partitions when the view was last idle. */
+  private transient volatile Map<Integer, Long> idleOffsets = Collections.emptyMap();
+
+  @Nullable private transient volatile CountDownLatch caughtUp;
+
+  KafkaCachedView(KafkaAccessor accessor, KafkaLogReader reader, OnlineAttributeWriter writer) {
+    super(accessor.getEntityDescriptor(), reader, writer, accessor.getCfg());
+    this.accessor = accessor;
+    this.reader = reader;
+    this.waitCaughtUp =
+        Optional.ofNullable(accessor.getCfg().get(WAIT_CAUGHT_UP_CFG))
+            .map(v -> Boolean.valueOf(v.toString()))
+            .orElse(true);
+    this.caughtUpTimeoutMs =
+        Optional.ofNullable(accessor.getCfg().get(CAUGHT_UP_TIMEOUT_MS_CFG))
+            .map(v -> Long.valueOf(v.toString()))
+            .orElse(600_000L);
+    Preconditions.checkArgument(
+        caughtUpTimeoutMs >= 0, "%s must not be negative", CAUGHT_UP_TIMEOUT_MS_CFG);
+  }
+
+  @Override
+  public void assign(
+      Collection<Partition> partitions,
+      BiConsumer<StreamElement, Pair<Long, Object>> updateCallback) {
+
+    compacted = isTopicCompacted();
+    super.assign(partitions, updateCallback);
+    assigned = partitions.stream().map(Partition::getId).collect(Collectors.toSet());
+    if (waitCaughtUp) {
+      try {
+        if (!awaitCaughtUp(caughtUpTimeoutMs, TimeUnit.MILLISECONDS)) {
+          log.warn(
+              "Partitions {} of {} not caught up within {} ms, continuing in background",
+              pendingEndOffsets.keySet(),
+              getUri(),
+              caughtUpTimeoutMs);
+        }
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(ex);
+      }
+    }
+  }
+
+  /**
+   * Check if the view reached end offsets of assigned partitions as of the time of the assignment.
+   *
+   * @return {@code true} if the view is caught up
+   */
+  public boolean isCaughtUp() {
+    CountDownLatch latch = caughtUp;
+    return latch != null && latch.getCount() == 0;
+  }
+
+  /**
+   * Wait until the view is caught up.
+   *
+   * @param timeout maximal time to wait
+   * @param unit unit of the timeout
+   * @return {@code true} if the view is caught up, {@code false} if the timeout elapsed
+   * @throws InterruptedException when interrupted while waiting
+   */
+  public boolean awaitCaughtUp(long timeout, TimeUnit unit) throws InterruptedException {
+    CountDownLatch latch = caughtUp;
+    return latch != null && latch.await(timeout, unit);
+  }
+
+  private boolean isTopicCompacted() {
+    try {
+      return accessor.isTopicCompacted();
+    } catch (Exception ex) {
+      log.warn("Failed to read cleanup policy of {}, caching tombstones", getUri(), ex);
+      return false;
+    }
+  }
+
+  @Override
+  protected boolean isRemoval(StreamElement delete) {
+    // wildcard deletes are not tombstones of any single record
+    return compacted && !delete.isDeleteWildcard();
+  }
+
+  @Nullable
+  @Override
+  protected List<Offset> resumeOffsets(Collection<Partition> partitions, List<Offset> previous) {
+    Set<Integer> previousIds =
+        previous.stream().map(o -> o.getPartition().getId()).collect(Collectors.toSet());
+    Set<Integer> ids = partitions.stream().map(Partition::getId).collect(Collectors.toSet());
+    if (previous.isEmpty() || !previousIds.equals(assigned) || !ids.containsAll(previousIds)) {
+      return null;
+    }
+    List<Offset> ret = new ArrayList<>(previous);
+    List<Partition> added =
+        partitions
+            .stream()
+            .filter(p -> !previousIds.contains(p.getId()))
+            .collect(Collectors.toList());
+    if (!added.isEmpty()) {
+      reader
+          .fetchOffsetRanges(added)
+          .forEach((id, range) -> ret.add(new TopicOffset(id, range.getFirst(), Long.MIN_VALUE)));
+    }
+    return ret;
+  }
+
+  @Override
+  protected List<Offset> initialOffsets(Collection<Partition> partitions)
+      throws InterruptedException {
+
+    if (waitCaughtUp) {
+      return super.initialOffsets(partitions);
+    }
+    // read everything by the observer of updates, readiness is tracked by end offsets
+    return reader
+        .fetchOffsetRanges(partitions)
+        .entrySet()
+        .stream()
+        .map(e -> new TopicOffset(e.getKey(), e.getValue().getFirst(), Long.MIN_VALUE))
+        .collect(Collectors.toList());
+  }
+
+  @Override
+  protected void onObserve(List<Offset> offsets) {
+    Map<Integer, Pair<Long, Long>> ranges =
+        reader.fetchOffsetRanges(
+            offsets.stream().map(Offset::getPartition).collect(Collectors.toList()));
+    Map<Integer, Long> pending = new ConcurrentHashMap<>();
+    for (Offset offset : offsets) {
+      int id = offset.getPartition().getId();
+      Pair<Long, Long> range = ranges.get(id);
+      long start = Math.max(((TopicOffset) offset).getOffset(), range.getFirst());
+      if (start < range.getSecond()) {
+        pending.put(id, range.getSecond());
+      }
+    }
+    log.info("Caching {} from offsets {}, waiting for end offsets {}", getUri(), offsets, pending);
+    idleOffsets = Collections.emptyMap();
+    caughtUp = new CountDownLatch(pending.size());
+    pendingEndOffsets = pending;
+  }
+
+  @Override
+  protected void onUpdate(StreamElement ingest, LogObserver.OnNextContext context) {
+    super.onUpdate(ingest, context);
+    Map<Integer, Long> pending = pendingEndOffsets;
+    if (pending != null && !pending.isEmpty()) {
+      int id = context.getPartition().getId();
+      Long end = pending.get(id);
+      long offset = ((TopicOffset) context.getOffset()).getOffset();
+      if (end != null && offset + 1 >= end) {
+        markCaughtUp(pending, id, offset);
+      }
+    }
+  }
+
+  @Override
+  protected void onIdle(LogObserver.OnIdleContext context) {
+    Map<Integer, Long> pending = pendingEndOffsets;
+    if (pending == null || pending.isEmpty()) {
+      return;
+    }
+    // offsets read so far include records that were not delivered to onUpdate
+    Map<Integer, Long> current = new HashMap<>();
+    for (Offset offset : getCurrentOffsets()) {
+      current.put(offset.getPartition().getId(), ((TopicOffset) offset).getOffset());
+    }
+    Map<Integer, Long> previous = idleOffsets;
+    for (Map.Entry<Integer, Long> e : pending.entrySet()) {
+      Long offset = current.get(e.getKey());
+      if (offset != null
+          && (offset + 1 >= e.getValue() || offset.equals(previous.get(e.getKey())))) {
+        markCaughtUp(pending, e.getKey(), offset);
+      }
+    }
+    idleOffsets = current;
+  }
+
+  private void markCaughtUp(Map<Integer, Long> pending, int id, long offset) {
+    if (pending.remove(id) != null) {
+      log.info("Partition {} of {} caught up at offset {}", id, getUri(), offset);
+      caughtUp.countDown();
+    }
+  }
+}
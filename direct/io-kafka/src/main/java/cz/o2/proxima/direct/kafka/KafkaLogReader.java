@@ -38,12 +38,14 @@ import cz.o2.proxima.time.WatermarkEstimator;
 import cz.o2.proxima.time.WatermarkEstimatorFactory;
 import cz.o2.proxima.time.WatermarkIdlePolicyFactory;
 import cz.o2.proxima.time.Watermarks;
+import cz.o2.proxima.util.Pair;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -52,7 +54,6 @@ import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
@@ -66,6 +67,7 @@ import org.apache.kafka.clients.consumer.KafkaConsumer;
 import org.apache.kafka.clients.consumer.OffsetAndMetadata;
 import org.apache.kafka.common.PartitionInfo;
 import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.InterruptException;
 
 /** A {@link CommitLogReader} implementation for Kafka. */
 @Slf4j
@@ -78,6 +80,9 @@ public class KafkaLogReader extends AbstractStorage implements CommitLogReader {
   private final String topic;
   private final Map<String, Object> cfg;
 
+  /** Consumer fetching ranges of offsets, shared by all calls of {@link #fetchOffsetRanges}. */
+  @Nullable private transient KafkaConsumer<Object, Object> offsetConsumer;
+
   KafkaLogReader(KafkaAccessor accessor, Context context) {
     super(accessor.getEntityDescriptor(), accessor.getUri());
     this.accessor = accessor;
@@ -151,6 +156,60 @@ public class KafkaLogReader extends AbstractStorage implements CommitLogReader {
     return partitions.stream().map(p -> Partition.of(p.partition())).collect(Collectors.toList());
   }
 
+  /**
+   * Fetch range of offsets of given partitions.
+   *
+   * @param partitions the partitions to fetch offsets of
+   * @return map of partition id to pair of beginning and end offset of the partition
+   */
+  Map<Integer, Pair<Long, Long>> fetchOffsetRanges(Collection<Partition> partitions) {
+    List<TopicPartition> tps =
+        partitions
+            .stream()
+            .map(p -> new TopicPartition(topic, p.getId()))
+            .collect(Collectors.toList());
+    final Map<TopicPartition, Long> beginning;
+    final Map<TopicPartition, Long> end;
+    // the consumer is not thread-safe
+    synchronized (this) {
+      if (offsetConsumer == null) {
+        KafkaConsumerFactory<Object, Object> factory = accessor.createConsumerFactory();
+        offsetConsumer = factory.create(Collections.emptyList());
+      }
+      try {
+        beginning = offsetConsumer.beginningOffsets(tps);
+        end = offsetConsumer.endOffsets(tps);
+      } catch (RuntimeException ex) {
+        // create new consumer with next call
+        offsetConsumer.close();
+        offsetConsumer = null;
+        throw ex;
+      }
+    }
+    return tps.stream()
+        .collect(
+            toMap(
+                TopicPartition::partition,
+                tp -> Pair.of(beginning.getOrDefault(tp, 0L), end.getOrDefault(tp, 0L))));
+  }
+
+  @Override
+  public Map<Integer, Long> fetchOffsetLag(Collection<Offset> offsets) {
+    Map<Integer, Pair<Long, Long>> ranges =
+        fetchOffsetRanges(offsets.stream().map(Offset::getPartition).collect(Collectors.toList()));
+    Map<Integer, Long> ret = new HashMap<>();
+    for (Offset offset : offsets) {
+      int id = offset.getPartition().getId();
+      Pair<Long, Long> range = ranges.get(id);
+      if (range != null) {
+        // offset of last processed record, negative if none was processed yet
+        long next = Math.max(((TopicOffset) offset).getOffset() + 1, range.getFirst());
+        ret.put(id, Math.max(0L, range.getSecond() - next));
+      }
+    }
+    return ret;
+  }
+
   @VisibleForTesting
   ObserveHandle observeKafka(
       @Nullable String name,
@@ -344,12 +403,14 @@ public class KafkaLogReader extends AbstractStorage implements CommitLogReader {
           final Duration pollDuration = Duration.ofMillis(consumerPollInterval);
           consumerRef = new AtomicReference<>();
           consumer.onStart();
+          final CommitFlusher flusher = createCommitFlusher(name);
+          final FlowControl flowControl = createFlowControl();
           ConsumerRebalanceListener listener =
-              listener(name, consumerRef, consumer, emptyPollCount, watermarkEstimator);
-          final ElementSerializer<Object, Object> serializer = accessor.getSerializer();
+              listener(name, consumerRef, consumer, emptyPollCount, watermarkEstimator, flusher);
 
-          try (KafkaConsumer<Object, Object> kafka =
-              createConsumer(name, offsets, name != null ? listener : null, position)) {
+          try (PollDecoder decoder = createDecoder();
+              KafkaConsumer<Object, Object> kafka =
+                  createConsumer(name, offsets, name != null ? listener : null, position)) {
 
             consumerRef.set(kafka);
 
@@ -373,26 +434,29 @@ public class KafkaLogReader extends AbstractStorage implements CommitLogReader {
 
             AtomicReference<Throwable> error = new AtomicReference<>();
             do {
-              if (poll.isEmpty()) {
+              // consumer waiting for confirmation of back-pressured partitions is not idle
+              if (poll.isEmpty() && !flowControl.hasBackPressure()) {
                 Optional.ofNullable(watermarkEstimator.get()).ifPresent(consumer::onIdle);
               }
               logConsumerWatermark(name, offsets, watermarkEstimator, poll.count());
               poll =
                   seekToNewOffsetsIfNeeded(seekOffsets, consumer, watermarkEstimator, kafka, poll);
 
-              final long bytesPerPoll =
-                  maxBytesPerSec < Long.MAX_VALUE
-                      ? Math.max(1L, maxBytesPerSec / (1000L * consumerPollInterval))
-                      : Long.MAX_VALUE;
               long bytesPolled = 0L;
-              // increase all partition's empty poll counter by 1
-              emptyPollCount.replaceAll((k, v) -> v + 1);
-              for (ConsumerRecord<Object, Object> r : poll) {
+              long recordsPolled = 0L;
+              // increase empty poll counter of all partitions that were not paused by 1
+              emptyPollCount.replaceAll((k, v) -> flowControl.isPaused(k) ? v : v + 1);
+              Iterator<Pair<ConsumerRecord<Object, Object>, StreamElement>> decoded =
+                  decoder.decode(poll);
+              while (decoded.hasNext()) {
+                Pair<ConsumerRecord<Object, Object>, StreamElement> next = decoded.next();
+                ConsumerRecord<Object, Object> r = next.getFirst();
                 bytesPolled += r.serializedKeySize() + r.serializedValueSize();
+                recordsPolled++;
                 TopicPartition tp = new TopicPartition(r.topic(), r.partition());
                 emptyPollCount.put(tp.partition(), 0);
                 preWrite.accept(tp, r);
-                StreamElement ingest = serializer.read(r, getEntityDescriptor());
+                StreamElement ingest = next.getSecond();
                 if (ingest != null) {
                   watermarkEstimator.get().update(tp.partition(), ingest);
                 }
@@ -413,10 +477,11 @@ public class KafkaLogReader extends AbstractStorage implements CommitLogReader {
                 }
               }
               increaseWatermarkOnEmptyPolls(emptyPollCount, watermarkEstimator);
-              flushCommits(kafka, consumer);
+              flusher.flush(kafka, consumer);
               rethrowErrorIfPresent(name, error);
               terminateIfConsumed(stopAtCurrent, kafka, endOffsets, completed);
-              waitToReduceThroughput(bytesPolled, bytesPerPoll);
+              flowControl.onPolled(bytesPolled, recordsPolled);
+              flowControl.apply(kafka, consumer);
               poll = kafka.poll(pollDuration);
             } while (!shutdown.get()
                 && !completed.get()
@@ -430,11 +495,12 @@ public class KafkaLogReader extends AbstractStorage implements CommitLogReader {
                   Thread.currentThread().isInterrupted());
             }
             if (!Thread.currentThread().isInterrupted()) {
+              flusher.flushSync(kafka, consumer);
               consumer.onCompleted();
             } else {
               consumer.onCancelled();
             }
-          } catch (InterruptedException ex) {
+          } catch (InterruptException ex) {
             log.info("Interrupted while polling kafka. Terminating consumption.", ex);
             Thread.currentThread().interrupt();
             consumer.onCancelled();
@@ -455,6 +521,15 @@ public class KafkaLogReader extends AbstractStorage implements CommitLogReader {
     latch.await();
   }
 
+  private PollDecoder createDecoder() {
+    return new PollDecoder(
+        getEntityDescriptor(),
+        accessor::getSerializer,
+        accessor.getPollDecoderThreads(),
+        accessor.getPollDecoderChunkSize(),
+        accessor.getPollDecoderMaxInFlight());
+  }
+
   private ConsumerRecords<Object, Object> seekToNewOffsetsIfNeeded(
       final List<TopicOffset> seekOffsets,
       final ElementConsumer<Object, Object> consumer,
@@ -528,23 +603,20 @@ public class KafkaLogReader extends AbstractStorage implements CommitLogReader {
     }
   }
 
-  private void waitToReduceThroughput(long bytesPolled, final long bytesPerPoll)
-      throws InterruptedException {
-
-    long sleepDuration = bytesPolled * consumerPollInterval / bytesPerPoll;
-    if (sleepDuration > 0) {
-      TimeUnit.MILLISECONDS.sleep(sleepDuration);
-    }
+  private FlowControl createFlowControl() {
+    return new FlowControl(
+        maxBytesPerSec,
+        accessor.getMaxRecordsPerSec(),
+        accessor.getMaxUnconfirmedOffsets(),
+        accessor.getUnconfirmedStallTimeoutMs());
   }
 
-  private void flushCommits(
-      final KafkaConsumer<Object, Object> kafka, ElementConsumer<?, ?> consumer) {
-
-    Map<TopicPartition, OffsetAndMetadata> commitMapClone;
-    commitMapClone = consumer.prepareOffsetsForCommit();
-    if (!commitMapClone.isEmpty()) {
-      kafka.commitSync(commitMapClone);
-    }
+  private CommitFlusher createCommitFlusher(@Nullable String name) {
+    return new CommitFlusher(
+        getUri() + "_" + name,
+        accessor.isCommitAsync(),
+        accessor.getCommitIntervalMs(),
+        accessor.getCommitMaxOffsets());
   }
 
   private void increaseWatermarkOnEmptyPolls(
@@ -738,13 +810,15 @@ public class KafkaLogReader extends AbstractStorage implements CommitLogReader {
       AtomicReference<KafkaConsumer<Object, Object>> kafka,
       ElementConsumer<Object, Object> consumer,
       Map<Integer, Integer> emptyPollCount,
-      AtomicReference<PartitionedWatermarkEstimator> watermarkEstimator) {
+      AtomicReference<PartitionedWatermarkEstimator> watermarkEstimator,
+      CommitFlusher flusher) {
 
     return new ConsumerRebalanceListener() {
 
       @Override
       public void onPartitionsRevoked(Collection<TopicPartition> parts) {
-        // nop
+        // commit offsets of processed records before the partitions are reassigned
+        Optional.ofNullable(kafka.get()).ifPresent(c -> flusher.onRevoked(c, consumer, parts));
       }
 
       @Override
@@ -20,6 +20,8 @@ import cz.o2.proxima.repository.AttributeDescriptor;
 import cz.o2.proxima.repository.EntityDescriptor;
 import cz.o2.proxima.storage.StreamElement;
 import cz.o2.proxima.util.Pair;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
 import java.util.Optional;
 import javax.annotation.Nullable;
 import lombok.Getter;
@@ -58,7 +60,7 @@ public class KafkaStreamElement extends StreamElement {
           return new KafkaStreamElement(
               entityDesc,
               attr.get(),
-              record.topic() + "#" + record.partition() + "#" + record.offset(),
+              record.topic(),
               entityKey,
               attribute,
               record.timestamp(),
@@ -86,16 +88,141 @@ public class KafkaStreamElement extends StreamElement {
     }
   }
 
+  /**
+   * Serializer with the same format as {@link KafkaStreamElementSerializer}, that reads keys of
+   * records as raw bytes. Entity keys and attributes are decoded through small caches, so that
+   * repeated keys (e.g. updates of multiple attributes of the same entity within a poll) share
+   * single string instance and attribute descriptors are resolved once per attribute name.
+   */
+  public static class KafkaStreamElementBytesSerializer
+      implements ElementSerializer<byte[], byte[]> {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int KEY_CACHE_SIZE = 1024;
+    private static final int ATTRIBUTE_CACHE_SIZE = 256;
+
+    @Nullable private transient EntityDescriptor entity;
+    @Nullable private transient Utf8Cache<Object> keys;
+    @Nullable private transient Utf8Cache<AttributeDescriptor<Object>> attributes;
+
+    @Nullable
+    @Override
+    public StreamElement read(ConsumerRecord<byte[], byte[]> record, EntityDescriptor entityDesc) {
+      byte[] key = record.key();
+      // in kafka, each entity attribute is separated by `#' from entity key
+      // the character cannot be part of multi-byte UTF-8 sequence
+      int hashPos = key == null ? -1 : lastIndexOf(key, (byte) '#');
+      if (hashPos < 0) {
+        log.error(
+            "Invalid key in kafka topic: {}",
+            key == null ? null : new String(key, StandardCharsets.UTF_8));
+        return null;
+      }
+      Utf8Cache.Entry<AttributeDescriptor<Object>> attribute =
+          attributesOf(entityDesc).get(key, hashPos + 1, key.length);
+      if (attribute.value == null) {
+        log.error(
+            "Invalid attribute {} in kafka key {}",
+            attribute.string,
+            new String(key, StandardCharsets.UTF_8));
+        return null;
+      }
+      return new KafkaStreamElement(
+          entityDesc,
+          attribute.value,
+          record.topic(),
+          keysOf(entityDesc).get(key, 0, hashPos).string,
+          attribute.string,
+          record.timestamp(),
+          record.value(),
+          record.partition(),
+          record.offset());
+    }
+
+    @Override
+    public Pair<byte[], byte[]> write(StreamElement data) {
+      return Pair.of(
+          (data.getKey() + "#" + data.getAttribute()).getBytes(StandardCharsets.UTF_8),
+          data.getValue());
+    }
+
+    @Override
+    public Serde<byte[]> keySerde() {
+      return Serdes.ByteArray();
+    }
+
+    @Override
+    public Serde<byte[]> valueSerde() {
+      return Serdes.ByteArray();
+    }
+
+    private Utf8Cache<AttributeDescriptor<Object>> attributesOf(EntityDescriptor entityDesc) {
+      resetIfEntityChanged(entityDesc);
+      if (attributes == null) {
+        attributes =
+            new Utf8Cache<>(
+                ATTRIBUTE_CACHE_SIZE,
+                name ->
+                    entityDesc
+                        .findAttribute(name, true /* allow reading protected */)
+                        .orElse(null));
+      }
+      return attributes;
+    }
+
+    private Utf8Cache<Object> keysOf(EntityDescriptor entityDesc) {
+      resetIfEntityChanged(entityDesc);
+      if (keys == null) {
+        keys = new Utf8Cache<>(KEY_CACHE_SIZE, name -> null);
+      }
+      return keys;
+    }
+
+    private void resetIfEntityChanged(EntityDescriptor entityDesc) {
+      if (entity != entityDesc) {
+        entity = entityDesc;
+        keys = null;
+        attributes = null;
+      }
+    }
+
+    private static int lastIndexOf(byte[] data, byte b) {
+      for (int i = data.length - 1; i >= 0; i--) {
+        if (data[i] == b) {
+          return i;
+        }
+      }
+      return -1;
+    }
+  }
+
+  /** Topic this element comes from. */
+  private final String topic;
+
   /** Partition in Kafka this element comes from. */
   @Getter private final int partition;
 
   /** Offset in the partition. */
   @Getter private final long offset;
 
+  /**
+   * Create element with UUID computed lazily from topic, partition and offset.
+   *
+   * @param entityDesc descriptor of entity
+   * @param attributeDesc descriptor of attribute
+   * @param topic topic the element was read from
+   * @param key key of entity
+   * @param attribute name of attribute
+   * @param stamp timestamp of the element
+   * @param value serialized value
+   * @param partition partition the element was read from
+   * @param offset offset of the element in the partition
+   */
   KafkaStreamElement(
       EntityDescriptor entityDesc,
       AttributeDescriptor<?> attributeDesc,
-      String uuid,
+      String topic,
       String key,
       String attribute,
       long stamp,
@@ -106,17 +233,22 @@ public class KafkaStreamElement extends StreamElement {
     super(
         entityDesc,
         attributeDesc,
-        uuid,
         key,
         attribute,
         stamp,
         false /* not forced, is inferred from attribute descriptor name */,
         value);
 
+    this.topic = Objects.requireNonNull(topic);
     this.partition = partition;
     this.offset = offset;
   }
 
+  @Override
+  protected String computeUuid() {
+    return topic + "#" + partition + "#" + offset;
+  }
+
   @Override
   public String toString() {
     return MoreObjects.toStringHelper(this)
@@ -15,21 +15,32 @@
  */
 package cz.o2.proxima.direct.kafka;
 
+import com.google.common.annotations.VisibleForTesting;
 import cz.o2.proxima.direct.core.AbstractOnlineAttributeWriter;
 import cz.o2.proxima.direct.core.CommitCallback;
 import cz.o2.proxima.storage.StreamElement;
 import cz.o2.proxima.storage.commitlog.Partitioner;
 import cz.o2.proxima.util.Pair;
+import java.util.Collection;
 import java.util.Properties;
 import javax.annotation.Nullable;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.producer.Callback;
 import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.Producer;
 import org.apache.kafka.clients.producer.ProducerConfig;
 import org.apache.kafka.clients.producer.ProducerRecord;
 import org.apache.kafka.common.serialization.Serdes;
 
-/** ${link OnlineAttributeWriter} implementation for Kafka. */
+/**
+ * ${link OnlineAttributeWriter} implementation for Kafka.
+ *
+ * <p>Number of partitions of the topic is cached and refreshed from producer's metadata
+ * periodically and after failed write. Producer settings (e.g. {@code linger.ms}, {@code
+ * batch.size}, {@code compression.type}, {@code enable.idempotence} or {@code acks}) can be set in
+ * family config with prefix {@link KafkaAccessor#WRITER_CONFIG_PREFIX}.
+ */
 @Slf4j
 public class KafkaWriter extends AbstractOnlineAttributeWriter {
 
@@ -37,8 +48,11 @@ public class KafkaWriter extends AbstractOnlineAttributeWriter {
   private final Partitioner partitioner;
   private final String topic;
   private final ElementSerializer<?, ?> serializer;
+  private final long partitionsRefreshMs;
 
-  @Nullable private transient KafkaProducer<String, byte[]> producer;
+  @Nullable private transient Producer<String, byte[]> producer;
+  private transient volatile int numPartitions;
+  private transient volatile long partitionsRefreshedMs;
 
   KafkaWriter(KafkaAccessor accessor) {
     super(accessor.getEntityDescriptor(), accessor.getUri());
@@ -46,44 +60,112 @@ public class KafkaWriter extends AbstractOnlineAttributeWriter {
     this.partitioner = accessor.getPartitioner();
     this.topic = accessor.getTopic();
     this.serializer = accessor.getSerializer();
+    this.partitionsRefreshMs = accessor.getWriterPartitionsRefreshMs();
   }
 
   @Override
-  @SuppressWarnings("unchecked")
   public void write(StreamElement data, CommitCallback callback) {
     try {
-      if (producer == null) {
-        producer = createProducer();
-      }
-      int partition =
-          (partitioner.getPartitionId(data) & Integer.MAX_VALUE)
-              % producer.partitionsFor(topic).size();
-
-      Pair<?, ?> output = serializer.write(data);
-      producer.send(
-          new ProducerRecord(
-              topic, partition, data.getStamp(), output.getFirst(), output.getSecond()),
+      Producer<String, byte[]> p = producer();
+      send(
+          p,
+          data,
+          numPartitions(p),
           (metadata, exception) -> {
-            log.debug(
-                "Written {} to topic {} offset {} and partition {}",
-                data,
-                metadata.topic(),
-                metadata.offset(),
-                metadata.partition());
+            if (exception == null) {
+              log.debug(
+                  "Written {} to topic {} offset {} and partition {}",
+                  data,
+                  metadata.topic(),
+                  metadata.offset(),
+                  metadata.partition());
+            } else {
+              numPartitions = 0;
+            }
             callback.commit(exception == null, exception);
           });
     } catch (Exception ex) {
       log.warn("Failed to write ingest {}", data, ex);
+      numPartitions = 0;
       callback.commit(false, ex);
     }
   }
 
+  /**
+   * Write batch of elements. All elements are handed to the producer at once, so they can share
+   * producer batches. The callback is called once after all elements are written. It reports
+   * failure if any of the elements failed.
+   *
+   * @param data the elements to write
+   * @param callback callback called after all elements are written
+   */
+  @Override
+  public void write(Collection<StreamElement> data, CommitCallback callback) {
+    if (data.isEmpty()) {
+      callback.commit(true, null);
+      return;
+    }
+    CommitCallback bulkCallback = CommitCallback.afterNumCommits(data.size(), callback);
+    Callback kafkaCallback =
+        (metadata, exception) -> {
+          if (exception != null) {
+            numPartitions = 0;
+          }
+          bulkCallback.commit(exception == null, exception);
+        };
+    int sent = 0;
+    try {
+      Producer<String, byte[]> p = producer();
+      int partitions = numPartitions(p);
+      for (StreamElement element : data) {
+        send(p, element, partitions, kafkaCallback);
+        sent++;
+      }
+    } catch (Exception ex) {
+      log.warn("Failed to write {} of {} ingests", data.size() - sent, data.size(), ex);
+      numPartitions = 0;
+      for (int i = sent; i < data.size(); i++) {
+        bulkCallback.commit(false, ex);
+      }
+    }
+  }
+
   @SuppressWarnings("unchecked")
-  private KafkaProducer<String, byte[]> createProducer() {
+  private void send(
+      Producer<String, byte[]> producer, StreamElement data, int partitions, Callback callback) {
+
+    int partition = (partitioner.getPartitionId(data) & Integer.MAX_VALUE) % partitions;
+    Pair<?, ?> output = serializer.write(data);
+    producer.send(
+        new ProducerRecord(
+            topic, partition, data.getStamp(), output.getFirst(), output.getSecond()),
+        callback);
+  }
+
+  private Producer<String, byte[]> producer() {
+    if (producer == null) {
+      producer = createProducer();
+    }
+    return producer;
+  }
+
+  private int numPartitions(Producer<String, byte[]> producer) {
+    long now = System.currentTimeMillis();
+    int cached = numPartitions;
+    if (cached <= 0 || now - partitionsRefreshedMs >= partitionsRefreshMs) {
+      cached = producer.partitionsFor(topic).size();
+      numPartitions = cached;
+      partitionsRefreshedMs = now;
+    }
+    return cached;
+  }
+
+  @VisibleForTesting
+  Producer<String, byte[]> createProducer() {
     Properties props = accessor.createProps();
-    props.put(ProducerConfig.ACKS_CONFIG, "all");
+    props.putIfAbsent(ProducerConfig.ACKS_CONFIG, "all");
     props.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, getUri().getAuthority());
-    props.put(ProducerConfig.BATCH_SIZE_CONFIG, 16384);
+    props.putIfAbsent(ProducerConfig.BATCH_SIZE_CONFIG, 16384);
     return new KafkaProducer<>(
         props, Serdes.String().serializer(), Serdes.ByteArray().serializer());
   }
@@ -16,20 +16,19 @@
 package cz.o2.proxima.direct.kafka;
 
 import com.google.common.base.MoreObjects;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
-import java.util.NavigableMap;
-import java.util.TreeMap;
-import java.util.concurrent.atomic.AtomicInteger;
-import lombok.Getter;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import lombok.extern.slf4j.Slf4j;
 
 /**
  * A committer of kafka offsets. This committer is used for asynchronous operations to enforce that
  * the offset is not committed earlier then all associated actions are performed.
+ *
+ * <p>Offsets of each consumer ID are expected to be registered by single thread in ascending order,
+ * confirmations can come from any thread in any order. Confirmation does not take any lock, the
+ * thread that completes the oldest pending offset commits all offsets that are done.
  */
 @Slf4j
 public class OffsetCommitter<ID> {
@@ -40,41 +39,246 @@ public class OffsetCommitter<ID> {
     void apply();
   }
 
-  /** A single offset with metadata. */
-  static class OffsetMeta {
+  /** Number of offsets stored in single {@link Segment}. */
+  static final int SEGMENT_SIZE = 1024;
+
+  /** Number of actions of offset removed by {@link #clear(Object, long)}. */
+  private static final int CLEARED = Integer.MIN_VALUE;
+
+  /**
+   * Fixed-size block of registered offsets. Slots are written once by the registering thread before
+   * being published and segments are never reused, so readers need no locking.
+   */
+  private static final class Segment {
 
-    AtomicInteger actions; // counter for number of actions
+    /** Sequence number of the first slot. */
+    final long base;
 
-    @Getter Callback commit; // the associated commit callback
+    final long[] offsets = new long[SEGMENT_SIZE];
+    final AtomicIntegerArray actions = new AtomicIntegerArray(SEGMENT_SIZE);
+    final long[] createdNanos = new long[SEGMENT_SIZE];
+    final Callback[] commits = new Callback[SEGMENT_SIZE];
 
-    @Getter final long createdNanos = System.nanoTime();
+    volatile Segment next;
 
-    OffsetMeta(int actions, Callback commit) {
-      this.actions = new AtomicInteger(actions);
-      this.commit = commit;
+    Segment(long base) {
+      this.base = base;
     }
 
-    int getActions() {
-      return actions.get();
+    /**
+     * Find slot holding given offset.
+     *
+     * @param offset the offset to search for
+     * @param limit number of published slots in this segment
+     * @return index of the slot or -1 if not found
+     */
+    int indexOf(long offset, int limit) {
+      int low = 0;
+      int high = limit - 1;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        long current = offsets[mid];
+        if (current < offset) {
+          low = mid + 1;
+        } else if (current > offset) {
+          high = mid - 1;
+        } else {
+          return mid;
+        }
+      }
+      return -1;
     }
+  }
 
-    long getNanoAge() {
-      return System.nanoTime() - createdNanos;
+  /** Pending offsets of single consumer ID stored as a queue of segments. */
+  private final class PartitionOffsets {
+
+    private final ID id;
+    private final AtomicBoolean committing = new AtomicBoolean();
+
+    /** Segment containing {@link #head}. Written only while holding {@link #committing}. */
+    private volatile Segment headSegment;
+
+    /** Sequence number of the oldest not committed offset. */
+    private volatile long head;
+
+    /** Number of published offsets. Written only by the registering thread. */
+    private volatile long published;
+
+    /** Segment receiving new offsets. Accessed only by the registering thread. */
+    private Segment tailSegment;
+
+    private long lastOffset = -1;
+
+    PartitionOffsets(ID id) {
+      this.id = id;
+      this.tailSegment = new Segment(0);
+      this.headSegment = tailSegment;
     }
 
-    synchronized void decrement() {
-      if (actions.decrementAndGet() < 0) {
-        log.error("Decremented too many, actions now {}", actions);
+    /** @return {@code false} if the offset is not greater than the last registered offset */
+    boolean register(long offset, int numActions, Callback commit) {
+      if (offset <= lastOffset) {
+        return false;
       }
+      long seq = published;
+      if (seq == tailSegment.base + SEGMENT_SIZE) {
+        Segment segment = new Segment(seq);
+        tailSegment.next = segment;
+        tailSegment = segment;
+      }
+      int index = (int) (seq - tailSegment.base);
+      tailSegment.offsets[index] = offset;
+      tailSegment.createdNanos[index] = System.nanoTime();
+      tailSegment.commits[index] = commit;
+      tailSegment.actions.set(index, numActions);
+      lastOffset = offset;
+      // publishes the slot to confirming threads
+      published = seq + 1;
+      return true;
+    }
+
+    void confirm(long offset) {
+      long limit = published;
+      Segment segment = headSegment;
+      while (segment != null && segment.base < limit) {
+        int size = (int) Math.min(SEGMENT_SIZE, limit - segment.base);
+        if (offset <= segment.offsets[size - 1]) {
+          int index = segment.indexOf(offset, size);
+          if (index >= 0) {
+            decrement(segment, index);
+          }
+          return;
+        }
+        segment = segment.next;
+      }
+    }
+
+    private void decrement(Segment segment, int index) {
+      int actions;
+      do {
+        actions = segment.actions.get(index);
+        if (actions == CLEARED || segment.base + index < head) {
+          // the offset was cleared or already committed, nothing to confirm
+          log.debug("Ignoring confirmation of offset {} ID {}", segment.offsets[index], id);
+          return;
+        }
+      } while (!segment.actions.compareAndSet(index, actions, actions - 1));
+      if (actions <= 0) {
+        log.error(
+            "Decremented too many, actions of offset {} ID {} now {}",
+            segment.offsets[index],
+            id,
+            actions - 1);
+      }
+    }
+
+    void clear(long offset) {
+      long limit = published;
+      for (Segment segment = headSegment;
+          segment != null && segment.base < limit;
+          segment = segment.next) {
+        int index = segment.indexOf(offset, (int) Math.min(SEGMENT_SIZE, limit - segment.base));
+        if (index >= 0) {
+          // cleared offset neither blocks commit of following offsets nor is committed itself
+          segment.actions.set(index, CLEARED);
+          return;
+        }
+      }
+    }
+
+    void checkCommittable() {
+      while (committing.compareAndSet(false, true)) {
+        try {
+          commitCompleted();
+        } finally {
+          committing.set(false);
+        }
+        // actions might have been confirmed while we were committing
+        if (!isHeadCompleted()) {
+          break;
+        }
+      }
+    }
+
+    private boolean isHeadCompleted() {
+      long seq = head;
+      if (seq >= published) {
+        return false;
+      }
+      Segment segment = headSegment;
+      if (seq == segment.base + SEGMENT_SIZE) {
+        segment = segment.next;
+      }
+      return segment.actions.get((int) (seq - segment.base)) <= 0;
+    }
+
+    private void commitCompleted() {
+      long limit = published;
+      long start = head;
+      long seq = start;
+      Segment segment = headSegment;
+      Callback commit = null;
+      while (seq < limit) {
+        if (seq == segment.base + SEGMENT_SIZE) {
+          segment = segment.next;
+        }
+        int index = (int) (seq - segment.base);
+        int actions = segment.actions.get(index);
+        if (actions > 0 && !isAutoCommitted(segment, index, actions)) {
+          break;
+        }
+        if (actions != CLEARED) {
+          commit = segment.commits[index];
+        }
+        segment.commits[index] = null;
+        seq++;
+      }
+      if (seq != start) {
+        headSegment = segment;
+        head = seq;
+        if (commit != null) {
+          commit.apply();
+        }
+      }
+    }
+
+    private boolean isAutoCommitted(Segment segment, int index, int actions) {
+      if (autoCommitNanos == Long.MAX_VALUE && stateCommitWarningNanos == Long.MAX_VALUE) {
+        return false;
+      }
+      long age = System.nanoTime() - segment.createdNanos[index];
+      if (age > autoCommitNanos) {
+        log.warn(
+            "Auto adding offset {} of ID {} to comittable map due to age {} ns. "
+                + "The commit might have been lost. Verify your commit logic to remove this warning.",
+            segment.offsets[index],
+            id,
+            age);
+        return true;
+      }
+      if (age > stateCommitWarningNanos) {
+        log.warn(
+            "Offset {} ID {} was not committed in {} ns ({} actions missing). Please verify your commit logic!",
+            segment.offsets[index],
+            id,
+            age,
+            actions);
+      }
+      return false;
+    }
+
+    long pending() {
+      return published - head;
     }
 
     @Override
     public String toString() {
-      return "OffsetMeta(actions=" + actions + ")";
+      return "PartitionOffsets(pending=" + (published - head) + ", lastOffset=" + lastOffset + ")";
     }
   }
 
-  private final Map<ID, NavigableMap<Long, OffsetMeta>> waitingOffsets;
+  private final Map<ID, PartitionOffsets> waitingOffsets = new ConcurrentHashMap<>();
   private final long stateCommitWarningNanos;
   private final long autoCommitNanos;
 
@@ -83,13 +287,14 @@ public class OffsetCommitter<ID> {
   }
 
   public OffsetCommitter(long staleCommitWarningNanos, long autoCommitNanos) {
-    this.waitingOffsets = Collections.synchronizedMap(new HashMap<>());
     this.stateCommitWarningNanos = staleCommitWarningNanos;
     this.autoCommitNanos = autoCommitNanos;
   }
 
   /**
-   * Register number of actions to be performed before offset can be committed.
+   * Register number of actions to be performed before offset can be committed. Registering offset
+   * not greater than the last registered offset of the same ID (e.g. after seek) discards all
+   * offsets pending for that ID.
    *
    * @param id id of the consumer
    * @param offset the registered offset
@@ -98,13 +303,20 @@ public class OffsetCommitter<ID> {
    * @param commit {@link Callback} to call to commit
    */
   public void register(ID id, long offset, int numActions, Callback commit) {
-    NavigableMap<Long, OffsetMeta> current =
-        waitingOffsets.computeIfAbsent(
-            id, tmp -> Collections.synchronizedNavigableMap(new TreeMap<>()));
+    PartitionOffsets current = waitingOffsets.computeIfAbsent(id, PartitionOffsets::new);
     log.debug("Registered offset {} for ID {} with {} actions", offset, id, numActions);
-    current.put(offset, new OffsetMeta(numActions, commit));
+    if (!current.register(offset, numActions, commit)) {
+      log.info(
+          "Offset {} of ID {} registered out of order after {}, discarding pending offsets",
+          offset,
+          id,
+          current.lastOffset);
+      current = new PartitionOffsets(id);
+      waitingOffsets.put(id, current);
+      current.register(offset, numActions, commit);
+    }
     if (numActions == 0) {
-      checkCommittable(id, current);
+      current.checkCommittable();
     }
   }
 
@@ -115,69 +327,36 @@ public class OffsetCommitter<ID> {
    * @param offset the offset to confirm
    */
   public void confirm(ID id, long offset) {
-    Map<Long, OffsetMeta> current = waitingOffsets.get(id);
+    PartitionOffsets current = waitingOffsets.get(id);
     log.debug("Confirming processing of offset {} with ID {}", offset, id);
     if (current != null) {
-      OffsetMeta meta = current.get(offset);
-      if (meta != null) {
-        meta.decrement();
-      }
-      checkCommittable(id, current);
+      current.confirm(offset);
+      current.checkCommittable();
     }
   }
 
-  private void checkCommittable(ID id, final Map<Long, OffsetMeta> current) {
-    synchronized (current) {
-      List<Map.Entry<Long, OffsetMeta>> committable = new ArrayList<>();
-      for (Map.Entry<Long, OffsetMeta> e : current.entrySet()) {
-        long age = e.getValue().getNanoAge();
-        if (age > autoCommitNanos) {
-          committable.add(e);
-          log.warn(
-              "Auto adding offset {} of ID {} to comittable map due to age {} ns. "
-                  + "The commit might have been lost. Verify your commit logic to remove this warning.",
-              e.getKey(),
-              id,
-              age);
-        } else if (e.getValue().getActions() <= 0) {
-          committable.add(e);
-          log.debug("Added offset {} of ID {} to committable map.", e.getKey(), id);
-        } else {
-          if (age > stateCommitWarningNanos) {
-            log.warn(
-                "Offset {} ID {} was not committed in {} ns ({} actions missing). Please verify your commit logic!",
-                e.getKey(),
-                id,
-                age,
-                e.getValue().getActions());
-          } else {
-            log.debug(
-                "Waiting for still non-committed offset {} in {}, {} actions missing",
-                e.getKey(),
-                id,
-                e.getValue().getActions());
-          }
-          break;
-        }
-      }
-      if (!committable.isEmpty()) {
-        Map.Entry<Long, OffsetMeta> toCommit = committable.get(committable.size() - 1);
-        committable.forEach(e -> current.remove(e.getKey()));
-        toCommit.getValue().getCommit().apply();
-      }
-    }
+  /**
+   * Retrieve number of registered offsets that were not committed yet.
+   *
+   * @param id id of the consumer
+   * @return number of pending offsets
+   */
+  public long getPending(ID id) {
+    PartitionOffsets current = waitingOffsets.get(id);
+    return current == null ? 0 : current.pending();
   }
 
   /**
-   * Clear all records for given topic partition and offset.
+   * Clear all records for given topic partition and offset. The offset is forgotten, it is not
+   * committed and does not block commits of other offsets. Confirmations of the offset are ignored.
    *
    * @param id id of the consumer
    * @param offset offset to clear
    */
   public void clear(ID id, long offset) {
-    Map<Long, OffsetMeta> current = waitingOffsets.get(id);
+    PartitionOffsets current = waitingOffsets.get(id);
     if (current != null) {
-      current.remove(offset);
+      current.clear(offset);
     }
   }
 
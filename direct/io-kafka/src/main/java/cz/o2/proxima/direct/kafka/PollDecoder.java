@@ -0,0 +1,228 @@
+/**
+ * Copyright 2017-2020 O2 Czech Republic, a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.o2.proxima.direct.kafka;
+
+import com.google.common.base.Preconditions;
+import cz.o2.proxima.functional.Factory;
+import cz.o2.proxima.repository.EntityDescriptor;
+import cz.o2.proxima.storage.StreamElement;
+import cz.o2.proxima.util.Pair;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.TopicPartition;
+
+/**
+ * Decoder of polled records into {@link StreamElement StreamElements}.
+ *
+ * <p>When created with workers, the records of each partition are split into chunks that are
+ * decoded (including parsing of values) in parallel. Decoded records are returned in the order of
+ * the poll, so the records of each partition keep their order. Number of chunks being decoded ahead
+ * of the returned records is limited. Each worker thread uses its own {@link ElementSerializer}.
+ */
+class PollDecoder implements AutoCloseable {
+
+  private static final AtomicInteger WORKER_ID = new AtomicInteger();
+
+  private final EntityDescriptor entity;
+  private final ElementSerializer<Object, Object> serializer;
+  @Nullable private final ExecutorService workers;
+  @Nullable private final ThreadLocal<ElementSerializer<Object, Object>> workerSerializer;
+  private final int chunkSize;
+  private final int maxInFlight;
+
+  /**
+   * Create decoder decoding records on the polling thread.
+   *
+   * @param entity entity of the records
+   * @param serializerFactory factory of serializers of records
+   */
+  PollDecoder(
+      EntityDescriptor entity, Factory<ElementSerializer<Object, Object>> serializerFactory) {
+
+    this(entity, serializerFactory, 0, 1, 1);
+  }
+
+  /**
+   * Create decoder.
+   *
+   * @param entity entity of the records
+   * @param serializerFactory factory of serializers of records
+   * @param numWorkers number of worker threads, zero to decode records on the polling thread
+   * @param chunkSize maximal number of records decoded by single task
+   * @param maxInFlight maximal number of chunks decoded ahead of the polling thread
+   */
+  PollDecoder(
+      EntityDescriptor entity,
+      Factory<ElementSerializer<Object, Object>> serializerFactory,
+      int numWorkers,
+      int chunkSize,
+      int maxInFlight) {
+
+    Preconditions.checkArgument(numWorkers >= 0, "Number of workers must not be negative");
+    Preconditions.checkArgument(chunkSize > 0, "Chunk size must be positive");
+    Preconditions.checkArgument(maxInFlight > 0, "Maximal number of chunks must be positive");
+    this.entity = entity;
+    this.serializer = serializerFactory.apply();
+    this.chunkSize = chunkSize;
+    this.maxInFlight = maxInFlight;
+    if (numWorkers > 0) {
+      this.workers =
+          Executors.newFixedThreadPool(
+              numWorkers,
+              r -> {
+                Thread t = new Thread(r);
+                t.setName("kafka-decoder-" + WORKER_ID.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+              });
+      this.workerSerializer = ThreadLocal.withInitial(serializerFactory::apply);
+    } else {
+      this.workers = null;
+      this.workerSerializer = null;
+    }
+  }
+
+  /**
+   * Decode records of given poll.
+   *
+   * @param poll the polled records
+   * @return iterator of records paired with decoded elements ({@code null} when not parseable)
+   */
+  Iterator<Pair<ConsumerRecord<Object, Object>, StreamElement>> decode(
+      ConsumerRecords<Object, Object> poll) {
+
+    if (workers == null) {
+      Iterator<ConsumerRecord<Object, Object>> records = poll.iterator();
+      return new Iterator<Pair<ConsumerRecord<Object, Object>, StreamElement>>() {
+        @Override
+        public boolean hasNext() {
+          return records.hasNext();
+        }
+
+        @Override
+        public Pair<ConsumerRecord<Object, Object>, StreamElement> next() {
+          ConsumerRecord<Object, Object> r = records.next();
+          return Pair.of(r, serializer.read(r, entity));
+        }
+      };
+    }
+    List<List<ConsumerRecord<Object, Object>>> chunks = new ArrayList<>();
+    for (TopicPartition tp : poll.partitions()) {
+      List<ConsumerRecord<Object, Object>> records = poll.records(tp);
+      for (int i = 0; i < records.size(); i += chunkSize) {
+        chunks.add(records.subList(i, Math.min(records.size(), i + chunkSize)));
+      }
+    }
+    return new PipelinedIterator(chunks);
+  }
+
+  @Override
+  public void close() {
+    if (workers != null) {
+      workers.shutdownNow();
+    }
+  }
+
+  private List<Pair<ConsumerRecord<Object, Object>, StreamElement>> decodeChunk(
+      List<ConsumerRecord<Object, Object>> chunk) {
+
+    ElementSerializer<Object, Object> chunkSerializer = workerSerializer.get();
+    List<Pair<ConsumerRecord<Object, Object>, StreamElement>> ret = new ArrayList<>(chunk.size());
+    for (ConsumerRecord<Object, Object> r : chunk) {
+      StreamElement ingest = chunkSerializer.read(r, entity);
+      if (ingest != null) {
+        // parse the value in parallel as well
+        ingest.getParsed();
+      }
+      ret.add(Pair.of(r, ingest));
+    }
+    return ret;
+  }
+
+  private class PipelinedIterator
+      implements Iterator<Pair<ConsumerRecord<Object, Object>, StreamElement>> {
+
+    private final Iterator<List<ConsumerRecord<Object, Object>>> chunks;
+    private final Deque<Future<List<Pair<ConsumerRecord<Object, Object>, StreamElement>>>>
+        inFlight = new ArrayDeque<>();
+    private Iterator<Pair<ConsumerRecord<Object, Object>, StreamElement>> current =
+        Collections.emptyIterator();
+
+    PipelinedIterator(List<List<ConsumerRecord<Object, Object>>> chunks) {
+      this.chunks = chunks.iterator();
+      submitChunks();
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (!current.hasNext()) {
+        Future<List<Pair<ConsumerRecord<Object, Object>, StreamElement>>> next = inFlight.poll();
+        if (next == null) {
+          return false;
+        }
+        submitChunks();
+        current = await(next).iterator();
+      }
+      return true;
+    }
+
+    @Override
+    public Pair<ConsumerRecord<Object, Object>, StreamElement> next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return current.next();
+    }
+
+    private void submitChunks() {
+      while (inFlight.size() < maxInFlight && chunks.hasNext()) {
+        List<ConsumerRecord<Object, Object>> chunk = chunks.next();
+        inFlight.add(workers.submit(() -> decodeChunk(chunk)));
+      }
+    }
+
+    private List<Pair<ConsumerRecord<Object, Object>, StreamElement>> await(
+        Future<List<Pair<ConsumerRecord<Object, Object>, StreamElement>>> future) {
+
+      try {
+        return future.get();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        inFlight.forEach(f -> f.cancel(true));
+        throw new IllegalStateException("Interrupted while decoding records", ex);
+      } catch (ExecutionException ex) {
+        inFlight.forEach(f -> f.cancel(true));
+        if (ex.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) ex.getCause();
+        }
+        throw new IllegalStateException("Failed to decode records", ex.getCause());
+      }
+    }
+  }
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright 2017-2020 O2 Czech Republic, a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.o2.proxima.direct.kafka;
+
+import com.google.common.base.Preconditions;
+import cz.o2.proxima.functional.Factory;
+
+/**
+ * Token bucket refilled at constant rate up to capacity of one second worth of tokens. Tokens are
+ * consumed after the fact, so the bucket can get into debt. The bucket is not thread-safe.
+ */
+class TokenBucket {
+
+  private final double tokensPerNano;
+  private final double capacity;
+  private final Factory<Long> nanoTime;
+  private double tokens;
+  private long lastRefillNanos;
+
+  /**
+   * Create bucket with given rate.
+   *
+   * @param tokensPerSec number of tokens added each second
+   */
+  TokenBucket(long tokensPerSec) {
+    this(tokensPerSec, System::nanoTime);
+  }
+
+  TokenBucket(long tokensPerSec, Factory<Long> nanoTime) {
+    Preconditions.checkArgument(tokensPerSec > 0, "Rate must be positive, got %s", tokensPerSec);
+    this.tokensPerNano = tokensPerSec / 1e9;
+    this.capacity = tokensPerSec;
+    this.nanoTime = nanoTime;
+    this.tokens = capacity;
+    this.lastRefillNanos = nanoTime.apply();
+  }
+
+  /**
+   * Consume given number of tokens.
+   *
+   * @param amount number of tokens to consume
+   */
+  void consume(long amount) {
+    refill();
+    tokens -= amount;
+  }
+
+  /** @return {@code true} if the bucket is not in debt */
+  boolean isAvailable() {
+    refill();
+    return tokens >= 0;
+  }
+
+  private void refill() {
+    long now = nanoTime.apply();
+    tokens = Math.min(capacity, tokens + (now - lastRefillNanos) * tokensPerNano);
+    lastRefillNanos = now;
+  }
+}
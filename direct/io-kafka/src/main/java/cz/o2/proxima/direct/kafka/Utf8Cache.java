@@ -0,0 +1,100 @@
+/**
+ * Copyright 2017-2020 O2 Czech Republic, a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.o2.proxima.direct.kafka;
+
+import com.google.common.base.Preconditions;
+import cz.o2.proxima.functional.UnaryFunction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import javax.annotation.Nullable;
+
+/**
+ * Direct-mapped cache of strings decoded from ranges of UTF-8 bytes, each associated with a value
+ * resolved from the string. Repeated lookups of the same bytes return the same string instance
+ * without decoding the bytes again. Colliding entries replace each other.
+ *
+ * <p>Entries are immutable, so the cache can be safely accessed from multiple threads.
+ *
+ * @param <T> type of values associated with the strings
+ */
+class Utf8Cache<T> {
+
+  static final class Entry<T> {
+
+    private final byte[] bytes;
+    final String string;
+    @Nullable final T value;
+
+    private Entry(byte[] bytes, String string, @Nullable T value) {
+      this.bytes = bytes;
+      this.string = string;
+      this.value = value;
+    }
+
+    private boolean matches(byte[] data, int from, int to) {
+      if (bytes.length != to - from) {
+        return false;
+      }
+      for (int i = 0; i < bytes.length; i++) {
+        if (bytes[i] != data[from + i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  private final Entry<T>[] slots;
+  private final UnaryFunction<String, T> resolver;
+
+  /**
+   * Create the cache.
+   *
+   * @param size number of slots in the cache (power of two)
+   * @param resolver function resolving value associated with decoded string
+   */
+  @SuppressWarnings("unchecked")
+  Utf8Cache(int size, UnaryFunction<String, T> resolver) {
+    Preconditions.checkArgument(
+        size > 0 && Integer.bitCount(size) == 1, "Size must be power of two, got %s", size);
+    this.slots = new Entry[size];
+    this.resolver = resolver;
+  }
+
+  /**
+   * Retrieve entry for given range of bytes.
+   *
+   * @param data the bytes
+   * @param from start of the range (inclusive)
+   * @param to end of the range (exclusive)
+   * @return the entry with decoded string and associated value
+   */
+  Entry<T> get(byte[] data, int from, int to) {
+    int hash = 1;
+    for (int i = from; i < to; i++) {
+      hash = 31 * hash + data[i];
+    }
+    hash ^= hash >>> 16;
+    int slot = hash & (slots.length - 1);
+    Entry<T> entry = slots[slot];
+    if (entry == null || !entry.matches(data, from, to)) {
+      String string = new String(data, from, to - from, StandardCharsets.UTF_8);
+      entry = new Entry<>(Arrays.copyOfRange(data, from, to), string, resolver.apply(string));
+      slots[slot] = entry;
+    }
+    return entry;
+  }
+}
@@ -0,0 +1,399 @@
+/**
+ * Copyright 2017-2020 O2 Czech Republic, a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.o2.proxima.direct.kafka.serializer;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.Hashing;
+import cz.o2.proxima.direct.kafka.ElementSerializer;
+import cz.o2.proxima.repository.AttributeDescriptor;
+import cz.o2.proxima.repository.EntityDescriptor;
+import cz.o2.proxima.storage.StreamElement;
+import cz.o2.proxima.util.Pair;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import javax.annotation.Nullable;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.serialization.Serde;
+import org.apache.kafka.common.serialization.Serdes;
+
+/**
+ * A {@link ElementSerializer} storing elements in compact binary envelope, that preserves ingest
+ * UUID and delete-wildcard flag of the element.
+ *
+ * <p>The key identifies the entity attribute, so that records of the same attribute share key and
+ * can be compacted by kafka:
+ *
+ * <ul>
+ *   <li>varint length of UTF-8 encoded entity key followed by the key
+ *   <li>varint id of attribute, which is 28-bit murmur3 hash of the attribute name
+ *   <li>for wildcard attributes varint length of UTF-8 encoded attribute suffix (the part after the
+ *       prefix of the attribute) followed by the suffix
+ * </ul>
+ *
+ * <p>The value carries metadata of the element followed by its payload (except for deletes of
+ * single attribute, see below):
+ *
+ * <ul>
+ *   <li>flags byte (delete, delete wildcard, binary UUID)
+ *   <li>varint stamp
+ *   <li>UUID as 16 raw bytes if the UUID is in canonical form, otherwise varint length of the UTF-8
+ *       encoded UUID followed by the UUID
+ *   <li>the value of the element (empty for deletes)
+ * </ul>
+ *
+ * <p>Attribute ids depend only on names of attributes, so attributes can be added to or removed
+ * from the entity while the topic contains data written by this serializer, as long as no attribute
+ * is renamed. Entity with two attributes having the same id is rejected in {@link
+ * #setup(EntityDescriptor)}.
+ *
+ * <p>Deletes of single attribute are written as tombstones with {@code null} value, so that kafka
+ * removes the deleted record from compacted topic. Tombstone read from the topic has its UUID
+ * derived from topic, partition and offset of the record, and its stamp is the timestamp of the
+ * record. Wildcard deletes do not delete any single record, so they are never tombstones.
+ */
+@Slf4j
+public class BinaryEnvelopeSerializer implements ElementSerializer<byte[], byte[]> {
+
+  private static final long serialVersionUID = 1L;
+
+  static final byte FLAG_DELETE = 0x01;
+  static final byte FLAG_DELETE_WILDCARD = 0x02;
+  static final byte FLAG_BINARY_UUID = 0x04;
+
+  private static final byte[] EMPTY = new byte[0];
+
+  /** Attributes of single entity indexed by their ids. Immutable, so it is shared by threads. */
+  private static class AttributeIndex {
+
+    final EntityDescriptor entity;
+    final Map<Integer, AttributeDescriptor<?>> byId;
+    final Map<String, Integer> idsByName;
+
+    AttributeIndex(EntityDescriptor entity) {
+      Map<Integer, AttributeDescriptor<?>> attributes = new HashMap<>();
+      Map<String, Integer> ids = new HashMap<>();
+      for (AttributeDescriptor<?> attr : entity.getAllAttributes(true)) {
+        int id = attributeId(attr.getName());
+        AttributeDescriptor<?> previous = attributes.put(id, attr);
+        if (previous != null) {
+          throw new IllegalStateException(
+              String.format(
+                  "Attributes %s and %s of entity %s have the same id %d",
+                  previous.getName(), attr.getName(), entity.getName(), id));
+        }
+        ids.put(attr.getName(), id);
+      }
+      this.entity = entity;
+      this.byId = attributes;
+      this.idsByName = ids;
+    }
+  }
+
+  @Nullable private transient volatile AttributeIndex attributeIndex;
+
+  @Override
+  public void setup(EntityDescriptor entityDescriptor) {
+    resetIfEntityChanged(entityDescriptor);
+  }
+
+  @Nullable
+  @Override
+  public StreamElement read(ConsumerRecord<byte[], byte[]> record, EntityDescriptor entityDesc) {
+    AttributeIndex index = resetIfEntityChanged(entityDesc);
+    byte[] key = record.key();
+    byte[] value = record.value();
+    if (key == null) {
+      log.error(
+          "Missing key of record at offset {} of partition {} of topic {}",
+          record.offset(),
+          record.partition(),
+          record.topic());
+      return null;
+    }
+    try {
+      Reader keyReader = new Reader(key);
+      String entityKey = keyReader.readString();
+      int attributeId = keyReader.readVarInt();
+      AttributeDescriptor<?> attrDesc = index.byId.get(attributeId);
+      if (attrDesc == null) {
+        log.error(
+            "Invalid attribute id {} of entity {} at offset {} of partition {} of topic {}",
+            attributeId,
+            entityDesc.getName(),
+            record.offset(),
+            record.partition(),
+            record.topic());
+        return null;
+      }
+      String attribute =
+          attrDesc.isWildcard()
+              ? attrDesc.toAttributePrefix() + keyReader.readString()
+              : attrDesc.getName();
+      if (value == null) {
+        String uuid = record.topic() + "#" + record.partition() + "#" + record.offset();
+        return StreamElement.delete(
+            entityDesc, attrDesc, uuid, entityKey, attribute, record.timestamp());
+      }
+
+      Reader valueReader = new Reader(value);
+      byte flags = valueReader.readByte();
+      long stamp = valueReader.readVarLong();
+      String uuid =
+          (flags & FLAG_BINARY_UUID) != 0
+              ? new UUID(valueReader.readLong(), valueReader.readLong()).toString()
+              : valueReader.readString();
+      if ((flags & FLAG_DELETE_WILDCARD) != 0) {
+        return StreamElement.deleteWildcard(
+            entityDesc, attrDesc, uuid, entityKey, attribute, stamp);
+      }
+      if ((flags & FLAG_DELETE) != 0) {
+        // written by previous versions, that did not write deletes as tombstones
+        return StreamElement.delete(entityDesc, attrDesc, uuid, entityKey, attribute, stamp);
+      }
+      return StreamElement.upsert(
+          entityDesc, attrDesc, uuid, entityKey, attribute, stamp, valueReader.readRemaining());
+    } catch (IndexOutOfBoundsException ex) {
+      log.error(
+          "Truncated record at offset {} of partition {} of topic {}",
+          record.offset(),
+          record.partition(),
+          record.topic(),
+          ex);
+      return null;
+    }
+  }
+
+  @Override
+  public Pair<byte[], byte[]> write(StreamElement element) {
+    AttributeIndex index = resetIfEntityChanged(element.getEntityDescriptor());
+    AttributeDescriptor<?> attrDesc = element.getAttributeDescriptor();
+    Integer attributeId = index.idsByName.get(attrDesc.getName());
+    Preconditions.checkArgument(
+        attributeId != null,
+        "Attribute %s is not part of entity %s",
+        attrDesc.getName(),
+        index.entity.getName());
+
+    byte[] entityKey = element.getKey().getBytes(StandardCharsets.UTF_8);
+    byte[] suffix =
+        attrDesc.isWildcard()
+            ? element
+                .getAttribute()
+                .substring(attrDesc.toAttributePrefix().length())
+                .getBytes(StandardCharsets.UTF_8)
+            : EMPTY;
+    Writer key =
+        new Writer(
+            sizeOfVarLong(entityKey.length)
+                + entityKey.length
+                + sizeOfVarLong(attributeId)
+                + (attrDesc.isWildcard() ? sizeOfVarLong(suffix.length) + suffix.length : 0));
+    key.writeBytes(entityKey);
+    key.writeVarLong(attributeId);
+    if (attrDesc.isWildcard()) {
+      key.writeBytes(suffix);
+    }
+
+    if (element.isDelete() && !element.isDeleteWildcard()) {
+      return Pair.of(key.data, null);
+    }
+    byte flags = 0;
+    if (element.isDeleteWildcard()) {
+      flags |= FLAG_DELETE_WILDCARD;
+    }
+    UUID binaryUuid = parseUuid(element.getUuid());
+    byte[] uuid = EMPTY;
+    if (binaryUuid != null) {
+      flags |= FLAG_BINARY_UUID;
+    } else {
+      uuid = element.getUuid().getBytes(StandardCharsets.UTF_8);
+    }
+    byte[] payload = element.isDelete() || element.getValue() == null ? EMPTY : element.getValue();
+    Writer value =
+        new Writer(
+            1
+                + sizeOfVarLong(element.getStamp())
+                + (binaryUuid != null ? 16 : sizeOfVarLong(uuid.length) + uuid.length)
+                + payload.length);
+    value.writeByte(flags);
+    value.writeVarLong(element.getStamp());
+    if (binaryUuid != null) {
+      value.writeLong(binaryUuid.getMostSignificantBits());
+      value.writeLong(binaryUuid.getLeastSignificantBits());
+    } else {
+      value.writeBytes(uuid);
+    }
+    value.writeRaw(payload);
+    return Pair.of(key.data, value.data);
+  }
+
+  @Override
+  public Serde<byte[]> keySerde() {
+    return Serdes.ByteArray();
+  }
+
+  @Override
+  public Serde<byte[]> valueSerde() {
+    return Serdes.ByteArray();
+  }
+
+  private AttributeIndex resetIfEntityChanged(EntityDescriptor entityDesc) {
+    AttributeIndex current = attributeIndex;
+    if (current == null || current.entity != entityDesc) {
+      // concurrent threads might build the index more than once, the result is always equal
+      current = new AttributeIndex(entityDesc);
+      attributeIndex = current;
+    }
+    return current;
+  }
+
+  /** Compute id of attribute with given name. */
+  static int attributeId(String name) {
+    // 28 bits fit into four bytes of varint
+    return Hashing.murmur3_32().hashString(name, StandardCharsets.UTF_8).asInt() & 0x0FFFFFFF;
+  }
+
+  /** Parse UUID in canonical form, return {@code null} if the string is not canonical UUID. */
+  @Nullable
+  static UUID parseUuid(String uuid) {
+    if (uuid.length() != 36) {
+      return null;
+    }
+    try {
+      UUID parsed = UUID.fromString(uuid);
+      // UUID.fromString accepts non-canonical forms, which would not survive round-trip
+      return parsed.toString().equals(uuid) ? parsed : null;
+    } catch (IllegalArgumentException ex) {
+      return null;
+    }
+  }
+
+  static int sizeOfVarLong(long value) {
+    int size = 1;
+    while ((value & ~0x7FL) != 0) {
+      value >>>= 7;
+      size++;
+    }
+    return size;
+  }
+
+  private static class Writer {
+
+    final byte[] data;
+    int pos = 0;
+
+    Writer(int size) {
+      this.data = new byte[size];
+    }
+
+    void writeByte(byte b) {
+      data[pos++] = b;
+    }
+
+    void writeVarLong(long value) {
+      while ((value & ~0x7FL) != 0) {
+        data[pos++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      data[pos++] = (byte) value;
+    }
+
+    void writeLong(long value) {
+      for (int shift = 56; shift >= 0; shift -= 8) {
+        data[pos++] = (byte) (value >>> shift);
+      }
+    }
+
+    void writeBytes(byte[] bytes) {
+      writeVarLong(bytes.length);
+      writeRaw(bytes);
+    }
+
+    void writeRaw(byte[] bytes) {
+      System.arraycopy(bytes, 0, data, pos, bytes.length);
+      pos += bytes.length;
+    }
+  }
+
+  private static class Reader {
+
+    final byte[] data;
+    int pos = 0;
+
+    Reader(byte[] data) {
+      this.data = data;
+    }
+
+    byte readByte() {
+      checkAvailable(1);
+      return data[pos++];
+    }
+
+    long readVarLong() {
+      long value = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        byte b = readByte();
+        value |= (long) (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+      throw new IndexOutOfBoundsException("Malformed varint at position " + pos);
+    }
+
+    int readVarInt() {
+      long value = readVarLong();
+      if (value < 0 || value > Integer.MAX_VALUE) {
+        throw new IndexOutOfBoundsException("Invalid length " + value + " at position " + pos);
+      }
+      return (int) value;
+    }
+
+    long readLong() {
+      checkAvailable(8);
+      long value = 0;
+      for (int i = 0; i < 8; i++) {
+        value = (value << 8) | (data[pos++] & 0xFF);
+      }
+      return value;
+    }
+
+    String readString() {
+      int length = readVarInt();
+      checkAvailable(length);
+      String ret = new String(data, pos, length, StandardCharsets.UTF_8);
+      pos += length;
+      return ret;
+    }
+
+    byte[] readRemaining() {
+      byte[] ret = new byte[data.length - pos];
+      System.arraycopy(data, pos, ret, 0, ret.length);
+      pos = data.length;
+      return ret;
+    }
+
+    private void checkAvailable(int length) {
+      if (length > data.length - pos) {
+        throw new IndexOutOfBoundsException(
+            "Need " + length + " bytes at position " + pos + " of " + data.length);
+      }
+    }
+  }
+}
@@ -0,0 +1,169 @@
+/**
+ * Copyright 2017-2020 O2 Czech Republic, a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.o2.proxima.direct.kafka;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import cz.o2.proxima.util.Pair;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.consumer.OffsetCommitCallback;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.clients.consumer.RetriableCommitFailedException;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Test {@link CommitFlusher}. */
+public class CommitFlusherTest {
+
+  final TopicPartition tp = new TopicPartition("topic", 0);
+  final AtomicBoolean failAsync = new AtomicBoolean();
+  final AtomicBoolean deferAsync = new AtomicBoolean();
+  final List<Pair<Map<TopicPartition, OffsetAndMetadata>, OffsetCommitCallback>> deferred =
+      new ArrayList<>();
+  final MockConsumer<Object, Object> kafka =
+      new MockConsumer<Object, Object>(OffsetResetStrategy.EARLIEST) {
+        @Override
+        public synchronized void commitAsync(
+            Map<TopicPartition, OffsetAndMetadata> offsets, OffsetCommitCallback callback) {
+
+          if (deferAsync.get()) {
+            deferred.add(Pair.of(offsets, callback));
+          } else if (failAsync.get()) {
+            callback.onComplete(offsets, new RetriableCommitFailedException("Fail"));
+          } else {
+            super.commitAsync(offsets, callback);
+          }
+        }
+      };
+
+  @SuppressWarnings("unchecked")
+  final ElementConsumer<Object, Object> consumer = mock(ElementConsumer.class);
+
+  @Before
+  public void setUp() {
+    kafka.assign(Collections.singletonList(tp));
+    when(consumer.prepareOffsetsForCommit()).thenReturn(Collections.emptyMap());
+  }
+
+  @Test
+  public void testCommitEachPoll() {
+    CommitFlusher flusher = new CommitFlusher("test-sync", false, 0, 0);
+    prepare(10);
+    flusher.flush(kafka, consumer);
+    assertEquals(10, committed());
+  }
+
+  @Test
+  public void testCommitAfterNumOffsets() {
+    CommitFlusher flusher = new CommitFlusher("test-offsets", true, Long.MAX_VALUE, 5);
+    // first offset of partition counts as single offset
+    prepare(5);
+    flusher.flush(kafka, consumer);
+    assertEquals(-1, committed());
+    prepare(8);
+    flusher.flush(kafka, consumer);
+    assertEquals(-1, committed());
+    prepare(9);
+    flusher.flush(kafka, consumer);
+    assertEquals(9, committed());
+    prepare(11);
+    flusher.flushSync(kafka, consumer);
+    assertEquals(11, committed());
+  }
+
+  @Test
+  public void testFailedAsyncCommitRetried() {
+    CommitFlusher flusher = new CommitFlusher("test-failed", true, 0, 0);
+    failAsync.set(true);
+    prepare(5);
+    flusher.flush(kafka, consumer);
+    assertEquals(-1, committed());
+    failAsync.set(false);
+    flusher.flush(kafka, consumer);
+    assertEquals(5, committed());
+  }
+
+  @Test
+  public void testCommitOnRevoke() {
+    CommitFlusher flusher = new CommitFlusher("test-revoke", true, Long.MAX_VALUE, 0);
+    prepare(3);
+    flusher.flush(kafka, consumer);
+    assertEquals(-1, committed());
+    flusher.onRevoked(kafka, consumer, Collections.singletonList(tp));
+    assertEquals(3, committed());
+  }
+
+  @Test
+  public void testFailedAsyncCommitNotRolledBack() {
+    CommitFlusher flusher = new CommitFlusher("test-rollback", true, 0, 0);
+    deferAsync.set(true);
+    prepare(10);
+    flusher.flush(kafka, consumer);
+    prepare(20);
+    flusher.flush(kafka, consumer);
+    assertEquals(2, deferred.size());
+    deferAsync.set(false);
+    // the older commit fails while the newer one is in flight
+    failCommit(deferred.get(0));
+    succeedCommit(deferred.get(1));
+    assertEquals(20, committed());
+    flusher.flush(kafka, consumer);
+    assertEquals(20, committed());
+  }
+
+  @Test
+  public void testFailedAsyncCommitOfRevokedPartitionDropped() {
+    CommitFlusher flusher = new CommitFlusher("test-revoked-failed", true, 0, 0);
+    deferAsync.set(true);
+    prepare(3);
+    flusher.flush(kafka, consumer);
+    deferAsync.set(false);
+    flusher.onRevoked(kafka, consumer, Collections.singletonList(tp));
+    failCommit(deferred.get(0));
+    flusher.flush(kafka, consumer);
+    assertEquals(-1, committed());
+  }
+
+  private void failCommit(
+      Pair<Map<TopicPartition, OffsetAndMetadata>, OffsetCommitCallback> commit) {
+    commit.getSecond().onComplete(commit.getFirst(), new RetriableCommitFailedException("Fail"));
+  }
+
+  private void succeedCommit(
+      Pair<Map<TopicPartition, OffsetAndMetadata>, OffsetCommitCallback> commit) {
+    kafka.commitSync(commit.getFirst());
+    commit.getSecond().onComplete(commit.getFirst(), null);
+  }
+
+  private void prepare(long offset) {
+    when(consumer.prepareOffsetsForCommit())
+        .thenReturn(Collections.singletonMap(tp, new OffsetAndMetadata(offset)))
+        .thenReturn(Collections.emptyMap());
+  }
+
+  private long committed() {
+    OffsetAndMetadata committed = kafka.committed(Collections.singleton(tp)).get(tp);
+    return committed == null ? -1 : committed.offset();
+  }
+}
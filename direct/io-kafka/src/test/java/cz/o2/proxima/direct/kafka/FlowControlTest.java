@@ -0,0 +1,131 @@
+/**
+ * Copyright 2017-2020 O2 Czech Republic, a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.o2.proxima.direct.kafka;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import com.google.common.collect.Sets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Test {@link FlowControl} and {@link TokenBucket}. */
+public class FlowControlTest {
+
+  final TopicPartition first = new TopicPartition("topic", 0);
+  final TopicPartition second = new TopicPartition("topic", 1);
+  final MockConsumer<Object, Object> kafka = new MockConsumer<>(OffsetResetStrategy.EARLIEST);
+
+  @SuppressWarnings("unchecked")
+  final ElementConsumer<Object, Object> consumer = mock(ElementConsumer.class);
+
+  @Before
+  public void setUp() {
+    kafka.assign(Arrays.asList(first, second));
+  }
+
+  @Test
+  public void testPauseOnUnconfirmedOffsets() {
+    FlowControl flowControl = new FlowControl(Long.MAX_VALUE, Long.MAX_VALUE, 10, 1000);
+    when(consumer.getUnconfirmed(first)).thenReturn(10L);
+    when(consumer.getUnconfirmed(second)).thenReturn(9L);
+    flowControl.apply(kafka, consumer);
+    assertEquals(Collections.singleton(first), kafka.paused());
+    assertTrue(flowControl.isPaused(0));
+    assertFalse(flowControl.isPaused(1));
+
+    // not yet confirmed enough
+    when(consumer.getUnconfirmed(first)).thenReturn(6L);
+    flowControl.apply(kafka, consumer);
+    assertEquals(Collections.singleton(first), kafka.paused());
+
+    when(consumer.getUnconfirmed(first)).thenReturn(5L);
+    flowControl.apply(kafka, consumer);
+    assertTrue(kafka.paused().isEmpty());
+    assertFalse(flowControl.isPaused(0));
+  }
+
+  @Test
+  public void testResumeStalledObserver() {
+    AtomicLong now = new AtomicLong();
+    FlowControl flowControl = new FlowControl(Long.MAX_VALUE, Long.MAX_VALUE, 10, 1000, now::get);
+    when(consumer.getUnconfirmed(first)).thenReturn(10L);
+    flowControl.apply(kafka, consumer);
+    assertEquals(Collections.singleton(first), kafka.paused());
+    assertTrue(flowControl.hasBackPressure());
+
+    // progress of confirmation restarts the stall timeout
+    now.addAndGet(TimeUnit.MILLISECONDS.toNanos(900));
+    when(consumer.getUnconfirmed(first)).thenReturn(9L);
+    flowControl.apply(kafka, consumer);
+    now.addAndGet(TimeUnit.MILLISECONDS.toNanos(900));
+    flowControl.apply(kafka, consumer);
+    assertEquals(Collections.singleton(first), kafka.paused());
+
+    // the observer waits for more data to confirm
+    now.addAndGet(TimeUnit.MILLISECONDS.toNanos(100));
+    flowControl.apply(kafka, consumer);
+    assertTrue(kafka.paused().isEmpty());
+    assertFalse(flowControl.hasBackPressure());
+    when(consumer.getUnconfirmed(first)).thenReturn(20L);
+    flowControl.apply(kafka, consumer);
+    assertTrue(kafka.paused().isEmpty());
+
+    // the limit applies again after the observer confirms
+    when(consumer.getUnconfirmed(first)).thenReturn(15L);
+    flowControl.apply(kafka, consumer);
+    assertEquals(Collections.singleton(first), kafka.paused());
+    assertTrue(flowControl.hasBackPressure());
+  }
+
+  @Test
+  public void testPauseOnRateExceeded() {
+    FlowControl flowControl = new FlowControl(Long.MAX_VALUE, 100, 0, 1000);
+    flowControl.onPolled(1000, 50);
+    flowControl.apply(kafka, consumer);
+    assertTrue(kafka.paused().isEmpty());
+    flowControl.onPolled(1000, 100);
+    flowControl.apply(kafka, consumer);
+    assertEquals(Sets.newHashSet(first, second), kafka.paused());
+    assertTrue(flowControl.isPaused(0));
+    assertTrue(flowControl.isPaused(1));
+  }
+
+  @Test
+  public void testTokenBucket() {
+    AtomicLong now = new AtomicLong();
+    TokenBucket bucket = new TokenBucket(10, now::get);
+    bucket.consume(10);
+    assertTrue(bucket.isAvailable());
+    bucket.consume(5);
+    assertFalse(bucket.isAvailable());
+    now.addAndGet(TimeUnit.MILLISECONDS.toNanos(400));
+    assertFalse(bucket.isAvailable());
+    now.addAndGet(TimeUnit.MILLISECONDS.toNanos(200));
+    assertTrue(bucket.isAvailable());
+    // refill is capped by capacity
+    now.addAndGet(TimeUnit.SECONDS.toNanos(10));
+    bucket.consume(11);
+    assertFalse(bucket.isAvailable());
+  }
+}
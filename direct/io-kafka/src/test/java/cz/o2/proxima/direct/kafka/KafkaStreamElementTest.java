@@ -0,0 +1,106 @@
+/**
+ * Copyright 2017-2020 O2 Czech Republic, a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.o2.proxima.direct.kafka;
+
+import static org.junit.Assert.*;
+
+import com.typesafe.config.ConfigFactory;
+import cz.o2.proxima.direct.kafka.KafkaStreamElement.KafkaStreamElementBytesSerializer;
+import cz.o2.proxima.direct.kafka.KafkaStreamElement.KafkaStreamElementSerializer;
+import cz.o2.proxima.repository.EntityDescriptor;
+import cz.o2.proxima.repository.Repository;
+import cz.o2.proxima.storage.StreamElement;
+import cz.o2.proxima.util.Pair;
+import cz.o2.proxima.util.TestUtils;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.junit.Test;
+
+/** Test {@link KafkaStreamElement} and its serializers. */
+public class KafkaStreamElementTest {
+
+  Repository repo = Repository.of(ConfigFactory.load("test-reference.conf").resolve());
+  EntityDescriptor gateway = repo.getEntity("gateway");
+
+  @Test
+  public void testBytesSerializerCompatible() {
+    KafkaStreamElementSerializer serializer = new KafkaStreamElementSerializer();
+    KafkaStreamElementBytesSerializer bytesSerializer = new KafkaStreamElementBytesSerializer();
+    StreamElement element =
+        StreamElement.upsert(
+            gateway,
+            gateway.getAttribute("device.*"),
+            UUID.randomUUID().toString(),
+            "kľúč#1",
+            "device.1",
+            1L,
+            new byte[] {1, 2});
+    Pair<String, byte[]> written = serializer.write(element);
+    Pair<byte[], byte[]> bytesWritten = bytesSerializer.write(element);
+    assertArrayEquals(written.getFirst().getBytes(StandardCharsets.UTF_8), bytesWritten.getFirst());
+    StreamElement read =
+        serializer.read(
+            new ConsumerRecord<>("topic", 1, 2L, written.getFirst(), written.getSecond()), gateway);
+    StreamElement bytesRead =
+        bytesSerializer.read(
+            new ConsumerRecord<>("topic", 1, 2L, bytesWritten.getFirst(), bytesWritten.getSecond()),
+            gateway);
+    assertNotNull(read);
+    assertNotNull(bytesRead);
+    assertEquals("kľúč#1", bytesRead.getKey());
+    assertEquals("device.1", bytesRead.getAttribute());
+    assertEquals(gateway.getAttribute("device.*"), bytesRead.getAttributeDescriptor());
+    assertArrayEquals(new byte[] {1, 2}, bytesRead.getValue());
+    assertEquals("topic#1#2", read.getUuid());
+    assertEquals(read, bytesRead);
+  }
+
+  @Test
+  public void testBytesSerializerSharesKeys() {
+    KafkaStreamElementBytesSerializer serializer = new KafkaStreamElementBytesSerializer();
+    StreamElement first = serializer.read(record("key#armed", 1L), gateway);
+    StreamElement second = serializer.read(record("key#status", 2L), gateway);
+    assertNotNull(first);
+    assertNotNull(second);
+    assertSame(first.getKey(), second.getKey());
+    assertEquals("topic#0#2", second.getUuid());
+  }
+
+  @Test
+  public void testBytesSerializerInvalidKeys() {
+    KafkaStreamElementBytesSerializer serializer = new KafkaStreamElementBytesSerializer();
+    assertNull(serializer.read(record("key", 1L), gateway));
+    assertNull(serializer.read(record("key#unknown", 1L), gateway));
+    assertNull(
+        serializer.read(new ConsumerRecord<>("topic", 0, 1L, null, new byte[] {1}), gateway));
+  }
+
+  @Test
+  public void testLazyUuidSerializable() throws IOException, ClassNotFoundException {
+    StreamElement element =
+        new KafkaStreamElementBytesSerializer().read(record("key#armed", 3L), gateway);
+    StreamElement deserialized = TestUtils.deserializeObject(TestUtils.serializeObject(element));
+    assertEquals("topic#0#3", deserialized.getUuid());
+    assertEquals(element, deserialized);
+  }
+
+  private ConsumerRecord<byte[], byte[]> record(String key, long offset) {
+    return new ConsumerRecord<>(
+        "topic", 0, offset, key.getBytes(StandardCharsets.UTF_8), new byte[] {1});
+  }
+}
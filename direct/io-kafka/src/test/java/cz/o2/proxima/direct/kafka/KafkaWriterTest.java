@@ -0,0 +1,166 @@
+/**
+ * Copyright 2017-2020 O2 Czech Republic, a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.o2.proxima.direct.kafka;
+
+import static org.junit.Assert.*;
+
+import com.typesafe.config.ConfigFactory;
+import cz.o2.proxima.repository.AttributeDescriptor;
+import cz.o2.proxima.repository.EntityDescriptor;
+import cz.o2.proxima.repository.Repository;
+import cz.o2.proxima.storage.StreamElement;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.common.Cluster;
+import org.apache.kafka.common.Node;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.serialization.Serdes;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Test {@link KafkaWriter}. */
+public class KafkaWriterTest {
+
+  final Repository repo = Repository.of(ConfigFactory.load("test-reference.conf").resolve());
+  final EntityDescriptor gateway = repo.getEntity("gateway");
+  final AttributeDescriptor<?> armed = gateway.getAttribute("armed");
+  final AtomicInteger partitionsLookups = new AtomicInteger();
+
+  MockProducer<String, byte[]> producer;
+
+  @Before
+  public void setUp() {
+    Node node = new Node(0, "localhost", 9092);
+    List<PartitionInfo> partitions =
+        IntStream.range(0, 3)
+            .mapToObj(p -> new PartitionInfo("topic", p, node, new Node[0], new Node[0]))
+            .collect(Collectors.toList());
+    Cluster cluster =
+        new Cluster(
+            "cluster",
+            Collections.singletonList(node),
+            partitions,
+            Collections.emptySet(),
+            Collections.emptySet());
+    producer =
+        new MockProducer<String, byte[]>(
+            cluster, false, null, Serdes.String().serializer(), Serdes.ByteArray().serializer()) {
+          @Override
+          public synchronized List<PartitionInfo> partitionsFor(String topic) {
+            partitionsLookups.incrementAndGet();
+            return super.partitionsFor(topic);
+          }
+        };
+  }
+
+  @Test
+  public void testBulkWrite() {
+    KafkaWriter writer = writer(Collections.emptyMap());
+    AtomicReference<Boolean> result = new AtomicReference<>();
+    writer.write(elements(10), (succ, exc) -> result.set(succ));
+    assertEquals(10, producer.history().size());
+    assertNull(result.get());
+    for (int i = 0; i < 10; i++) {
+      producer.completeNext();
+    }
+    assertTrue(result.get());
+    assertEquals(1, partitionsLookups.get());
+  }
+
+  @Test
+  public void testBulkWriteFailure() {
+    KafkaWriter writer = writer(Collections.emptyMap());
+    AtomicReference<Throwable> error = new AtomicReference<>();
+    AtomicInteger commits = new AtomicInteger();
+    writer.write(
+        elements(3),
+        (succ, exc) -> {
+          assertFalse(succ);
+          error.set(exc);
+          commits.incrementAndGet();
+        });
+    producer.completeNext();
+    RuntimeException failure = new RuntimeException("Fail");
+    producer.errorNext(failure);
+    producer.completeNext();
+    assertEquals(1, commits.get());
+    assertSame(failure, error.get());
+
+    // failed write invalidates cached partitions
+    writer.write(elements(1), (succ, exc) -> {});
+    assertEquals(2, partitionsLookups.get());
+  }
+
+  @Test
+  public void testEmptyBulkWrite() {
+    KafkaWriter writer = writer(Collections.emptyMap());
+    AtomicReference<Boolean> result = new AtomicReference<>();
+    writer.write(Collections.emptyList(), (succ, exc) -> result.set(succ));
+    assertTrue(result.get());
+    assertTrue(producer.history().isEmpty());
+  }
+
+  @Test
+  public void testPartitionsCached() {
+    KafkaWriter writer = writer(Collections.emptyMap());
+    elements(5).forEach(element -> writer.write(element, (succ, exc) -> {}));
+    assertEquals(1, partitionsLookups.get());
+
+    KafkaWriter refreshing =
+        writer(Collections.singletonMap(KafkaAccessor.WRITER_PARTITIONS_REFRESH_MS, 0));
+    elements(5).forEach(element -> refreshing.write(element, (succ, exc) -> {}));
+    assertEquals(6, partitionsLookups.get());
+    assertEquals(10, producer.history().size());
+  }
+
+  private KafkaWriter writer(Map<String, Object> cfg) {
+    KafkaAccessor accessor =
+        new KafkaAccessor(gateway, URI.create("kafka-test://dummy/topic"), new HashMap<>(cfg));
+    return new KafkaWriter(accessor) {
+      @Override
+      Producer<String, byte[]> createProducer() {
+        return producer;
+      }
+    };
+  }
+
+  private List<StreamElement> elements(int count) {
+    List<StreamElement> ret = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      ret.add(
+          StreamElement.upsert(
+              gateway,
+              armed,
+              UUID.randomUUID().toString(),
+              "key" + i,
+              armed.getName(),
+              System.currentTimeMillis(),
+              new byte[] {1}));
+    }
+    return ret;
+  }
+}
@@ -42,6 +42,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -59,13 +60,16 @@ import javax.annotation.Nullable;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.admin.ConfigEntry;
 import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
 import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.consumer.OffsetCommitCallback;
 import org.apache.kafka.common.PartitionInfo;
 import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.InterruptException;
 import org.apache.kafka.common.record.TimestampType;
 
 /**
@@ -250,6 +254,7 @@ public class LocalKafkaCommitLogDescriptor implements DataAccessorFactory {
       int assignedId =
           assignedPartitions != null ? group.add(assignedPartitions) : group.add(listener);
       final AtomicBoolean polled = new AtomicBoolean();
+      final Set<Integer> paused = Collections.synchronizedSet(new HashSet<>());
 
       ConsumerId consumerId = ConsumerId.of(name, assignedId);
       consumerOffsets.put(
@@ -269,7 +274,13 @@ public class LocalKafkaCommitLogDescriptor implements DataAccessorFactory {
               invocation -> {
                 polled.set(true);
                 Duration sleep = (Duration) invocation.getArguments()[0];
-                return pollConsumer(group, sleep.toMillis(), consumerId, serializer, listener);
+                try {
+                  return pollConsumer(
+                      group, sleep.toMillis(), consumerId, serializer, listener, paused);
+                } catch (InterruptedException ex) {
+                  // consistently with KafkaConsumer
+                  throw new InterruptException(ex);
+                }
               })
           .when(mock)
           .poll(any());
@@ -305,6 +316,38 @@ public class LocalKafkaCommitLogDescriptor implements DataAccessorFactory {
           .when(mock)
           .seekToBeginning(any());
 
+      doAnswer(
+              invocation -> {
+                Collection<TopicPartition> parts;
+                parts = (Collection<TopicPartition>) invocation.getArguments()[0];
+                parts.forEach(tp -> paused.add(tp.partition()));
+                return null;
+              })
+          .when(mock)
+          .pause(any());
+
+      doAnswer(
+              invocation -> {
+                Collection<TopicPartition> parts;
+                parts = (Collection<TopicPartition>) invocation.getArguments()[0];
+                parts.forEach(tp -> paused.remove(tp.partition()));
+                return null;
+              })
+          .when(mock)
+          .resume(any());
+
+      doAnswer(
+              invocation -> {
+                synchronized (paused) {
+                  return paused
+                      .stream()
+                      .map(p -> new TopicPartition(getTopic(), p))
+                      .collect(Collectors.toSet());
+                }
+              })
+          .when(mock)
+          .paused();
+
       doAnswer(
               invocation -> {
                 TopicPartition tp = (TopicPartition) invocation.getArguments()[0];
@@ -325,6 +368,17 @@ public class LocalKafkaCommitLogDescriptor implements DataAccessorFactory {
           .when(mock)
           .commitSync((Map<TopicPartition, OffsetAndMetadata>) any());
 
+      doAnswer(
+              invocation -> {
+                Map<TopicPartition, OffsetAndMetadata> commitMap;
+                commitMap = (Map<TopicPartition, OffsetAndMetadata>) invocation.getArguments()[0];
+                commitConsumer(name, commitMap);
+                ((OffsetCommitCallback) invocation.getArguments()[1]).onComplete(commitMap, null);
+                return null;
+              })
+          .when(mock)
+          .commitAsync((Map<TopicPartition, OffsetAndMetadata>) any(), any());
+
       doAnswer(
               invocation -> {
                 Set<TopicPartition> parts = (Set<TopicPartition>) invocation.getArguments()[0];
@@ -459,7 +513,8 @@ public class LocalKafkaCommitLogDescriptor implements DataAccessorFactory {
         long period,
         ConsumerId consumerId,
         ElementSerializer<K, V> serializer,
-        @Nullable ConsumerRebalanceListener listener)
+        @Nullable ConsumerRebalanceListener listener,
+        Set<Integer> paused)
         throws InterruptedException {
 
       String name = consumerId.getName();
@@ -500,6 +555,9 @@ public class LocalKafkaCommitLogDescriptor implements DataAccessorFactory {
       int maxToPoll = getMaxPollRecords();
       for (Partition part : assignment) {
         int partition = part.getId();
+        if (paused.contains(partition)) {
+          continue;
+        }
         List<StreamElement> partitionData = written.get(partition);
         int last = partitionData.size();
         List<ConsumerRecord<K, V>> records = new ArrayList<>();
@@ -585,6 +643,12 @@ public class LocalKafkaCommitLogDescriptor implements DataAccessorFactory {
           .reduce(true, (a, b) -> a && b);
     }
 
+    @Override
+    ConfigEntry fetchCleanupPolicy() {
+      // the local topic has no configuration
+      return null;
+    }
+
     @Override
     LocalKafkaWriter newWriter() {
       return new LocalKafkaWriter(this, numPartitions, descriptorId);
@@ -724,6 +788,16 @@ public class LocalKafkaCommitLogDescriptor implements DataAccessorFactory {
       callback.commit(true, null);
     }
 
+    @Override
+    public void write(Collection<StreamElement> data, CommitCallback callback) {
+      if (data.isEmpty()) {
+        callback.commit(true, null);
+        return;
+      }
+      CommitCallback bulkCallback = CommitCallback.afterNumCommits(data.size(), callback);
+      data.forEach(element -> write(element, bulkCallback));
+    }
+
     @Override
     public Accessor getAccessor() {
       return (Accessor) accessor;
@@ -1132,7 +1132,22 @@ public class LocalKafkaCommitLogDescriptorTest implements Serializable {
 
   @Test(timeout = 10000)
   public void testObserveBulkCommitsCorrectly() throws InterruptedException {
-    Accessor accessor = kafka.createAccessor(direct, entity, storageUri, partitionsCfg(3));
+    testObserveBulkCommits(partitionsCfg(3));
+  }
+
+  @Test(timeout = 10000)
+  public void testObserveBulkCommitsAsyncWithInterval() throws InterruptedException {
+    // interval longer than the test, offsets are committed when consumption completes
+    testObserveBulkCommits(
+        and(
+            partitionsCfg(3),
+            cfg(
+                Pair.of(KafkaAccessor.COMMIT_MODE, "async"),
+                Pair.of(KafkaAccessor.COMMIT_INTERVAL_MS, "3600000"))));
+  }
+
+  private void testObserveBulkCommits(Map<String, Object> cfg) throws InterruptedException {
+    Accessor accessor = kafka.createAccessor(direct, entity, storageUri, cfg);
     LocalKafkaWriter writer = accessor.newWriter();
     CommitLogReader reader =
         accessor
@@ -2203,7 +2218,7 @@ public class LocalKafkaCommitLogDescriptorTest implements Serializable {
     assertEquals(2, res.size());
   }
 
-  @Test(timeout = 10000)
+  @Test(timeout = 30000)
   public void testCachedViewWriteAndListAll() throws InterruptedException {
     Accessor accessor =
         kafka.createAccessor(
@@ -0,0 +1,101 @@
+/**
+ * Copyright 2017-2020 O2 Czech Republic, a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.o2.proxima.direct.kafka;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Throughput benchmark of {@link OffsetCommitter#confirm}. Each thread registers a window of
+ * offsets of its own partition and confirms them in random order, as asynchronous writers do. All
+ * threads share single committer.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class OffsetCommitterBenchmark {
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder().include(OffsetCommitterBenchmark.class.getSimpleName()).build())
+        .run();
+  }
+
+  private static final int WINDOW = 1024;
+
+  @State(Scope.Benchmark)
+  public static class Shared {
+
+    final OffsetCommitter<Integer> committer = new OffsetCommitter<>();
+    final AtomicInteger partitions = new AtomicInteger();
+    final AtomicLong committed = new AtomicLong();
+  }
+
+  @State(Scope.Thread)
+  public static class Partition {
+
+    int partition;
+    long nextOffset;
+    long[] window = new long[WINDOW];
+
+    @Setup
+    public void setUp(Shared shared) {
+      partition = shared.partitions.getAndIncrement();
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(WINDOW)
+  public long confirm(Shared shared, Partition state) {
+    OffsetCommitter<Integer> committer = shared.committer;
+    long[] window = state.window;
+    for (int i = 0; i < WINDOW; i++) {
+      long offset = state.nextOffset++;
+      committer.register(state.partition, offset, 1, () -> shared.committed.lazySet(offset));
+      window[i] = offset;
+    }
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    for (int i = WINDOW - 1; i > 0; i--) {
+      int j = random.nextInt(i + 1);
+      long tmp = window[i];
+      window[i] = window[j];
+      window[j] = tmp;
+    }
+    for (long offset : window) {
+      committer.confirm(state.partition, offset);
+    }
+    return shared.committed.get();
+  }
+}
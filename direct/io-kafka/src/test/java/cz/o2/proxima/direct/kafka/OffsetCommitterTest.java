@@ -17,6 +17,13 @@ package cz.o2.proxima.direct.kafka;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import org.junit.Before;
@@ -126,4 +133,105 @@ public class OffsetCommitterTest {
     committer.confirm(id, offset);
     assertTrue(committed.get());
   }
+
+  @Test
+  public void testOutOfOrderConfirmAcrossSegments() {
+    String id = "dummy-0";
+    AtomicLong committed = new AtomicLong(-1);
+    int numOffsets = 3 * OffsetCommitter.SEGMENT_SIZE + 7;
+    List<Long> offsets = new ArrayList<>();
+    for (long offset = 0; offset < numOffsets; offset++) {
+      // leave gaps in offsets as after compaction
+      long registered = 2 * offset;
+      committer.register(id, registered, 1, () -> committed.set(registered));
+      offsets.add(registered);
+    }
+    Collections.shuffle(offsets, new Random(0));
+    long first = 0;
+    for (long offset : offsets) {
+      committer.confirm(id, offset);
+      if (offset == first) {
+        assertTrue(committed.get() >= first);
+      } else {
+        assertTrue(committed.get() < first);
+      }
+      while (first <= committed.get()) {
+        first += 2;
+      }
+    }
+    assertEquals(2 * (numOffsets - 1), committed.get());
+  }
+
+  @Test(timeout = 20000)
+  public void testConcurrentConfirm() throws InterruptedException {
+    String id = "dummy-0";
+    AtomicLong committed = new AtomicLong(-1);
+    int numOffsets = 100_000;
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    for (long offset = 0; offset < numOffsets; offset++) {
+      long registered = offset;
+      committer.register(
+          id, registered, 2, () -> committed.accumulateAndGet(registered, Math::max));
+      executor.execute(() -> committer.confirm(id, registered));
+      executor.execute(() -> committer.confirm(id, registered));
+    }
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    assertEquals(numOffsets - 1, committed.get());
+  }
+
+  @Test
+  public void testRegisterAfterSeek() {
+    String id = "dummy-0";
+    AtomicLong committed = new AtomicLong();
+    committer.register(id, 10, 1, () -> committed.set(10));
+    committer.register(id, 11, 1, () -> committed.set(11));
+    committer.register(id, 5, 1, () -> committed.set(5));
+    committer.confirm(id, 11);
+    assertEquals(0, committed.get());
+    committer.confirm(id, 5);
+    assertEquals(5, committed.get());
+  }
+
+  @Test
+  public void testClearOffset() {
+    String id = "dummy-0";
+    AtomicLong committed = new AtomicLong();
+    committer.register(id, 1, 1, () -> committed.set(1));
+    committer.register(id, 2, 1, () -> committed.set(2));
+    committer.clear(id, 1);
+    committer.confirm(id, 2);
+    assertEquals(2, committed.get());
+  }
+
+  @Test
+  public void testClearedOffsetNotCommitted() {
+    String id = "dummy-0";
+    AtomicLong committed = new AtomicLong();
+    committer.register(id, 1, 1, () -> committed.set(1));
+    committer.register(id, 2, 1, () -> committed.set(2));
+    committer.clear(id, 2);
+    // confirmation of cleared offset is ignored
+    committer.confirm(id, 2);
+    assertEquals(0, committed.get());
+    committer.confirm(id, 1);
+    assertEquals(1, committed.get());
+    assertEquals(0, committer.getPending(id));
+  }
+
+  @Test
+  public void testConfirmOfCommittedOffsetIgnored() {
+    String id = "dummy-0";
+    AtomicLong committed = new AtomicLong();
+    committer.register(id, 1, 1, () -> committed.set(1));
+    committer.confirm(id, 1);
+    assertEquals(1, committed.get());
+    committer.confirm(id, 1);
+    committer.register(id, 2, 1, () -> committed.set(2));
+    committer.confirm(id, 1);
+    assertEquals(1, committed.get());
+    assertEquals(1, committer.getPending(id));
+    committer.confirm(id, 2);
+    assertEquals(2, committed.get());
+  }
 }
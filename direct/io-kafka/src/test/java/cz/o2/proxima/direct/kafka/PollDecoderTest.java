@@ -0,0 +1,112 @@
+/**
+ * Copyright 2017-2020 O2 Czech Republic, a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.o2.proxima.direct.kafka;
+
+import static org.junit.Assert.*;
+
+import com.typesafe.config.ConfigFactory;
+import cz.o2.proxima.direct.kafka.KafkaStreamElement.KafkaStreamElementSerializer;
+import cz.o2.proxima.repository.EntityDescriptor;
+import cz.o2.proxima.repository.Repository;
+import cz.o2.proxima.storage.StreamElement;
+import cz.o2.proxima.util.Pair;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.Test;
+
+/** Test {@link PollDecoder}. */
+public class PollDecoderTest {
+
+  Repository repo = Repository.of(ConfigFactory.load("test-reference.conf").resolve());
+  EntityDescriptor gateway = repo.getEntity("gateway");
+
+  @Test
+  public void testInlineDecode() {
+    try (PollDecoder decoder = new PollDecoder(gateway, this::serializer)) {
+      checkDecoded(decoder, poll(3, 50));
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void testPipelinedDecode() {
+    try (PollDecoder decoder = new PollDecoder(gateway, this::serializer, 4, 7, 3)) {
+      checkDecoded(decoder, poll(3, 50));
+      checkDecoded(decoder, poll(1, 1));
+      assertFalse(decoder.decode(poll(0, 0)).hasNext());
+    }
+  }
+
+  @Test(timeout = 10000, expected = IllegalArgumentException.class)
+  public void testPipelinedDecodeFailure() {
+    try (PollDecoder decoder = new PollDecoder(gateway, this::failingSerializer, 2, 1, 2)) {
+      decoder.decode(poll(2, 10)).hasNext();
+    }
+  }
+
+  private void checkDecoded(PollDecoder decoder, ConsumerRecords<Object, Object> poll) {
+    Map<Integer, Long> lastOffsets = new HashMap<>();
+    int count = 0;
+    Iterator<Pair<ConsumerRecord<Object, Object>, StreamElement>> decoded = decoder.decode(poll);
+    while (decoded.hasNext()) {
+      Pair<ConsumerRecord<Object, Object>, StreamElement> next = decoded.next();
+      ConsumerRecord<Object, Object> r = next.getFirst();
+      StreamElement element = next.getSecond();
+      assertNotNull(element);
+      assertEquals(r.key(), element.getKey() + "#" + element.getAttribute());
+      long last = lastOffsets.getOrDefault(r.partition(), -1L);
+      assertEquals(last + 1, r.offset());
+      lastOffsets.put(r.partition(), r.offset());
+      count++;
+    }
+    assertEquals(poll.count(), count);
+  }
+
+  @SuppressWarnings("unchecked")
+  private ElementSerializer<Object, Object> serializer() {
+    return (ElementSerializer) new KafkaStreamElementSerializer();
+  }
+
+  @SuppressWarnings("unchecked")
+  private ElementSerializer<Object, Object> failingSerializer() {
+    return (ElementSerializer)
+        new KafkaStreamElementSerializer() {
+          @Override
+          public StreamElement read(
+              ConsumerRecord<String, byte[]> record, EntityDescriptor entityDesc) {
+            throw new IllegalArgumentException("Fail");
+          }
+        };
+  }
+
+  private ConsumerRecords<Object, Object> poll(int partitions, int recordsPerPartition) {
+    Map<TopicPartition, List<ConsumerRecord<Object, Object>>> records = new HashMap<>();
+    for (int p = 0; p < partitions; p++) {
+      List<ConsumerRecord<Object, Object>> partitionRecords = new ArrayList<>();
+      for (int i = 0; i < recordsPerPartition; i++) {
+        partitionRecords.add(
+            new ConsumerRecord<>("topic", p, i, "key" + i + "#armed", new byte[] {1}));
+      }
+      records.put(new TopicPartition("topic", p), partitionRecords);
+    }
+    return new ConsumerRecords<>(records);
+  }
+}
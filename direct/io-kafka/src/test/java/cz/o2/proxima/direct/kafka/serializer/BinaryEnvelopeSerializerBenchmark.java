@@ -0,0 +1,116 @@
+/**
+ * Copyright 2017-2020 O2 Czech Republic, a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.o2.proxima.direct.kafka.serializer;
+
+import com.typesafe.config.ConfigFactory;
+import cz.o2.proxima.direct.kafka.KafkaStreamElement.KafkaStreamElementSerializer;
+import cz.o2.proxima.repository.AttributeDescriptor;
+import cz.o2.proxima.repository.EntityDescriptor;
+import cz.o2.proxima.repository.Repository;
+import cz.o2.proxima.storage.StreamElement;
+import cz.o2.proxima.util.Pair;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Throughput benchmark of {@link BinaryEnvelopeSerializer} compared to {@link
+ * KafkaStreamElementSerializer}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BinaryEnvelopeSerializerBenchmark {
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(
+            new OptionsBuilder()
+                .include(BinaryEnvelopeSerializerBenchmark.class.getSimpleName())
+                .build())
+        .run();
+  }
+
+  @State(Scope.Thread)
+  public static class Data {
+
+    EntityDescriptor gateway;
+    StreamElement element;
+    BinaryEnvelopeSerializer binary;
+    KafkaStreamElementSerializer string;
+    ConsumerRecord<byte[], byte[]> binaryRecord;
+    ConsumerRecord<String, byte[]> stringRecord;
+
+    @Setup
+    public void setUp() {
+      Repository repo = Repository.of(ConfigFactory.load("test-reference.conf").resolve());
+      gateway = repo.getEntity("gateway");
+      AttributeDescriptor<?> device = gateway.getAttribute("device.*");
+      element =
+          StreamElement.upsert(
+              gateway,
+              device,
+              UUID.randomUUID().toString(),
+              "gateway-0123456789",
+              "device.sensor-42",
+              System.currentTimeMillis(),
+              new byte[64]);
+      binary = new BinaryEnvelopeSerializer();
+      binary.setup(gateway);
+      string = new KafkaStreamElementSerializer();
+      Pair<byte[], byte[]> binaryWritten = binary.write(element);
+      binaryRecord =
+          new ConsumerRecord<>("topic", 0, 0, binaryWritten.getFirst(), binaryWritten.getSecond());
+      Pair<String, byte[]> stringWritten = string.write(element);
+      stringRecord =
+          new ConsumerRecord<>("topic", 0, 0, stringWritten.getFirst(), stringWritten.getSecond());
+    }
+  }
+
+  @Benchmark
+  public Pair<byte[], byte[]> writeBinary(Data data) {
+    return data.binary.write(data.element);
+  }
+
+  @Benchmark
+  public Pair<String, byte[]> writeString(Data data) {
+    return data.string.write(data.element);
+  }
+
+  @Benchmark
+  public StreamElement readBinary(Data data) {
+    return data.binary.read(data.binaryRecord, data.gateway);
+  }
+
+  @Benchmark
+  public StreamElement readString(Data data) {
+    return data.string.read(data.stringRecord, data.gateway);
+  }
+}
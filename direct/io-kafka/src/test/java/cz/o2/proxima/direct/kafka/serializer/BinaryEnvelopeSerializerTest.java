@@ -0,0 +1,229 @@
+/**
+ * Copyright 2017-2020 O2 Czech Republic, a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.o2.proxima.direct.kafka.serializer;
+
+import static org.junit.Assert.*;
+
+import com.typesafe.config.ConfigFactory;
+import cz.o2.proxima.direct.kafka.KafkaStreamElement.KafkaStreamElementSerializer;
+import cz.o2.proxima.repository.AttributeDescriptor;
+import cz.o2.proxima.repository.EntityDescriptor;
+import cz.o2.proxima.repository.Repository;
+import cz.o2.proxima.storage.StreamElement;
+import cz.o2.proxima.util.Pair;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.record.TimestampType;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Test {@link BinaryEnvelopeSerializer}. */
+public class BinaryEnvelopeSerializerTest {
+
+  final Repository repo = Repository.of(ConfigFactory.load("test-reference.conf").resolve());
+  final EntityDescriptor gateway = repo.getEntity("gateway");
+  final AttributeDescriptor<?> armed = gateway.getAttribute("armed");
+  final AttributeDescriptor<?> device = gateway.getAttribute("device.*");
+  final long now = System.currentTimeMillis();
+
+  BinaryEnvelopeSerializer serializer;
+
+  @Before
+  public void setUp() {
+    serializer = new BinaryEnvelopeSerializer();
+    serializer.setup(gateway);
+  }
+
+  @Test
+  public void testUpsertRoundTrip() {
+    StreamElement element =
+        StreamElement.upsert(
+            gateway,
+            armed,
+            UUID.randomUUID().toString(),
+            "key",
+            armed.getName(),
+            now,
+            new byte[] {1, 2});
+    assertRoundTrip(element);
+  }
+
+  @Test
+  public void testWildcardRoundTrip() {
+    assertRoundTrip(
+        StreamElement.upsert(
+            gateway,
+            device,
+            UUID.randomUUID().toString(),
+            "key",
+            "device.čeština",
+            now,
+            new byte[] {1}));
+  }
+
+  @Test
+  public void testDeleteIsTombstone() {
+    for (StreamElement delete :
+        Arrays.asList(
+            StreamElement.delete(
+                gateway, armed, UUID.randomUUID().toString(), "key", armed.getName(), now),
+            StreamElement.delete(
+                gateway, device, UUID.randomUUID().toString(), "key", "device.1", now))) {
+      Pair<byte[], byte[]> written = serializer.write(delete);
+      assertNull(written.getSecond());
+      StreamElement read = read(written.getFirst(), null);
+      assertNotNull(read);
+      assertTrue(read.isDelete());
+      assertFalse(read.isDeleteWildcard());
+      // UUID of tombstone is derived from position of the record
+      assertEquals("topic#0#0", read.getUuid());
+      assertEquals(delete.getKey(), read.getKey());
+      assertEquals(delete.getAttribute(), read.getAttribute());
+      assertEquals(delete.getAttributeDescriptor(), read.getAttributeDescriptor());
+      assertEquals(delete.getStamp(), read.getStamp());
+    }
+  }
+
+  @Test
+  public void testDeleteWildcardRoundTrip() {
+    StreamElement read =
+        assertRoundTrip(
+            StreamElement.deleteWildcard(
+                gateway, device, UUID.randomUUID().toString(), "key", now));
+    assertTrue(read.isDeleteWildcard());
+  }
+
+  @Test
+  public void testNonCanonicalUuidRoundTrip() {
+    assertRoundTrip(
+        StreamElement.upsert(
+            gateway, armed, "my-uuid", "key", armed.getName(), now, new byte[] {1}));
+    assertRoundTrip(
+        StreamElement.upsert(
+            gateway,
+            armed,
+            UUID.randomUUID().toString().toUpperCase(),
+            "key",
+            armed.getName(),
+            now,
+            new byte[] {1}));
+  }
+
+  @Test
+  public void testKeySmallerThanDefault() {
+    StreamElement element =
+        StreamElement.upsert(
+            gateway,
+            armed,
+            UUID.randomUUID().toString(),
+            "gateway-0123456789",
+            armed.getName(),
+            now,
+            new byte[] {1});
+    byte[] key = serializer.write(element).getFirst();
+    byte[] defaultKey =
+        new KafkaStreamElementSerializer()
+            .write(element)
+            .getFirst()
+            .getBytes(StandardCharsets.UTF_8);
+    assertTrue(
+        "Expected " + key.length + " to be less than " + defaultKey.length,
+        key.length < defaultKey.length);
+  }
+
+  @Test
+  public void testTruncatedRecord() {
+    Pair<byte[], byte[]> written =
+        serializer.write(
+            StreamElement.upsert(
+                gateway,
+                armed,
+                UUID.randomUUID().toString(),
+                "key",
+                armed.getName(),
+                now,
+                new byte[] {1}));
+    byte[] key = written.getFirst();
+    byte[] value = written.getSecond();
+    assertNull(read(Arrays.copyOf(key, key.length - 2), value));
+    assertNull(read(key, Arrays.copyOf(value, 5)));
+    assertNull(read(null, value));
+    assertNull(read(new byte[] {0, 127}, value));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testWriteForeignAttribute() {
+    AttributeDescriptor<?> data = repo.getEntity("event").getAttribute("data");
+    serializer.write(
+        StreamElement.upsert(gateway, data, "uuid", "key", data.getName(), now, new byte[] {1}));
+  }
+
+  @Test
+  public void testAttributeIdDependsOnlyOnName() {
+    byte[] key =
+        serializer
+            .write(
+                StreamElement.upsert(
+                    gateway, armed, "uuid", "", armed.getName(), now, new byte[] {1}))
+            .getFirst();
+    int id = BinaryEnvelopeSerializer.attributeId(armed.getName());
+    assertEquals(id, BinaryEnvelopeSerializer.attributeId("armed"));
+    assertTrue(id >= 0);
+    // empty entity key is followed by varint id of the attribute
+    byte[] expected = new byte[1 + BinaryEnvelopeSerializer.sizeOfVarLong(id)];
+    int pos = 1;
+    for (long value = id; ; value >>>= 7) {
+      if ((value & ~0x7FL) == 0) {
+        expected[pos] = (byte) value;
+        break;
+      }
+      expected[pos++] = (byte) ((value & 0x7F) | 0x80);
+    }
+    assertArrayEquals(expected, key);
+  }
+
+  @Test
+  public void testVarLongSize() {
+    assertEquals(1, BinaryEnvelopeSerializer.sizeOfVarLong(0));
+    assertEquals(1, BinaryEnvelopeSerializer.sizeOfVarLong(127));
+    assertEquals(2, BinaryEnvelopeSerializer.sizeOfVarLong(128));
+    assertEquals(6, BinaryEnvelopeSerializer.sizeOfVarLong(now));
+    assertEquals(10, BinaryEnvelopeSerializer.sizeOfVarLong(-1));
+  }
+
+  private StreamElement assertRoundTrip(StreamElement element) {
+    Pair<byte[], byte[]> written = serializer.write(element);
+    StreamElement read = read(written.getFirst(), written.getSecond());
+    assertNotNull(read);
+    assertEquals(element.getUuid(), read.getUuid());
+    assertEquals(element.getKey(), read.getKey());
+    assertEquals(element.getAttribute(), read.getAttribute());
+    assertEquals(element.getAttributeDescriptor(), read.getAttributeDescriptor());
+    assertEquals(element.getStamp(), read.getStamp());
+    assertEquals(element.isDelete(), read.isDelete());
+    assertEquals(element.isDeleteWildcard(), read.isDeleteWildcard());
+    assertArrayEquals(element.getValue(), read.getValue());
+    return read;
+  }
+
+  private StreamElement read(byte[] key, byte[] value) {
+    return serializer.read(
+        new ConsumerRecord<>("topic", 0, 0, now, TimestampType.CREATE_TIME, 0L, 0, 0, key, value),
+        gateway);
+  }
+}